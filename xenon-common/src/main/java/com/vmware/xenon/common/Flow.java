@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+/**
+ * Interfaces for flow controlled streams, in which a {@link Publisher} emits items to a
+ * {@link Subscriber} only as they are requested through a {@link Subscription}.
+ *
+ * The interfaces have the same signatures and rules as the reactive streams interfaces of
+ * {@code java.util.concurrent.Flow}, which is not available on Java 8
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    @FunctionalInterface
+    public interface Publisher<T> {
+        /**
+         * Adds the subscriber. The subscriber is signaled {@link Subscriber#onSubscribe}, and
+         * then items as it requests them, until completion, failure or cancellation
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        /**
+         * Invoked once, before any other method. No item is emitted until the subscriber requests
+         * items through the subscription
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Invoked with the next item, never more times than the items requested
+         */
+        void onNext(T item);
+
+        /**
+         * Invoked on failure, after which no other method is invoked
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Invoked when no more items will be emitted, after which no other method is invoked
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Adds n items to the unfulfilled demand of the subscriber. If n is not positive, the
+         * subscriber is signaled {@link Subscriber#onError} with an
+         * {@link IllegalArgumentException}
+         */
+        void request(long n);
+
+        /**
+         * Stops emitting items to the subscriber, eventually. Items may still be emitted for
+         * previous demand
+         */
+        void cancel();
+    }
+}
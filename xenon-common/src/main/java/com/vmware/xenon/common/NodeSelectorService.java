@@ -32,6 +32,8 @@ public interface NodeSelectorService extends Service {
     public static final String STAT_NAME_QUEUED_REQUEST_COUNT = "queuedRequestCount";
     public static final String STAT_NAME_LIMIT_EXCEEDED_FAILED_REQUEST_COUNT = "limitExceededFailedRequestCount";
     public static final String STAT_NAME_SYNCHRONIZATION_COUNT = "synchronizationCount";
+    public static final String STAT_NAME_REPLICATION_BATCH_COUNT = "replicationBatchCount";
+    public static final String STAT_NAME_REPLICATION_BATCH_ENTRY_COUNT = "replicationBatchEntryCount";
 
     public static final OperationOption FORWARDING_OPERATION_OPTION = getOperationOption(
             "NodeSelectorService.FORWARDING_OPERATION_OPTION", OperationOption.CONNECTION_SHARING);
@@ -17,6 +17,7 @@ import static java.lang.String.format;
 
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -28,6 +29,7 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import javax.security.cert.X509Certificate;
 
@@ -55,6 +57,30 @@ public class Operation implements Cloneable {
         void handle(Operation completedOp, Throwable failure);
     }
 
+    /**
+     * Chunked access to the body of an HTTP/1.1 request and its response, for paths registered
+     * with {@link ServiceHost#registerStreamingBodyPath(String)}. The listener reads the next
+     * chunk from the connection only when it is requested, and a write completes only when the
+     * connection can accept more data, so large bodies are not buffered in memory
+     */
+    public interface StreamingBody {
+        /**
+         * Reads the next chunk of the request body. The handler is called once, with the chunk,
+         * with a null chunk at the end of the body, or with a failure. The chunk is only valid
+         * while the handler runs
+         */
+        void readChunk(BiConsumer<ByteBuffer, Throwable> handler);
+
+        /**
+         * Writes a chunk of the response body. The first chunk sends the response headers, with
+         * the operation status code and content type, and chunked transfer encoding. The handler
+         * is called once the chunk is written and the connection is writable, with null or a
+         * failure. The chunk must not be modified until then. Completing the operation ends
+         * the response body
+         */
+        void writeChunk(ByteBuffer chunk, Consumer<Throwable> handler);
+    }
+
     public static class SocketContext {
         private long lastUseTimeMicros;
 
@@ -522,6 +548,14 @@ public class Operation implements Cloneable {
      */
     public static final String PRAGMA_DIRECTIVE_SYNCH_PEER = "xn-synch-peer";
 
+    /**
+     * Infrastructure use only. Set by the Synchronization task, along with
+     * {@link #PRAGMA_DIRECTIVE_SYNCH_OWNER}, when the digests of a service instance in the
+     * index of all peer nodes are equal. The owner skips the peer state comparison if its
+     * local state is owned by it.
+     */
+    public static final String PRAGMA_DIRECTIVE_SYNCH_PEERS_AGREE = "xn-synch-peers-agree";
+
     /**
      * Advanced use. Instructs the runtime to queue a request, for a service to become available
      * independent of the service options.
@@ -685,6 +719,8 @@ public class Operation implements Cloneable {
 
     private volatile Consumer<Operation> headersReceivedHandler;
 
+    private StreamingBody streamingBody;
+
     public static Operation create(SerializedOperation ctx, ServiceHost host) {
         Operation op = new Operation();
         op.action = ctx.action;
@@ -1250,6 +1286,25 @@ public class Operation implements Cloneable {
         return this.remoteCtx == null ? null : this.remoteCtx.socketCtx;
     }
 
+    /**
+     * Infrastructure use only. Set by the HTTP listener on requests received on a streaming
+     * body path
+     */
+    public Operation setStreamingBody(StreamingBody streamingBody) {
+        this.streamingBody = streamingBody;
+        return this;
+    }
+
+    /**
+     * Returns the streaming body of a remote request to a path registered with
+     * {@link ServiceHost#registerStreamingBodyPath(String)}, null otherwise. The body of such
+     * requests is not decoded: it must be read, and the response written, through the streaming
+     * body. Requests received over HTTP/2 are always aggregated, and have no streaming body
+     */
+    public StreamingBody getStreamingBody() {
+        return this.streamingBody;
+    }
+
     public long getExpirationMicrosUtc() {
         return this.expirationMicrosUtc;
     }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Operation.InstrumentationContext;
+import com.vmware.xenon.common.Service.Action;
+
+/**
+ * Records fixed size trace records of completed operations in per thread ring buffers. Each ring
+ * is written only by its owning thread, without locks or allocations beyond the completion
+ * wrapper of a sampled operation. When a ring is full, the oldest records are overwritten.
+ * The ring of a thread that has terminated is removed once its records are drained.
+ *
+ * Time stamps are in microseconds of the monotonic clock used by operation instrumentation, so
+ * they are comparable to each other within a host, but not to wall clock time.
+ */
+public final class OperationTraceBuffer {
+
+    public static final String PROPERTY_NAME_RECORD_COUNT_PER_THREAD = Utils.PROPERTY_NAME_PREFIX
+            + "OperationTraceBuffer.recordCountPerThread";
+
+    /**
+     * Number of records each thread ring holds, rounded up to a power of two
+     */
+    public static final int DEFAULT_RECORD_COUNT_PER_THREAD = Integer.getInteger(
+            PROPERTY_NAME_RECORD_COUNT_PER_THREAD, 1024);
+
+    public static class OperationTraceRecord {
+        public String path;
+        public Action action;
+        public int statusCode;
+        public boolean isInbound;
+        public long startTimeMicros;
+        public long enqueueTimeMicros;
+        public long handlerInvokeTimeMicros;
+        public long handlerCompletionTimeMicros;
+        public long documentStoreCompletionTimeMicros;
+        public long completionTimeMicros;
+        public long requestContentLength;
+        public long responseContentLength;
+    }
+
+    private static final class Ring {
+        final WeakReference<Thread> owner;
+        final int mask;
+        final String[] paths;
+        final Action[] actions;
+        final int[] statusCodes;
+        final boolean[] isInbound;
+        final long[] startTimes;
+        final long[] enqueueTimes;
+        final long[] handlerInvokeTimes;
+        final long[] handlerCompletionTimes;
+        final long[] documentStoreCompletionTimes;
+        final long[] completionTimes;
+        final long[] requestContentLengths;
+        final long[] responseContentLengths;
+
+        /**
+         * Number of records written. Updated only by the owning thread, and published after
+         * the record fields are written
+         */
+        final AtomicLong writeCount = new AtomicLong();
+
+        /**
+         * Number of records drained. Accessed only by readers, under the buffer lock
+         */
+        long readCount;
+
+        /**
+         * Sampling counter. Accessed only by the owning thread
+         */
+        long traceCount;
+
+        Ring(Thread owner, int capacity) {
+            this.owner = new WeakReference<>(owner);
+            this.mask = capacity - 1;
+            this.paths = new String[capacity];
+            this.actions = new Action[capacity];
+            this.statusCodes = new int[capacity];
+            this.isInbound = new boolean[capacity];
+            this.startTimes = new long[capacity];
+            this.enqueueTimes = new long[capacity];
+            this.handlerInvokeTimes = new long[capacity];
+            this.handlerCompletionTimes = new long[capacity];
+            this.documentStoreCompletionTimes = new long[capacity];
+            this.completionTimes = new long[capacity];
+            this.requestContentLengths = new long[capacity];
+            this.responseContentLengths = new long[capacity];
+        }
+
+        int capacity() {
+            return this.mask + 1;
+        }
+
+        boolean isOwnerAlive() {
+            Thread t = this.owner.get();
+            return t != null && t.isAlive();
+        }
+
+        void write(String path, Action action, boolean isInbound, long startTimeMicros,
+                long requestContentLength, Operation o) {
+            long seq = this.writeCount.get();
+            int i = (int) (seq & this.mask);
+            this.paths[i] = path;
+            this.actions[i] = action;
+            this.statusCodes[i] = o.getStatusCode();
+            this.isInbound[i] = isInbound;
+            this.startTimes[i] = startTimeMicros;
+            this.completionTimes[i] = System.nanoTime() / 1000;
+            this.requestContentLengths[i] = requestContentLength;
+            this.responseContentLengths[i] = o.getContentLength();
+            InstrumentationContext ctx = o.getInstrumentationContext();
+            if (ctx != null) {
+                this.enqueueTimes[i] = ctx.enqueueTimeMicros;
+                this.handlerInvokeTimes[i] = ctx.handleInvokeTimeMicros;
+                this.handlerCompletionTimes[i] = ctx.handlerCompletionTimeMicros;
+                this.documentStoreCompletionTimes[i] = ctx.documentStoreCompletionTimeMicros;
+            } else {
+                this.enqueueTimes[i] = 0;
+                this.handlerInvokeTimes[i] = 0;
+                this.handlerCompletionTimes[i] = 0;
+                this.documentStoreCompletionTimes[i] = 0;
+            }
+            this.writeCount.lazySet(seq + 1);
+        }
+
+        OperationTraceRecord read(long seq) {
+            int i = (int) (seq & this.mask);
+            OperationTraceRecord r = new OperationTraceRecord();
+            r.path = this.paths[i];
+            r.action = this.actions[i];
+            r.statusCode = this.statusCodes[i];
+            r.isInbound = this.isInbound[i];
+            r.startTimeMicros = this.startTimes[i];
+            r.enqueueTimeMicros = this.enqueueTimes[i];
+            r.handlerInvokeTimeMicros = this.handlerInvokeTimes[i];
+            r.handlerCompletionTimeMicros = this.handlerCompletionTimes[i];
+            r.documentStoreCompletionTimeMicros = this.documentStoreCompletionTimes[i];
+            r.completionTimeMicros = this.completionTimes[i];
+            r.requestContentLength = this.requestContentLengths[i];
+            r.responseContentLength = this.responseContentLengths[i];
+            return r;
+        }
+    }
+
+    private final int recordCountPerThread;
+
+    private final int sampleInterval;
+
+    private final ConcurrentLinkedQueue<Ring> rings = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Ring> threadRing;
+
+    private long droppedRecordCount;
+
+    /**
+     * Creates a trace buffer that records one of every {@code sampleInterval} operations traced
+     * on a thread, in rings of {@code recordCountPerThread} records
+     */
+    public OperationTraceBuffer(int recordCountPerThread, int sampleInterval) {
+        if (recordCountPerThread <= 0) {
+            throw new IllegalArgumentException("recordCountPerThread must be positive");
+        }
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("sampleInterval must be positive");
+        }
+        int capacity = Integer.highestOneBit(recordCountPerThread);
+        this.recordCountPerThread = capacity == recordCountPerThread ? capacity : capacity << 1;
+        this.sampleInterval = sampleInterval;
+        this.threadRing = ThreadLocal.withInitial(() -> {
+            Ring r = new Ring(Thread.currentThread(), this.recordCountPerThread);
+            this.rings.add(r);
+            return r;
+        });
+    }
+
+    public int getRecordCountPerThread() {
+        return this.recordCountPerThread;
+    }
+
+    public int getSampleInterval() {
+        return this.sampleInterval;
+    }
+
+    /**
+     * Wraps the operation completion, so a trace record is written when the operation completes.
+     * Only one of every sample interval operations traced on the calling thread is recorded
+     */
+    void trace(Operation op, boolean isInbound) {
+        if (this.sampleInterval > 1
+                && this.threadRing.get().traceCount++ % this.sampleInterval != 0) {
+            return;
+        }
+
+        String path = op.getUri().getPath();
+        Action action = op.getAction();
+        long startTimeMicros = System.nanoTime() / 1000;
+        long requestContentLength = op.getContentLength();
+        CompletionHandler c = op.getCompletion();
+        op.setCompletion((o, e) -> {
+            this.threadRing.get().write(path, action, isInbound, startTimeMicros,
+                    requestContentLength, o);
+            if (c != null) {
+                c.handle(o, e);
+            }
+        });
+    }
+
+    /**
+     * Returns the records not yet drained, from all threads. If drain is set, the returned
+     * records are not returned again, and the rings of terminated threads are removed
+     */
+    public synchronized List<OperationTraceRecord> snapshot(boolean drain) {
+        List<OperationTraceRecord> records = new ArrayList<>();
+        for (Iterator<Ring> it = this.rings.iterator(); it.hasNext();) {
+            Ring r = it.next();
+            // a terminated owner no longer writes, so the ring can be removed once drained
+            boolean isOwnerAlive = r.isOwnerAlive();
+            long end = r.writeCount.get();
+            long start = Math.max(r.readCount, end - r.capacity());
+            List<OperationTraceRecord> ringRecords = new ArrayList<>((int) (end - start));
+            for (long seq = start; seq < end; seq++) {
+                ringRecords.add(r.read(seq));
+            }
+
+            // records the owner thread started overwriting while we were copying are dropped
+            long firstValid = r.writeCount.get() - r.capacity() + 1;
+            int skipped = (int) Math.max(0, Math.min(firstValid - start, ringRecords.size()));
+            records.addAll(ringRecords.subList(skipped, ringRecords.size()));
+
+            if (drain) {
+                this.droppedRecordCount += Math.max(0, start - r.readCount) + skipped;
+                r.readCount = end;
+                if (!isOwnerAlive) {
+                    it.remove();
+                }
+            }
+        }
+        return records;
+    }
+
+    int getRingCount() {
+        return this.rings.size();
+    }
+
+    /**
+     * Returns the number of records overwritten before they were drained
+     */
+    public synchronized long getDroppedRecordCount() {
+        return this.droppedRecordCount;
+    }
+}
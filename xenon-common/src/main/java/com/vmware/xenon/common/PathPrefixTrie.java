@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable character trie of string prefixes. A path matches if any prefix is a prefix of the
+ * path, equivalent to calling {@link String#startsWith(String)} for every prefix, but in time
+ * proportional to the length of the longest matching prefix.
+ */
+final class PathPrefixTrie {
+
+    private static final class Node {
+        char[] keys = new char[0];
+
+        Node[] children = new Node[0];
+
+        boolean isTerminal;
+
+        Node getChild(char c) {
+            char[] k = this.keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = getChild(c);
+            if (child != null) {
+                return child;
+            }
+            child = new Node();
+            int length = this.keys.length;
+            this.keys = Arrays.copyOf(this.keys, length + 1);
+            this.children = Arrays.copyOf(this.children, length + 1);
+            this.keys[length] = c;
+            this.children[length] = child;
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+
+    PathPrefixTrie(Collection<String> prefixes) {
+        for (String prefix : prefixes) {
+            Node n = this.root;
+            for (int i = 0; i < prefix.length(); i++) {
+                n = n.addChild(prefix.charAt(i));
+            }
+            n.isTerminal = true;
+        }
+    }
+
+    boolean matches(String path) {
+        Node n = this.root;
+        if (n.isTerminal) {
+            return true;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            n = n.getChild(path.charAt(i));
+            if (n == null) {
+                return false;
+            }
+            if (n.isTerminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+/**
+ * Publishes the documents matching a query, walking the result pages as the subscriber requests
+ * documents. At most two pages are held in memory per subscription: the page being emitted, and
+ * the next one, which is retrieved while the current one is consumed.
+ *
+ * The query runs once per subscription, when the subscriber first requests documents. Result
+ * pages are {@link QueryOption#SINGLE_USE}, so the index searcher backing the query is released
+ * after the last page, or when the subscription is cancelled.
+ *
+ * Example usage:
+ *
+ *<pre>
+ *  QueryTask queryTask = QueryTask.Builder.createDirectTask()
+ *          .setQuery(Query.Builder.create()
+ *                  .addKindFieldClause(ExampleServiceState.class)
+ *                  .build())
+ *          .setResultLimit(1000)
+ *          .build();
+ *
+ *  QueryResultsPublisher.create(this, ExampleServiceState.class, queryTask)
+ *          .subscribe(new Flow.Subscriber&lt;ExampleServiceState&gt;() {
+ *              ...
+ *          });
+ * </pre>
+ */
+public final class QueryResultsPublisher<T extends ServiceDocument> implements Flow.Publisher<T> {
+
+    private final Class<T> type;
+    private final ServiceHost host;
+    private final ServiceRequestSender sender;
+    private final QueryTask queryTask;
+    private URI baseUri;
+
+    private QueryResultsPublisher(Class<T> type, ServiceHost host, ServiceRequestSender sender,
+            QueryTask queryTask) {
+        if (type == null) {
+            throw new IllegalArgumentException("'type' is required");
+        }
+        if (queryTask == null || queryTask.querySpec == null) {
+            throw new IllegalArgumentException("'queryTask' with querySpec is required");
+        }
+        if (queryTask.querySpec.options.contains(QueryOption.COUNT)
+                || queryTask.querySpec.options.contains(QueryOption.GROUP_BY)) {
+            throw new IllegalArgumentException("COUNT and GROUP_BY queries are not supported");
+        }
+        this.type = type;
+        this.host = host;
+        this.sender = sender;
+        this.queryTask = queryTask;
+        this.baseUri = host.getUri();
+    }
+
+    /**
+     * Creates a publisher that sends query requests through the given service
+     */
+    public static <T extends ServiceDocument> QueryResultsPublisher<T> create(Service service,
+            Class<T> type, QueryTask queryTask) {
+        if (service == null) {
+            throw new IllegalArgumentException("'service' is required");
+        }
+        return new QueryResultsPublisher<>(type, service.getHost(), service, queryTask);
+    }
+
+    /**
+     * Creates a publisher that sends query requests through the given host
+     */
+    public static <T extends ServiceDocument> QueryResultsPublisher<T> create(ServiceHost host,
+            Class<T> type, QueryTask queryTask) {
+        if (host == null) {
+            throw new IllegalArgumentException("'host' is required");
+        }
+        return new QueryResultsPublisher<>(type, host, host, queryTask);
+    }
+
+    /**
+     * Sets the base URI of the host running the query. Defaults to the local host
+     */
+    public QueryResultsPublisher<T> setBaseUri(URI baseUri) {
+        if (baseUri == null) {
+            throw new IllegalArgumentException("'baseUri' is required");
+        }
+        this.baseUri = baseUri;
+        return this;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        QueryResultsSubscription s = new QueryResultsSubscription(subscriber);
+        subscriber.onSubscribe(s);
+    }
+
+    private QueryTask createQueryTask() {
+        QueryTask task = Utils.clone(this.queryTask);
+        task.taskInfo.isDirect = true;
+        task.querySpec.options.add(QueryOption.EXPAND_CONTENT);
+        task.querySpec.options.add(QueryOption.SINGLE_USE);
+        if (task.querySpec.resultLimit == null) {
+            task.querySpec.resultLimit = QueryTaskClientHelper.DEFAULT_QUERY_RESULT_LIMIT;
+        }
+        if (task.documentExpirationTimeMicros == 0) {
+            task.documentExpirationTimeMicros = QueryTaskClientHelper.getDefaultQueryExpiration();
+        }
+        return task;
+    }
+
+    /**
+     * A page of results, with its documents in result order
+     */
+    private static final class Page {
+        final List<String> documentLinks;
+        final QueryResultsProcessor processor;
+        final String nextPageLink;
+
+        Page(ServiceDocumentQueryResult results) {
+            this.documentLinks = results.documentLinks != null ? results.documentLinks
+                    : Collections.emptyList();
+            this.processor = QueryResultsProcessor.create(results);
+            this.nextPageLink = results.nextPageLink;
+        }
+    }
+
+    /**
+     * Emits documents to one subscriber. Signals to the subscriber are serialized by the drain
+     * loop: whichever thread increments the work counter from zero emits, and other threads only
+     * record that there is more work
+     */
+    private final class QueryResultsSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean isStarted = new AtomicBoolean();
+
+        /**
+         * Page retrieved ahead of the current one, handed over to the drain loop
+         */
+        private volatile Page fetchedPage;
+        private volatile boolean isFetching;
+        private volatile Throwable failure;
+        private volatile boolean isCancelled;
+
+        /**
+         * Accessed only by the drain loop
+         */
+        private Page currentPage;
+        private int currentIndex;
+        private boolean isDone;
+
+        QueryResultsSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                this.failure = new IllegalArgumentException("request count must be positive: " + n);
+                drain();
+                return;
+            }
+
+            this.requested.getAndUpdate((r) -> r + n < 0 ? Long.MAX_VALUE : r + n);
+            if (this.isCancelled) {
+                return;
+            }
+            if (this.isStarted.compareAndSet(false, true)) {
+                this.isFetching = true;
+                sendQuery();
+                return;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            this.isCancelled = true;
+            drain();
+        }
+
+        private void sendQuery() {
+            QueryTask task = createQueryTask();
+            URI factoryUri = UriUtils.extendUri(QueryResultsPublisher.this.baseUri,
+                    ServiceUriPaths.CORE_QUERY_TASKS);
+            QueryResultsPublisher.this.sender.sendRequest(Operation.createPost(factoryUri)
+                    .setBody(task)
+                    .setReferer(QueryResultsPublisher.this.host.getUri())
+                    .setCompletion(this::handlePage));
+        }
+
+        private void fetchPage(String pageLink) {
+            this.isFetching = true;
+            URI pageUri = UriUtils.extendUri(QueryResultsPublisher.this.baseUri, pageLink);
+            QueryResultsPublisher.this.sender.sendRequest(Operation.createGet(pageUri)
+                    .setReferer(QueryResultsPublisher.this.host.getUri())
+                    .setCompletion(this::handlePage));
+        }
+
+        private void handlePage(Operation o, Throwable e) {
+            if (e == null) {
+                try {
+                    QueryTask rsp = o.getBody(QueryTask.class);
+                    if (TaskState.isFailed(rsp.taskInfo)) {
+                        e = new IllegalStateException(rsp.taskInfo.failure.message);
+                    } else if (rsp.results == null) {
+                        e = new IllegalStateException("Query response has no results");
+                    } else {
+                        this.fetchedPage = new Page(rsp.results);
+                    }
+                } catch (Throwable ex) {
+                    e = ex;
+                }
+            }
+            if (e != null) {
+                this.failure = e;
+            }
+
+            // publish the page before clearing the flag, see isComplete()
+            this.isFetching = false;
+            drain();
+        }
+
+        /**
+         * Releases the index resources of the result pages not yet retrieved
+         */
+        private void releasePages() {
+            Page page = this.fetchedPage;
+            this.fetchedPage = null;
+            if (page == null || page.nextPageLink == null) {
+                return;
+            }
+            URI pageUri = UriUtils.extendUri(QueryResultsPublisher.this.baseUri,
+                    page.nextPageLink);
+            QueryResultsPublisher.this.sender.sendRequest(Operation.createDelete(pageUri)
+                    .setReferer(QueryResultsPublisher.this.host.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            QueryResultsPublisher.this.host.log(Level.FINE,
+                                    "Failed to release query page %s: %s", page.nextPageLink,
+                                    e.toString());
+                        }
+                    }));
+        }
+
+        private boolean isCurrentPageConsumed() {
+            return this.currentPage == null
+                    || this.currentIndex >= this.currentPage.documentLinks.size();
+        }
+
+        private boolean isComplete() {
+            if (!this.isStarted.get()) {
+                return false;
+            }
+            // read the flag before the page, so a page published by a completed fetch is seen
+            if (this.isFetching || this.fetchedPage != null) {
+                return false;
+            }
+            return this.currentPage != null && this.currentPage.nextPageLink == null
+                    && isCurrentPageConsumed();
+        }
+
+        private void drain() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            do {
+                if (this.isDone) {
+                    // a fetch in flight at cancellation may have completed since
+                    releasePages();
+                } else if (this.isCancelled) {
+                    this.isDone = true;
+                    this.currentPage = null;
+                    releasePages();
+                } else {
+                    emit();
+                }
+                missed = this.wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            long r = this.requested.get();
+            long emitted = 0;
+            while (emitted != r) {
+                if (this.isCancelled || this.failure != null) {
+                    break;
+                }
+
+                if (isCurrentPageConsumed()) {
+                    Page next = this.fetchedPage;
+                    if (next == null) {
+                        break;
+                    }
+                    this.fetchedPage = null;
+                    this.currentPage = next;
+                    this.currentIndex = 0;
+                    if (next.nextPageLink != null) {
+                        // retrieve the next page while this one is consumed
+                        fetchPage(next.nextPageLink);
+                    }
+                    continue;
+                }
+
+                String link = this.currentPage.documentLinks.get(this.currentIndex++);
+                T document = this.currentPage.processor.document(link,
+                        QueryResultsPublisher.this.type);
+                if (document == null) {
+                    continue;
+                }
+                this.subscriber.onNext(document);
+                emitted++;
+            }
+
+            if (emitted != 0 && r != Long.MAX_VALUE) {
+                this.requested.addAndGet(-emitted);
+            }
+
+            if (this.isCancelled) {
+                return;
+            }
+
+            Throwable e = this.failure;
+            if (e != null) {
+                this.isDone = true;
+                this.isCancelled = true;
+                this.currentPage = null;
+                releasePages();
+                this.subscriber.onError(e);
+                return;
+            }
+
+            if (isComplete()) {
+                this.isDone = true;
+                this.isCancelled = true;
+                this.currentPage = null;
+                this.subscriber.onComplete();
+            }
+        }
+    }
+}
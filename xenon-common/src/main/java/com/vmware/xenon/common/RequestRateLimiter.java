@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vmware.xenon.common.ServiceHost.RequestRateInfo;
+import com.vmware.xenon.common.ServiceHost.RequestRateInfo.Option;
+
+/**
+ * Token bucket rate limiter for the requests associated with a rate limit key, implemented as a
+ * generic cell rate algorithm: a single atomic holds the theoretical arrival time of the next
+ * request, so admitting a request is one compare and set, without locks.
+ *
+ * The limit of {@link RequestRateInfo} applies to the bin duration of its time series. Up to
+ * burst size requests are admitted at once, after the key was idle long enough
+ */
+public final class RequestRateLimiter {
+
+    private final RequestRateInfo requestRateInfo;
+
+    private final long emissionIntervalNanos;
+
+    private final long burstToleranceNanos;
+
+    private final AtomicLong theoreticalArrivalNanos;
+
+    private final LongAdder admittedCount = new LongAdder();
+
+    private final LongAdder throttledCount = new LongAdder();
+
+    private volatile int nodeCount = 1;
+
+    RequestRateLimiter(RequestRateInfo requestRateInfo) {
+        this.requestRateInfo = requestRateInfo;
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(
+                requestRateInfo.timeSeries.binDurationMillis);
+        this.emissionIntervalNanos = Math.max(1, (long) (windowNanos / requestRateInfo.limit));
+        double burstSize = requestRateInfo.burstSize > 0 ? requestRateInfo.burstSize
+                : Math.max(1, requestRateInfo.limit);
+        this.burstToleranceNanos = (long) (this.emissionIntervalNanos * burstSize);
+        this.theoreticalArrivalNanos = new AtomicLong(System.nanoTime());
+    }
+
+    RequestRateInfo getRequestRateInfo() {
+        return this.requestRateInfo;
+    }
+
+    public boolean hasOption(Option option) {
+        return this.requestRateInfo.options.contains(option);
+    }
+
+    /**
+     * Returns true if the limit applies to requests for the given path
+     */
+    public boolean isApplicable(String path) {
+        String pathPrefix = this.requestRateInfo.pathPrefix;
+        return pathPrefix == null || (path != null && path.startsWith(pathPrefix));
+    }
+
+    /**
+     * Sets the number of node group members the limit is split across, if the
+     * {@link Option#SPLIT_ACROSS_NODE_GROUP} option is set
+     */
+    void setNodeCount(int nodeCount) {
+        this.nodeCount = Math.max(1, nodeCount);
+    }
+
+    /**
+     * Consumes a token, if one is available. Returns false if the request exceeds the limit.
+     * When the limit is split across the node group, both the rate and the burst size are
+     * divided by the node count
+     */
+    public boolean tryAcquire() {
+        long interval = this.emissionIntervalNanos;
+        if (hasOption(Option.SPLIT_ACROSS_NODE_GROUP)) {
+            interval *= this.nodeCount;
+        }
+        // at least one request is admitted per interval, even if the split burst size is less
+        long tolerance = Math.max(this.burstToleranceNanos, interval);
+
+        while (true) {
+            long now = System.nanoTime();
+            long tat = this.theoreticalArrivalNanos.get();
+            long newTat = (tat - now < 0 ? now : tat) + interval;
+            if (newTat - now > tolerance) {
+                this.throttledCount.increment();
+                return false;
+            }
+            if (this.theoreticalArrivalNanos.compareAndSet(tat, newTat)) {
+                this.admittedCount.increment();
+                return true;
+            }
+        }
+    }
+
+    public long getAdmittedCount() {
+        return this.admittedCount.sum();
+    }
+
+    public long getThrottledCount() {
+        return this.throttledCount.sum();
+    }
+}
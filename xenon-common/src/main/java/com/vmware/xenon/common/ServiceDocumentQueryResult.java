@@ -109,6 +109,13 @@ public class ServiceDocumentQueryResult extends ServiceDocument {
     @VersionFieldSerializer.Since(ReleaseConstants.RELEASE_VERSION_1_4_2)
     public ContinuousResult continuousResults;
 
+    /**
+     * Valid only for queries with QueryOption.AGGREGATE. Contains the result of each
+     * aggregation term, keyed by the aggregation name
+     */
+    @VersionFieldSerializer.Since(ReleaseConstants.RELEASE_VERSION_1_6_0)
+    public Map<String, AggregationResult> aggregations;
+
     /**
      * Populated only for continuous query task.
      */
@@ -129,6 +136,42 @@ public class ServiceDocumentQueryResult extends ServiceDocument {
         public Long documentCountAdded = 0L;
     }
 
+    /**
+     * Populated only for aggregate query task. Only the fields the aggregation type requires
+     * are set
+     */
+    public static class AggregationResult {
+        /**
+         * Number of documents with a value for the property
+         */
+        public long count;
+
+        /**
+         * Sum of the property values, for SUM and AVG aggregations
+         */
+        public Double sum;
+
+        /**
+         * Lowest property value, for MIN aggregations
+         */
+        public Double min;
+
+        /**
+         * Highest property value, for MAX aggregations
+         */
+        public Double max;
+
+        /**
+         * Average of the property values, for AVG aggregations
+         */
+        public Double average;
+
+        /**
+         * Number of documents per property value, for TERMS aggregations
+         */
+        public Map<String, Long> termCounts;
+    }
+
     @Override
     public void copyTo(ServiceDocument target) {
         super.copyTo(target);
@@ -144,6 +187,7 @@ public class ServiceDocumentQueryResult extends ServiceDocument {
             sdqr.nextPageLinksPerGroup = this.nextPageLinksPerGroup;
             sdqr.queryTimeMicros = this.queryTimeMicros;
             sdqr.continuousResults = this.continuousResults;
+            sdqr.aggregations = this.aggregations;
         }
     }
 
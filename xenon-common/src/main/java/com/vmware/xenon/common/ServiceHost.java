@@ -95,6 +95,8 @@ import com.vmware.xenon.common.http.netty.NettyHttpServiceClient;
 import com.vmware.xenon.common.jwt.JWTUtils;
 import com.vmware.xenon.common.jwt.Signer;
 import com.vmware.xenon.common.jwt.Verifier;
+import com.vmware.xenon.common.serialization.KryoClassDictionary;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.services.common.AuthCredentialsService;
 import com.vmware.xenon.services.common.AuthorizationContextService;
 import com.vmware.xenon.services.common.AuthorizationTokenCacheService;
@@ -108,6 +110,7 @@ import com.vmware.xenon.services.common.LuceneDocumentIndexService;
 import com.vmware.xenon.services.common.NodeGroupFactoryService;
 import com.vmware.xenon.services.common.NodeGroupService.JoinPeerRequest;
 import com.vmware.xenon.services.common.NodeGroupUtils;
+import com.vmware.xenon.services.common.NotificationDispatchService;
 import com.vmware.xenon.services.common.ODataQueryService;
 import com.vmware.xenon.services.common.OperationIndexService;
 import com.vmware.xenon.services.common.QueryFilter;
@@ -295,6 +298,13 @@ public class ServiceHost implements ServiceRequestSender {
          */
         public boolean isAutoBackupEnabled = false;
 
+        /**
+         * When enabled, listeners and clients use the native epoll transport, with port reuse
+         * on the listening sockets. Falls back to the NIO transport if the native transport is
+         * not available on this platform
+         */
+        public boolean isNativeTransportEnabled = false;
+
     }
 
     protected static final LogFormatter LOG_FORMATTER = new LogFormatter();
@@ -302,6 +312,8 @@ public class ServiceHost implements ServiceRequestSender {
 
     public static final String SERVICE_HOST_STATE_FILE = "serviceHostState.json";
 
+    public static final String KRYO_CLASS_DICTIONARY_FILE = "kryoClassDictionary.txt";
+
     public static final Double DEFAULT_PCT_MEMORY_LIMIT = 0.49;
     public static final Double DEFAULT_PCT_MEMORY_LIMIT_DOCUMENT_INDEX = 0.45;
     public static final Double DEFAULT_PCT_MEMORY_LIMIT_SERVICE_CONTEXT_INDEX = 0.01;
@@ -356,6 +368,7 @@ public class ServiceHost implements ServiceRequestSender {
     static final Path DEFAULT_SANDBOX = DEFAULT_TMPDIR.resolve("xenon");
     static final Path DEFAULT_RESOURCE_SANDBOX_DIR = Paths.get("resources");
     private static final String DEFAULT_AUTO_BACKUP_DIR = "auto-backup";
+    private static final String REQUEST_RATE_LIMIT_PATH_PREFIX_SEPARATOR = "#";
 
     /**
      * Estimate for average service state memory cost, in bytes. This can be computed per
@@ -401,22 +414,39 @@ public class ServiceHost implements ServiceRequestSender {
             /**
              * Pause reads from I/O channel
              */
-            PAUSE_PROCESSING
+            PAUSE_PROCESSING,
+
+            /**
+             * Split the limit evenly across the available members of the default node group,
+             * approximating a quota for the whole node group
+             */
+            SPLIT_ACROSS_NODE_GROUP
         }
 
         /**
          * Request limit (upper bound). The value represents the maximum number of requests
-         * for a given time window, specified through the {@link #timeSeries} parameters
+         * for a given time window, specified through the bin duration of {@link #timeSeries}
          */
         public double limit;
 
+        /**
+         * Maximum number of requests admitted at once, after a period of inactivity. If not
+         * specified, the limit is used
+         */
+        public double burstSize;
+
+        /**
+         * If set, the limit only applies to requests with a path starting with this prefix
+         */
+        public String pathPrefix;
+
         /**
          * Options affecting rate limit behavior
          */
         public EnumSet<Option> options = null;
 
         /**
-         * Time series statistics used to track number of requests per time bin. If not
+         * Time series parameters. The bin duration defines the time window of the limit. If not
          * specified, the system will use a one minute, 60 second time summation series
          */
         public TimeSeriesStats timeSeries;
@@ -485,6 +515,7 @@ public class ServiceHost implements ServiceRequestSender {
         public String location;
         public URI authProviderHostURI;
         public boolean isAutoBackupEnabled;
+        public boolean isNativeTransportEnabled;
 
         /**
          * Relative memory limit per service path. The limit is expressed as
@@ -502,7 +533,8 @@ public class ServiceHost implements ServiceRequestSender {
          *
          * Rate limiting is a global back pressure mechanism that is independent of the target
          * service and any additional throttling applied during service request
-         * processing
+         * processing. Limits with a path prefix are stored with the prefix appended to the key,
+         * separated by {@code #}
          */
         public ConcurrentHashMap<String, RequestRateInfo> requestRateLimits = new ConcurrentHashMap<>();
 
@@ -588,9 +620,21 @@ public class ServiceHost implements ServiceRequestSender {
     private final ConcurrentSkipListSet<String> coreServices = new ConcurrentSkipListSet<>();
     private final ConcurrentHashMap<String, Class<? extends Service>> privilegedServiceTypes = new ConcurrentHashMap<>();
 
+    private final Set<String> streamingBodyPaths = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> notificationTargetLinks = ConcurrentHashMap.newKeySet();
+
     private final Set<String> pendingServiceDeletions = Collections
             .synchronizedSet(new HashSet<String>());
 
+    private final ConcurrentHashMap<String, RequestRateLimiter> requestRateLimiters = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limiters of each rate limit key, ordered by decreasing path prefix length, so the
+     * first applicable limiter has the longest matching prefix
+     */
+    private final ConcurrentHashMap<String, RequestRateLimiter[]> requestRateLimitersPerKey = new ConcurrentHashMap<>();
+
     private OperationProcessingChain opProcessingChain;
     private AuthorizationFilter authorizationFilter;
 
@@ -609,6 +653,12 @@ public class ServiceHost implements ServiceRequestSender {
 
     private URI documentIndexServiceUri;
     private URI operationIndexServiceUri;
+
+    private volatile OperationTraceBuffer operationTraceBuffer;
+
+    private PathPrefixTrie operationTracingExclusions;
+
+    private Level operationTracingLevel;
     private URI authorizationServiceUri;
     private URI transactionServiceUri;
     private URI managementServiceUri;
@@ -716,6 +766,10 @@ public class ServiceHost implements ServiceRequestSender {
         this.state.storageSandboxFileReference = storageSandbox;
         loadState(storageSandbox, s);
 
+        // register types persisted by a previous run, so the index can read state serialized
+        // with their dictionary identifiers before the services start
+        KryoClassDictionary.load(new File(s, KRYO_CLASS_DICTIONARY_FILE).toPath());
+
         // apply command line arguments, potentially overriding file configuration
         initializeStateFromArguments(s, args);
 
@@ -856,6 +910,7 @@ public class ServiceHost implements ServiceRequestSender {
             this.state.autoBackupDirectoryReference = s.toPath().resolve(DEFAULT_AUTO_BACKUP_DIR).toUri();
         }
         this.state.isAutoBackupEnabled = args.isAutoBackupEnabled;
+        this.state.isNativeTransportEnabled = args.isNativeTransportEnabled;
     }
 
     public String getLocation() {
@@ -950,6 +1005,24 @@ public class ServiceHost implements ServiceRequestSender {
         l.await();
     }
 
+    private void registerClassDictionaryType(Class<? extends ServiceDocument> serviceStateClass) {
+        if (KryoClassDictionary.isRegistered(serviceStateClass)) {
+            return;
+        }
+        KryoClassDictionary.register(serviceStateClass);
+        if (!KryoSerializers.isClassDictionaryEnabled()
+                || this.state.storageSandboxFileReference == null) {
+            return;
+        }
+        File dictionaryFile = new File(new File(this.state.storageSandboxFileReference),
+                KRYO_CLASS_DICTIONARY_FILE);
+        try {
+            KryoClassDictionary.save(dictionaryFile.toPath());
+        } catch (IOException e) {
+            log(Level.WARNING, "Failure saving %s: %s", dictionaryFile, Utils.toString(e));
+        }
+    }
+
     private void saveState() throws IOException, InterruptedException {
         saveState(new File(this.state.storageSandboxFileReference));
     }
@@ -1088,6 +1161,55 @@ public class ServiceHost implements ServiceRequestSender {
         this.state.isAutoBackupEnabled = enabled;
     }
 
+    public boolean isNativeTransportEnabled() {
+        return this.state.isNativeTransportEnabled;
+    }
+
+    /**
+     * Selects the native epoll transport for listeners and clients. Must be set before the
+     * host is started
+     */
+    public void setNativeTransportEnabled(boolean enabled) {
+        if (isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        this.state.isNativeTransportEnabled = enabled;
+    }
+
+    /**
+     * Registers a path, and all paths below it, for streaming bodies: HTTP/1.1 request bodies
+     * to these paths are not aggregated by the listener, and are read in chunks through
+     * {@link Operation#getStreamingBody()}, which is also used to write chunked responses
+     */
+    public void registerStreamingBodyPath(String path) {
+        this.streamingBodyPaths.add(UriUtils.normalizeUriPath(path));
+    }
+
+    public void unregisterStreamingBodyPath(String path) {
+        this.streamingBodyPaths.remove(UriUtils.normalizeUriPath(path));
+    }
+
+    public boolean hasStreamingBodyPaths() {
+        return !this.streamingBodyPaths.isEmpty();
+    }
+
+    /**
+     * Returns true if the path, or one of its parent paths, is registered for streaming bodies
+     */
+    public boolean isStreamingBodyPath(String path) {
+        if (this.streamingBodyPaths.isEmpty() || path == null) {
+            return false;
+        }
+        while (!this.streamingBodyPaths.contains(path)) {
+            int i = path.lastIndexOf(UriUtils.URI_PATH_CHAR);
+            if (i <= 0) {
+                return false;
+            }
+            path = path.substring(0, i);
+        }
+        return true;
+    }
+
     public int getSecurePort() {
         return this.state.httpsPort;
     }
@@ -1641,6 +1763,7 @@ public class ServiceHost implements ServiceRequestSender {
         List<Service> coreServices = new ArrayList<>();
         coreServices.add(this.managementService);
         coreServices.add(new ODataQueryService());
+        coreServices.add(new NotificationDispatchService());
 
         // Start persisted factories here, after document index is added
         coreServices.add(AuthCredentialsService.createFactory());
@@ -2259,6 +2382,8 @@ public class ServiceHost implements ServiceRequestSender {
             }
         }
 
+        this.notificationTargetLinks.add(notificationTargetSelfLink);
+
         if (request.documentExpirationTimeMicros != 0) {
             long delta = request.documentExpirationTimeMicros - Utils.getSystemNowMicrosUtc();
             if (delta <= 0) {
@@ -2347,6 +2472,14 @@ public class ServiceHost implements ServiceRequestSender {
                         }));
     }
 
+    /**
+     * Returns true if the service at the supplied path was started on this host as a
+     * subscription notification target
+     */
+    public boolean isNotificationTarget(String path) {
+        return this.notificationTargetLinks.contains(path);
+    }
+
     public static boolean isServiceStartingOrAvailable(ProcessingStage stage) {
         if (stage.ordinal() >= ProcessingStage.INITIALIZING.ordinal()
                 && stage.ordinal() <= ProcessingStage.AVAILABLE.ordinal()) {
@@ -3395,6 +3528,7 @@ public class ServiceHost implements ServiceRequestSender {
 
             this.serviceSynchTracker.removeService(path);
             this.serviceResourceTracker.clearCachedServiceState(service, null);
+            this.notificationTargetLinks.remove(path);
 
             this.state.serviceCount--;
         }
@@ -3552,7 +3686,7 @@ public class ServiceHost implements ServiceRequestSender {
             return;
         }
 
-        traceOperation(inboundOp);
+        traceOperation(inboundOp, true);
 
         if (isAuthorizationEnabled()) {
             final Service sFinal = service;
@@ -4012,7 +4146,7 @@ public class ServiceHost implements ServiceRequestSender {
     @Override
     public void sendRequest(Operation op) {
         prepareRequest(op);
-        traceOperation(op);
+        traceOperation(op, false);
 
         if (this.isStopping()) {
             op.fail(new CancellationException("host is stopping"));
@@ -4028,20 +4162,27 @@ public class ServiceHost implements ServiceRequestSender {
         c.send(op);
     }
 
-    private void traceOperation(Operation op) {
+    private void traceOperation(Operation op, boolean isInbound) {
+        OperationTraceBuffer traceBuffer = this.operationTraceBuffer;
         // Post to operation tracing service if tracing is enabled.
-        if (getOperationTracingLevel() == Level.OFF) {
+        if (traceBuffer == null && getOperationTracingLevel() == Level.OFF) {
             return;
         }
 
-        if (this.state.operationTracingLinkExclusionList.contains(op.getUri().getPath())) {
+        PathPrefixTrie exclusions = this.operationTracingExclusions;
+        if (exclusions == null) {
+            exclusions = new PathPrefixTrie(this.state.operationTracingLinkExclusionList);
+            this.operationTracingExclusions = exclusions;
+        }
+
+        if (exclusions.matches(op.getUri().getPath())) {
             return;
         }
 
-        for (String excludedPath : this.state.operationTracingLinkExclusionList) {
-            if (op.getUri().getPath().startsWith(excludedPath)) {
-                return;
-            }
+        if (traceBuffer != null) {
+            // the trace buffer replaces the level based tracing
+            traceBuffer.trace(op, isInbound);
+            return;
         }
 
         if (getOperationTracingLevel().intValue() <= Level.FINE.intValue()) {
@@ -4413,8 +4554,29 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     public Level getOperationTracingLevel() {
-        return this.state.operationTracingLevel == null ? Level.OFF
-                : Level.parse(this.state.operationTracingLevel);
+        String levelName = this.state.operationTracingLevel;
+        if (levelName == null) {
+            return Level.OFF;
+        }
+        Level level = this.operationTracingLevel;
+        if (level == null || !levelName.equals(level.getName())) {
+            level = Level.parse(levelName);
+            this.operationTracingLevel = level;
+        }
+        return level;
+    }
+
+    /**
+     * Sets the buffer operations are traced into. While set, operations are recorded in the
+     * buffer instead of traced according to the operation tracing level. Null disables it
+     */
+    public ServiceHost setOperationTraceBuffer(OperationTraceBuffer traceBuffer) {
+        this.operationTraceBuffer = traceBuffer;
+        return this;
+    }
+
+    public OperationTraceBuffer getOperationTraceBuffer() {
+        return this.operationTraceBuffer;
     }
 
     public void log(Level level, String fmt, Object... args) {
@@ -4603,7 +4765,9 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     /**
-     * See {@link #setRequestRateLimit(String, double)}
+     * See {@link #setRequestRateLimit(String, double)}. A key can have one limit per
+     * {@link RequestRateInfo#pathPrefix}, and a request is limited by the limit of its key with
+     * the longest prefix matching the request path
      */
     public ServiceHost setRequestRateLimit(String key, RequestRateInfo ri) {
         if (ri.limit <= 0.0) {
@@ -4624,16 +4788,134 @@ public class ServiceHost implements ServiceRequestSender {
             ri.options = EnumSet.of(Option.FAIL);
         }
 
-        // overwrite any existing limit
-        this.state.requestRateLimits.put(key, ri);
+        // overwrite any existing limit for the key and path prefix
+        String limitKey = buildRequestRateLimitKey(key, ri.pathPrefix);
+        this.state.requestRateLimits.put(limitKey, ri);
+        this.requestRateLimiters.put(limitKey, new RequestRateLimiter(ri));
+        this.requestRateLimitersPerKey.remove(key);
         return this;
     }
 
+    private static String buildRequestRateLimitKey(String key, String pathPrefix) {
+        return pathPrefix == null ? key : key + REQUEST_RATE_LIMIT_PATH_PREFIX_SEPARATOR + pathPrefix;
+    }
+
+    /**
+     * Returns the rate limiter for the supplied key, without a path prefix, or null if no limit
+     * is set
+     */
+    public RequestRateLimiter getRequestRateLimiter(String key) {
+        String limitKey = buildRequestRateLimitKey(key, null);
+        RequestRateInfo ri = this.state.requestRateLimits.get(limitKey);
+        if (ri == null) {
+            return null;
+        }
+        return getRequestRateLimiter(limitKey, ri);
+    }
+
+    /**
+     * Returns the rate limiter of the supplied key with the longest path prefix matching the
+     * path, or null if no limit applies
+     */
+    public RequestRateLimiter getRequestRateLimiter(String key, String path) {
+        if (this.state.requestRateLimits.isEmpty()) {
+            return null;
+        }
+        RequestRateLimiter[] limiters = this.requestRateLimitersPerKey.computeIfAbsent(key,
+                this::createRequestRateLimiters);
+        for (RequestRateLimiter limiter : limiters) {
+            if (limiter.isApplicable(path)) {
+                return limiter;
+            }
+        }
+        return null;
+    }
+
+    private RequestRateLimiter[] createRequestRateLimiters(String key) {
+        String prefixedKey = key + REQUEST_RATE_LIMIT_PATH_PREFIX_SEPARATOR;
+        List<RequestRateLimiter> limiters = new ArrayList<>();
+        for (Entry<String, RequestRateInfo> e : this.state.requestRateLimits.entrySet()) {
+            if (e.getKey().equals(key) || e.getKey().startsWith(prefixedKey)) {
+                limiters.add(getRequestRateLimiter(e.getKey(), e.getValue()));
+            }
+        }
+        limiters.sort((a, b) -> Integer.compare(getPathPrefixLength(b), getPathPrefixLength(a)));
+        return limiters.toArray(new RequestRateLimiter[limiters.size()]);
+    }
+
+    private static int getPathPrefixLength(RequestRateLimiter limiter) {
+        String pathPrefix = limiter.getRequestRateInfo().pathPrefix;
+        return pathPrefix == null ? -1 : pathPrefix.length();
+    }
+
+    private RequestRateLimiter getRequestRateLimiter(String limitKey, RequestRateInfo ri) {
+        RequestRateLimiter limiter = this.requestRateLimiters.get(limitKey);
+        if (limiter != null && limiter.getRequestRateInfo() == ri) {
+            return limiter;
+        }
+        // the limit was loaded with the host state, or replaced
+        return this.requestRateLimiters.compute(limitKey, (k, l) -> {
+            if (l != null && l.getRequestRateInfo() == ri) {
+                return l;
+            }
+            return new RequestRateLimiter(ri);
+        });
+    }
+
     /**
-     * Retrieves rate limit configuration for the supplied key
+     * Publishes admitted and throttled request counts, per rate limit key, and updates the
+     * node count of limits split across the default node group
+     */
+    void updateRequestRateLimitStats() {
+        if (this.requestRateLimiters.isEmpty()) {
+            return;
+        }
+
+        boolean isNodeCountRequired = false;
+        Service mgmtService = getManagementService();
+        for (Entry<String, RequestRateLimiter> e : this.requestRateLimiters.entrySet()) {
+            RequestRateLimiter limiter = e.getValue();
+            mgmtService.setStat(
+                    ServiceHostManagementService.STAT_NAME_RATE_LIMIT_ADMITTED_OP_COUNT_PREFIX
+                            + e.getKey(),
+                    limiter.getAdmittedCount());
+            mgmtService.setStat(
+                    ServiceHostManagementService.STAT_NAME_RATE_LIMIT_THROTTLED_OP_COUNT_PREFIX
+                            + e.getKey(),
+                    limiter.getThrottledCount());
+            isNodeCountRequired |= limiter.hasOption(Option.SPLIT_ACROSS_NODE_GROUP);
+        }
+
+        if (!isNodeCountRequired || isStopping()) {
+            return;
+        }
+
+        Operation selectOp = Operation.createPost(null).setCompletion((o, e) -> {
+            if (e != null) {
+                return;
+            }
+            SelectOwnerResponse rsp = o.getBody(SelectOwnerResponse.class);
+            for (RequestRateLimiter limiter : this.requestRateLimiters.values()) {
+                limiter.setNodeCount(rsp.availableNodeCount);
+            }
+        });
+        selectOwner(ServiceUriPaths.DEFAULT_NODE_SELECTOR, ServiceUriPaths.DEFAULT_NODE_SELECTOR,
+                selectOp);
+    }
+
+    /**
+     * Retrieves rate limit configuration for the supplied key, without a path prefix
      */
     public RequestRateInfo getRequestRateLimit(String key) {
-        RequestRateInfo ri = this.state.requestRateLimits.get(key);
+        return getRequestRateLimit(key, null);
+    }
+
+    /**
+     * Retrieves rate limit configuration for the supplied key and path prefix
+     */
+    public RequestRateInfo getRequestRateLimit(String key, String pathPrefix) {
+        RequestRateInfo ri = this.state.requestRateLimits.get(
+                buildRequestRateLimitKey(key, pathPrefix));
         if (ri == null) {
             return null;
         }
@@ -5480,6 +5762,7 @@ public class ServiceHost implements ServiceRequestSender {
                 desc.versionRetentionLimit = ServiceDocumentDescription.FIELD_VALUE_DISABLED_VERSION_RETENTION;
             }
             this.descriptionCache.put(serviceTypeName, desc);
+            registerClassDictionaryType(serviceStateClass);
 
             // 2) Call the service's getDocumentTemplate() to allow the service author to modify it
             // We are calling a function inside a lock, which is bad practice. This is however
@@ -5617,6 +5900,13 @@ public class ServiceHost implements ServiceRequestSender {
         return this.authorizationFilter.getAuthorizationContext(token);
     }
 
+    void updateAuthorizationCacheStats() {
+        if (this.authorizationFilter == null) {
+            return;
+        }
+        this.authorizationFilter.updateStats(this);
+    }
+
     /**
      * Return the system user's authorization context.
      *
@@ -195,6 +195,8 @@ class ServiceResourceTracker {
         checkAndInitializeStats();
         mgmtService.setStat(ServiceHostManagementService.STAT_NAME_SERVICE_COUNT,
                 hostState.serviceCount);
+        this.host.updateAuthorizationCacheStats();
+        this.host.updateRequestRateLimitStats();
 
         // The JVM reports free memory in a indirect way, relative to the current "total". But the
         // true free memory is the estimated used memory subtracted from the JVM heap max limit
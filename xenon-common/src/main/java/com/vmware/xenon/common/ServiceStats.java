@@ -14,11 +14,17 @@
 package com.vmware.xenon.common;
 
 import java.net.URI;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import com.esotericsoftware.kryo.serializers.VersionFieldSerializer.Since;
@@ -34,11 +40,75 @@ public class ServiceStats extends ServiceDocument {
     public static final String STAT_NAME_SUFFIX_PER_HOUR = "PerHour";
 
     public static class ServiceStatLogHistogram {
+        /**
+         * Number of linear sub bins each power of 10 is split into
+         */
+        public static final int SUB_BIN_COUNT_PER_BIN = 10;
+
         /**
          * Each bin tracks a power of 10. Bin[0] tracks all values between 0 and 9, Bin[1] tracks
          * values between 10 and 99, Bin[2] tracks values between 100 and 999, and so forth
          */
         public long[] bins = new long[15];
+
+        /**
+         * Each bin is split into linear sub bins, indexed by the leading digit of the value.
+         * SubBins[10 * i + d] tracks values between d * 10^i and (d + 1) * 10^i - 1, so
+         * percentiles are accurate to one significant digit
+         */
+        @Since(ReleaseConstants.RELEASE_VERSION_1_6_0)
+        public long[] subBins = new long[15 * SUB_BIN_COUNT_PER_BIN];
+
+        /**
+         * Adds the value to the bin and sub bin tracking it. Values outside the bin range
+         * are ignored
+         */
+        public void add(double value) {
+            int binIndex = 0;
+            double binLowerBound = 1;
+            if (value >= 10.0) {
+                binIndex = (int) Math.log10(value);
+                binLowerBound = Math.pow(10, binIndex);
+            }
+            if (binIndex < 0 || binIndex >= this.bins.length) {
+                return;
+            }
+            this.bins[binIndex]++;
+            if (this.subBins == null || this.subBins.length != this.bins.length
+                    * SUB_BIN_COUNT_PER_BIN) {
+                return;
+            }
+            int subBinIndex = value > 0.0 ? (int) (value / binLowerBound) : 0;
+            subBinIndex = Math.min(subBinIndex, SUB_BIN_COUNT_PER_BIN - 1);
+            this.subBins[binIndex * SUB_BIN_COUNT_PER_BIN + subBinIndex]++;
+        }
+
+        /**
+         * Returns the upper bound of the sub bin holding the given percentile of all
+         * values added, or 0 if no values were added. The percentile is between 0 and 100
+         */
+        public double getPercentile(double percentile) {
+            if (this.subBins == null) {
+                return 0;
+            }
+            long total = 0;
+            for (long c : this.subBins) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long count = 0;
+            for (int i = 0; i < this.subBins.length; i++) {
+                count += this.subBins[i];
+                if (count >= rank) {
+                    int binIndex = i / SUB_BIN_COUNT_PER_BIN;
+                    return ((i % SUB_BIN_COUNT_PER_BIN) + 1) * Math.pow(10, binIndex);
+                }
+            }
+            return Math.pow(10, this.bins.length);
+        }
     }
 
     /**
@@ -49,6 +119,9 @@ public class ServiceStats extends ServiceDocument {
      * specified AggregationType
      * If the number of bins equals the configured number of bins, the oldest bin will be dropped
      * on any further insertion
+     *
+     * Data points are aggregated into primitive arrays, sorted by bin time, so adding a data
+     * point does not allocate. The bins map is materialized from the arrays when it is read
      */
     public static class TimeSeriesStats {
 
@@ -67,11 +140,144 @@ public class ServiceStats extends ServiceDocument {
             AVG, MIN, MAX, SUM, LATEST
         }
 
+        /**
+         * Read only view of the time series bins. The bins are materialized from the primitive
+         * arrays of the owning time series, when it changed since the last read. An instance
+         * created by a serializer has no owner, and holds its own entries
+         */
+        private static final class TimeBinMap extends AbstractMap<Long, TimeBin>
+                implements SortedMap<Long, TimeBin> {
+
+            private final transient TimeSeriesStats owner;
+
+            private final TreeMap<Long, TimeBin> entries;
+
+            TimeBinMap() {
+                this.owner = null;
+                this.entries = new TreeMap<>();
+            }
+
+            TimeBinMap(TimeSeriesStats owner) {
+                this.owner = owner;
+                this.entries = null;
+            }
+
+            private SortedMap<Long, TimeBin> map() {
+                return this.owner != null
+                        ? Collections.unmodifiableSortedMap(this.owner.materializeBins())
+                        : this.entries;
+            }
+
+            private TreeMap<Long, TimeBin> mutableMap() {
+                if (this.owner != null) {
+                    throw new UnsupportedOperationException("time series bins are read only");
+                }
+                return this.entries;
+            }
+
+            @Override
+            public Set<Entry<Long, TimeBin>> entrySet() {
+                return map().entrySet();
+            }
+
+            @Override
+            public Set<Long> keySet() {
+                return map().keySet();
+            }
+
+            @Override
+            public Collection<TimeBin> values() {
+                return map().values();
+            }
+
+            @Override
+            public int size() {
+                return map().size();
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return map().containsKey(key);
+            }
+
+            @Override
+            public TimeBin get(Object key) {
+                return map().get(key);
+            }
+
+            @Override
+            public TimeBin put(Long key, TimeBin value) {
+                return mutableMap().put(key, value);
+            }
+
+            @Override
+            public TimeBin remove(Object key) {
+                return mutableMap().remove(key);
+            }
+
+            @Override
+            public void clear() {
+                mutableMap().clear();
+            }
+
+            @Override
+            public Comparator<? super Long> comparator() {
+                return null;
+            }
+
+            @Override
+            public SortedMap<Long, TimeBin> subMap(Long fromKey, Long toKey) {
+                return map().subMap(fromKey, toKey);
+            }
+
+            @Override
+            public SortedMap<Long, TimeBin> headMap(Long toKey) {
+                return map().headMap(toKey);
+            }
+
+            @Override
+            public SortedMap<Long, TimeBin> tailMap(Long fromKey) {
+                return map().tailMap(fromKey);
+            }
+
+            @Override
+            public Long firstKey() {
+                return map().firstKey();
+            }
+
+            @Override
+            public Long lastKey() {
+                return map().lastKey();
+            }
+        }
+
+        /**
+         * Bins keyed by bin time. The map of a time series that aggregates data points is a
+         * read only view: put, remove and clear throw {@link UnsupportedOperationException}.
+         * Use {@link #add(long, double, double)} to record data points. Deserialized instances
+         * hold a mutable map, which is copied into the bin arrays on the next add
+         */
         public SortedMap<Long, TimeBin> bins;
         public int numBins;
         public long binDurationMillis;
         public EnumSet<AggregationType> aggregationType;
 
+        private transient TimeBinMap binsView;
+        private transient int binCount;
+        private transient long[] binIds;
+        private transient double[] counts;
+        private transient double[] avgs;
+        private transient double[] vars;
+        private transient double[] mins;
+        private transient double[] maxs;
+        private transient double[] sums;
+        private transient double[] latests;
+
+        /**
+         * Bins materialized from the arrays, reset on every update. Guarded by this instance
+         */
+        private transient TreeMap<Long, TimeBin> materializedBins;
+
         public TimeSeriesStats() {
             // no-op
         }
@@ -80,67 +286,204 @@ public class ServiceStats extends ServiceDocument {
                 EnumSet<AggregationType> aggregationType) {
             this.numBins = numBins;
             this.binDurationMillis = binDurationMillis;
-            this.bins = new ConcurrentSkipListMap<>();
             this.aggregationType = aggregationType;
+            allocateBins();
+        }
+
+        /**
+         * Returns false if the bins map is not a view over the bin arrays of this instance, for
+         * example after the instance was copied or deserialized
+         */
+        private boolean isBinsOwner() {
+            return this.binsView != null && this.binsView == this.bins
+                    && this.binsView.owner == this;
+        }
+
+        /**
+         * Allocates the bin arrays and replaces the bins map with a view over them. Existing
+         * bins, for example from a deserialized instance, are copied into the arrays
+         */
+        private void allocateBins() {
+            SortedMap<Long, TimeBin> existingBins = this.bins;
+            this.binIds = new long[this.numBins];
+            this.counts = new double[this.numBins];
+            this.avgs = new double[this.numBins];
+            this.vars = new double[this.numBins];
+            this.mins = new double[this.numBins];
+            this.maxs = new double[this.numBins];
+            this.sums = new double[this.numBins];
+            this.latests = new double[this.numBins];
+            this.binCount = 0;
+            this.binsView = new TimeBinMap(this);
+            this.bins = this.binsView;
+            if (existingBins == null) {
+                return;
+            }
+
+            for (Map.Entry<Long, TimeBin> e : existingBins.entrySet()) {
+                if (this.binCount == this.numBins) {
+                    break;
+                }
+                int i = this.binCount++;
+                TimeBin bin = e.getValue();
+                this.binIds[i] = e.getKey();
+                this.counts[i] = bin.count;
+                this.avgs[i] = bin.avg != null ? bin.avg : 0;
+                this.vars[i] = bin.var != null ? bin.var : 0;
+                this.mins[i] = bin.min != null ? bin.min : 0;
+                this.maxs[i] = bin.max != null ? bin.max : 0;
+                this.sums[i] = bin.sum != null ? bin.sum : 0;
+                this.latests[i] = bin.latest != null ? bin.latest : 0;
+            }
         }
 
         public void add(long timestampMicros, double value, double delta) {
             synchronized (this) {
+                if (!isBinsOwner()) {
+                    allocateBins();
+                }
+                if (this.numBins <= 0) {
+                    return;
+                }
                 long binId = normalizeTimestamp(timestampMicros, this.binDurationMillis);
-                TimeBin dataBin = null;
-                if (this.bins.containsKey(binId)) {
-                    dataBin = this.bins.get(binId);
-                } else {
-                    if (this.bins.size() == this.numBins) {
-                        if (this.bins.firstKey() > timestampMicros) {
-                            // incoming data is too old; ignore
-                            return;
-                        }
-                        // remove the oldest entry
-                        this.bins.remove(this.bins.firstKey());
-                    }
-                    dataBin = new TimeBin();
-                    this.bins.put(binId, dataBin);
+                int i = findOrAddBin(binId);
+                if (i < 0) {
+                    // incoming data is too old; ignore
+                    return;
+                }
+                this.materializedBins = null;
+                boolean isNewBin = this.counts[i] < 0;
+                if (isNewBin) {
+                    this.counts[i] = 0;
                 }
                 if (this.aggregationType.contains(AggregationType.AVG)) {
-                    if (dataBin.avg == null) {
-                        dataBin.avg = value;
-                        dataBin.var = 0.0;
-                        dataBin.count = 1;
+                    if (isNewBin) {
+                        this.avgs[i] = value;
+                        this.vars[i] = 0.0;
+                        this.counts[i] = 1;
                     } else {
                         // Use Welford's algorithm for online computation of average and variance
                         // see https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance
-                        dataBin.count++;
-                        double diff = value - dataBin.avg;
-                        dataBin.avg += diff / dataBin.count;
-                        double diffAfter = value - dataBin.avg;
-                        dataBin.var += diff * diffAfter;
+                        this.counts[i]++;
+                        double diff = value - this.avgs[i];
+                        this.avgs[i] += diff / this.counts[i];
+                        double diffAfter = value - this.avgs[i];
+                        this.vars[i] += diff * diffAfter;
                     }
                 }
                 if (this.aggregationType.contains(AggregationType.SUM)) {
-                    if (dataBin.sum == null) {
-                        dataBin.sum = delta;
-                    } else {
-                        dataBin.sum += delta;
-                    }
+                    this.sums[i] = isNewBin ? delta : this.sums[i] + delta;
                 }
                 if (this.aggregationType.contains(AggregationType.MAX)) {
-                    if (dataBin.max == null) {
-                        dataBin.max = value;
-                    } else if (dataBin.max < value) {
-                        dataBin.max = value;
+                    if (isNewBin || this.maxs[i] < value) {
+                        this.maxs[i] = value;
                     }
                 }
                 if (this.aggregationType.contains(AggregationType.MIN)) {
-                    if (dataBin.min == null) {
-                        dataBin.min = value;
-                    } else if (dataBin.min > value) {
-                        dataBin.min = value;
+                    if (isNewBin || this.mins[i] > value) {
+                        this.mins[i] = value;
                     }
                 }
                 if (this.aggregationType.contains(AggregationType.LATEST)) {
-                    dataBin.latest = value;
+                    this.latests[i] = value;
+                }
+            }
+        }
+
+        /**
+         * Returns the index of the bin with the given id, adding it if it does not exist. A new
+         * bin has a negative count. Returns -1 if all bins are in use, and the given bin is older
+         * than all of them. Must be called with the instance lock held
+         */
+        private int findOrAddBin(long binId) {
+            int last = this.binCount - 1;
+            if (last >= 0 && this.binIds[last] == binId) {
+                return last;
+            }
+
+            int i;
+            if (last < 0 || this.binIds[last] < binId) {
+                i = -(this.binCount + 1);
+            } else {
+                i = Arrays.binarySearch(this.binIds, 0, this.binCount, binId);
+                if (i >= 0) {
+                    return i;
+                }
+            }
+
+            int insertionPoint = -(i + 1);
+            if (this.binCount == this.numBins) {
+                if (insertionPoint == 0) {
+                    return -1;
+                }
+                // remove the oldest entry
+                insertionPoint--;
+                shiftBins(1, 0, insertionPoint);
+            } else {
+                shiftBins(insertionPoint, insertionPoint + 1, this.binCount - insertionPoint);
+                this.binCount++;
+            }
+            this.binIds[insertionPoint] = binId;
+            this.counts[insertionPoint] = -1;
+            return insertionPoint;
+        }
+
+        private void shiftBins(int from, int to, int length) {
+            System.arraycopy(this.binIds, from, this.binIds, to, length);
+            System.arraycopy(this.counts, from, this.counts, to, length);
+            System.arraycopy(this.avgs, from, this.avgs, to, length);
+            System.arraycopy(this.vars, from, this.vars, to, length);
+            System.arraycopy(this.mins, from, this.mins, to, length);
+            System.arraycopy(this.maxs, from, this.maxs, to, length);
+            System.arraycopy(this.sums, from, this.sums, to, length);
+            System.arraycopy(this.latests, from, this.latests, to, length);
+        }
+
+        private TimeBin buildTimeBin(int i) {
+            TimeBin bin = new TimeBin();
+            if (this.aggregationType.contains(AggregationType.AVG)) {
+                bin.avg = this.avgs[i];
+                bin.var = this.vars[i];
+                bin.count = this.counts[i];
+            }
+            if (this.aggregationType.contains(AggregationType.SUM)) {
+                bin.sum = this.sums[i];
+            }
+            if (this.aggregationType.contains(AggregationType.MAX)) {
+                bin.max = this.maxs[i];
+            }
+            if (this.aggregationType.contains(AggregationType.MIN)) {
+                bin.min = this.mins[i];
+            }
+            if (this.aggregationType.contains(AggregationType.LATEST)) {
+                bin.latest = this.latests[i];
+            }
+            return bin;
+        }
+
+        private synchronized SortedMap<Long, TimeBin> materializeBins() {
+            if (this.materializedBins == null) {
+                TreeMap<Long, TimeBin> m = new TreeMap<>();
+                for (int i = 0; i < this.binCount; i++) {
+                    m.put(this.binIds[i], buildTimeBin(i));
+                }
+                this.materializedBins = m;
+            }
+            return this.materializedBins;
+        }
+
+        /**
+         * Returns a copy of the most recent bin, or null if no data was added
+         */
+        public TimeBin getLatestBin() {
+            synchronized (this) {
+                if (!isBinsOwner()) {
+                    allocateBins();
+                }
+                if (this.binCount == 0) {
+                    return null;
                 }
+                return buildTimeBin(this.binCount - 1);
             }
         }
 
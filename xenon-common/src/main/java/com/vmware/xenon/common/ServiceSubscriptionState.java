@@ -16,6 +16,10 @@ package com.vmware.xenon.common;
 import java.net.URI;
 import java.util.Map;
 
+import com.esotericsoftware.kryo.serializers.VersionFieldSerializer.Since;
+
+import com.vmware.xenon.common.serialization.ReleaseConstants;
+
 /**
  * Document describing the <service>/subscriptions REST API
  */
@@ -41,6 +45,14 @@ public class ServiceSubscriptionState extends ServiceDocument {
         public boolean replayState;
         public boolean usePublicUri;
 
+        /**
+         * If latestStateOnly is true, the subscriber only needs the latest state of the service.
+         * While a notification to the subscriber is in flight, later notifications are coalesced,
+         * and only the last one is sent when the in flight notification completes
+         */
+        @Since(ReleaseConstants.RELEASE_VERSION_1_6_0)
+        public boolean latestStateOnly;
+
         public Long notificationCount;
         public Long initialFailedNotificationTimeMicros;
         public Long failedNotificationCount;
@@ -65,6 +77,11 @@ public class ServiceSubscriptionState extends ServiceDocument {
             return this;
         }
 
+        public ServiceSubscriber setLatestStateOnly(boolean latestStateOnly) {
+            this.latestStateOnly = latestStateOnly;
+            return this;
+        }
+
         public ServiceSubscriber setSubscriberReference(URI reference) {
             this.reference = reference;
             return this;
@@ -331,6 +331,21 @@ class ServiceSynchronizationTracker {
         // NodeSelectorSynchronizationService get persisted locally.
         op.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_SYNCH_OWNER);
 
+        if (op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_SYNCH_PEERS_AGREE)
+                && t.state.documentVersion >= 0
+                && this.host.getId().equals(t.state.documentOwner)) {
+            // all peers have the local state, owned by this node. Skip the peer state
+            // comparison
+            op.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_SYNCH_PEERS_AGREE);
+            if (ServiceDocument.isDeleted(t.state)) {
+                Operation.failServiceMarkedDeleted(t.state.documentSelfLink, op);
+                return;
+            }
+            op.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE);
+            op.complete();
+            return;
+        }
+
         CompletionHandler c = (o, e) -> {
             if (this.host.isStopping()) {
                 op.fail(new CancellationException("Host is stopping"));
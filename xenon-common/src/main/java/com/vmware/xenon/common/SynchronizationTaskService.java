@@ -15,14 +15,25 @@ package com.vmware.xenon.common;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
+import com.vmware.xenon.services.common.NodeGroupBroadcastResponse;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.SynchronizationDigestRequest;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.SynchronizationDigestResponse;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.SynchronizeOwnersRequest;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.SynchronizeOwnersResponse;
 import com.vmware.xenon.services.common.QueryTask;
 import com.vmware.xenon.services.common.ServiceUriPaths;
 import com.vmware.xenon.services.common.TaskService;
@@ -39,6 +50,9 @@ public class SynchronizationTaskService
 
     public static final String STAT_NAME_CHILD_SYNCH_RETRY_COUNT = "childSynchRetryCount";
     public static final String STAT_NAME_SYNCH_RETRY_COUNT = "synchRetryCount";
+    public static final String STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT = "childSynchSkippedCount";
+    public static final String STAT_NAME_DIVERGENT_RANGE_COUNT = "divergentRangeCount";
+    public static final String STAT_NAME_CHILD_SYNCH_BATCH_COUNT = "childSynchBatchCount";
 
     public static final String PROPERTY_NAME_MAX_CHILD_SYNCH_RETRY_COUNT =
             Utils.PROPERTY_NAME_PREFIX + "SynchronizationTaskService.MAX_CHILD_SYNCH_RETRY_COUNT";
@@ -48,6 +62,16 @@ public class SynchronizationTaskService
     public static final int MAX_CHILD_SYNCH_RETRY_COUNT = Integer.getInteger(
             PROPERTY_NAME_MAX_CHILD_SYNCH_RETRY_COUNT, 3);
 
+    public static final String PROPERTY_NAME_MAX_DIGEST_DOCUMENT_COUNT =
+            Utils.PROPERTY_NAME_PREFIX + "SynchronizationTaskService.MAX_DIGEST_DOCUMENT_COUNT";
+
+    /**
+     * Maximum number of documents in divergent ranges for which per document digests are
+     * requested from peers. Above it, all children in divergent ranges are synchronized
+     */
+    public static final int MAX_DIGEST_DOCUMENT_COUNT = Integer.getInteger(
+            PROPERTY_NAME_MAX_DIGEST_DOCUMENT_COUNT, 100000);
+
 
     public static SynchronizationTaskService create(Supplier<Service> childServiceInstantiator) {
         if (childServiceInstantiator.get() == null) {
@@ -123,8 +147,43 @@ public class SynchronizationTaskService
         public int synchCompletionCount;
     }
 
+    /**
+     * Children of a replicated factory that may differ between peers, computed from digests of
+     * the local index of each peer before the synchronize stage
+     */
+    private static final class DivergentLinks {
+        final int rangeCount;
+
+        /**
+         * Ranges with different digests on some peers
+         */
+        final Set<Integer> ranges;
+
+        /**
+         * Children in divergent ranges with the same digest on all peers
+         */
+        final Set<String> agreedLinks;
+
+        DivergentLinks(int rangeCount, Set<Integer> ranges, Set<String> agreedLinks) {
+            this.rangeCount = rangeCount;
+            this.ranges = ranges;
+            this.agreedLinks = agreedLinks;
+        }
+
+        boolean isDivergent(String link) {
+            int range = SynchronizationDigestRequest.getRange(link, this.rangeCount);
+            return this.ranges.contains(range) && !this.agreedLinks.contains(link);
+        }
+    }
+
     private Supplier<Service> childServiceInstantiator;
 
+    /**
+     * Result of the last digest exchange, null if not available and all children must be
+     * synchronized
+     */
+    private volatile DivergentLinks divergentLinks;
+
     private final boolean isDetailedLoggingEnabled = Boolean
             .getBoolean(PROPERTY_NAME_SYNCHRONIZATION_LOGGING);
 
@@ -303,6 +362,7 @@ public class SynchronizationTaskService
             task.synchCompletionCount = 0;
             setStat(STAT_NAME_CHILD_SYNCH_RETRY_COUNT, 0);
             setStat(STAT_NAME_CHILD_SYNCH_FAILURE_COUNT, 0);
+            setStat(STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT, 0);
             setFactoryAvailability(task, false, (o) -> handleSubStage(task), put);
         } else {
             put.complete();
@@ -484,13 +544,130 @@ public class SynchronizationTaskService
                     URI queryTaskUri = UriUtils.buildUri(this.getHost(), ServiceUriPaths.CORE_QUERY_TASKS);
                     task.queryPageReference = UriUtils.buildUri(queryTaskUri, rsp.nextPageLink);
 
-                    sendSelfPatch(task, TaskState.TaskStage.STARTED,
-                            subStageSetter(SubStage.SYNCHRONIZE));
+                    findDivergentLinks(task, () -> sendSelfPatch(task, TaskState.TaskStage.STARTED,
+                            subStageSetter(SubStage.SYNCHRONIZE)));
                 });
 
+        this.divergentLinks = null;
         sendRequest(queryPost);
     }
 
+    /**
+     * Exchanges digests of the local index of all peers, so the synchronize stage only
+     * synchronizes children that differ between peers. Range digests are compared first, then
+     * child digests in the divergent ranges. If any peer does not respond, all children are
+     * synchronized
+     */
+    private void findDivergentLinks(State task, Runnable onCompletion) {
+        if (!task.childOptions.contains(ServiceOption.REPLICATION)) {
+            onCompletion.run();
+            return;
+        }
+
+        broadcastDigestRequest(task, null, (rangeRsps) -> {
+            if (rangeRsps == null) {
+                onCompletion.run();
+                return;
+            }
+
+            SynchronizationDigestResponse first = rangeRsps.get(0);
+            int rangeCount = first.rangeDigests.length;
+            Set<Integer> ranges = new HashSet<>();
+            long divergentCount = 0;
+            for (int i = 0; i < rangeCount; i++) {
+                int maxCount = 0;
+                boolean isDivergent = false;
+                for (SynchronizationDigestResponse r : rangeRsps) {
+                    maxCount = Math.max(maxCount, r.rangeCounts[i]);
+                    isDivergent |= r.rangeDigests[i] != first.rangeDigests[i]
+                            || r.rangeCounts[i] != first.rangeCounts[i];
+                }
+                if (isDivergent) {
+                    ranges.add(i);
+                    divergentCount += maxCount;
+                }
+            }
+            setStat(STAT_NAME_DIVERGENT_RANGE_COUNT, ranges.size());
+
+            if (ranges.isEmpty() || divergentCount > MAX_DIGEST_DOCUMENT_COUNT) {
+                this.divergentLinks = new DivergentLinks(rangeCount, ranges,
+                        Collections.emptySet());
+                onCompletion.run();
+                return;
+            }
+
+            broadcastDigestRequest(task, ranges, (linkRsps) -> {
+                if (linkRsps == null) {
+                    this.divergentLinks = new DivergentLinks(rangeCount, ranges,
+                            Collections.emptySet());
+                    onCompletion.run();
+                    return;
+                }
+
+                Set<String> agreedLinks = new HashSet<>();
+                for (Entry<String, Long> e : linkRsps.get(0).documentDigests.entrySet()) {
+                    boolean isAgreed = true;
+                    for (SynchronizationDigestResponse r : linkRsps) {
+                        isAgreed &= e.getValue().equals(r.documentDigests.get(e.getKey()));
+                    }
+                    if (isAgreed) {
+                        agreedLinks.add(e.getKey());
+                    }
+                }
+                this.divergentLinks = new DivergentLinks(rangeCount, ranges, agreedLinks);
+                onCompletion.run();
+            });
+        });
+    }
+
+    /**
+     * Sends a digest request to all peers, and calls the handler with the responses, or with
+     * null if a peer failed or did not respond
+     */
+    private void broadcastDigestRequest(State task, Set<Integer> ranges,
+            Consumer<List<SynchronizationDigestResponse>> handler) {
+        SynchronizationDigestRequest req = SynchronizationDigestRequest.create();
+        req.indexLink = task.childDocumentIndexLink;
+        req.factoryLink = task.factorySelfLink;
+        req.documentKind = task.factoryStateKind;
+        req.ranges = ranges;
+
+        Operation op = Operation.createPost(UriUtils.buildUri(getHost(),
+                UriUtils.buildUriPath(task.nodeSelectorLink, ServiceUriPaths.SERVICE_URI_SUFFIX_SYNCHRONIZATION)))
+                .setBodyNoCloning(req)
+                .setReferer(getUri())
+                .setConnectionSharing(true)
+                .setConnectionTag(ServiceClient.CONNECTION_TAG_SYNCHRONIZATION)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        logWarning("Digest request failed, synchronizing all children: %s",
+                                e.toString());
+                        handler.accept(null);
+                        return;
+                    }
+
+                    NodeGroupBroadcastResponse rsp = o.getBody(NodeGroupBroadcastResponse.class);
+                    if (!rsp.failures.isEmpty() || rsp.jsonResponses.size() != rsp.nodeCount) {
+                        handler.accept(null);
+                        return;
+                    }
+
+                    List<SynchronizationDigestResponse> digests = new ArrayList<>();
+                    for (String json : rsp.jsonResponses.values()) {
+                        SynchronizationDigestResponse d = Utils.fromJson(json,
+                                SynchronizationDigestResponse.class);
+                        if (ranges == null ? d.rangeDigests == null : d.documentDigests == null) {
+                            handler.accept(null);
+                            return;
+                        }
+                        digests.add(d);
+                    }
+                    handler.accept(digests);
+                });
+
+        getHost().broadcastRequest(task.nodeSelectorLink, false, op);
+    }
+
     private QueryTask buildChildQueryTask(State task) {
         QueryTask queryTask = new QueryTask();
         queryTask.querySpec = new QueryTask.QuerySpecification();
@@ -669,14 +846,107 @@ public class SynchronizationTaskService
             sendSelfPatch(task, TaskState.TaskStage.STARTED, subStageSetter(SubStage.SYNCHRONIZE));
         };
 
+        DivergentLinks divergent = this.divergentLinks;
+        List<String> agreedLinks = new ArrayList<>();
         for (String link : documentLinks) {
             if (getHost().isStopping()) {
                 sendSelfCancellationPatch(task, "host is stopping");
                 return;
             }
 
+            if (divergent != null && !divergent.isDivergent(link)) {
+                agreedLinks.add(link);
+                continue;
+            }
             synchronizeService(task, link, c);
         }
+
+        if (!agreedLinks.isEmpty()) {
+            adjustStat(STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT, agreedLinks.size());
+            synchronizeAgreedServices(task, agreedLinks, c);
+        }
+    }
+
+    /**
+     * Synchronizes children with the same digest on all peers. The children are grouped by
+     * owner node, and each group is sent to the synchronization service of its owner in a
+     * single request, instead of one request per child
+     */
+    private void synchronizeAgreedServices(State task, List<String> links,
+            Operation.CompletionHandler c) {
+        Map<URI, List<String>> linksPerOwner = new ConcurrentHashMap<>();
+        AtomicInteger pendingSelections = new AtomicInteger(links.size());
+        String synchPath = UriUtils.buildUriPath(task.nodeSelectorLink,
+                ServiceUriPaths.SERVICE_URI_SUFFIX_SYNCHRONIZATION);
+        for (String link : links) {
+            Operation selectOp = Operation.createPost(null)
+                    .setExpiration(task.documentExpirationTimeMicros)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            completeChildSynchronization(link, o.getStatusCode(), e, c);
+                        } else {
+                            NodeSelectorService.SelectOwnerResponse rsp = o.getBody(
+                                    NodeSelectorService.SelectOwnerResponse.class);
+                            URI ownerUri = NodeSelectorService.SelectOwnerResponse
+                                    .buildUriToOwner(rsp, synchPath, null);
+                            linksPerOwner.computeIfAbsent(ownerUri,
+                                    k -> Collections.synchronizedList(new ArrayList<>()))
+                                    .add(link);
+                        }
+
+                        if (pendingSelections.decrementAndGet() == 0) {
+                            linksPerOwner.forEach((ownerUri, ownerLinks) ->
+                                    sendSynchronizeOwnersRequest(task, ownerUri, ownerLinks, c));
+                        }
+                    });
+            getHost().selectOwner(task.nodeSelectorLink, link, selectOp);
+        }
+    }
+
+    private void sendSynchronizeOwnersRequest(State task, URI ownerUri, List<String> links,
+            Operation.CompletionHandler c) {
+        SynchronizeOwnersRequest req = SynchronizeOwnersRequest.create();
+        req.factoryLink = task.factorySelfLink;
+        req.documentLinks = new ArrayList<>(links);
+
+        adjustStat(STAT_NAME_CHILD_SYNCH_BATCH_COUNT, 1);
+        Operation synchRequest = Operation.createPost(ownerUri)
+                .setBodyNoCloning(req)
+                .setReferer(getUri())
+                .setConnectionSharing(true)
+                .setConnectionTag(ServiceClient.CONNECTION_TAG_SYNCHRONIZATION)
+                .setRetryCount(0)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        for (String link : req.documentLinks) {
+                            completeChildSynchronization(link, o.getStatusCode(), e, c);
+                        }
+                        return;
+                    }
+
+                    SynchronizeOwnersResponse rsp = o.getBody(SynchronizeOwnersResponse.class);
+                    for (String link : req.documentLinks) {
+                        Integer statusCode = rsp.failedLinks.get(link);
+                        if (statusCode == null) {
+                            completeChildSynchronization(link, Operation.STATUS_CODE_OK, null, c);
+                        } else {
+                            completeChildSynchronization(link, statusCode,
+                                    new IllegalStateException("Owner synchronization failed"), c);
+                        }
+                    }
+                });
+        sendRequest(synchRequest);
+    }
+
+    /**
+     * Calls the completion handler of a child synchronization request for a child synchronized
+     * in a batch
+     */
+    private void completeChildSynchronization(String link, int statusCode, Throwable e,
+            Operation.CompletionHandler c) {
+        Operation o = Operation.createPost(UriUtils.buildUri(getHost(), link))
+                .setStatusCode(statusCode);
+        c.handle(o, e);
     }
 
     private void scheduleRetry(Runnable task, String statNameRetryCount) {
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 
@@ -39,6 +40,8 @@ import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
 import com.vmware.xenon.common.ServiceSubscriptionState.ServiceSubscriber;
+import com.vmware.xenon.services.common.NotificationDispatchService.NotificationBatch;
+import com.vmware.xenon.services.common.NotificationDispatchService.NotificationBatchResult;
 import com.vmware.xenon.services.common.QueryTask;
 import com.vmware.xenon.services.common.QueryTask.NumericRange;
 import com.vmware.xenon.services.common.QueryTask.Query;
@@ -55,9 +58,36 @@ import com.vmware.xenon.services.common.UiContentService;
  * etc) in order to reduce runtime overhead per service instance
  */
 public class UtilityService implements Service {
+    public static final String PROPERTY_NAME_NOTIFICATION_BATCHING_ENABLED = Utils.PROPERTY_NAME_PREFIX
+            + "UtilityService.notificationBatchingEnabled";
+
+    public static final String STAT_NAME_NOTIFICATION_FAN_OUT_LATENCY = "notificationFanOutLatencyMicros";
+    public static final String STAT_NAME_NOTIFICATION_FAILURE_COUNT = "notificationFailureCount";
+    public static final String STAT_NAME_NOTIFICATION_COALESCED_COUNT = "notificationCoalescedCount";
+    public static final String STAT_NAME_NOTIFICATION_BATCH_COUNT = "notificationBatchCount";
+
+    /**
+     * Minimum number of subscribers on the same remote host, for their notifications to be sent
+     * in one batch
+     */
+    static final int NOTIFICATION_BATCH_MIN_SUBSCRIBER_COUNT = 2;
+
+    private static boolean notificationBatchingEnabled = Boolean
+            .getBoolean(PROPERTY_NAME_NOTIFICATION_BATCHING_ENABLED);
+
+    /**
+     * Delivery state of a subscriber that only needs the latest state
+     */
+    private static final class LatestStateNotification {
+        boolean isInFlight;
+        Operation pending;
+        long pendingTimeMicros;
+    }
+
     private transient Service parent;
     private ServiceStats stats;
     private ServiceSubscriptionState subscriptions;
+    private Map<URI, LatestStateNotification> latestStateNotifications;
     private UiContentService uiService;
 
     /**
@@ -131,6 +161,21 @@ public class UtilityService implements Service {
 
     private static final StatsKeyDeduper STATS_KEY_DICT = new StatsKeyDeduper();
 
+    /**
+     * Enables batching of subscription notifications. The notifications of a document update to
+     * the subscribers on the same remote host are sent in one request to the host
+     * notification dispatch service, which delivers them to each local subscriber.
+     * Batching is not used when authorization is enabled, so each notification is authorized
+     * with the context of the update
+     */
+    public static void setNotificationBatchingEnabled(boolean enabled) {
+        notificationBatchingEnabled = enabled;
+    }
+
+    public static boolean isNotificationBatchingEnabled() {
+        return notificationBatchingEnabled;
+    }
+
     public UtilityService() {
     }
 
@@ -359,6 +404,7 @@ public class UtilityService implements Service {
             synchronized (this.subscriptions) {
                 this.subscriptions.subscribers.remove(body.reference);
             }
+            removeLatestStateNotification(body.reference);
             break;
         case GET:
             ServiceDocument rsp;
@@ -403,9 +449,34 @@ public class UtilityService implements Service {
             Operation clone = op.clone();
             clone.toggleOption(OperationOption.REMOTE, false);
             clone.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION);
+
+            boolean isBatchingEnabled = notificationBatchingEnabled
+                    && !getHost().isAuthorizationEnabled();
+            Map<URI, List<ServiceSubscriber>> subscribersPerHost = null;
             for (Entry<URI, ServiceSubscriber> e : this.subscriptions.subscribers.entrySet()) {
                 ServiceSubscriber s = e.getValue();
-                notifySubscriber(now, clone, s);
+                if (s.latestStateOnly) {
+                    notifyLatestStateSubscriber(now, clone, s);
+                    continue;
+                }
+
+                if (!isBatchingEnabled || getHost().isHostEqual(s.reference)) {
+                    notifySubscriber(now, clone, s, null);
+                    continue;
+                }
+
+                if (subscribersPerHost == null) {
+                    subscribersPerHost = new HashMap<>();
+                }
+                URI hostUri = UriUtils.buildUri(s.reference.getScheme(),
+                        s.reference.getHost(), s.reference.getPort(), null, null);
+                subscribersPerHost.computeIfAbsent(hostUri, (k) -> new ArrayList<>()).add(s);
+            }
+
+            if (subscribersPerHost != null) {
+                for (Entry<URI, List<ServiceSubscriber>> e : subscribersPerHost.entrySet()) {
+                    notifySubscribers(now, clone, e.getKey(), e.getValue());
+                }
             }
 
             if (!performSubscriptionsMaintenance(now)) {
@@ -418,7 +489,8 @@ public class UtilityService implements Service {
         }
     }
 
-    private void notifySubscriber(long now, Operation clone, ServiceSubscriber s) {
+    private void notifySubscriber(long now, Operation clone, ServiceSubscriber s,
+            Runnable onCompletion) {
         synchronized (s) {
             if (s.failedNotificationCount != null) {
                 // indicate to the subscriber that they missed notifications and should retrieve latest state
@@ -427,26 +499,185 @@ public class UtilityService implements Service {
         }
 
         CompletionHandler c = (o, ex) -> {
-            s.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+            updateSubscriber(now, s, ex);
+            if (onCompletion != null) {
+                onCompletion.run();
+            }
+        };
+
+        this.parent.sendRequest(clone.setUri(s.reference).setCompletion(c));
+    }
+
+    /**
+     * Sends the notification to the subscribers on a remote host in one request, demultiplexed
+     * by the host notification dispatch service
+     */
+    private void notifySubscribers(long now, Operation clone, URI hostUri,
+            List<ServiceSubscriber> subscribers) {
+        if (subscribers.size() < NOTIFICATION_BATCH_MIN_SUBSCRIBER_COUNT) {
+            for (ServiceSubscriber s : subscribers) {
+                notifySubscriber(now, clone, s, null);
+            }
+            return;
+        }
+
+        NotificationBatch batch = new NotificationBatch();
+        batch.action = clone.getAction();
+        batch.referer = clone.getRefererAsString();
+        batch.contextId = clone.getContextId();
+        batch.transactionId = clone.getTransactionId();
+        if (clone.hasRequestHeaders()) {
+            batch.requestHeaders = new HashMap<>(clone.getRequestHeaders());
+        }
+        Object body = clone.getBodyRaw();
+        if (body != null) {
+            batch.body = body instanceof String ? (String) body : Utils.toJson(body);
+            batch.contentType = clone.getContentType();
+        }
+        for (ServiceSubscriber s : subscribers) {
+            batch.subscriberPaths.add(s.reference.getPath());
             synchronized (s) {
-                if (ex != null) {
-                    if (s.failedNotificationCount == null) {
-                        s.failedNotificationCount = 0L;
-                        s.initialFailedNotificationTimeMicros = now;
+                if (s.failedNotificationCount != null) {
+                    batch.skippedNotificationPaths.add(s.reference.getPath());
+                }
+            }
+        }
+
+        adjustNotificationStat(STAT_NAME_NOTIFICATION_BATCH_COUNT, 1);
+        Operation post = Operation
+                .createPost(UriUtils.buildUri(hostUri, ServiceUriPaths.CORE_NOTIFICATION_DISPATCH))
+                .setBodyNoCloning(batch)
+                .setReferer(clone.getReferer())
+                .setCompletion((o, e) -> {
+                    NotificationBatchResult result = e == null && o.hasBody()
+                            ? o.getBody(NotificationBatchResult.class) : null;
+                    for (int i = 0; i < subscribers.size(); i++) {
+                        if (e == null && result != null && result.statusCodes != null
+                                && i < result.statusCodes.size()
+                                && result.statusCodes.get(i) != null
+                                && result.statusCodes.get(i) == Operation.STATUS_CODE_FORBIDDEN) {
+                            // not a notification target started by the remote host
+                            notifySubscriber(now, clone.clone(), subscribers.get(i), null);
+                            continue;
+                        }
+                        Throwable ex = e;
+                        if (ex == null && (result == null || result.statusCodes == null
+                                || i >= result.statusCodes.size()
+                                || result.statusCodes.get(i) == null
+                                || result.statusCodes.get(i)
+                                        >= Operation.STATUS_CODE_FAILURE_THRESHOLD)) {
+                            ex = new IllegalStateException("notification failed");
+                        }
+                        updateSubscriber(now, subscribers.get(i), ex);
                     }
-                    s.failedNotificationCount++;
+                });
+        this.parent.sendRequest(post);
+    }
+
+    /**
+     * Sends the notification, unless one is in flight to the subscriber. In that case, the
+     * notification replaces the pending one, and is sent when the in flight one completes
+     */
+    private void notifyLatestStateSubscriber(long now, Operation clone, ServiceSubscriber s) {
+        LatestStateNotification state;
+        synchronized (this) {
+            if (this.latestStateNotifications == null) {
+                this.latestStateNotifications = new ConcurrentHashMap<>();
+            }
+            state = this.latestStateNotifications.computeIfAbsent(s.reference,
+                    (k) -> new LatestStateNotification());
+        }
+
+        synchronized (state) {
+            if (state.isInFlight) {
+                if (state.pending != null) {
+                    adjustNotificationStat(STAT_NAME_NOTIFICATION_COALESCED_COUNT, 1);
+                }
+                // the clone is shared with the other subscribers, and updated per subscriber
+                state.pending = clone.clone();
+                state.pendingTimeMicros = now;
+                return;
+            }
+            state.isInFlight = true;
+        }
+
+        sendLatestStateNotification(now, clone, s, state);
+    }
+
+    private void sendLatestStateNotification(long now, Operation notification,
+            ServiceSubscriber s, LatestStateNotification state) {
+        notifySubscriber(now, notification, s, () -> {
+            Operation next;
+            long nextTimeMicros;
+            synchronized (state) {
+                next = state.pending;
+                nextTimeMicros = state.pendingTimeMicros;
+                state.pending = null;
+                if (next == null) {
+                    state.isInFlight = false;
                     return;
                 }
+            }
 
-                if (s.failedNotificationCount != null) {
-                    // the subscriber is available again.
-                    s.failedNotificationCount = null;
-                    s.initialFailedNotificationTimeMicros = null;
+            ServiceSubscriptionState subscriptions = this.subscriptions;
+            if (subscriptions == null || subscriptions.subscribers.get(s.reference) != s) {
+                // the subscriber was removed while the notification was in flight
+                adjustNotificationStat(STAT_NAME_NOTIFICATION_COALESCED_COUNT, 1);
+                synchronized (state) {
+                    state.isInFlight = false;
                 }
+                return;
             }
-        };
+            sendLatestStateNotification(nextTimeMicros, next, s, state);
+        });
+    }
 
-        this.parent.sendRequest(clone.setUri(s.reference).setCompletion(c));
+    private void removeLatestStateNotification(URI reference) {
+        synchronized (this) {
+            if (this.latestStateNotifications != null) {
+                this.latestStateNotifications.remove(reference);
+            }
+        }
+    }
+
+    private void updateSubscriber(long now, ServiceSubscriber s, Throwable ex) {
+        s.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+        setNotificationLatencyStat(s.documentUpdateTimeMicros - now);
+        if (ex != null) {
+            adjustNotificationStat(STAT_NAME_NOTIFICATION_FAILURE_COUNT, 1);
+        }
+        synchronized (s) {
+            if (ex != null) {
+                if (s.failedNotificationCount == null) {
+                    s.failedNotificationCount = 0L;
+                    s.initialFailedNotificationTimeMicros = now;
+                }
+                s.failedNotificationCount++;
+                return;
+            }
+
+            if (s.failedNotificationCount != null) {
+                // the subscriber is available again.
+                s.failedNotificationCount = null;
+                s.initialFailedNotificationTimeMicros = null;
+            }
+        }
+    }
+
+    private void adjustNotificationStat(String name, double delta) {
+        if (!this.parent.hasOption(ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+        this.parent.adjustStat(name, delta);
+    }
+
+    private void setNotificationLatencyStat(long latencyMicros) {
+        if (!this.parent.hasOption(ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+        ServiceStat st = ServiceStatUtils.getOrCreateHistogramStat(this.parent,
+                STAT_NAME_NOTIFICATION_FAN_OUT_LATENCY);
+        this.parent.setStat(st, latencyMicros);
     }
 
     private boolean performSubscriptionsMaintenance(long now) {
@@ -489,6 +720,7 @@ public class UtilityService implements Service {
                 }
 
                 it.remove();
+                removeLatestStateNotification(s.reference);
                 if (subscribersToDelete == null) {
                     subscribersToDelete = new ArrayList<>();
                 }
@@ -867,7 +1099,10 @@ public class UtilityService implements Service {
     @Override
     public void setStat(ServiceStat stat, double newValue) {
         allocateStats();
-        findStat(stat.name, true, stat);
+        Map<String, ServiceStat> entries = this.stats.entries;
+        if (entries == null || entries.get(stat.name) != stat) {
+            findStat(stat.name, true, stat);
+        }
         synchronized (stat) {
             stat.version++;
             stat.accumulatedValue += newValue;
@@ -886,13 +1121,7 @@ public class UtilityService implements Service {
 
     private void addHistogram(ServiceStat stat, double newValue) {
         if (stat.logHistogram != null) {
-            int binIndex = 0;
-            if (newValue > 0.0) {
-                binIndex = (int) Math.log10(newValue);
-            }
-            if (binIndex >= 0 && binIndex < stat.logHistogram.bins.length) {
-                stat.logHistogram.bins[binIndex]++;
-            }
+            stat.logHistogram.add(newValue);
         }
     }
 
@@ -936,7 +1165,7 @@ public class UtilityService implements Service {
             newStat.name = stat.name;
             initializeOrSetStat(newStat, stat);
             if (this.stats.entries == null) {
-                this.stats.entries = new HashMap<>();
+                this.stats.entries = new ConcurrentHashMap<>();
             }
             // add it to the list of stats for this service
             this.stats.entries.put(stat.name, newStat);
@@ -960,7 +1189,7 @@ public class UtilityService implements Service {
     private ServiceStat findStat(String name, boolean create, ServiceStat initialStat) {
         synchronized (this.stats) {
             if (this.stats.entries == null) {
-                this.stats.entries = new HashMap<>();
+                this.stats.entries = new ConcurrentHashMap<>();
             }
             ServiceStat st = this.stats.entries.get(name);
             if (st == null && create) {
@@ -995,7 +1224,10 @@ public class UtilityService implements Service {
         if (this.stats != null) {
             return true;
         }
-        this.stats = new ServiceStats();
+        ServiceStats stats = new ServiceStats();
+        // entries are read without holding the stats lock, when updating an existing stat
+        stats.entries = new ConcurrentHashMap<>();
+        this.stats = stats;
         return true;
     }
 
@@ -793,31 +793,7 @@ public final class Utils {
             op.setContentLength(data.length);
         }
 
-        // For requests, if encoding is specified as gzip, then compress body
-        // For responses, if request accepts gzip body, then compress body and add response header
-        boolean gzip = false;
-        if (isRequest) {
-            String encoding = op.getRequestHeader(Operation.CONTENT_ENCODING_HEADER);
-            gzip = Operation.CONTENT_ENCODING_GZIP.equals(encoding);
-        } else {
-            String encoding = op.getRequestHeader(Operation.ACCEPT_ENCODING_HEADER);
-            // encoding can be of form br;q=1.0, gzip;q=0.8, *;q=0.1
-            // see https://tools.ietf.org/html/rfc7231#section-5.3.4
-            if (encoding != null) {
-                String[] encodings = encoding.split(",");
-                for (String enc : encodings) {
-                    int idx = enc.indexOf(';');
-                    if (idx > 0) {
-                        enc = enc.substring(0, idx);
-                    }
-                    if (Operation.CONTENT_ENCODING_GZIP.equals(enc.trim())) {
-                        gzip = true;
-                        break;
-                    }
-                }
-            }
-        }
-        if (gzip) {
+        if (isGzipEncodingRequested(op, isRequest)) {
             data = compressGZip(data);
             op.setContentLength(data.length);
             if (!isRequest) {
@@ -828,6 +804,38 @@ public final class Utils {
         return data;
     }
 
+    /**
+     * Infrastructure use. Returns true if the encoded body must be gzip compressed: for requests,
+     * if the content encoding is gzip, for responses, if the request accepts a gzip body
+     */
+    public static boolean isGzipEncodingRequested(Operation op, boolean isRequest) {
+        if (!op.hasRequestHeaders()) {
+            return false;
+        }
+        if (isRequest) {
+            String encoding = op.getRequestHeader(Operation.CONTENT_ENCODING_HEADER);
+            return Operation.CONTENT_ENCODING_GZIP.equals(encoding);
+        }
+
+        String encoding = op.getRequestHeader(Operation.ACCEPT_ENCODING_HEADER);
+        if (encoding == null) {
+            return false;
+        }
+        // encoding can be of form br;q=1.0, gzip;q=0.8, *;q=0.1
+        // see https://tools.ietf.org/html/rfc7231#section-5.3.4
+        String[] encodings = encoding.split(",");
+        for (String enc : encodings) {
+            int idx = enc.indexOf(';');
+            if (idx > 0) {
+                enc = enc.substring(0, idx);
+            }
+            if (Operation.CONTENT_ENCODING_GZIP.equals(enc.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
    /**
      * Compresses byte[] to gzip byte[]
      */
@@ -845,6 +853,13 @@ public final class Utils {
      */
     public static void decodeBody(Operation op, ByteBuffer buffer, boolean isRequest)
             throws Exception {
+        decodeBody(op, buffer, isRequest, isGzipEncoded(op, isRequest));
+    }
+
+    /**
+     * Infrastructure use. Returns true if the received body is gzip compressed
+     */
+    public static boolean isGzipEncoded(Operation op, boolean isRequest) {
         String contentEncodingHeader = null;
         if (!isRequest) {
             contentEncodingHeader = op.getResponseHeaderAsIs(Operation.CONTENT_ENCODING_HEADER);
@@ -852,12 +867,7 @@ public final class Utils {
             contentEncodingHeader = op.getRequestHeaderAsIs(Operation.CONTENT_ENCODING_HEADER);
         }
 
-        boolean compressed = false;
-        if (contentEncodingHeader != null) {
-            compressed = Operation.CONTENT_ENCODING_GZIP.equals(contentEncodingHeader);
-        }
-
-        decodeBody(op, buffer, isRequest, compressed);
+        return Operation.CONTENT_ENCODING_GZIP.equals(contentEncodingHeader);
     }
 
     /**
@@ -970,7 +980,7 @@ public final class Utils {
                 && contentType.charAt(15) == 'o';
     }
 
-    private static boolean isContentTypeText(String contentType) {
+    public static boolean isContentTypeText(String contentType) {
         return Operation.MEDIA_TYPE_APPLICATION_JSON.equals(contentType)
                 || contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)
                 || contentType.contains("text")
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.filters;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vmware.xenon.common.Claims;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+
+/**
+ * Bounded cache of authorization contexts, keyed by token. Entries are spread across segments,
+ * each with its own lock and least recently used order. When a segment is full, entries with an
+ * expired token are evicted first, then the least recently used entry. Tokens that failed
+ * verification are tracked separately, for a limited time.
+ */
+final class AuthorizationContextCache {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final class Entry {
+        final AuthorizationContext ctx;
+
+        final long expirationMicros;
+
+        Entry(AuthorizationContext ctx) {
+            this.ctx = ctx;
+            Claims claims = ctx.getClaims();
+            Long expirationTime = claims != null ? claims.getExpirationTime() : null;
+            this.expirationMicros = expirationTime != null
+                    ? TimeUnit.SECONDS.toMicros(expirationTime) : Long.MAX_VALUE;
+        }
+
+        String getSubject() {
+            Claims claims = this.ctx.getClaims();
+            return claims != null ? claims.getSubject() : null;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 0L;
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final int segmentCapacity;
+
+    private final int invalidTokenCapacity;
+
+    private final ConcurrentHashMap<String, Set<String>> userLinkToTokens = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Long> invalidTokens = new ConcurrentHashMap<>();
+
+    final LongAdder insertCount = new LongAdder();
+
+    final LongAdder hitCount = new LongAdder();
+
+    final LongAdder missCount = new LongAdder();
+
+    final LongAdder evictionCount = new LongAdder();
+
+    final LongAdder invalidTokenHitCount = new LongAdder();
+
+    AuthorizationContextCache(int maxSize) {
+        this.segmentCapacity = Math.max(1, maxSize / SEGMENT_COUNT);
+        this.invalidTokenCapacity = Math.max(1, maxSize);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    private Segment getSegment(String token) {
+        int h = token.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    AuthorizationContext get(String token) {
+        Segment s = getSegment(token);
+        Entry e;
+        synchronized (s) {
+            e = s.get(token);
+        }
+        if (e == null) {
+            this.missCount.increment();
+            return null;
+        }
+        this.hitCount.increment();
+        return e.ctx;
+    }
+
+    void put(String token, AuthorizationContext ctx, long nowMicros) {
+        Entry entry = new Entry(ctx);
+        Segment s = getSegment(token);
+        synchronized (s) {
+            if (!s.containsKey(token) && s.size() >= this.segmentCapacity) {
+                evict(s, nowMicros);
+            }
+            s.put(token, entry);
+            this.insertCount.increment();
+            String subject = entry.getSubject();
+            if (subject != null) {
+                this.userLinkToTokens.compute(subject, (k, tokens) -> {
+                    if (tokens == null) {
+                        tokens = ConcurrentHashMap.newKeySet();
+                    }
+                    tokens.add(token);
+                    return tokens;
+                });
+            }
+        }
+        this.invalidTokens.remove(token);
+    }
+
+    /**
+     * Removes all entries with an expired token from the segment, or, if there are none, the
+     * least recently used entry. Must be called with the segment lock held
+     */
+    private void evict(Segment s, long nowMicros) {
+        Map.Entry<String, Entry> eldest = null;
+        boolean isExpiredEvicted = false;
+        Iterator<Map.Entry<String, Entry>> it = s.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (eldest == null) {
+                eldest = e;
+            }
+            if (e.getValue().expirationMicros > nowMicros) {
+                continue;
+            }
+            it.remove();
+            removeUserToken(e.getValue().getSubject(), e.getKey());
+            this.evictionCount.increment();
+            isExpiredEvicted = true;
+        }
+
+        if (isExpiredEvicted || eldest == null) {
+            return;
+        }
+
+        s.remove(eldest.getKey());
+        removeUserToken(eldest.getValue().getSubject(), eldest.getKey());
+        this.evictionCount.increment();
+    }
+
+    private void removeUserToken(String subject, String token) {
+        if (subject == null) {
+            return;
+        }
+        this.userLinkToTokens.computeIfPresent(subject, (k, tokens) -> {
+            tokens.remove(token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+
+    void clearUser(String userLink) {
+        Set<String> tokens = this.userLinkToTokens.remove(userLink);
+        if (tokens == null) {
+            return;
+        }
+        for (String token : tokens) {
+            Segment s = getSegment(token);
+            synchronized (s) {
+                s.remove(token);
+            }
+        }
+    }
+
+    boolean isInvalid(String token, long nowMicros) {
+        Long expirationMicros = this.invalidTokens.get(token);
+        if (expirationMicros == null) {
+            return false;
+        }
+        if (expirationMicros <= nowMicros) {
+            this.invalidTokens.remove(token, expirationMicros);
+            return false;
+        }
+        this.invalidTokenHitCount.increment();
+        return true;
+    }
+
+    void putInvalid(String token, long expirationMicros, long nowMicros) {
+        if (this.invalidTokens.size() >= this.invalidTokenCapacity) {
+            this.invalidTokens.values().removeIf((e) -> e <= nowMicros);
+            if (this.invalidTokens.size() >= this.invalidTokenCapacity) {
+                this.invalidTokens.clear();
+            }
+        }
+        this.invalidTokens.put(token, expirationMicros);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment s : this.segments) {
+            synchronized (s) {
+                size += s.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment s : this.segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+        this.userLinkToTokens.clear();
+        this.invalidTokens.clear();
+    }
+}
@@ -16,10 +16,7 @@ package com.vmware.xenon.common.filters;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.time.Instant;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -44,53 +41,72 @@ import com.vmware.xenon.services.common.authz.AuthorizationConstants;
 
 public class AuthorizationFilter implements Filter {
 
-    private ConcurrentHashMap<String, AuthorizationContext> authorizationContextCache;
-    private ConcurrentHashMap<String, Set<String>> userLinkToTokenMap;
+    public static final String PROPERTY_NAME_CACHE_MAX_SIZE = Utils.PROPERTY_NAME_PREFIX
+            + "AuthorizationFilter.cacheMaxSize";
+
+    /**
+     * Maximum number of authorization contexts, and separately of invalid tokens, kept in the cache
+     */
+    public static final int CACHE_MAX_SIZE = Integer.getInteger(PROPERTY_NAME_CACHE_MAX_SIZE,
+            100000);
+
+    public static final String PROPERTY_NAME_INVALID_TOKEN_CACHE_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "AuthorizationFilter.invalidTokenCacheMicros";
+
+    /**
+     * Time a token that failed verification is treated as invalid, without verifying it again.
+     * Zero disables caching of invalid tokens
+     */
+    public static final long INVALID_TOKEN_CACHE_MICROS = Long.getLong(
+            PROPERTY_NAME_INVALID_TOKEN_CACHE_MICROS, TimeUnit.SECONDS.toMicros(5));
+
+    private AuthorizationContextCache authorizationContextCache;
 
     @Override
     public void init() {
-        this.authorizationContextCache = new ConcurrentHashMap<>();
-        this.userLinkToTokenMap = new ConcurrentHashMap<>();
+        this.authorizationContextCache = new AuthorizationContextCache(CACHE_MAX_SIZE);
     }
 
     @Override
     public void close() {
         this.authorizationContextCache.clear();
-        this.userLinkToTokenMap.clear();
     }
 
     public void cacheAuthorizationContext(ServiceHost h, String token, AuthorizationContext ctx) {
-        synchronized (this) {
-            this.authorizationContextCache.put(token, ctx);
-            addUserToken(this.userLinkToTokenMap, ctx.getClaims().getSubject(), token);
-        }
-
-        h.getManagementService().adjustStat(
-                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_INSERT_COUNT, 1);
-        h.getManagementService().adjustStat(
-                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_SIZE,
-                this.authorizationContextCache.size());
+        this.authorizationContextCache.put(token, ctx, Utils.getSystemNowMicrosUtc());
     }
 
     public void clearAuthorizationContext(ServiceHost h, String userLink) {
-        synchronized (this) {
-            Set<String> tokenSet = this.userLinkToTokenMap.remove(userLink);
-            if (tokenSet != null) {
-                for (String token : tokenSet) {
-                    this.authorizationContextCache.remove(token);
-                }
-            }
-        }
-
-        h.getManagementService().adjustStat(
-                ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_SIZE,
-                this.authorizationContextCache.size());
+        this.authorizationContextCache.clearUser(userLink);
     }
 
     public AuthorizationContext getAuthorizationContext(String token) {
         return this.authorizationContextCache.get(token);
     }
 
+    /**
+     * Sets the cache insert, hit, miss, eviction and size stats on the management service.
+     * Invoked periodically, so the request path only updates counters
+     */
+    public void updateStats(ServiceHost h) {
+        Service m = h.getManagementService();
+        AuthorizationContextCache c = this.authorizationContextCache;
+        if (m == null || c == null) {
+            return;
+        }
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_SIZE, c.size());
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_INSERT_COUNT,
+                c.insertCount.sum());
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_HIT_COUNT,
+                c.hitCount.sum());
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_MISS_COUNT,
+                c.missCount.sum());
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_EVICTION_COUNT,
+                c.evictionCount.sum());
+        m.setStat(ServiceHostManagementService.STAT_NAME_AUTHORIZATION_CACHE_INVALID_TOKEN_HIT_COUNT,
+                c.invalidTokenHitCount.sum());
+    }
+
     public AuthorizationContext createAuthorizationContext(Signer tokenSigner, String userLink) {
         Claims.Builder cb = new Claims.Builder();
         cb.setIssuer(AuthenticationConstants.DEFAULT_ISSUER);
@@ -183,6 +199,12 @@ public class AuthorizationFilter implements Filter {
             return;
         }
 
+        if (this.authorizationContextCache.isInvalid(token, Utils.getSystemNowMicrosUtc())) {
+            // the token recently failed verification, proceed with the guest context
+            authorizationContextHandler.accept(null);
+            return;
+        }
+
         AuthorizationContext ctx = context.getHost().getAuthorizationContext(null, token);
         if (ctx != null) {
             ctx = checkAndGetAuthorizationContext(ctx, ctx.getClaims(), token, op, context);
@@ -288,6 +310,7 @@ public class AuthorizationFilter implements Filter {
                                             host.getBasicAuthenticationServiceUri(),
                                             authorizationContextHandler, false);
                                 } else {
+                                    cacheInvalidToken(parentOp, resultOp);
                                     authorizationContextHandler.accept(null);
                                 }
                             } else {
@@ -327,13 +350,22 @@ public class AuthorizationFilter implements Filter {
         host.sendRequest(verifyOp);
     }
 
-    private void addUserToken(Map<String, Set<String>> userLinktoTokenMap, String userServiceLink,
-            String token) {
-        Set<String> tokenSet = userLinktoTokenMap.get(userServiceLink);
-        if (tokenSet == null) {
-            tokenSet = new HashSet<String>();
+    private void cacheInvalidToken(Operation parentOp, Operation verifyOp) {
+        if (INVALID_TOKEN_CACHE_MICROS <= 0) {
+            return;
+        }
+        int statusCode = verifyOp.getStatusCode();
+        if (statusCode == Operation.STATUS_CODE_NOT_FOUND
+                || statusCode == Operation.STATUS_CODE_TIMEOUT
+                || statusCode == Operation.STATUS_CODE_UNAVAILABLE) {
+            // the verification service is not reachable, the token might still be valid
+            return;
+        }
+        String token = BasicAuthenticationUtils.getAuthToken(parentOp);
+        if (token == null) {
+            return;
         }
-        tokenSet.add(token);
-        userLinktoTokenMap.put(userServiceLink, tokenSet);
+        long now = Utils.getSystemNowMicrosUtc();
+        this.authorizationContextCache.putInvalid(token, now + INVALID_TOKEN_CACHE_MICROS, now);
     }
 }
@@ -20,11 +20,9 @@ import com.vmware.xenon.common.Operation.OperationOption;
 import com.vmware.xenon.common.OperationProcessingChain.Filter;
 import com.vmware.xenon.common.OperationProcessingChain.FilterReturnCode;
 import com.vmware.xenon.common.OperationProcessingChain.OperationProcessingContext;
+import com.vmware.xenon.common.RequestRateLimiter;
 import com.vmware.xenon.common.ServiceErrorResponse;
-import com.vmware.xenon.common.ServiceHost.RequestRateInfo;
 import com.vmware.xenon.common.ServiceHost.RequestRateInfo.Option;
-import com.vmware.xenon.common.ServiceStats.TimeSeriesStats.TimeBin;
-import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ServiceHostManagementService;
 
 public class RequestRateLimitsFilter implements Filter {
@@ -55,31 +53,26 @@ public class RequestRateLimitsFilter implements Filter {
             return FilterReturnCode.CONTINUE_PROCESSING;
         }
 
-        RequestRateInfo rateInfo = context.getHost().getRequestRateLimit(subject);
-        if (rateInfo == null) {
+        RequestRateLimiter limiter = context.getHost().getRequestRateLimiter(subject,
+                op.getUri().getPath());
+        if (limiter == null) {
             return FilterReturnCode.CONTINUE_PROCESSING;
         }
 
-
-        synchronized (rateInfo) {
-            rateInfo.timeSeries.add(Utils.getSystemNowMicrosUtc(), 0, 1);
-            TimeBin mostRecentBin = rateInfo.timeSeries.bins
-                    .get(rateInfo.timeSeries.bins.lastKey());
-            if (mostRecentBin.sum < rateInfo.limit) {
-                return FilterReturnCode.CONTINUE_PROCESSING;
-            }
+        if (limiter.tryAcquire()) {
+            return FilterReturnCode.CONTINUE_PROCESSING;
         }
 
         context.getHost().getManagementService().adjustStat(
                 ServiceHostManagementService.STAT_NAME_RATE_LIMITED_OP_COUNT, 1);
 
-        if (rateInfo.options.contains(Option.PAUSE_PROCESSING)) {
+        if (limiter.hasOption(Option.PAUSE_PROCESSING)) {
             // Add option as a hint to the request listener to throttle the channel associated with
             // the operation
             op.toggleOption(OperationOption.RATE_LIMITED, true);
         }
 
-        if (!rateInfo.options.contains(Option.FAIL)) {
+        if (!limiter.hasOption(Option.FAIL)) {
             return FilterReturnCode.CONTINUE_PROCESSING;
         }
 
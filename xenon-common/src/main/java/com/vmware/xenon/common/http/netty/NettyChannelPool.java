@@ -34,8 +34,6 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslContext;
 
 import com.vmware.xenon.common.Operation;
@@ -164,6 +162,7 @@ public class NettyChannelPool {
     private String threadTag = NettyChannelPool.class.getSimpleName();
     private int threadCount;
     private boolean isHttp2Only = false;
+    private boolean isNativeTransportEnabled = false;
     private Bootstrap bootStrap;
 
     private final Map<NettyChannelGroupKey, NettyChannelGroup> channelGroups = new ConcurrentSkipListMap<>();
@@ -194,6 +193,15 @@ public class NettyChannelPool {
         return this;
     }
 
+    /**
+     * Use the native epoll transport, if available on this platform. Must be set before
+     * {@link #start()}
+     */
+    public NettyChannelPool setNativeTransportEnabled(boolean enabled) {
+        this.isNativeTransportEnabled = enabled;
+        return this;
+    }
+
     /**
      * Force the channel pool to be HTTP/2.
      */
@@ -220,13 +228,15 @@ public class NettyChannelPool {
                             r, this.threadTag));
             this.executor = this.nettyExecutorService;
         }
-        this.eventGroup = new NioEventLoopGroup(this.threadCount, this.executor);
+        boolean useNative = NettyTransport.useNative(this.isNativeTransportEnabled);
+        this.eventGroup = NettyTransport.createEventLoopGroup(useNative, this.threadCount,
+                this.executor);
 
         this.bootStrap = new Bootstrap();
         this.bootStrap.group(this.eventGroup)
-                .channel(NioSocketChannel.class)
                 .handler(new NettyHttpClientRequestInitializer(this, this.isHttp2Only,
                         this.requestPayloadSizeLimit));
+        NettyTransport.configure(this.bootStrap, useNative);
     }
 
     public boolean isStarted() {
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import com.esotericsoftware.kryo.io.Output;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceClient;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.serialization.GsonSerializers;
+import com.vmware.xenon.common.serialization.KryoSerializers;
+
+/**
+ * Encodes and decodes operation bodies directly to and from Netty buffers.
+ *
+ * JSON and Kryo bodies are serialized into thread local buffers and written once into a buffer
+ * from the channel allocator, instead of being copied into a new byte array per operation.
+ * Received bodies are decoded from the aggregated buffer in place. Compressed and raw binary
+ * bodies use the {@link Utils#encodeBody(Operation, boolean)} and
+ * {@link Utils#decodeBody(Operation, java.nio.ByteBuffer, boolean)} path.
+ */
+final class NettyHttpBodyCodec {
+
+    private NettyHttpBodyCodec() {
+    }
+
+    /**
+     * Encodes the operation body and sets the operation content length. The caller owns the
+     * returned buffer, which is null if the operation has no body
+     */
+    static ByteBuf encodeBody(ByteBufAllocator alloc, Operation op, boolean isRequest)
+            throws Exception {
+        Object body = op.getBodyRaw();
+        if (body == null || body instanceof byte[] || Utils.isGzipEncodingRequested(op, isRequest)) {
+            byte[] data = Utils.encodeBody(op, isRequest);
+            if (data == null) {
+                return null;
+            }
+            int length = isRequest ? (int) op.getContentLength() : data.length;
+            return Unpooled.wrappedBuffer(data, 0, length);
+        }
+
+        String contentType = op.getContentType();
+        if (!(body instanceof String)
+                && Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM.equals(contentType)) {
+            Output o = KryoSerializers.serializeAsDocument(body,
+                    ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT);
+            ByteBuf buffer = alloc.buffer(o.position());
+            buffer.writeBytes(o.getBuffer(), 0, o.position());
+            op.setContentLength(o.position());
+            return buffer;
+        }
+
+        CharSequence text;
+        if (body instanceof String) {
+            text = (String) body;
+        } else {
+            StringBuilder sb = Utils.getBuilder();
+            GsonSerializers.getJsonMapperFor(body).toJson(body, sb);
+            text = sb;
+            if (op.getAction() != Action.GET && contentType == null) {
+                op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+            }
+        }
+
+        ByteBuf buffer;
+        if (isAscii(text)) {
+            buffer = alloc.buffer(text.length());
+            ByteBufUtil.writeAscii(buffer, text);
+        } else {
+            buffer = alloc.buffer(ByteBufUtil.utf8MaxBytes(text));
+            ByteBufUtil.writeUtf8(buffer, text);
+        }
+        op.setContentLength(buffer.readableBytes());
+        return buffer;
+    }
+
+    /**
+     * Decodes the readable bytes of the buffer, using the content type as a hint. It sets the
+     * operation body to the decoded instance. It does not complete the operation, or release
+     * the buffer
+     */
+    static void decodeBody(Operation op, ByteBuf content, boolean isRequest) throws Exception {
+        String contentType = op.getContentType();
+        if (op.getContentLength() == 0 || contentType == null
+                || Utils.isGzipEncoded(op, isRequest)) {
+            Utils.decodeBody(op, content.nioBuffer(), isRequest);
+            return;
+        }
+
+        if (Utils.isContentTypeKryoBinary(contentType)) {
+            if (op.isFromReplication()) {
+                // replicated binary state is linked to the operation, and indexed after the
+                // buffer is released, so it is copied to an array of its own
+                Utils.decodeBody(op, content.nioBuffer(), isRequest);
+            } else {
+                decodeKryoBody(op, content);
+            }
+            return;
+        }
+
+        if (Utils.isContentTypeText(contentType)) {
+            // decode straight from the buffer, rejecting malformed input
+            op.setBodyNoCloning(Utils.decodeIfText(content.nioBuffer(), contentType));
+            return;
+        }
+
+        Utils.decodeBody(op, content.nioBuffer(), isRequest);
+    }
+
+    private static void decodeKryoBody(Operation op, ByteBuf content) {
+        int length = (int) op.getContentLength();
+        int offset = content.readerIndex();
+        Object body;
+        if (content.hasArray()) {
+            body = KryoSerializers.deserializeDocument(content.array(),
+                    content.arrayOffset() + offset, length);
+        } else {
+            byte[] data = KryoSerializers.getBuffer(length);
+            content.getBytes(offset, data, 0, length);
+            body = KryoSerializers.deserializeDocument(data, 0, length);
+        }
+        op.setBodyNoCloning(body);
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
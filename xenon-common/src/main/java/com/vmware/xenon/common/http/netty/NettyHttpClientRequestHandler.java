@@ -33,6 +33,7 @@ import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
@@ -41,6 +42,7 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
@@ -48,6 +50,7 @@ import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
 import io.netty.handler.codec.http2.HttpConversionUtil;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
@@ -89,6 +92,11 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     private boolean secureAuthCookie;
 
+    /**
+     * Streaming body of the current HTTP/1.1 request, null if the request was aggregated
+     */
+    private NettyHttpStreamingBody streamingBody;
+
     public NettyHttpClientRequestHandler(ServiceHost host, NettyHttpListener listener,
             SslHandler sslHandler, int responsePayloadSizeLimit, boolean secureAuthCookie) {
         this.host = host;
@@ -100,10 +108,11 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     @Override
     public boolean acceptInboundMessage(Object msg) throws Exception {
-        if (msg instanceof FullHttpRequest) {
+        if (msg instanceof HttpRequest) {
+            // requests are aggregated, unless they target a streaming body path
             return true;
         }
-        return false;
+        return msg instanceof HttpContent && this.streamingBody != null;
     }
 
     @Override
@@ -115,11 +124,38 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         this.listener.removeChannel(ctx.channel());
+        if (this.streamingBody != null) {
+            this.streamingBody.close();
+            this.streamingBody.failPendingWrites();
+        }
         super.channelInactive(ctx);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (this.streamingBody != null) {
+            this.streamingBody.onReadComplete();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (this.streamingBody != null) {
+            this.streamingBody.onWritabilityChanged();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpRequest)) {
+            // chunks are released once read, or when the request completes
+            this.streamingBody.addChunk(((HttpContent) msg).retain());
+            return;
+        }
+
+        this.streamingBody = null;
         double startTime = 0;
         String requestedPath = null;
 
@@ -132,7 +168,7 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         try {
 
             // Start of request processing, initialize in-bound operation
-            FullHttpRequest nettyRequest = (FullHttpRequest) msg;
+            HttpRequest nettyRequest = (HttpRequest) msg;
             long expMicros = Utils.fromNowMicrosUtc(this.host.getOperationTimeoutMicros());
 
             request = Operation.createGet(null);
@@ -162,8 +198,12 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             parseRequestUri(request, nettyRequest);
             requestedPath = request.getUri().getPath();
 
-            decodeRequestBody(ctx, request, nettyRequest.content(), streamId,
-                    requestedPath, startTime);
+            if (nettyRequest instanceof FullHttpRequest) {
+                decodeRequestBody(ctx, request, ((FullHttpRequest) nettyRequest).content(),
+                        streamId, requestedPath, startTime);
+            } else {
+                startStreamingRequest(ctx, request, nettyRequest, requestedPath, startTime);
+            }
         } catch (Exception e) {
             this.host.log(Level.SEVERE, "Uncaught exception: %s", Utils.toString(e));
             if (request == null) {
@@ -179,7 +219,7 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         }
     }
 
-    private void parseRequestUri(Operation request, FullHttpRequest nettyRequest)
+    private void parseRequestUri(Operation request, HttpRequest nettyRequest)
             throws URISyntaxException {
         URI targetUri = new URI(nettyRequest.uri());
         String decodedQuery = null;
@@ -216,10 +256,26 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             return;
         }
 
-        Utils.decodeBody(request, content.nioBuffer(), true);
+        NettyHttpBodyCodec.decodeBody(request, content, true);
         submitRequest(ctx, request, streamId, originalPath, startTime);
     }
 
+    /**
+     * Submits a request to a streaming body path, before its body is received. The channel is
+     * read only when the service requests the next chunk of the body
+     */
+    private void startStreamingRequest(ChannelHandlerContext ctx, Operation request,
+            HttpRequest nettyRequest, String originalPath, double startTime) {
+        ctx.channel().config().setAutoRead(false);
+        if (HttpUtil.is100ContinueExpected(nettyRequest)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
+        }
+        this.streamingBody = new NettyHttpStreamingBody(ctx, this.host, request);
+        request.setStreamingBody(this.streamingBody);
+        submitRequest(ctx, request, null, originalPath, startTime);
+    }
+
     private void parseRequestHeaders(ChannelHandlerContext ctx, Operation request,
             HttpRequest nettyRequest) {
 
@@ -317,23 +373,35 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
     private void submitRequest(ChannelHandlerContext ctx, Operation request,
             Integer streamId, String originalPath, double startTime) {
         AtomicBoolean isStreamingEnabled = new AtomicBoolean();
+        AtomicBoolean isChunked = new AtomicBoolean();
+        NettyHttpStreamingBody body = this.streamingBody;
         request.nestCompletion((o, e) -> {
+            if (body != null) {
+                completeStreamingRequest(ctx, request, body);
+            }
             if (!isStreamingEnabled.get()) {
                 request.setBodyNoCloning(o.getBodyRaw());
                 sendResponse(ctx, request, streamId, originalPath, startTime);
+            } else if (isChunked.get()) {
+                concludeRequest(ctx, request, e != null, true);
             } else {
                 if (e != null) {
                     ServerSentEvent errorEvent = new ServerSentEvent().setEvent(ServerSentEvent.EVENT_TYPE_ERROR)
                             .setData(Utils.toJson(o.getBody(ServiceErrorResponse.class)));
                     request.sendServerSentEvent(errorEvent);
                 }
-                concludeRequest(ctx, request, true);
+                concludeRequest(ctx, request, true, false);
             }
         });
         request.nestHeadersReceivedHandler(ignore -> {
             if (!isStreamingEnabled.getAndSet(true)) {
                 HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(request.getStatusCode()));
                 this.addCommonHeaders(response, request, streamId);
+                if (body != null && !Operation.MEDIA_TYPE_TEXT_EVENT_STREAM
+                        .equals(request.getContentType())) {
+                    isChunked.set(true);
+                    HttpUtil.setTransferEncodingChunked(response, true);
+                }
                 ctx.writeAndFlush(response);
             }
         });
@@ -356,6 +424,22 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         this.host.handleRequest(null, request);
     }
 
+    /**
+     * Releases the unread chunks of a streaming request. The connection is closed after the
+     * response if the request body was not fully received, otherwise reads are resumed
+     */
+    private void completeStreamingRequest(ChannelHandlerContext ctx, Operation request,
+            NettyHttpStreamingBody body) {
+        body.close();
+        if (!body.isRequestReceived()) {
+            request.setKeepAlive(false);
+            return;
+        }
+        if (request.isKeepAlive()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
     private void sendResponse(ChannelHandlerContext ctx, Operation request,
             Integer streamId, String originalPath, double startTime) {
         try {
@@ -380,20 +464,18 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         FullHttpResponse response;
 
         try {
-            byte[] data = Utils.encodeBody(request, false);
+            bodyBuffer = NettyHttpBodyCodec.encodeBody(ctx.alloc(), request, false);
 
             // if some service returns a response that is greater than the maximum allowed size,
             // we return an INTERNAL_SERVER_ERROR.
             if (request.getContentLength() > this.responsePayloadSizeLimit) {
+                ReferenceCountUtil.release(bodyBuffer);
                 String errorMessage = "Content-Length " + request.getContentLength()
                         + " is greater than max size allowed " + this.responsePayloadSizeLimit;
                 this.host.log(Level.SEVERE, errorMessage);
                 writeInternalServerError(ctx, request, streamId, errorMessage, originalPath, startTime);
                 return;
             }
-            if (data != null) {
-                bodyBuffer = Unpooled.wrappedBuffer(data);
-            }
         } catch (Exception e1) {
             // Note that this is a program logic error - some service isn't properly checking or setting Content-Type
             this.host.log(Level.SEVERE, "Error encoding body: %s", Utils.toString(e1));
@@ -403,6 +485,7 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         }
 
         if (bodyBuffer == null || request.getStatusCode() == Operation.STATUS_CODE_NOT_MODIFIED) {
+            ReferenceCountUtil.release(bodyBuffer);
             response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
                     HttpResponseStatus.valueOf(request.getStatusCode()), false, false);
         } else {
@@ -562,10 +645,15 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         }
     }
 
-    private void concludeRequest(ChannelHandlerContext ctx, Operation request, boolean forceClose) {
+    private void concludeRequest(ChannelHandlerContext ctx, Operation request, boolean forceClose,
+            boolean isChunked) {
         boolean isClose = !request.isKeepAlive() || forceClose;
         ctx.channel().attr(NettyChannelContext.OPERATION_KEY).set(null);
-        ChannelFuture future = ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
+        // a chunked response is ended with the last chunk, unless it failed: the connection
+        // is then closed, so the client sees a truncated body
+        Object last = isChunked && !forceClose ? LastHttpContent.EMPTY_LAST_CONTENT
+                : Unpooled.EMPTY_BUFFER;
+        ChannelFuture future = ctx.writeAndFlush(last);
         if (isClose) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
@@ -17,6 +17,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
@@ -28,8 +30,7 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
 import io.netty.handler.codec.http2.Http2SecurityUtil;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
 import io.netty.handler.ssl.ApplicationProtocolNames;
@@ -72,7 +73,8 @@ public class NettyHttpListener implements ServiceRequestListener {
     private ServiceHost host;
     private Channel serverChannel;
     private Map<String, NettyListenerChannelContext> pausedChannels = new ConcurrentSkipListMap<>();
-    private NioEventLoopGroup eventLoopGroup;
+    private EventLoopGroup eventLoopGroup;
+    private List<Channel> reusePortChannels = new ArrayList<>();
     private ExecutorService nettyExecutorService;
     private SslContext sslContext;
     private boolean secureAuthCookie;
@@ -104,7 +106,9 @@ public class NettyHttpListener implements ServiceRequestListener {
                 r -> new Thread(r, this.host.getUri().toString() + "/netty-listener/"
                         + this.host.getId()));
 
-        this.eventLoopGroup = new NioEventLoopGroup(EVENT_LOOP_THREAD_COUNT, this.nettyExecutorService);
+        boolean useNative = NettyTransport.useNative(this.host.isNativeTransportEnabled());
+        this.eventLoopGroup = NettyTransport.createEventLoopGroup(useNative,
+                EVENT_LOOP_THREAD_COUNT, this.nettyExecutorService);
         if (this.childChannelHandler == null) {
             this.childChannelHandler = new NettyHttpServerInitializer(this, this.host,
                     this.sslContext, this.responsePayloadSizeLimit, this.secureAuthCookie);
@@ -112,8 +116,8 @@ public class NettyHttpListener implements ServiceRequestListener {
 
         ServerBootstrap b = new ServerBootstrap();
         b.group(this.eventLoopGroup)
-                .channel(NioServerSocketChannel.class)
                 .childHandler(this.childChannelHandler);
+        NettyTransport.configure(b, useNative);
 
         InetSocketAddress addr;
         if (bindAddress != null) {
@@ -126,6 +130,15 @@ public class NettyHttpListener implements ServiceRequestListener {
         this.serverChannel = b.bind(addr).sync().channel();
         this.serverChannel.config().setOption(ChannelOption.SO_LINGER, 0);
         this.port = ((InetSocketAddress) this.serverChannel.localAddress()).getPort();
+        if (NettyTransport.useReusePort(useNative)) {
+            // with port reuse, each event loop accepts connections on its own server channel
+            addr = new InetSocketAddress(addr.getAddress(), this.port);
+            for (int i = 1; i < EVENT_LOOP_THREAD_COUNT; i++) {
+                Channel c = b.bind(addr).sync().channel();
+                c.config().setOption(ChannelOption.SO_LINGER, 0);
+                this.reusePortChannels.add(c);
+            }
+        }
         this.isListening = true;
 
         MaintenanceProxyService.start(this.host, this::handleMaintenance);
@@ -186,6 +199,10 @@ public class NettyHttpListener implements ServiceRequestListener {
             this.serverChannel.close();
             this.serverChannel = null;
         }
+        for (Channel c : this.reusePortChannels) {
+            c.close();
+        }
+        this.reusePortChannels.clear();
         if (this.eventLoopGroup != null) {
             this.eventLoopGroup.shutdownGracefully();
             this.eventLoopGroup = null;
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import com.vmware.xenon.common.ServiceHost;
+
+/**
+ * Aggregates HTTP/1.1 requests, except requests to paths registered with
+ * {@link ServiceHost#registerStreamingBodyPath(String)}: the request and its content chunks
+ * are passed through, to be read incrementally by the request handler
+ */
+final class NettyHttpRequestAggregator extends HttpObjectAggregator {
+
+    private final ServiceHost host;
+
+    private boolean isStreaming;
+
+    NettyHttpRequestAggregator(ServiceHost host, int maxContentLength) {
+        super(maxContentLength);
+        this.host = host;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)
+                && this.host.hasStreamingBodyPaths()) {
+            String path = new QueryStringDecoder(((HttpRequest) msg).uri()).path();
+            this.isStreaming = this.host.isStreamingBodyPath(path);
+        }
+
+        if (!this.isStreaming) {
+            return super.acceptInboundMessage(msg);
+        }
+
+        if (msg instanceof LastHttpContent) {
+            this.isStreaming = false;
+        }
+        return false;
+    }
+}
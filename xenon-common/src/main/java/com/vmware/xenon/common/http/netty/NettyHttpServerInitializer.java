@@ -19,7 +19,6 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.HttpServerUpgradeHandler.UpgradeCodec;
@@ -203,7 +202,7 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
         }
 
         p.addLast(AGGREGATOR_HANDLER,
-                new HttpObjectAggregator(this.responsePayloadSizeLimit));
+                new NettyHttpRequestAggregator(this.host, this.responsePayloadSizeLimit));
         initializeCommon(p, sslHandler);
     }
 
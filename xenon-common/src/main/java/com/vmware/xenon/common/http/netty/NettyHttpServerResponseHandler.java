@@ -196,7 +196,7 @@ public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<
         }
 
         try {
-            Utils.decodeBody(request, content.nioBuffer(), false);
+            NettyHttpBodyCodec.decodeBody(request, content, false);
             if (checkResponseForError(request)) {
                 return;
             }
@@ -46,6 +46,7 @@ import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
@@ -192,9 +193,12 @@ public class NettyHttpServiceClient implements ServiceClient {
             }
         }
 
+        boolean isNativeTransportEnabled = this.host != null
+                && this.host.isNativeTransportEnabled();
         this.channelPool.setThreadTag(buildThreadTag());
         this.channelPool.setThreadCount(Utils.DEFAULT_IO_THREAD_COUNT);
         this.channelPool.setExecutor(this.executor);
+        this.channelPool.setNativeTransportEnabled(isNativeTransportEnabled);
         this.channelPool.start();
 
         // We make a separate pool for HTTP/2. We want to have only one connection per host
@@ -202,6 +206,7 @@ public class NettyHttpServiceClient implements ServiceClient {
         this.http2ChannelPool.setThreadTag(buildThreadTag());
         this.http2ChannelPool.setThreadCount(Utils.DEFAULT_IO_THREAD_COUNT);
         this.http2ChannelPool.setExecutor(this.executor);
+        this.http2ChannelPool.setNativeTransportEnabled(isNativeTransportEnabled);
         this.http2ChannelPool.setHttp2Only();
         this.http2ChannelPool.start();
 
@@ -209,6 +214,7 @@ public class NettyHttpServiceClient implements ServiceClient {
             this.sslChannelPool.setThreadTag(buildThreadTag());
             this.sslChannelPool.setThreadCount(Utils.DEFAULT_IO_THREAD_COUNT);
             this.sslChannelPool.setExecutor(this.executor);
+            this.sslChannelPool.setNativeTransportEnabled(isNativeTransportEnabled);
             this.sslChannelPool.setSSLContext(this.sslContext);
             this.sslChannelPool.start();
         }
@@ -217,6 +223,7 @@ public class NettyHttpServiceClient implements ServiceClient {
             this.http2SslChannelPool.setThreadTag(buildThreadTag());
             this.http2SslChannelPool.setThreadCount(Utils.DEFAULT_IO_THREAD_COUNT);
             this.http2SslChannelPool.setExecutor(this.executor);
+            this.http2SslChannelPool.setNativeTransportEnabled(isNativeTransportEnabled);
             this.http2SslChannelPool.setHttp2Only();
             this.http2SslChannelPool.setHttp2SslContext(this.http2SslContext);
             this.http2SslChannelPool.start();
@@ -431,9 +438,12 @@ public class NettyHttpServiceClient implements ServiceClient {
 
     private void sendHttpRequest(Operation op) {
         final Object originalBody = op.getBodyRaw();
+        ByteBuf content = null;
         try {
-            byte[] body = Utils.encodeBody(op, true);
+            NettyChannelContext socketContext = (NettyChannelContext) op.getSocketContext();
+            content = NettyHttpBodyCodec.encodeBody(socketContext.getChannel().alloc(), op, true);
             if (op.getContentLength() > getRequestPayloadSizeLimit()) {
+                ReferenceCountUtil.release(content);
                 String error = String.format("Content length %d, limit is %d",
                         op.getContentLength(), getRequestPayloadSizeLimit());
                 Exception e = new IllegalArgumentException(error);
@@ -460,14 +470,12 @@ public class NettyHttpServiceClient implements ServiceClient {
 
             NettyFullHttpRequest request = null;
             HttpMethod method = toHttpMethod(op.getAction());
-            if (body == null || body.length == 0) {
-                request = new NettyFullHttpRequest(HttpVersion.HTTP_1_1, method, pathAndQuery,
-                        Unpooled.buffer(0), false);
-            } else {
-                ByteBuf content = Unpooled.wrappedBuffer(body, 0, (int) op.getContentLength());
-                request = new NettyFullHttpRequest(HttpVersion.HTTP_1_1, method, pathAndQuery,
-                        content, false);
+            if (content == null || !content.isReadable()) {
+                ReferenceCountUtil.release(content);
+                content = Unpooled.buffer(0);
             }
+            request = new NettyFullHttpRequest(HttpVersion.HTTP_1_1, method, pathAndQuery,
+                    content, false);
 
             HttpHeaders httpHeaders = request.headers();
 
@@ -594,8 +602,11 @@ public class NettyHttpServiceClient implements ServiceClient {
             });
 
             op.toggleOption(OperationOption.SOCKET_ACTIVE, true);
+            // the channel releases the request content once written
+            content = null;
             op.getSocketContext().writeHttpRequest(request);
         } catch (Exception e) {
+            ReferenceCountUtil.release(content);
             op.setBody(ServiceErrorResponse.create(e, Operation.STATUS_CODE_BAD_REQUEST,
                     EnumSet.of(ErrorDetail.SHOULD_RETRY)));
             fail(e, op, originalBody);
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationContext;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Streaming body of an HTTP/1.1 request received by the listener, see
+ * {@link Operation#getStreamingBody()}.
+ *
+ * Auto read is disabled on the channel while the request is processed: the channel is read
+ * only when a chunk is requested and none is queued. Received chunks are queued, and handed to
+ * readers on the host executor. Write handlers are called once the channel is writable again.
+ */
+final class NettyHttpStreamingBody implements Operation.StreamingBody {
+
+    private final ChannelHandlerContext ctx;
+
+    private final ServiceHost host;
+
+    private final Operation op;
+
+    private final ArrayDeque<HttpContent> chunks = new ArrayDeque<>();
+
+    private BiConsumer<ByteBuffer, Throwable> readHandler;
+
+    private boolean isRequestReceived;
+
+    private boolean isRequestRead;
+
+    private boolean isClosed;
+
+    /**
+     * Write handlers waiting for the channel to become writable, accessed on the event loop
+     */
+    private final ArrayDeque<Consumer<Throwable>> writeHandlers = new ArrayDeque<>();
+
+    NettyHttpStreamingBody(ChannelHandlerContext ctx, ServiceHost host, Operation op) {
+        this.ctx = ctx;
+        this.host = host;
+        this.op = op;
+    }
+
+    @Override
+    public void readChunk(BiConsumer<ByteBuffer, Throwable> handler) {
+        HttpContent chunk;
+        Throwable failure = null;
+        synchronized (this) {
+            if (this.readHandler != null) {
+                throw new IllegalStateException("Read already in progress");
+            }
+            chunk = poll();
+            if (chunk == null && !this.isRequestRead) {
+                if (this.isClosed) {
+                    failure = new ClosedChannelException();
+                } else {
+                    this.readHandler = handler;
+                    this.ctx.read();
+                    return;
+                }
+            }
+        }
+        deliver(handler, chunk, failure);
+    }
+
+    @Override
+    public void writeChunk(ByteBuffer chunk, Consumer<Throwable> handler) {
+        this.op.sendHeaders();
+        HttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(chunk));
+        this.ctx.writeAndFlush(content).addListener(future -> {
+            if (!future.isSuccess()) {
+                complete(handler, future.cause());
+                return;
+            }
+            if (this.ctx.channel().isWritable()) {
+                complete(handler, null);
+                return;
+            }
+            this.writeHandlers.add(handler);
+        });
+    }
+
+    /**
+     * Queues a chunk received on the channel, and hands it to a waiting reader. The caller
+     * transfers ownership of the chunk
+     */
+    void addChunk(HttpContent chunk) {
+        BiConsumer<ByteBuffer, Throwable> handler;
+        synchronized (this) {
+            boolean isLast = chunk instanceof LastHttpContent;
+            if (this.isClosed || (!isLast && !chunk.content().isReadable())) {
+                chunk.release();
+                return;
+            }
+            this.isRequestReceived |= isLast;
+            this.chunks.add(chunk);
+            handler = this.readHandler;
+            if (handler == null) {
+                return;
+            }
+            this.readHandler = null;
+            chunk = poll();
+        }
+        deliver(handler, chunk, null);
+    }
+
+    /**
+     * Reads more from the channel, if a reader is still waiting once the channel read completes
+     */
+    synchronized void onReadComplete() {
+        if (this.readHandler != null && !this.isClosed) {
+            this.ctx.read();
+        }
+    }
+
+    void onWritabilityChanged() {
+        while (this.ctx.channel().isWritable() && !this.writeHandlers.isEmpty()) {
+            complete(this.writeHandlers.poll(), null);
+        }
+    }
+
+    /**
+     * Returns true if the last chunk of the request was received from the channel
+     */
+    synchronized boolean isRequestReceived() {
+        return this.isRequestReceived;
+    }
+
+    /**
+     * Releases queued chunks, and fails pending readers. Called when the operation completes,
+     * and when the channel becomes inactive
+     */
+    void close() {
+        BiConsumer<ByteBuffer, Throwable> handler;
+        synchronized (this) {
+            if (this.isClosed) {
+                return;
+            }
+            this.isClosed = true;
+            for (HttpContent chunk : this.chunks) {
+                chunk.release();
+            }
+            this.chunks.clear();
+            handler = this.readHandler;
+            this.readHandler = null;
+        }
+        if (handler != null) {
+            deliver(handler, null, new ClosedChannelException());
+        }
+    }
+
+    void failPendingWrites() {
+        while (!this.writeHandlers.isEmpty()) {
+            complete(this.writeHandlers.poll(), new ClosedChannelException());
+        }
+    }
+
+    private HttpContent poll() {
+        HttpContent chunk = this.chunks.poll();
+        if (chunk instanceof LastHttpContent) {
+            this.isRequestRead = true;
+        }
+        return chunk;
+    }
+
+    private void deliver(BiConsumer<ByteBuffer, Throwable> handler, HttpContent chunk,
+            Throwable failure) {
+        this.host.run(() -> {
+            OperationContext.setFrom(this.op);
+            try {
+                ByteBuf data = chunk == null ? null : chunk.content();
+                handler.accept(data != null && data.isReadable() ? data.nioBuffer() : null,
+                        failure);
+            } catch (Throwable e) {
+                this.host.log(Level.WARNING, "Uncaught failure inside read handler: %s",
+                        Utils.toString(e));
+            } finally {
+                ReferenceCountUtil.release(chunk);
+            }
+        });
+    }
+
+    private void complete(Consumer<Throwable> handler, Throwable failure) {
+        this.host.run(() -> {
+            OperationContext.setFrom(this.op);
+            handler.accept(failure);
+        });
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Selects the Netty transport used by listeners and channel pools. The native epoll transport
+ * is used when requested and available (Linux only), the NIO transport otherwise.
+ */
+final class NettyTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(NettyTransport.class.getName());
+
+    /**
+     * Enables SO_REUSEPORT on listening sockets of the native transport, so the listener can
+     * bind one server channel per event loop on the same port. Port reuse also lets any other
+     * process of the same user bind the port without error and receive part of the
+     * connections, so it is disabled by default
+     */
+    public static final String REUSE_PORT_PROPERTY_NAME =
+            Utils.PROPERTY_NAME_PREFIX + "NettyTransport.isReusePortEnabled";
+
+    private static boolean isReusePortEnabled = Boolean.getBoolean(REUSE_PORT_PROPERTY_NAME);
+
+    private static volatile boolean isUnavailabilityLogged;
+
+    private NettyTransport() {
+    }
+
+    /**
+     * Returns true if the native transport is requested and can be loaded on this platform
+     */
+    static boolean useNative(boolean isNativeTransportEnabled) {
+        if (!isNativeTransportEnabled) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        if (!isUnavailabilityLogged) {
+            isUnavailabilityLogged = true;
+            LOGGER.warning("Native transport not available, using NIO: "
+                    + Epoll.unavailabilityCause());
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the listener should bind more than one server channel on its port
+     */
+    static boolean useReusePort(boolean useNative) {
+        return useNative && isReusePortEnabled;
+    }
+
+    static EventLoopGroup createEventLoopGroup(boolean useNative, int threadCount,
+            Executor executor) {
+        if (useNative) {
+            return new EpollEventLoopGroup(threadCount, executor);
+        }
+        return new NioEventLoopGroup(threadCount, executor);
+    }
+
+    /**
+     * Sets the server channel type and options. With the native transport and port reuse
+     * enabled, the listening socket allows port reuse, so more than one server channel can
+     * accept on the same port
+     */
+    static void configure(ServerBootstrap b, boolean useNative) {
+        if (!useNative) {
+            b.channel(NioServerSocketChannel.class);
+            return;
+        }
+        b.channel(EpollServerSocketChannel.class)
+                .option(EpollChannelOption.SO_REUSEPORT, isReusePortEnabled)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(EpollChannelOption.TCP_QUICKACK, true);
+    }
+
+    static void configure(Bootstrap b, boolean useNative) {
+        if (!useNative) {
+            b.channel(NioSocketChannel.class);
+            return;
+        }
+        b.channel(EpollSocketChannel.class)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(EpollChannelOption.TCP_QUICKACK, true);
+    }
+}
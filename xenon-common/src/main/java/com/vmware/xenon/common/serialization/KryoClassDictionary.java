@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+
+/**
+ * Process wide dictionary of compact class identifiers, used by the binary serializers instead
+ * of fully qualified class names. Service hosts register the state type of each service as it
+ * starts, and persist the registered class names in their sandbox so state written by a previous
+ * run can be read before the services start.
+ *
+ * The identifier of a class is derived from a stable hash of its name, so all nodes, and all
+ * restarts of a node, assign the same identifier to a class without exchanging the mapping. The
+ * identifier is always followed by a second, independent hash of the class name, and a reader
+ * rejects an identifier whose name hash does not match a registered class, instead of decoding
+ * the state as a different type. Once two classes are found to share an identifier, the
+ * identifier is no longer written for either class, and both keep being serialized by name
+ */
+public final class KryoClassDictionary {
+
+    /**
+     * Identifiers are allocated above the range used by explicit KRYO registrations
+     */
+    private static final int MIN_CLASS_ID = 1 << 29;
+
+    private static final int CLASS_ID_MASK = MIN_CLASS_ID - 1;
+
+    /**
+     * Identifiers written by the serializers. Classes with a colliding identifier are removed
+     */
+    private static final ConcurrentHashMap<Class<?>, Integer> idPerClass = new ConcurrentHashMap<>();
+
+    /**
+     * All classes registered with an identifier, used on read
+     */
+    private static final ConcurrentHashMap<Integer, Class<?>[]> classesPerId = new ConcurrentHashMap<>();
+
+    private KryoClassDictionary() {
+    }
+
+    /**
+     * Registers a class and returns its identifier, or -1 if the identifier is shared with a
+     * different class and can not be used
+     */
+    public static int register(Class<?> type) {
+        return register(type, computeClassId(type.getName()));
+    }
+
+    static synchronized int register(Class<?> type, int id) {
+        Class<?>[] classes = classesPerId.merge(id, new Class<?>[] { type },
+                (existing, added) -> {
+                    if (Arrays.asList(existing).contains(type)) {
+                        return existing;
+                    }
+                    Class<?>[] merged = Arrays.copyOf(existing, existing.length + 1);
+                    merged[existing.length] = type;
+                    return merged;
+                });
+        if (classes.length == 1) {
+            idPerClass.put(type, id);
+            return id;
+        }
+
+        // the identifier is permanently unusable, the classes are told apart only on read
+        for (Class<?> c : classes) {
+            idPerClass.remove(c);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the class has been registered, whether or not it has a usable identifier
+     */
+    public static boolean isRegistered(Class<?> type) {
+        Class<?>[] classes = classesPerId.get(computeClassId(type.getName()));
+        return classes != null && Arrays.asList(classes).contains(type);
+    }
+
+    /**
+     * Returns the identifier of a registered class, or -1
+     */
+    public static int getClassId(Class<?> type) {
+        Integer id = idPerClass.get(type);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the class registered with the supplied identifier and class name hash, or null
+     */
+    public static Class<?> getClass(int id, int nameHash) {
+        Class<?>[] classes = classesPerId.get(id);
+        if (classes == null) {
+            return null;
+        }
+        for (Class<?> c : classes) {
+            if (computeNameHash(c.getName()) == nameHash) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers the classes listed in a file written by {@link #save(Path)}. Classes that can
+     * not be loaded are skipped
+     */
+    public static void load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        for (String className : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (className.isEmpty()) {
+                continue;
+            }
+            try {
+                register(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                // the type is no longer available, state referencing it can not be read anyway
+            }
+        }
+    }
+
+    /**
+     * Writes the names of all registered classes to a file, one per line
+     */
+    public static synchronized void save(Path file) throws IOException {
+        List<String> classNames = new ArrayList<>();
+        for (Class<?>[] classes : classesPerId.values()) {
+            for (Class<?> c : classes) {
+                classNames.add(c.getName());
+            }
+        }
+        Collections.sort(classNames);
+        Files.write(file, classNames, StandardCharsets.UTF_8);
+    }
+
+    static boolean isDictionaryClassId(int id) {
+        return id >= MIN_CLASS_ID;
+    }
+
+    /**
+     * 32 bit FNV-1a hash of the class name, folded into the dictionary identifier range
+     */
+    static int computeClassId(String className) {
+        int hash = 0x811c9dc5;
+        for (byte b : className.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return MIN_CLASS_ID | (hash & CLASS_ID_MASK);
+    }
+
+    /**
+     * Hash of the class name written after the identifier, independent of the identifier hash
+     */
+    static int computeNameHash(String className) {
+        return className.hashCode();
+    }
+
+    /**
+     * Class resolver that writes the dictionary identifier of registered classes, when enabled,
+     * followed by the class name hash, and falls back to the default KRYO encoding, by
+     * registration or by name, for other classes. Dictionary identifiers are always accepted on
+     * read, so nodes that do not write them can still read state serialized by nodes that do
+     */
+    static final class DictionaryClassResolver extends DefaultClassResolver {
+
+        private final boolean writeClassIds;
+
+        DictionaryClassResolver(boolean writeClassIds) {
+            this.writeClassIds = writeClassIds;
+        }
+
+        @Override
+        public Registration writeClass(Output output, @SuppressWarnings("rawtypes") Class type) {
+            if (!this.writeClassIds || type == null) {
+                return super.writeClass(output, type);
+            }
+            Registration registration = getRegistration(type);
+            if (registration != null && registration.getId() != NAME) {
+                // explicit KRYO registrations take precedence
+                return super.writeClass(output, type);
+            }
+            int id = getClassId(type);
+            if (id < 0) {
+                return super.writeClass(output, type);
+            }
+            output.writeVarInt(id + 2, true);
+            output.writeInt(computeNameHash(type.getName()));
+            return this.kryo.getRegistration(type);
+        }
+
+        @Override
+        public Registration readClass(Input input) {
+            int classId = input.readVarInt(true);
+            switch (classId) {
+            case Kryo.NULL:
+                return null;
+            case NAME + 2:
+                return readName(input);
+            default:
+                break;
+            }
+
+            int id = classId - 2;
+            Registration registration = this.idToRegistration.get(id);
+            if (registration != null) {
+                return registration;
+            }
+            if (!isDictionaryClassId(id)) {
+                throw new KryoException("Encountered unregistered class ID: " + id);
+            }
+            int nameHash = input.readInt();
+            Class<?> type = KryoClassDictionary.getClass(id, nameHash);
+            if (type == null) {
+                throw new KryoException(String.format(
+                        "Encountered class ID not in dictionary: %d, name hash: %d."
+                                + " The serialized type must be registered on this host",
+                        id, nameHash));
+            }
+            return this.kryo.getRegistration(type);
+        }
+    }
+}
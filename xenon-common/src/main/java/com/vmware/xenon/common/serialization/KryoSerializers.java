@@ -39,23 +39,40 @@ import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.CollectionSerializer;
 import com.esotericsoftware.kryo.serializers.MapSerializer;
 import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
 
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
 import com.vmware.xenon.common.Utils;
 
 public final class KryoSerializers {
     private static final String PROPERTY_KRYO_HANDLE_BUILTIN_COLLECTIONS
             = Utils.PROPERTY_NAME_PREFIX + "kryo.handleBuiltInCollections";
 
+    /**
+     * When enabled, types registered in the {@link KryoClassDictionary} are serialized with their
+     * compact dictionary identifier instead of their class name. All nodes reading the serialized
+     * state, including the document index, must run a version that understands the identifiers
+     * and start the services of the serialized types
+     */
+    private static final String PROPERTY_KRYO_USE_CLASS_DICTIONARY
+            = Utils.PROPERTY_NAME_PREFIX + "kryo.useClassDictionary";
+
     private static boolean KRYO_HANDLE_BUILTIN_COLLECTIONS = true;
 
+    private static boolean KRYO_USE_CLASS_DICTIONARY = false;
+
     static {
         String v = System.getProperty(PROPERTY_KRYO_HANDLE_BUILTIN_COLLECTIONS);
         if (v != null) {
             KRYO_HANDLE_BUILTIN_COLLECTIONS = Boolean.valueOf(v);
         }
+        v = System.getProperty(PROPERTY_KRYO_USE_CLASS_DICTIONARY);
+        if (v != null) {
+            KRYO_USE_CLASS_DICTIONARY = Boolean.valueOf(v);
+        }
     }
 
 
@@ -92,8 +109,21 @@ public final class KryoSerializers {
     private static final int DEFAULT_BUFFER_SIZE_BYTES = 4096;
     private static final BufferThreadLocal bufferPerThread = new BufferThreadLocal();
 
+    /**
+     * Returns true if types registered in the {@link KryoClassDictionary} are serialized with
+     * their dictionary identifier
+     */
+    public static boolean isClassDictionaryEnabled() {
+        return KRYO_USE_CLASS_DICTIONARY;
+    }
+
     public static Kryo create(boolean isObjectSerializer) {
-        Kryo k = new Kryo();
+        return create(isObjectSerializer, KRYO_USE_CLASS_DICTIONARY);
+    }
+
+    static Kryo create(boolean isObjectSerializer, boolean useClassDictionary) {
+        Kryo k = new Kryo(new KryoClassDictionary.DictionaryClassResolver(useClassDictionary),
+                new MapReferenceResolver());
         // handle classes with missing default constructors
         k.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
         // supports addition of fields if the @since annotation is used
@@ -107,6 +137,8 @@ public final class KryoSerializers {
         k.addDefaultSerializer(URI.class, URISerializer.INSTANCE);
 
         k.addDefaultSerializer(ByteBuffer.class, ByteBufferSerializer.INSTANCE);
+        // write time series bins in the map layout read by older versions
+        k.addDefaultSerializer(TimeSeriesStats.class, TimeSeriesStatsSerializer.class);
 
         if (KRYO_HANDLE_BUILTIN_COLLECTIONS) {
             configureJdkCollections(k);
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
+
+/**
+ * Writes the bins of a {@link TimeSeriesStats} as a {@link ConcurrentSkipListMap}, the map type
+ * used before the bins became a read only view over primitive arrays. The view class is never
+ * written, so nodes running an older version can read the time series
+ */
+public final class TimeSeriesStatsSerializer extends VersionFieldSerializer<TimeSeriesStats> {
+    private static final String FIELD_TYPE_VERSION = "typeVersion";
+    private static final String FIELD_NAME_BINS = "bins";
+    private int superTypeVersion;
+
+    private int indexBins = -1;
+
+    public TimeSeriesStatsSerializer(Kryo kryo, Class<?> type) {
+        super(kryo, type);
+        findFields();
+    }
+
+    private void findFields() {
+        try {
+            Field versionField = VersionFieldSerializer.class.getDeclaredField(FIELD_TYPE_VERSION);
+            versionField.setAccessible(true);
+            this.superTypeVersion = (int) versionField.get(this);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+
+        CachedField<?>[] fields = getFields();
+        for (int i = 0, n = fields.length; i < n; i++) {
+            Field theField = fields[i].getField();
+            if (theField.getDeclaringClass() == TimeSeriesStats.class
+                    && theField.getName().equals(FIELD_NAME_BINS)) {
+                this.indexBins = i;
+            }
+        }
+    }
+
+    /**
+     * Copied from the parent class. Keep it in sync.
+     */
+    @Override
+    public void write(Kryo kryo, Output output, TimeSeriesStats object) {
+        if (this.indexBins < 0 || object.bins == null
+                || object.bins instanceof ConcurrentSkipListMap) {
+            super.write(kryo, output, object);
+            return;
+        }
+
+        // serialize the bins field from a template holding a copy of the bins
+        TimeSeriesStats template = new TimeSeriesStats();
+        template.bins = new ConcurrentSkipListMap<>(object.bins);
+
+        CachedField<?>[] fields = getFields();
+        // Write type version.
+        output.writeVarInt(this.superTypeVersion, true);
+
+        // Write fields.
+        for (int i = 0, n = fields.length; i < n; i++) {
+            fields[i].write(output, i == this.indexBins ? template : object);
+        }
+    }
+}
@@ -18,6 +18,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -664,6 +665,14 @@ public class AuthorizationContextServiceHelper {
             builder.setClaims(ctx.getClaims());
             builder.setToken(ctx.getToken());
 
+            // every action gets a compiled filter, so the context is never populated again on
+            // the request path, for actions the roles do not allow
+            Map<Action, QueryFilter> queryFilterByAction = new EnumMap<>(Action.class);
+            for (Action action : Action.values()) {
+                queryFilterByAction.put(action, QueryFilter.FALSE);
+            }
+            builder.setResourceQueryFilterMap(queryFilterByAction);
+
             if (!roles.isEmpty()) {
                 Map<Action, Collection<Role>> roleListByAction = new HashMap<>(
                         Action.values().length);
@@ -679,8 +688,6 @@ public class AuthorizationContextServiceHelper {
                     }
                 }
 
-                Map<Action, QueryFilter> queryFilterByAction = new HashMap<>(
-                        Action.values().length);
                 Map<Action, Query> queryByAction = new HashMap<>(Action.values().length);
                 for (Map.Entry<Action, Collection<Role>> entry : roleListByAction.entrySet()) {
                     Query q = new Query();
@@ -710,7 +717,6 @@ public class AuthorizationContextServiceHelper {
                 }
 
                 builder.setResourceQueryMap(queryByAction);
-                builder.setResourceQueryFilterMap(queryFilterByAction);
             }
 
             AuthorizationContext newContext = builder.getResult();
@@ -97,6 +97,25 @@ public class BroadcastQueryPageService extends StatelessService {
         }
     }
 
+    /**
+     * Stops the page service, and deletes the pages of each node it merges
+     */
+    @Override
+    public void handleDelete(Operation delete) {
+        for (String pageLink : this.pageLinks) {
+            Operation op = Operation
+                    .createDelete(UriUtils.buildUri(this.getHost(), pageLink))
+                    .transferRefererFrom(delete)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            logFine("Failed to delete page %s: %s", pageLink, e.toString());
+                        }
+                    });
+            this.getHost().sendRequest(op);
+        }
+        delete.complete();
+    }
+
     private ServiceDocumentQueryResult collectPagesAndStartNewServices(List<QueryTask> responses) {
         List<ServiceDocumentQueryResult> queryResults = new ArrayList<>();
         List<String> nextPageLinks = new ArrayList<>();
@@ -122,11 +141,13 @@ public class BroadcastQueryPageService extends StatelessService {
             }
         }
 
-        boolean isAscOrder = this.spec.sortOrder == null
-                || this.spec.sortOrder == QueryTask.QuerySpecification.SortOrder.ASC;
+        QueryTask.QuerySpecification mergeSpec = new QueryTask.QuerySpecification();
+        mergeSpec.options = options;
+        mergeSpec.sortTerm = this.spec.sortTerm;
+        mergeSpec.sortOrder = this.spec.sortOrder;
+        mergeSpec.additionalSortTerms = this.spec.additionalSortTerms;
         ServiceDocumentQueryResult mergeResults = QueryTaskUtils.mergeQueryResults(queryResults,
-                isAscOrder,
-                options);
+                mergeSpec);
 
         if (!nextPageLinks.isEmpty()) {
             mergeResults.nextPageLink = startNewService(nextPageLinks);
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.vmware.xenon.common.FNVHash;
+import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+
+/**
+ * Internal only, immutable owner selection ring of the available nodes of a node group, built by
+ * the {@link ConsistentHashingNodeSelectorService} on each node group state change.
+ *
+ * Each node is placed on the ring at {@link #VIRTUAL_NODE_COUNT} points, hashed from its id, so
+ * keys are balanced across nodes and only the keys of a joining or leaving node move. A key is
+ * owned by the node of the first point at or after the key hash, and replicated to the next
+ * distinct nodes on the ring. The id of an available node selects that node as owner, so
+ * requests can be forwarded to a specific peer. Lookups are a binary search over a sorted array,
+ * cheap enough to not be memoized.
+ *
+ * In legacy mode, the default, nodes are instead ordered by the squared difference between the
+ * node id hash and the key hash, the assignment used by earlier versions. All nodes in a group
+ * must use the same mode.
+ */
+final class ConsistentHashRing {
+
+    static final int VIRTUAL_NODE_COUNT = 64;
+
+    /**
+     * Owner and replica nodes selected for a key. The selected nodes can not be modified
+     */
+    static final class Selection {
+        final NodeState owner;
+        final boolean isLocalHostOwner;
+        final Collection<NodeState> selectedNodes;
+
+        Selection(NodeState owner, boolean isLocalHostOwner, Collection<NodeState> selectedNodes) {
+            this.owner = owner;
+            this.isLocalHostOwner = isLocalHostOwner;
+            this.selectedNodes = selectedNodes;
+        }
+    }
+
+    private static final class ClosestNNeighbours extends TreeMap<Long, NodeState> {
+        private static final long serialVersionUID = 0L;
+
+        private final int maxN;
+
+        public ClosestNNeighbours(int maxN) {
+            super(Long::compare);
+            this.maxN = maxN;
+        }
+
+        @Override
+        public NodeState put(Long key, NodeState value) {
+            if (size() < this.maxN) {
+                return super.put(key, value);
+            } else {
+                // only attempt to write if new key can displace one of the top N entries
+                if (comparator().compare(key, this.lastKey()) <= 0) {
+                    NodeState old = super.put(key, value);
+                    if (old == null) {
+                        // sth. was added, remove last
+                        this.remove(this.lastKey());
+                    }
+
+                    return old;
+                }
+
+                return null;
+            }
+        }
+    }
+
+    private final NodeGroupState groupState;
+
+    private final String hostId;
+
+    private final int replicaCount;
+
+    private final boolean isLegacy;
+
+    /**
+     * Available nodes, in node group iteration order
+     */
+    private final NodeState[] nodes;
+
+    private final long[] points;
+
+    private final int[] pointNodes;
+
+    ConsistentHashRing(NodeGroupState groupState, String hostId, int replicaCount,
+            boolean isLegacy) {
+        this.groupState = groupState;
+        this.hostId = hostId;
+        this.replicaCount = replicaCount;
+        this.isLegacy = isLegacy;
+
+        List<NodeState> available = new ArrayList<>(groupState.nodes.size());
+        for (NodeState m : groupState.nodes.values()) {
+            if (!NodeState.isUnAvailable(m)) {
+                available.add(m);
+            }
+        }
+        this.nodes = available.toArray(new NodeState[available.size()]);
+
+        if (isLegacy) {
+            this.points = null;
+            this.pointNodes = null;
+            return;
+        }
+
+        int pointCount = this.nodes.length * VIRTUAL_NODE_COUNT;
+        long[] hashes = new long[pointCount];
+        Integer[] order = new Integer[pointCount];
+        for (int n = 0; n < this.nodes.length; n++) {
+            long nodeHash = this.nodes[n].getNodeIdHash();
+            for (int v = 0; v < VIRTUAL_NODE_COUNT; v++) {
+                int p = n * VIRTUAL_NODE_COUNT + v;
+                hashes[p] = mix(FNVHash.compute(v, nodeHash));
+                order[p] = p;
+            }
+        }
+
+        // order by point, then by node id, so every node builds the same ring
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compare(hashes[a], hashes[b]);
+            if (c != 0) {
+                return c;
+            }
+            return this.nodes[a / VIRTUAL_NODE_COUNT].id
+                    .compareTo(this.nodes[b / VIRTUAL_NODE_COUNT].id);
+        });
+
+        this.points = new long[pointCount];
+        this.pointNodes = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            this.points[i] = hashes[order[i]];
+            this.pointNodes[i] = order[i] / VIRTUAL_NODE_COUNT;
+        }
+    }
+
+    NodeGroupState getGroupState() {
+        return this.groupState;
+    }
+
+    int getAvailableNodeCount() {
+        return this.nodes.length;
+    }
+
+    /**
+     * Returns the owner and replica nodes for the key, null if no node is available
+     */
+    Selection select(String key) {
+        if (this.nodes.length == 0) {
+            return null;
+        }
+
+        long keyHash = FNVHash.compute(key);
+        return this.isLegacy ? selectClosest(keyHash) : selectOnRing(key, mix(keyHash));
+    }
+
+    private Selection selectOnRing(String key, long keyHash) {
+        int count = Math.min(this.replicaCount, this.nodes.length);
+        int i = Arrays.binarySearch(this.points, keyHash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+
+        NodeState[] selected = new NodeState[count];
+        int selectedCount = 0;
+        NodeState keyNode = this.groupState.nodes.get(key);
+        if (keyNode != null && !NodeState.isUnAvailable(keyNode)) {
+            // a node id selects that node, as with the squared distance, which is zero
+            selected[selectedCount++] = keyNode;
+        }
+        for (int step = 0; step < this.points.length && selectedCount < count; step++) {
+            NodeState m = this.nodes[this.pointNodes[(i + step) % this.points.length]];
+            if (!contains(selected, selectedCount, m)) {
+                selected[selectedCount++] = m;
+            }
+        }
+
+        NodeState owner = selected[0];
+        return new Selection(owner, owner.id.equals(this.hostId),
+                Collections.unmodifiableList(Arrays.asList(selected)));
+    }
+
+    private Selection selectClosest(long keyHash) {
+        ClosestNNeighbours closestNodes = new ClosestNNeighbours(this.replicaCount);
+        for (NodeState m : this.nodes) {
+            long distance = m.getNodeIdHash() - keyHash;
+            distance *= distance;
+            // We assume first key (smallest) will be one with closest distance. The hashing
+            // function can return negative numbers however, so a distance of zero (closest) will
+            // not be the first key. Take the absolute value to cover that case and create a logical
+            // ring
+            distance = Math.abs(distance);
+            closestNodes.put(distance, m);
+        }
+
+        NodeState owner = closestNodes.firstEntry().getValue();
+        return new Selection(owner, owner.id.equals(this.hostId),
+                Collections.unmodifiableList(new ArrayList<>(closestNodes.values())));
+    }
+
+    /**
+     * Spreads the bits of an FNV hash, which for similar inputs differ mostly in the low bits,
+     * so ring points and keys are uniformly distributed
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean contains(NodeState[] selected, int count, NodeState m) {
+        for (int i = 0; i < count; i++) {
+            if (selected[i] == m) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -15,14 +15,12 @@ package com.vmware.xenon.services.common;
 
 import java.net.URI;
 import java.util.Collection;
-import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
-import com.vmware.xenon.common.FNVHash;
 import com.vmware.xenon.common.NodeSelectorService;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest.ForwardingOption;
 import com.vmware.xenon.common.NodeSelectorState;
@@ -47,6 +45,15 @@ import com.vmware.xenon.services.common.NodeGroupService.UpdateQuorumRequest;
 public class ConsistentHashingNodeSelectorService extends StatelessService implements
         NodeSelectorService {
 
+    /**
+     * Selects owners with the virtual node ring, instead of the squared difference between the
+     * key and node id hashes used by default. The ring assigns different owners to most keys,
+     * so it must be enabled on all nodes of a node group at once, and owned documents move to
+     * their new owners through synchronization
+     */
+    public static final String PROPERTY_NAME_RING_OWNER_SELECTION = Utils.PROPERTY_NAME_PREFIX
+            + "ConsistentHashingNodeSelectorService.isRingOwnerSelectionEnabled";
+
     private long operationQueueLimit = Service.OPERATION_QUEUE_DEFAULT_LIMIT;
     private AtomicLong pendingOperationCount = new AtomicLong();
     private ConcurrentLinkedQueue<SelectAndForwardRequest> pendingRequestQueue = new ConcurrentLinkedQueue<>();
@@ -65,36 +72,11 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
     private boolean isNodeGroupConverged;
     private int synchQuorumWarningCount;
 
-    private static final class ClosestNNeighbours extends TreeMap<Long, NodeState> {
-        private static final long serialVersionUID = 0L;
+    // Owner selection ring of the cached node group state, rebuilt when the state changes
+    private volatile ConsistentHashRing ring;
 
-        private final int maxN;
-
-        public ClosestNNeighbours(int maxN) {
-            super(Long::compare);
-            this.maxN = maxN;
-        }
-
-        @Override
-        public NodeState put(Long key, NodeState value) {
-            if (size() < this.maxN) {
-                return super.put(key, value);
-            } else {
-                // only attempt to write if new key can displace one of the top N entries
-                if (comparator().compare(key, this.lastKey()) <= 0) {
-                    NodeState old = super.put(key, value);
-                    if (old == null) {
-                        // sth. was added, remove last
-                        this.remove(this.lastKey());
-                    }
-
-                    return old;
-                }
-
-                return null;
-            }
-        }
-    }
+    private final boolean isLegacyOwnerSelectionEnabled = !Boolean
+            .getBoolean(PROPERTY_NAME_RING_OWNER_SELECTION);
 
     public ConsistentHashingNodeSelectorService() {
         super(NodeSelectorState.class);
@@ -293,8 +275,9 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
     }
 
     /**
-     * Uses the squared difference between the key and the server id of each member node to select a
-     * node. Both the key and the nodes are hashed
+     * Uses consistent hashing over the available member nodes to select the owner of the key,
+     * with the legacy assignment unless {@link #PROPERTY_NAME_RING_OWNER_SELECTION} is set.
+     * See {@link ConsistentHashRing}
      */
     private void selectAndForward(SelectAndForwardRequest body, Operation op,
             NodeGroupState localState) {
@@ -376,43 +359,38 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             return;
         }
 
-        int neighbourCount = 1;
-        if (this.cachedState.replicationFactor != null) {
-            neighbourCount = this.cachedState.replicationFactor.intValue();
+        ConsistentHashRing ring = getRing(localState);
+        availableNodes = ring.getAvailableNodeCount();
+        response.availableNodeCount = availableNodes;
+        if (availableNodes == 0 || availableNodes < quorum) {
+            op.fail(new IllegalStateException("Available nodes: " + availableNodes + ", quorum:" + quorum));
+            return;
         }
 
-        ClosestNNeighbours closestNodes = new ClosestNNeighbours(neighbourCount);
-
-        long keyHash = FNVHash.compute(response.key);
-        for (NodeState m : localState.nodes.values()) {
-            if (NodeState.isUnAvailable(m)) {
-                availableNodes--;
-                continue;
-            }
-
-            response.availableNodeCount++;
+        ConsistentHashRing.Selection selection = ring.select(response.key);
+        response.ownerNodeId = selection.owner.id;
+        response.isLocalHostOwner = selection.isLocalHostOwner;
+        response.ownerNodeGroupReference = selection.owner.groupReference;
+        response.selectedNodes = selection.selectedNodes;
+        response.membershipUpdateTimeMicros = localState.membershipUpdateTimeMicros;
+    }
 
-            long distance = m.getNodeIdHash() - keyHash;
-            distance *= distance;
-            // We assume first key (smallest) will be one with closest distance. The hashing
-            // function can return negative numbers however, so a distance of zero (closest) will
-            // not be the first key. Take the absolute value to cover that case and create a logical
-            // ring
-            distance = Math.abs(distance);
-            closestNodes.put(distance, m);
+    private ConsistentHashRing getRing(NodeGroupState localState) {
+        ConsistentHashRing ring = this.ring;
+        if (ring == null || ring.getGroupState() != localState) {
+            ring = createRing(localState);
+            this.ring = ring;
         }
+        return ring;
+    }
 
-        if (availableNodes < quorum) {
-            op.fail(new IllegalStateException("Available nodes: " + availableNodes + ", quorum:" + quorum));
-            return;
+    private ConsistentHashRing createRing(NodeGroupState groupState) {
+        int neighbourCount = 1;
+        if (this.cachedState.replicationFactor != null) {
+            neighbourCount = this.cachedState.replicationFactor.intValue();
         }
-
-        NodeState closest = closestNodes.firstEntry().getValue();
-        response.ownerNodeId = closest.id;
-        response.isLocalHostOwner = response.ownerNodeId.equals(getHost().getId());
-        response.ownerNodeGroupReference = closest.groupReference;
-        response.selectedNodes = closestNodes.values();
-        response.membershipUpdateTimeMicros = localState.membershipUpdateTimeMicros;
+        return new ConsistentHashRing(groupState, getHost().getId(), neighbourCount,
+                this.isLegacyOwnerSelectionEnabled);
     }
 
     private void broadcast(Operation op, SelectAndForwardRequest req,
@@ -732,6 +710,7 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
                 this.cachedState.documentUpdateTimeMicros = now;
                 this.cachedState.membershipUpdateTimeMicros = ngs.membershipUpdateTimeMicros;
                 this.cachedGroupState = ngs;
+                this.ring = createRing(ngs);
                 // every time we update cached state, request convergence check
                 this.isNodeGroupConverged = false;
                 this.isSynchronizationRequired = true;
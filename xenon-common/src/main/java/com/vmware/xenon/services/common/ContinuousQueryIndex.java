@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.xenon.common.ReflectionUtils;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QueryTerm;
+
+/**
+ * Inverted index over the filters of active continuous queries. Each conjunction of a filter, in
+ * disjunctive normal form, is indexed under one of its (property, value) equality terms, so a
+ * document is only evaluated against the queries with a conjunction it could satisfy. Queries
+ * with a conjunction that has no equality term are evaluated against every document.
+ *
+ * Lookups use an immutable snapshot, replaced when a query is added or removed, so concurrent
+ * index updates do not contend.
+ */
+final class ContinuousQueryIndex {
+
+    private static final class Snapshot {
+        /**
+         * Property name to property value to the queries indexed under that term
+         */
+        final Map<String, Map<String, List<QueryTask>>> postings;
+
+        /**
+         * Queries evaluated against every document
+         */
+        final List<QueryTask> unindexed;
+
+        Snapshot(Map<String, Map<String, List<QueryTask>>> postings, List<QueryTask> unindexed) {
+            this.postings = postings;
+            this.unindexed = unindexed;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(),
+            Collections.emptyList());
+
+    private final Map<String, QueryTask> tasks = new LinkedHashMap<>();
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    synchronized void put(QueryTask task) {
+        this.tasks.put(task.documentSelfLink, task);
+        rebuild();
+    }
+
+    synchronized QueryTask remove(String taskLink) {
+        QueryTask task = this.tasks.remove(taskLink);
+        if (task != null) {
+            rebuild();
+        }
+        return task;
+    }
+
+    boolean isEmpty() {
+        Snapshot s = this.snapshot;
+        return s.postings.isEmpty() && s.unindexed.isEmpty();
+    }
+
+    synchronized int size() {
+        return this.tasks.size();
+    }
+
+    private void rebuild() {
+        Map<String, Map<String, List<QueryTask>>> postings = new HashMap<>();
+        List<QueryTask> unindexed = new ArrayList<>();
+        for (QueryTask task : this.tasks.values()) {
+            List<List<QueryTerm>> dispatchTerms = task.querySpec.context.filter.getDispatchTerms();
+            if (dispatchTerms == null || dispatchTerms.isEmpty()
+                    || dispatchTerms.stream().anyMatch(List::isEmpty)) {
+                unindexed.add(task);
+                continue;
+            }
+
+            for (List<QueryTerm> terms : dispatchTerms) {
+                // index the conjunction under its most selective term, so far
+                List<QueryTask> anchor = null;
+                for (QueryTerm term : terms) {
+                    List<QueryTask> posting = postings
+                            .computeIfAbsent(term.propertyName, (k) -> new HashMap<>())
+                            .computeIfAbsent(term.matchValue, (k) -> new ArrayList<>());
+                    if (anchor == null || posting.size() < anchor.size()) {
+                        anchor = posting;
+                    }
+                }
+                if (!anchor.contains(task)) {
+                    anchor.add(task);
+                }
+            }
+        }
+
+        // drop terms that did not end up anchoring any query
+        postings.values().forEach((values) -> values.values().removeIf(List::isEmpty));
+        postings.values().removeIf(Map::isEmpty);
+        this.snapshot = new Snapshot(postings, unindexed);
+    }
+
+    /**
+     * Returns the queries the document could match. The caller must still evaluate each
+     * query filter
+     */
+    Set<QueryTask> getCandidates(ServiceDocument document, ServiceDocumentDescription description) {
+        Snapshot s = this.snapshot;
+        Set<QueryTask> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        candidates.addAll(s.unindexed);
+        if (description == null) {
+            return candidates;
+        }
+
+        for (Map.Entry<String, Map<String, List<QueryTask>>> e : s.postings.entrySet()) {
+            PropertyDescription pd = description.propertyDescriptions.get(e.getKey());
+            if (pd == null) {
+                continue;
+            }
+            String value = QuerySpecification.toMatchValue(
+                    ReflectionUtils.getPropertyValue(pd, document));
+            if (value == null) {
+                continue;
+            }
+            List<QueryTask> posting = e.getValue().get(value);
+            if (posting != null) {
+                candidates.addAll(posting);
+            }
+        }
+        return candidates;
+    }
+}
@@ -24,6 +24,7 @@ import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.StoredFieldVisitor;
 
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.StoredStateCompression;
 
 /**
  * Copy of lucene class - the only change is that the doc field is resetable.
@@ -42,6 +43,13 @@ final class DocumentStoredFieldVisitor extends StoredFieldVisitor {
     public Long documentExpirationTimeMicros;
     public byte[] binarySerializedState;
     public String jsonSerializedState;
+
+    /**
+     * Time spent decompressing the binary serialized state during the last load
+     */
+    public long storedStateDecodeNanos;
+
+    private LuceneStoredStateCodec storedStateCodec;
     private Map<String, String> links;
 
     private int loadedFields;
@@ -53,6 +61,15 @@ final class DocumentStoredFieldVisitor extends StoredFieldVisitor {
     public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
         if (LuceneDocumentIndexService.LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE
                 .equals(fieldInfo.name)) {
+            if (LuceneStoredStateCodec.isEncoded(value)) {
+                long startNanos = System.nanoTime();
+                if (this.storedStateCodec == null) {
+                    this.storedStateCodec = new LuceneStoredStateCodec(
+                            StoredStateCompression.NONE);
+                }
+                value = this.storedStateCodec.decode(value);
+                this.storedStateDecodeNanos = System.nanoTime() - startNanos;
+            }
             this.binarySerializedState = value;
         }
         this.loadedFields++;
@@ -128,6 +145,7 @@ final class DocumentStoredFieldVisitor extends StoredFieldVisitor {
     public void reset(String field) {
         this.fieldsToAdd = Collections.singleton(field);
         this.loadedFields = 0;
+        this.storedStateDecodeNanos = 0;
     }
 
     public void reset(Set<String> fields) {
@@ -143,6 +161,7 @@ final class DocumentStoredFieldVisitor extends StoredFieldVisitor {
         this.documentVersion = 0;
         this.binarySerializedState = null;
         this.jsonSerializedState = null;
+        this.storedStateDecodeNanos = 0;
 
         if (this.links != null) {
             this.links.clear();
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.NumericUtils;
+
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
+import com.vmware.xenon.services.common.QueryTask.AggregationTerm;
+import com.vmware.xenon.services.common.QueryTask.AggregationTerm.AggregationType;
+
+/**
+ * Collects the values of the aggregation terms from the doc values of the matching documents,
+ * without loading stored fields. Numeric properties are read from their numeric doc values,
+ * other properties from the sorted doc values added for {@code PropertyIndexingOption#SORT}.
+ *
+ * Only the highest matching version of each document is kept. The caller removes the documents
+ * for which a newer version exists in the index before computing the aggregations.
+ */
+final class LuceneAggregationCollector extends SimpleCollector {
+
+    /**
+     * Aggregation term values of the highest matching version of a document
+     */
+    private static final class DocumentValues {
+        final long version;
+        final Object[] values;
+
+        DocumentValues(long version, Object[] values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    private final List<AggregationTerm> terms;
+
+    private final Map<String, DocumentValues> valuesPerLink = new HashMap<>();
+
+    private SortedDocValues selfLinks;
+    private NumericDocValues versions;
+    private final NumericDocValues[] numericValues;
+    private final Bits[] numericDocsWithField;
+    private final SortedDocValues[] sortedValues;
+
+    LuceneAggregationCollector(List<AggregationTerm> terms) {
+        this.terms = terms;
+        this.numericValues = new NumericDocValues[terms.size()];
+        this.numericDocsWithField = new Bits[terms.size()];
+        this.sortedValues = new SortedDocValues[terms.size()];
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        this.selfLinks = reader.getSortedDocValues(LuceneIndexDocumentHelper
+                .createSortFieldPropertyName(ServiceDocument.FIELD_NAME_SELF_LINK));
+        this.versions = reader.getNumericDocValues(ServiceDocument.FIELD_NAME_VERSION);
+        for (int i = 0; i < this.terms.size(); i++) {
+            AggregationTerm term = this.terms.get(i);
+            if (term.isNumeric()) {
+                this.numericValues[i] = reader.getNumericDocValues(term.propertyName);
+                this.numericDocsWithField[i] = reader.getDocsWithField(term.propertyName);
+                this.sortedValues[i] = null;
+            } else {
+                this.numericValues[i] = null;
+                this.numericDocsWithField[i] = null;
+                this.sortedValues[i] = reader.getSortedDocValues(
+                        LuceneIndexDocumentHelper.createSortFieldPropertyName(term.propertyName));
+            }
+        }
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (this.selfLinks == null || this.versions == null) {
+            return;
+        }
+        int linkOrd = this.selfLinks.getOrd(doc);
+        if (linkOrd < 0) {
+            return;
+        }
+        String link = this.selfLinks.lookupOrd(linkOrd).utf8ToString();
+        long version = this.versions.get(doc);
+        DocumentValues current = this.valuesPerLink.get(link);
+        if (current != null && current.version >= version) {
+            return;
+        }
+
+        Object[] values = new Object[this.terms.size()];
+        for (int i = 0; i < values.length; i++) {
+            if (this.numericValues[i] != null) {
+                if (this.numericDocsWithField[i] != null && this.numericDocsWithField[i].get(doc)) {
+                    values[i] = this.numericValues[i].get(doc);
+                }
+            } else if (this.sortedValues[i] != null) {
+                int ord = this.sortedValues[i].getOrd(doc);
+                if (ord >= 0) {
+                    values[i] = this.sortedValues[i].lookupOrd(ord).utf8ToString();
+                }
+            }
+        }
+        this.valuesPerLink.put(link, new DocumentValues(version, values));
+    }
+
+    Collection<String> getDocumentLinks() {
+        return new ArrayList<>(this.valuesPerLink.keySet());
+    }
+
+    long getVersion(String link) {
+        return this.valuesPerLink.get(link).version;
+    }
+
+    void removeDocument(String link) {
+        this.valuesPerLink.remove(link);
+    }
+
+    long getDocumentCount() {
+        return this.valuesPerLink.size();
+    }
+
+    Map<String, AggregationResult> getAggregations() {
+        Map<String, AggregationResult> aggregations = new HashMap<>();
+        for (int i = 0; i < this.terms.size(); i++) {
+            AggregationTerm term = this.terms.get(i);
+            AggregationResult result = new AggregationResult();
+            if (term.type == AggregationType.TERMS) {
+                result.termCounts = new HashMap<>();
+            }
+
+            double sum = 0;
+            for (DocumentValues documentValues : this.valuesPerLink.values()) {
+                Object value = documentValues.values[i];
+                if (value == null) {
+                    continue;
+                }
+                result.count++;
+                switch (term.type) {
+                case SUM:
+                case AVG:
+                    sum += toDouble(term, value);
+                    break;
+                case MIN:
+                    double min = toDouble(term, value);
+                    result.min = result.min == null ? min : Math.min(result.min, min);
+                    break;
+                case MAX:
+                    double max = toDouble(term, value);
+                    result.max = result.max == null ? max : Math.max(result.max, max);
+                    break;
+                case TERMS:
+                    result.termCounts.merge(toTerm(term, value), 1L, Long::sum);
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            if (term.type == AggregationType.SUM || term.type == AggregationType.AVG) {
+                result.sum = sum;
+            }
+            if (term.type == AggregationType.AVG && result.count > 0) {
+                result.average = sum / result.count;
+            }
+            aggregations.put(term.getResultName(), result);
+        }
+        return aggregations;
+    }
+
+    private static double toDouble(AggregationTerm term, Object value) {
+        long raw = (Long) value;
+        if (term.propertyType == TypeName.DOUBLE) {
+            return NumericUtils.sortableLongToDouble(raw);
+        }
+        return raw;
+    }
+
+    private static String toTerm(AggregationTerm term, Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (term.propertyType == TypeName.DOUBLE) {
+            return Double.toString(NumericUtils.sortableLongToDouble((Long) value));
+        }
+        return Long.toString((Long) value);
+    }
+}
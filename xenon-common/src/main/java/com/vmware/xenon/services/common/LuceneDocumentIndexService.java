@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -47,6 +48,7 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 import com.google.gson.JsonElement;
@@ -64,6 +66,9 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.SnapshotDeletionPolicy;
@@ -78,6 +83,7 @@ import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.grouping.GroupDocs;
@@ -153,6 +159,17 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final int DEFAULT_METADATA_UPDATE_MAX_QUEUE_DEPTH = 10000;
 
+    public static final int DEFAULT_WRITE_AHEAD_LOG_SEGMENT_SIZE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Version cache memory budget, used when no service memory limit is set for the index
+     */
+    public static final long DEFAULT_VERSION_CACHE_MEMORY_LIMIT_BYTES = 16 * 1024 * 1024;
+
+    public static final String FILE_PATH_WRITE_AHEAD_LOG_SUFFIX = "-wal";
+
+    public static final String FILE_PATH_SHARD_SUFFIX = "-shard-";
+
     private static final String DOCUMENTS_WITHOUT_RESULTS = "DocumentsWithoutResults";
 
     protected String indexDirectory;
@@ -173,6 +190,44 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private static int metadataUpdateMaxQueueDepth = DEFAULT_METADATA_UPDATE_MAX_QUEUE_DEPTH;
 
+    private static boolean writeAheadLogEnabled = false;
+
+    private static long writeAheadLogSyncIntervalMicros = 0;
+
+    private static int writeAheadLogSegmentSizeBytes = DEFAULT_WRITE_AHEAD_LOG_SEGMENT_SIZE_BYTES;
+
+    private static int indexShardCount = 1;
+
+    private static int indexUpdateBatchSize = 1;
+
+    private static long searcherMaxStalenessMicros = 0;
+
+    private static boolean continuousQueryNotificationBatchingEnabled = false;
+
+    private static StoredStateCompression indexStoredStateCompression = StoredStateCompression.NONE;
+
+    /**
+     * Compression applied to the serialized document state stored with each document version
+     */
+    public enum StoredStateCompression {
+        /**
+         * Serialized state is stored as is, relying on the block compression of the index
+         * stored fields
+         */
+        NONE,
+
+        /**
+         * LZ4 compression, with fast compression and decompression
+         */
+        FAST,
+
+        /**
+         * DEFLATE compression, with a higher compression ratio but slower compression and
+         * decompression
+         */
+        HIGH
+    }
+
     public static void setImplicitQueryResultLimit(int limit) {
         queryResultLimit = limit;
     }
@@ -237,6 +292,127 @@ public class LuceneDocumentIndexService extends StatelessService {
         return metadataUpdateMaxQueueDepth;
     }
 
+    /**
+     * Enables the write ahead log for durable index services started after this call. Every
+     * index update is appended to the log before its operation completes, and replayed on
+     * start if the host stopped before the next Lucene commit
+     */
+    public static void setWriteAheadLogEnabled(boolean enabled) {
+        writeAheadLogEnabled = enabled;
+    }
+
+    public static boolean isWriteAheadLogEnabled() {
+        return writeAheadLogEnabled;
+    }
+
+    /**
+     * Sets the maximum time appended records may stay unsynced. Zero (the default) syncs
+     * before every update completes, with concurrent updates sharing a single sync. A positive
+     * value bounds data loss on OS or power failure to approximately this interval
+     */
+    public static void setWriteAheadLogSyncIntervalMicros(long interval) {
+        writeAheadLogSyncIntervalMicros = interval;
+    }
+
+    public static long getWriteAheadLogSyncIntervalMicros() {
+        return writeAheadLogSyncIntervalMicros;
+    }
+
+    public static void setWriteAheadLogSegmentSizeBytes(int size) {
+        writeAheadLogSegmentSizeBytes = size;
+    }
+
+    public static int getWriteAheadLogSegmentSizeBytes() {
+        return writeAheadLogSegmentSizeBytes;
+    }
+
+    /**
+     * Sets the number of Lucene indexes (shards) used by index services started after this call.
+     * Documents are partitioned across shards by a hash of their kind, and each shard has its
+     * own writer, flush and merge cycle, and commit. Queries search all shards, except paginated
+     * queries that require specific document kinds, which only open the shards for those kinds.
+     * The update queue, executors and locks, and the searcher of non paginated queries, are
+     * shared by all shards, so shards do not isolate the load of one kind from another.
+     *
+     * The first shard uses the directory of an unsharded index. The shard count of an existing
+     * index must not change, and backup and restore are only supported with a single shard
+     */
+    public static void setIndexShardCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        indexShardCount = count;
+    }
+
+    public static int getIndexShardCount() {
+        return indexShardCount;
+    }
+
+    /**
+     * Sets the maximum number of queued index updates added to the index with a single
+     * {@link IndexWriter#addDocuments(Iterable)} call. Batches are formed from the updates
+     * already queued when an update thread runs, so a batch never waits for more updates to
+     * arrive. A value of one (the default) indexes each update individually. Index services
+     * that override {@link #updateIndex(Operation)} always index each update individually
+     */
+    public static void setIndexUpdateBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        indexUpdateBatchSize = size;
+    }
+
+    public static int getIndexUpdateBatchSize() {
+        return indexUpdateBatchSize;
+    }
+
+    /**
+     * Sets the maximum age of the shared index searcher for queries across many documents. Such
+     * queries only refresh the searcher once it is older than this value, and index services
+     * started while this value is positive also refresh it in the background at this interval.
+     * Queries for a specific document link always observe prior updates to that link. Zero (the
+     * default) refreshes the searcher before any query that may observe an index update
+     */
+    public static void setSearcherMaxStalenessMicros(long staleness) {
+        searcherMaxStalenessMicros = staleness;
+    }
+
+    public static long getSearcherMaxStalenessMicros() {
+        return searcherMaxStalenessMicros;
+    }
+
+    /**
+     * Enables batching of continuous query notifications. Documents that match a continuous
+     * query while a notification for it is pending are added to that notification, so a single
+     * PATCH to the query task may carry several documents. A notification is never delayed to
+     * wait for more documents, and a document updated twice is never merged into one
+     * notification
+     */
+    public static void setContinuousQueryNotificationBatchingEnabled(boolean enabled) {
+        continuousQueryNotificationBatchingEnabled = enabled;
+    }
+
+    public static boolean isContinuousQueryNotificationBatchingEnabled() {
+        return continuousQueryNotificationBatchingEnabled;
+    }
+
+    /**
+     * Sets the compression of the serialized document state stored by index services started
+     * after this call. Each stored state records its own format, so the setting can change
+     * between restarts: state stored with a different setting, or before compression was
+     * enabled, remains readable. Small states are always stored uncompressed
+     */
+    public static void setStoredStateCompression(StoredStateCompression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("compression is required");
+        }
+        indexStoredStateCompression = compression;
+    }
+
+    public static StoredStateCompression getStoredStateCompression() {
+        return indexStoredStateCompression;
+    }
+
     static final String LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE = "binarySerializedState";
 
     static final String LUCENE_FIELD_NAME_JSON_SERIALIZED_STATE = "jsonSerializedState";
@@ -257,8 +433,14 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_GROUP_QUERY_DURATION_MICROS = "groupQueryDurationMicros";
 
+    public static final String STAT_NAME_AGGREGATE_QUERY_COUNT = "aggregateQueryCount";
+
+    public static final String STAT_NAME_AGGREGATE_QUERY_DURATION_MICROS = "aggregateQueryDurationMicros";
+
     public static final String STAT_NAME_QUERY_SINGLE_DURATION_MICROS = "querySingleDurationMicros";
 
+    public static final String STAT_NAME_QUERY_SINGLE_INLINE_DURATION_MICROS = "querySingleInlineDurationMicros";
+
     public static final String STAT_NAME_QUERY_ALL_VERSIONS_DURATION_MICROS = "queryAllVersionsDurationMicros";
 
     public static final String STAT_NAME_RESULT_PROCESSING_DURATION_MICROS = "resultProcessingDurationMicros";
@@ -267,16 +449,26 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_INDEXED_DOCUMENT_COUNT = "indexedDocumentCount";
 
+    public static final String STAT_NAME_STORED_STATE_COMPRESSION_RATIO = "storedStateCompressionRatio";
+
+    public static final String STAT_NAME_STORED_STATE_DECODE_DURATION_MICROS = "storedStateDecodeDurationMicros";
+
     public static final String STAT_NAME_FORCED_UPDATE_DOCUMENT_DELETE_COUNT = "singleVersionDocumentDeleteCount";
 
     public static final String STAT_NAME_FIELD_COUNT_PER_DOCUMENT = "fieldCountPerDocument";
 
     public static final String STAT_NAME_INDEXING_DURATION_MICROS = "indexingDurationMicros";
 
+    public static final String STAT_NAME_INDEXING_BATCH_SIZE = "indexingBatchSize";
+
     public static final String STAT_NAME_SEARCHER_UPDATE_COUNT = "indexSearcherUpdateCount";
 
     public static final String STAT_NAME_SEARCHER_REUSE_BY_DOCUMENT_KIND_COUNT = "indexSearcherReuseByDocumentKindCount";
 
+    public static final String STAT_NAME_SEARCHER_REFRESH_LAG_MICROS = "indexSearcherRefreshLagMicros";
+
+    public static final String STAT_NAME_SEARCHER_REFRESH_DURATION_MICROS = "indexSearcherRefreshDurationMicros";
+
     public static final String STAT_NAME_PAGINATED_SEARCHER_UPDATE_COUNT = "paginatedIndexSearcherUpdateCount";
 
     public static final String STAT_NAME_PAGINATED_SEARCHER_FORCE_DELETION_COUNT = "paginatedIndexSearcherForceDeletionCount";
@@ -299,6 +491,10 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_VERSION_CACHE_ENTRY_COUNT = "versionCacheEntryCount";
 
+    public static final String STAT_NAME_VERSION_CACHE_HIT_COUNT = "versionCacheHitCount";
+
+    public static final String STAT_NAME_VERSION_CACHE_EVICTION_COUNT = "versionCacheEvictionCount";
+
     public static final String STAT_NAME_MAINTENANCE_SEARCHER_REFRESH_DURATION_MICROS =
             "maintenanceSearcherRefreshDurationMicros";
 
@@ -317,6 +513,12 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_SINGLE_QUERY_BY_FACTORY_COUNT_FORMAT = "singleQueryByFactoryCount-%s";
 
+    public static final String STAT_NAME_WRITE_AHEAD_LOG_APPEND_COUNT = "writeAheadLogAppendCount";
+
+    public static final String STAT_NAME_WRITE_AHEAD_LOG_SYNC_DURATION_MICROS = "writeAheadLogSyncDurationMicros";
+
+    public static final String STAT_NAME_WRITE_AHEAD_LOG_REPLAY_COUNT = "writeAheadLogReplayCount";
+
     public static final String STAT_NAME_PREFIX_UPDATE_QUEUE_DEPTH = "updateQueueDepth";
 
     public static final String STAT_NAME_FORMAT_UPDATE_QUEUE_DEPTH = STAT_NAME_PREFIX_UPDATE_QUEUE_DEPTH + "-%s";
@@ -357,13 +559,36 @@ public class LuceneDocumentIndexService extends StatelessService {
             UPDATE_THREAD_COUNT + QUERY_THREAD_COUNT);
 
     /**
-     * Map of searchers per thread id. We do not use a ThreadLocal since we need visibility to this map
-     * from the maintenance logic
+     * Near real time searcher shared by all query threads and maintenance. Users hold a
+     * reference on its reader while they search (see {@link #acquireSearcher}), so a refresh
+     * never closes a reader that is in use. Guarded by {@link #searchSync}
      */
+    protected IndexSearcher searcher;
+
+    /**
+     * Searchers are no longer kept per thread. The map is never read or populated by the index
+     * service, and is kept only so subclasses that reference it still compile
+     *
+     * @deprecated Use {@link #searcher} instead
+     */
+    @Deprecated
     protected Map<Long, IndexSearcher> searchers = new HashMap<>();
 
+    /**
+     * Serializes searcher refreshes, so concurrent queries that need a fresh searcher open a
+     * single new reader
+     */
+    private Object searcherRefreshSync;
+
     private ThreadLocal<LuceneIndexDocumentHelper> indexDocumentHelper = ThreadLocal
-            .withInitial(LuceneIndexDocumentHelper::new);
+            .withInitial(() -> new LuceneIndexDocumentHelper(this.storedStateCompression, false));
+
+    /**
+     * Per thread document helpers for batched updates, one per document in the largest batch
+     * seen by the thread
+     */
+    private ThreadLocal<LuceneIndexDocumentHelper[]> batchIndexDocumentHelpers = ThreadLocal
+            .withInitial(() -> new LuceneIndexDocumentHelper[0]);
 
     /**
      * Searcher refresh time, per searcher (using hash code)
@@ -378,28 +603,72 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     protected IndexWriter writer = null;
 
+    /**
+     * Writers for all index shards. The first entry is the same as {@link #writer}
+     */
+    private IndexWriter[] shardWriters;
+
+    private int shardCount = 1;
+
+    private StoredStateCompression storedStateCompression = StoredStateCompression.NONE;
+
     protected Map<String, QueryTask> activeQueries = new ConcurrentHashMap<>();
 
-    private long writerUpdateTimeMicros;
+    /**
+     * Whether a subclass overrides {@link #updateIndex(Operation)}. Updates are then not
+     * batched, so each update goes through the override
+     */
+    private final boolean isUpdateIndexOverridden = isUpdateIndexOverridden(getClass());
+
+    private final ContinuousQueryIndex continuousQueryIndex = new ContinuousQueryIndex();
+
+    /**
+     * Continuous query notification, pending delivery to a query task
+     */
+    private static final class ContinuousQueryNotification {
+        final QueryTask activeTask;
+        final QueryTask patchBody;
+        final OperationContext operationContext;
+
+        ContinuousQueryNotification(QueryTask activeTask, QueryTask patchBody,
+                OperationContext operationContext) {
+            this.activeTask = activeTask;
+            this.patchBody = patchBody;
+            this.operationContext = operationContext;
+        }
+    }
+
+    private final Map<String, ContinuousQueryNotification> pendingContinuousQueryNotifications = new ConcurrentHashMap<>();
+
+    /**
+     * Latest index update time. Only increased by index updates, which do not take the search
+     * lock
+     */
+    private final AtomicLong writerUpdateTimeMicros = new AtomicLong();
 
     private long writerCreationTimeMicros;
 
     /**
-     * Time when memory pressure removed {@link #updatesPerLink} entries.
+     * Time when {@link #versionCache} entries were removed, or the cache was resized.
      */
-    private long serviceRemovalDetectedTimeMicros;
+    private volatile long serviceRemovalDetectedTimeMicros;
 
-    private final Map<String, DocumentUpdateInfo> updatesPerLink = new HashMap<>();
-    private final Map<String, Long> liveVersionsPerLink = new HashMap<>();
-    private final Map<String, Long> immutableParentLinks = new HashMap<>();
-    private final Map<String, Long> documentKindUpdateInfo = new HashMap<>();
+    private volatile LuceneVersionCache versionCache;
+    /**
+     * Highest version, per self link, that version retention must remove. Unlike
+     * {@link #versionCache}, this is pending work that must not be evicted, so it is kept in an
+     * unbounded concurrent map, drained by maintenance
+     */
+    private final ConcurrentHashMap<String, Long> liveVersionsPerLink = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> immutableParentLinks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> documentKindUpdateInfo = new ConcurrentHashMap<>();
 
     private final SortedSet<MetadataUpdateInfo> metadataUpdates =
             new TreeSet<>(Comparator.comparingLong((info) -> info.updateTimeMicros));
     private final Map<String, MetadataUpdateInfo> metadataUpdatesPerLink = new HashMap<>();
 
-    // memory pressure threshold in bytes
-    long updateMapMemoryLimit;
+    // version cache memory budget in bytes
+    long updateMapMemoryLimit = DEFAULT_VERSION_CACHE_MEMORY_LIMIT_BYTES;
 
     private Sort versionSort;
 
@@ -417,17 +686,14 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private URI uri;
 
+    private LuceneWriteAheadLog writeAheadLog;
+
     public static class MetadataUpdateInfo {
         public String selfLink;
         public String kind;
         public long updateTimeMicros;
     }
 
-    public static class DocumentUpdateInfo {
-        public long updateTimeMicros;
-        public long version;
-    }
-
     public static class PaginatedSearcherInfo {
         public long creationTimeMicros;
         public long expirationTimeMicros;
@@ -473,10 +739,49 @@ public class LuceneDocumentIndexService extends StatelessService {
         static final String KIND = Utils.buildKind(RestoreRequest.class);
     }
 
+    /**
+     * Requests the latest version, and its update time, of every document with the self link
+     * prefix and document kind. Only doc values are read, the document state is not loaded.
+     * Internal usage only, the response is a {@link DocumentVersionsResponse}
+     */
+    public static class DocumentVersionsRequest extends ServiceDocument {
+        public String selfLinkPrefix;
+        public String stateKind;
+        static final String KIND = Utils.buildKind(DocumentVersionsRequest.class);
+
+        public static DocumentVersionsRequest create(String selfLinkPrefix, String stateKind) {
+            DocumentVersionsRequest r = new DocumentVersionsRequest();
+            r.documentKind = KIND;
+            r.selfLinkPrefix = selfLinkPrefix;
+            r.stateKind = stateKind;
+            return r;
+        }
+    }
+
+    public static class DocumentVersionsResponse {
+        public List<String> documentLinks;
+        public long[] documentVersions;
+        public long[] documentUpdateTimesMicros;
+    }
+
     public static class MaintenanceRequest {
         static final String KIND = Utils.buildKind(MaintenanceRequest.class);
     }
 
+    /**
+     * Record appended to the write ahead log for every index update, and for every removal of
+     * document versions by version retention or expiration. A removal record has no document
+     */
+    public static class WriteAheadLogEntry {
+        public ServiceDocument document;
+        public ServiceDocumentDescription description;
+        public boolean forceIndexUpdate;
+        public String deletedSelfLink;
+        public String deletedKind;
+        public long deletedOldestVersion;
+        public long deletedNewestVersion;
+    }
+
     /**
      * Used for lucene commit notification.
      */
@@ -528,12 +833,14 @@ public class LuceneDocumentIndexService extends StatelessService {
                 r -> new Thread(r, getUri() + "/queries/" + Utils.getSystemNowMicrosUtc()));
         this.privateIndexingExecutor = Executors.newFixedThreadPool(UPDATE_THREAD_COUNT,
                 r -> new Thread(r, getSelfLink() + "/updates/" + Utils.getSystemNowMicrosUtc()));
+        this.shardCount = indexShardCount;
+        this.storedStateCompression = getStoredStateCompression();
 
         initializeInstance();
 
         if (isDurable()) {
             // create durable index writer
-            File directory = new File(new File(getHost().getStorageSandbox()), this.indexDirectory);
+            File directory = getShardDirectory(0);
             for (int retryCount = 0; retryCount < 2; retryCount++) {
                 try {
                     createWriter(directory, true);
@@ -548,8 +855,10 @@ public class LuceneDocumentIndexService extends StatelessService {
                     if (retryCount < 1) {
                         logWarning("Failure creating index writer: %s, will retry",
                                 Utils.toString(e));
-                        close(this.writer);
-                        archiveCorruptIndexFiles(directory);
+                        closeWriters();
+                        for (int i = 0; i < this.shardCount; i++) {
+                            archiveCorruptIndexFiles(getShardDirectory(i));
+                        }
                         continue;
                     }
                     logWarning("Failure creating index writer: %s", Utils.toString(e));
@@ -557,6 +866,16 @@ public class LuceneDocumentIndexService extends StatelessService {
                     return;
                 }
             }
+
+            if (writeAheadLogEnabled) {
+                try {
+                    openWriteAheadLog();
+                } catch (Exception e) {
+                    logWarning("Failure opening write ahead log: %s", Utils.toString(e));
+                    post.fail(e);
+                    return;
+                }
+            }
         } else {
             // create RAM based index writer
             try {
@@ -569,15 +888,207 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
 
         initializeStats();
+        scheduleSearcherRefresh();
 
         post.complete();
     }
 
+    private Path getWriteAheadLogDirectory() {
+        return new File(new File(getHost().getStorageSandbox()),
+                this.indexDirectory + FILE_PATH_WRITE_AHEAD_LOG_SUFFIX).toPath();
+    }
+
+    /**
+     * Re-indexes updates left in the write ahead log by a previous instance that did not reach
+     * a Lucene commit, commits them, then opens a new log and discards the old segments
+     */
+    private void openWriteAheadLog() throws Exception {
+        Path directory = getWriteAheadLogDirectory();
+        IndexSearcher s = new IndexSearcher(openReader(this.writer, null));
+        long[] replayCount = new long[1];
+        try {
+            long count = LuceneWriteAheadLog.replay(directory, (bb) -> {
+                if (replayWriteAheadLogEntry(s, bb)) {
+                    replayCount[0]++;
+                }
+            });
+            if (count > 0) {
+                logInfo("Replayed %d of %d write ahead log records", replayCount[0], count);
+            }
+        } finally {
+            s.getIndexReader().close();
+        }
+
+        commit(this.shardWriters);
+        LuceneWriteAheadLog wal = LuceneWriteAheadLog.open(directory,
+                writeAheadLogSegmentSizeBytes);
+        wal.truncate(wal.getSegmentId());
+        this.writeAheadLog = wal;
+        setStat(STAT_NAME_WRITE_AHEAD_LOG_REPLAY_COUNT, replayCount[0]);
+        scheduleWriteAheadLogSync();
+    }
+
+    private boolean replayWriteAheadLogEntry(IndexSearcher s, ByteBuffer bb) {
+        try {
+            WriteAheadLogEntry entry = (WriteAheadLogEntry) KryoSerializers.deserializeObject(bb);
+            if (entry.deletedSelfLink != null) {
+                // removals are idempotent, and applied in log order relative to the updates
+                deleteDocumentsFromIndex(Operation.createDelete(null), null,
+                        entry.deletedSelfLink, entry.deletedKind, entry.deletedOldestVersion,
+                        entry.deletedNewestVersion);
+                return true;
+            }
+            ServiceDocument sd = entry.document;
+            // the log is truncated after each commit, but records appended while the commit
+            // was in progress may already be in the index
+            TopDocs hits = queryIndexForVersion(sd.documentSelfLink, s, sd.documentVersion, null);
+            if (hits.totalHits > 0) {
+                return false;
+            }
+
+            UpdateIndexRequest r = new UpdateIndexRequest();
+            r.document = sd;
+            r.description = entry.description;
+            Operation post = Operation.createPost(getUri()).setBodyNoCloning(r);
+            if (entry.forceIndexUpdate) {
+                post.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE);
+            }
+            updateIndex(post);
+            return true;
+        } catch (Exception e) {
+            logWarning("Skipping write ahead log record: %s", Utils.toString(e));
+            return false;
+        }
+    }
+
+    private void scheduleWriteAheadLogSync() {
+        long interval = writeAheadLogSyncIntervalMicros;
+        if (interval <= 0) {
+            return;
+        }
+        getHost().scheduleCore(() -> {
+            LuceneWriteAheadLog wal = this.writeAheadLog;
+            if (wal == null || getHost().isStopping()) {
+                return;
+            }
+            syncWriteAheadLog(wal, Long.MAX_VALUE);
+            scheduleWriteAheadLogSync();
+        }, interval, TimeUnit.MICROSECONDS);
+    }
+
+    private void syncWriteAheadLog(LuceneWriteAheadLog wal, long position) {
+        long startNanos = System.nanoTime();
+        if (position == Long.MAX_VALUE) {
+            wal.sync();
+        } else {
+            wal.sync(position);
+        }
+        setTimeSeriesHistogramStat(STAT_NAME_WRITE_AHEAD_LOG_SYNC_DURATION_MICROS,
+                AGGREGATION_TYPE_AVG_MAX,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    private void appendToWriteAheadLog(Operation op, ServiceDocument sd,
+            ServiceDocumentDescription desc) throws IOException {
+        syncWriteAheadLogIfDue(appendWriteAheadLogEntry(op, sd, desc));
+    }
+
+    /**
+     * Appends an index update to the write ahead log, without forcing it to disk, and returns
+     * its log position, or -1 if the log is disabled
+     */
+    private long appendWriteAheadLogEntry(Operation op, ServiceDocument sd,
+            ServiceDocumentDescription desc) throws IOException {
+        LuceneWriteAheadLog wal = this.writeAheadLog;
+        if (wal == null) {
+            return -1;
+        }
+
+        WriteAheadLogEntry entry = new WriteAheadLogEntry();
+        entry.document = sd;
+        entry.description = toWriteAheadLogDescription(desc);
+        entry.forceIndexUpdate = op.getAction() == Action.POST
+                && op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE);
+        ByteBuffer bb = KryoSerializers.serializeObject(entry, Integer.MAX_VALUE);
+        long position = wal.append(bb.array(), bb.position(), bb.limit());
+        adjustTimeSeriesStat(STAT_NAME_WRITE_AHEAD_LOG_APPEND_COUNT, AGGREGATION_TYPE_SUM, 1);
+        return position;
+    }
+
+    /**
+     * Appends a removal of document versions to the write ahead log, so a replay does not
+     * restore versions removed after the last commit
+     */
+    private void appendWriteAheadLogDeleteEntry(String link, String kind, long oldestVersion,
+            long newestVersion) throws IOException {
+        LuceneWriteAheadLog wal = this.writeAheadLog;
+        if (wal == null) {
+            return;
+        }
+
+        WriteAheadLogEntry entry = new WriteAheadLogEntry();
+        entry.deletedSelfLink = link;
+        entry.deletedKind = kind;
+        entry.deletedOldestVersion = oldestVersion;
+        entry.deletedNewestVersion = newestVersion;
+        ByteBuffer bb = KryoSerializers.serializeObject(entry, Integer.MAX_VALUE);
+        long position = wal.append(bb.array(), bb.position(), bb.limit());
+        adjustTimeSeriesStat(STAT_NAME_WRITE_AHEAD_LOG_APPEND_COUNT, AGGREGATION_TYPE_SUM, 1);
+        syncWriteAheadLogIfDue(position);
+    }
+
+    private void syncWriteAheadLogIfDue(long position) {
+        LuceneWriteAheadLog wal = this.writeAheadLog;
+        if (wal == null || position < 0) {
+            return;
+        }
+
+        if (writeAheadLogSyncIntervalMicros > 0 && Utils.getSystemNowMicrosUtc()
+                - wal.getLastSyncTimeMicros() < writeAheadLogSyncIntervalMicros) {
+            // the periodic sync bounds the window of updates that can be lost
+            return;
+        }
+        syncWriteAheadLog(wal, position);
+    }
+
+    /**
+     * Returns a copy of the description with only the fields used for indexing. Request routes
+     * reference service handlers, which can not be deserialized by a new process
+     */
+    private static ServiceDocumentDescription toWriteAheadLogDescription(
+            ServiceDocumentDescription desc) {
+        if (desc == null) {
+            return null;
+        }
+        ServiceDocumentDescription copy = new ServiceDocumentDescription();
+        copy.propertyDescriptions = desc.propertyDescriptions;
+        copy.serviceCapabilities = desc.serviceCapabilities;
+        copy.documentIndexingOptions = desc.documentIndexingOptions;
+        copy.versionRetentionLimit = desc.versionRetentionLimit;
+        copy.versionRetentionFloor = desc.versionRetentionFloor;
+        copy.serializedStateSizeLimit = desc.serializedStateSizeLimit;
+        return copy;
+    }
+
+    private void closeWriteAheadLog() {
+        LuceneWriteAheadLog wal = this.writeAheadLog;
+        this.writeAheadLog = null;
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.close();
+        } catch (IOException e) {
+            logWarning("Failure closing write ahead log: %s", e.toString());
+        }
+    }
+
     private void initializeInstance() {
         this.searchSync = new Object();
+        this.searcherRefreshSync = new Object();
         this.metadataUpdateSync = new Object();
         this.liveVersionsPerLink.clear();
-        this.updatesPerLink.clear();
+        this.versionCache = new LuceneVersionCache(this.updateMapMemoryLimit);
         this.searcherUpdateTimesMicros.clear();
         this.paginatedSearchersByCreationTime.clear();
         this.paginatedSearchersByExpirationTime.clear();
@@ -607,13 +1118,23 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private void initializeStats() {
-        IndexWriter w = this.writer;
-        setTimeSeriesStat(STAT_NAME_INDEXED_DOCUMENT_COUNT, AGGREGATION_TYPE_SUM,
-                w != null ? w.numDocs() : 0);
+        long documentCount = getDocumentCount();
+        setTimeSeriesStat(STAT_NAME_INDEXED_DOCUMENT_COUNT, AGGREGATION_TYPE_SUM, documentCount);
         // simple estimate on field count, just so our first bin does not have a completely bogus
         // number
-        setTimeSeriesStat(STAT_NAME_INDEXED_FIELD_COUNT, AGGREGATION_TYPE_SUM,
-                w != null ? w.numDocs() * 10 : 0);
+        setTimeSeriesStat(STAT_NAME_INDEXED_FIELD_COUNT, AGGREGATION_TYPE_SUM, documentCount * 10);
+    }
+
+    private long getDocumentCount() {
+        IndexWriter[] writers = this.shardWriters;
+        if (this.writer == null || writers == null) {
+            return 0;
+        }
+        long count = 0;
+        for (IndexWriter w : writers) {
+            count += w.numDocs();
+        }
+        return count;
     }
 
     private void setTimeSeriesStat(String name, EnumSet<AggregationType> type, double v) {
@@ -685,11 +1206,38 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     IndexWriter createWriterWithLuceneDirectory(Directory dir, boolean doUpgrade) throws Exception {
+        IndexWriter[] writers = new IndexWriter[this.shardCount];
+        try {
+            writers[0] = openWriter(dir, doUpgrade);
+            for (int i = 1; i < writers.length; i++) {
+                Directory shardDirectory = isDurable()
+                        ? MMapDirectory.open(getShardDirectory(i).toPath())
+                        : new RAMDirectory();
+                writers[i] = openWriter(shardDirectory, doUpgrade);
+            }
+        } catch (Exception e) {
+            for (IndexWriter w : writers) {
+                close(w);
+            }
+            throw e;
+        }
+
+        synchronized (this.searchSync) {
+            this.writer = writers[0];
+            this.shardWriters = writers;
+            resetVersionCache();
+            this.writerUpdateTimeMicros.set(Utils.getNowMicrosUtc());
+            this.writerCreationTimeMicros = this.writerUpdateTimeMicros.get();
+        }
+        return this.writer;
+    }
+
+    private IndexWriter openWriter(Directory dir, boolean doUpgrade) throws Exception {
         Analyzer analyzer = new SimpleAnalyzer();
         IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
         Long totalMBs = getHost().getServiceMemoryLimitMB(getSelfLink(), MemoryLimitType.EXACT);
         if (totalMBs != null) {
-            long cacheSizeMB = (totalMBs * 99) / 100;
+            long cacheSizeMB = (totalMBs * 99) / 100 / this.shardCount;
             cacheSizeMB = Math.max(1, cacheSizeMB);
             iwc.setRAMBufferSizeMB(cacheSizeMB);
             // reserve 1% of service memory budget for version cache
@@ -709,14 +1257,164 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         IndexWriter w = new IndexWriter(dir, iwc);
         w.commit();
+        return w;
+    }
 
-        synchronized (this.searchSync) {
-            this.writer = w;
-            this.updatesPerLink.clear();
-            this.writerUpdateTimeMicros = Utils.getNowMicrosUtc();
-            this.writerCreationTimeMicros = this.writerUpdateTimeMicros;
+    private File getShardDirectory(int shard) {
+        String name = this.indexDirectory;
+        if (shard > 0) {
+            name += FILE_PATH_SHARD_SUFFIX + shard;
+        }
+        return new File(new File(getHost().getStorageSandbox()), name);
+    }
+
+    private IndexWriter getShardWriter(IndexWriter[] writers, String kind) {
+        if (writers.length == 1 || kind == null) {
+            return writers[0];
+        }
+        return writers[Math.floorMod(kind.hashCode(), writers.length)];
+    }
+
+    /**
+     * Returns the shards that can contain results for the given query, or null if the query
+     * does not require specific document kinds, or the index is not sharded
+     */
+    private int[] getShardsForQuery(QueryTask.Query query) {
+        if (this.shardCount == 1 || query == null) {
+            return null;
+        }
+        Set<String> kinds = getRequiredKinds(query);
+        if (kinds == null) {
+            return null;
+        }
+        return kinds.stream()
+                .mapToInt((kind) -> Math.floorMod(kind.hashCode(), this.shardCount))
+                .distinct()
+                .sorted()
+                .toArray();
+    }
+
+    /**
+     * Returns the document kinds a query result must have, based on TERM clauses on the kind
+     * field that are required, or null if results of any kind can match
+     */
+    static Set<String> getRequiredKinds(QueryTask.Query query) {
+        if (query.occurance == QueryTask.Query.Occurance.MUST_NOT_OCCUR) {
+            return null;
+        }
+
+        if (query.term != null) {
+            QueryTask.QueryTerm term = query.term;
+            if (!ServiceDocument.FIELD_NAME_KIND.equals(term.propertyName)
+                    || term.matchValue == null || term.range != null
+                    || (term.matchType != null && term.matchType != MatchType.TERM)) {
+                return null;
+            }
+            return Collections.singleton(term.matchValue);
+        }
+
+        if (query.booleanClauses == null) {
+            return null;
+        }
+
+        boolean hasRequiredClause = false;
+        boolean hasOptionalClause = false;
+        Set<String> optionalKinds = new HashSet<>();
+        for (QueryTask.Query clause : query.booleanClauses) {
+            if (clause.occurance == QueryTask.Query.Occurance.MUST_NOT_OCCUR) {
+                continue;
+            }
+            Set<String> kinds = getRequiredKinds(clause);
+            if (clause.occurance == QueryTask.Query.Occurance.SHOULD_OCCUR) {
+                // a disjunction only requires specific kinds if every optional clause does
+                hasOptionalClause = true;
+                if (kinds == null) {
+                    optionalKinds = null;
+                } else if (optionalKinds != null) {
+                    optionalKinds.addAll(kinds);
+                }
+                continue;
+            }
+            if (kinds != null) {
+                return kinds;
+            }
+            hasRequiredClause = true;
+        }
+
+        if (hasRequiredClause || !hasOptionalClause) {
+            return null;
+        }
+        return optionalKinds;
+    }
+
+    /**
+     * Opens a near real time reader over the given shards, or all shards if {@code shards} is
+     * null
+     */
+    private IndexReader openReader(IndexWriter w, int[] shards) throws IOException {
+        IndexWriter[] writers = this.shardWriters;
+        if (writers.length == 1) {
+            return DirectoryReader.open(w, true, true);
+        }
+        return LuceneShardedIndexReader.open(writers, shards);
+    }
+
+    private IndexReader openReaderIfChanged(IndexReader reader, IndexWriter w)
+            throws IOException {
+        if (reader instanceof LuceneShardedIndexReader) {
+            return ((LuceneShardedIndexReader) reader).openIfChanged(this.shardWriters);
+        }
+        return DirectoryReader.openIfChanged((DirectoryReader) reader, w);
+    }
+
+    private boolean searcherContainsShards(IndexSearcher s, int[] shards) {
+        IndexReader reader = s.getIndexReader();
+        if (!(reader instanceof LuceneShardedIndexReader)) {
+            return true;
+        }
+        return ((LuceneShardedIndexReader) reader).containsShards(shards, this.shardCount);
+    }
+
+    /**
+     * Commits all shards with pending changes, and returns the highest commit sequence number,
+     * or -1 if there was nothing to commit
+     */
+    private long commit(IndexWriter[] writers) throws IOException {
+        if (writers.length == 1) {
+            return writers[0].commit();
+        }
+        long sequenceNumber = -1;
+        for (IndexWriter w : writers) {
+            if (!w.hasUncommittedChanges()) {
+                continue;
+            }
+            sequenceNumber = Math.max(sequenceNumber, w.commit());
+        }
+        return sequenceNumber;
+    }
+
+    private boolean isWriterOpen() {
+        IndexWriter[] writers = this.shardWriters;
+        if (this.writer == null || writers == null) {
+            return false;
+        }
+        for (IndexWriter w : writers) {
+            if (!w.isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeWriters() {
+        IndexWriter[] writers = this.shardWriters;
+        this.writer = null;
+        if (writers == null) {
+            return;
+        }
+        for (IndexWriter w : writers) {
+            close(w);
         }
-        return this.writer;
     }
 
     private void upgradeIndex(Directory dir) throws IOException {
@@ -736,12 +1434,12 @@ public class LuceneDocumentIndexService extends StatelessService {
             logInfo("Upgrading index to %s", Version.LATEST.toString());
             IndexWriterConfig iwc = new IndexWriterConfig(null);
             new IndexUpgrader(dir, iwc, false).upgrade();
-            this.writerUpdateTimeMicros = Utils.getNowMicrosUtc();
+            this.writerUpdateTimeMicros.set(Utils.getNowMicrosUtc());
         }
     }
 
     void archiveCorruptIndexFiles(File directory) {
-        File newDirectory = new File(new File(getHost().getStorageSandbox()), this.indexDirectory
+        File newDirectory = new File(directory.getParentFile(), directory.getName()
                 + "." + Utils.getNowMicrosUtc());
         try {
             logWarning("Archiving corrupt index files to %s", newDirectory.toPath());
@@ -763,7 +1461,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         Operation op = Operation.createGet(getUri());
         EnumSet<QueryOption> options = EnumSet.of(QueryOption.INCLUDE_ALL_VERSIONS);
-        IndexSearcher s = new IndexSearcher(DirectoryReader.open(this.writer, true, true));
+        IndexSearcher s = new IndexSearcher(openReader(this.writer, null));
         queryIndexPaginated(op, options, s, tq, null, Integer.MAX_VALUE, 0, null, rsp, null,
                 Utils.getNowMicrosUtc());
     }
@@ -801,6 +1499,54 @@ public class LuceneDocumentIndexService extends StatelessService {
                 AGGREGATION_TYPE_SUM, 1);
     }
 
+    private void handleDocumentVersionsRequest(Operation op) throws Exception {
+        DocumentVersionsRequest request = (DocumentVersionsRequest) op.getBodyRaw();
+        if (request.selfLinkPrefix == null || request.stateKind == null) {
+            op.fail(new IllegalArgumentException("selfLinkPrefix and stateKind are required"));
+            return;
+        }
+
+        IndexWriter w = this.writer;
+        if (w == null) {
+            op.fail(new CancellationException("Index writer is null"));
+            return;
+        }
+
+        Query query = new BooleanQuery.Builder()
+                .add(new PrefixQuery(new Term(ServiceDocument.FIELD_NAME_SELF_LINK,
+                        request.selfLinkPrefix)), Occur.FILTER)
+                .add(new TermQuery(new Term(ServiceDocument.FIELD_NAME_KIND, request.stateKind)),
+                        Occur.FILTER)
+                .build();
+
+        LuceneLatestVersionCollector collector = new LuceneLatestVersionCollector();
+        IndexSearcher s = acquireSearcher(null, Collections.singleton(request.stateKind),
+                Integer.MAX_VALUE, w, false, searcherMaxStalenessMicros);
+        try {
+            s.search(query, collector);
+        } finally {
+            releaseSearcher(s);
+        }
+
+        if (collector.isMissingDocValues()) {
+            op.fail(new IllegalStateException("Index segments without version doc values"));
+            return;
+        }
+
+        Map<String, LuceneLatestVersionCollector.VersionInfo> infos = collector.getVersionInfos();
+        DocumentVersionsResponse rsp = new DocumentVersionsResponse();
+        rsp.documentLinks = new ArrayList<>(infos.size());
+        rsp.documentVersions = new long[infos.size()];
+        rsp.documentUpdateTimesMicros = new long[infos.size()];
+        for (Entry<String, LuceneLatestVersionCollector.VersionInfo> e : infos.entrySet()) {
+            int i = rsp.documentLinks.size();
+            rsp.documentLinks.add(e.getKey());
+            rsp.documentVersions[i] = e.getValue().version;
+            rsp.documentUpdateTimesMicros[i] = e.getValue().updateTimeMicros;
+        }
+        op.setBodyNoCloning(rsp).complete();
+    }
+
     private PaginatedSearcherInfo removeSearcherInfoUnsafe(IndexSearcher searcher) {
         PaginatedSearcherInfo infoToRemove = null;
         Iterator<Entry<Long, PaginatedSearcherInfo>> itr =
@@ -927,6 +1673,10 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
+        if (a == Action.GET && handleIndexCheckInline(op)) {
+            return;
+        }
+
         try {
             if (a == Action.GET || a == Action.PATCH) {
                 if (offerQueryOperation(op)) {
@@ -953,6 +1703,11 @@ public class LuceneDocumentIndexService extends StatelessService {
                 case GET:
                     // handle special GET request. Internal call only. Currently from backup/restore services.
                     if (!op.isRemote() && op.hasBody() && op.getBodyRaw() instanceof InternalDocumentIndexInfo) {
+                        if (this.shardCount > 1) {
+                            op.fail(new IllegalStateException(
+                                    "Backup and restore are not supported for a sharded index"));
+                            break;
+                        }
                         InternalDocumentIndexInfo response = new InternalDocumentIndexInfo();
                         response.indexWriter = this.writer;
                         response.indexDirectory = this.indexDirectory;
@@ -983,6 +1738,10 @@ public class LuceneDocumentIndexService extends StatelessService {
                             handleRestore(op);
                             break;
                         }
+                        if (sd.documentKind.equals(DocumentVersionsRequest.KIND)) {
+                            handleDocumentVersionsRequest(op);
+                            break;
+                        }
                     }
                     Operation.failActionNotSupported(op);
                     break;
@@ -1005,9 +1764,28 @@ public class LuceneDocumentIndexService extends StatelessService {
     private void handleUpdateRequest() {
         OperationContext originalContext = OperationContext.getOperationContext();
         Operation op = pollUpdateOperation();
+        int batchSize = this.isUpdateIndexOverridden ? 1 : indexUpdateBatchSize;
+        List<Operation> batch = null;
         try {
             this.writerSync.acquire();
             while (op != null) {
+                if (batchSize > 1 && isBatchableUpdate(op)) {
+                    if (batch == null) {
+                        batch = new ArrayList<>(batchSize);
+                    }
+                    batch.add(op);
+                    if (batch.size() >= batchSize) {
+                        updateIndex(batch);
+                        batch.clear();
+                    }
+                    op = pollUpdateOperation();
+                    continue;
+                }
+                if (batch != null && !batch.isEmpty()) {
+                    // preserve the update order with respect to operations that are not batched
+                    updateIndex(batch);
+                    batch.clear();
+                }
                 OperationContext.setFrom(op);
                 switch (op.getAction()) {
                 case DELETE:
@@ -1032,6 +1810,9 @@ public class LuceneDocumentIndexService extends StatelessService {
                 }
                 op = pollUpdateOperation();
             }
+            if (batch != null && !batch.isEmpty()) {
+                updateIndex(batch);
+            }
         } catch (Exception e) {
             checkFailureAndRecover(e);
             if (op != null) {
@@ -1043,6 +1824,29 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
     }
 
+    private static boolean isUpdateIndexOverridden(Class<?> type) {
+        for (Class<?> c = type; c != LuceneDocumentIndexService.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("updateIndex", Operation.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared by this class, check its superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true for index updates that can be added to the index as part of a batch. Forced
+     * updates delete all previous versions of a document, so they are indexed individually
+     */
+    private boolean isBatchableUpdate(Operation op) {
+        return op.getAction() == Action.POST
+                && op.getBodyRaw() instanceof UpdateIndexRequest
+                && !op.isRemote()
+                && !op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE);
+    }
+
     private void handleQueryTaskPatch(Operation op, QueryTask task) throws Exception {
         QueryTask.QuerySpecification qs = task.querySpec;
 
@@ -1080,6 +1884,11 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
+        if (qs.options.contains(QueryOption.AGGREGATE)) {
+            handleAggregateQueryTaskPatch(op, task);
+            return;
+        }
+
         LuceneQueryPage lucenePage = (LuceneQueryPage) qs.context.nativePage;
         IndexSearcher s = (IndexSearcher) qs.context.nativeSearcher;
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
@@ -1091,7 +1900,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             // for this query and all its pages. It will be expired when the query task itself expires
             Set<String> documentKind = qs.context.kindScope;
             s = createOrUpdatePaginatedQuerySearcher(task.documentExpirationTimeMicros,
-                    this.writer, documentKind, qs.options);
+                    this.writer, documentKind, qs.options, getShardsForQuery(qs.query));
         }
 
         if (!queryIndex(s, op, null, qs.options, luceneQuery, lucenePage,
@@ -1115,6 +1924,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             clonedTask.querySpec.context.filter = QueryFilter.create(qs.query);
             clonedTask.querySpec.context.subjectLink = getSubject(op);
             this.activeQueries.put(task.documentSelfLink, clonedTask);
+            this.continuousQueryIndex.put(clonedTask);
             adjustTimeSeriesStat(STAT_NAME_ACTIVE_QUERY_FILTERS, AGGREGATION_TYPE_SUM,
                     1);
             logInfo("Activated continuous query task: %s", task.documentSelfLink);
@@ -1122,6 +1932,7 @@ public class LuceneDocumentIndexService extends StatelessService {
         case CANCELLED:
         case FAILED:
         case FINISHED:
+            this.continuousQueryIndex.remove(task.documentSelfLink);
             if (this.activeQueries.remove(task.documentSelfLink) != null) {
                 adjustTimeSeriesStat(STAT_NAME_ACTIVE_QUERY_FILTERS, AGGREGATION_TYPE_SUM,
                         -1);
@@ -1135,29 +1946,30 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private IndexSearcher createOrUpdatePaginatedQuerySearcher(long expirationMicros,
-            IndexWriter w, Set<String> kindScope, EnumSet<QueryOption> queryOptions)
-            throws IOException {
+            IndexWriter w, Set<String> kindScope, EnumSet<QueryOption> queryOptions,
+            int[] shards) throws IOException {
 
         boolean doNotRefresh = queryOptions.contains(QueryOption.DO_NOT_REFRESH);
         boolean singleUse = queryOptions.contains(QueryOption.SINGLE_USE);
         if (singleUse || (!doNotRefresh && kindScope == null)) {
-            return createPaginatedQuerySearcher(expirationMicros, w, singleUse);
+            return createPaginatedQuerySearcher(expirationMicros, w, singleUse, shards);
         }
 
         IndexSearcher searcher;
         synchronized (this.searchSync) {
-            searcher = getOrUpdateExistingSearcher(expirationMicros, kindScope, doNotRefresh);
+            searcher = getOrUpdateExistingSearcher(expirationMicros, kindScope, doNotRefresh,
+                    shards);
         }
 
         if (searcher != null) {
             return searcher;
         }
 
-        return createPaginatedQuerySearcher(expirationMicros, w, false);
+        return createPaginatedQuerySearcher(expirationMicros, w, false, shards);
     }
 
     private IndexSearcher getOrUpdateExistingSearcher(long newExpirationMicros,
-            Set<String> kindScope, boolean doNotRefresh) {
+            Set<String> kindScope, boolean doNotRefresh, int[] shards) {
 
         if (this.paginatedSearchersByCreationTime.isEmpty()) {
             return null;
@@ -1166,13 +1978,13 @@ public class LuceneDocumentIndexService extends StatelessService {
         PaginatedSearcherInfo info = null;
         for (PaginatedSearcherInfo i : this.paginatedSearchersByCreationTime.descendingMap().values()) {
 
-            if (i.singleUse) {
+            if (i.singleUse || !searcherContainsShards(i.searcher, shards)) {
                 continue;
             }
 
             // check the searcher for kindScope update time
             long searcherUpdateTime = this.searcherUpdateTimesMicros.get(i.searcher.hashCode());
-            if (documentNeedsNewSearcher(null, kindScope, -1, searcherUpdateTime, doNotRefresh)) {
+            if (documentNeedsNewSearcher(null, kindScope, -1, searcherUpdateTime, doNotRefresh, 0)) {
                 continue;
             }
 
@@ -1214,7 +2026,7 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private IndexSearcher createPaginatedQuerySearcher(long expirationMicros, IndexWriter w,
-            boolean singleUse) throws IOException {
+            boolean singleUse, int[] shards) throws IOException {
         if (w == null) {
             throw new IllegalStateException("Writer not available");
         }
@@ -1223,7 +2035,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         long now = Utils.getNowMicrosUtc();
 
-        IndexSearcher s = new IndexSearcher(DirectoryReader.open(w, true, true));
+        IndexSearcher s = new IndexSearcher(openReader(w, shards));
 
         PaginatedSearcherInfo info = new PaginatedSearcherInfo();
         info.creationTimeMicros = now;
@@ -1438,36 +2250,43 @@ public class LuceneDocumentIndexService extends StatelessService {
             kindScope = qs.context.kindScope;
         }
 
-        if (s == null) {
-            s = createOrRefreshSearcher(selfLinkPrefix, kindScope, count, w,
-                    options.contains(QueryOption.DO_NOT_REFRESH));
+        boolean isSharedSearcher = s == null;
+        if (isSharedSearcher) {
+            s = acquireSearcher(selfLinkPrefix, kindScope, count, w,
+                    options.contains(QueryOption.DO_NOT_REFRESH), searcherMaxStalenessMicros);
         }
 
-        long queryStartTimeMicros = Utils.getNowMicrosUtc();
-        tq = updateQuery(op, qs, tq, queryStartTimeMicros, options);
-        if (tq == null) {
-            return false;
-        }
+        try {
+            long queryStartTimeMicros = Utils.getNowMicrosUtc();
+            tq = updateQuery(op, qs, tq, queryStartTimeMicros, options);
+            if (tq == null) {
+                return false;
+            }
 
-        if (qs != null && qs.query != null && this.hasOption(ServiceOption.INSTRUMENTATION)) {
-            String queryStat = getQueryStatName(qs.query);
-            this.adjustStat(queryStat, 1);
-        }
+            if (qs != null && qs.query != null && this.hasOption(ServiceOption.INSTRUMENTATION)) {
+                String queryStat = getQueryStatName(qs.query);
+                this.adjustStat(queryStat, 1);
+            }
 
-        ServiceDocumentQueryResult result;
-        if (options.contains(QueryOption.COUNT)) {
-            result = queryIndexCount(options, s, tq, rsp, qs, queryStartTimeMicros);
-        } else {
-            result = queryIndexPaginated(op, options, s, tq, page, count, expiration, indexLink,
-                    rsp, qs, queryStartTimeMicros);
-        }
+            ServiceDocumentQueryResult result;
+            if (options.contains(QueryOption.COUNT)) {
+                result = queryIndexCount(options, s, tq, rsp, qs, queryStartTimeMicros);
+            } else {
+                result = queryIndexPaginated(op, options, s, tq, page, count, expiration,
+                        indexLink, rsp, qs, queryStartTimeMicros);
+            }
 
-        result.documentOwner = getHost().getId();
-        if (!options.contains(QueryOption.COUNT) && result.documentLinks.isEmpty()) {
-            return false;
+            result.documentOwner = getHost().getId();
+            if (!options.contains(QueryOption.COUNT) && result.documentLinks.isEmpty()) {
+                return false;
+            }
+            op.setBodyNoCloning(result).complete();
+            return true;
+        } finally {
+            if (isSharedSearcher) {
+                releaseSearcher(s);
+            }
         }
-        op.setBodyNoCloning(result).complete();
-        return true;
     }
 
     private void queryIndexSingle(String selfLink, Operation op, Long version)
@@ -1478,8 +2297,75 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        IndexSearcher s = createOrRefreshSearcher(selfLink, null, 1, w, false);
+        IndexSearcher s = acquireSearcher(selfLink, null, 1, w, false, searcherMaxStalenessMicros);
+        ServiceDocument sd;
+        try {
+            sd = loadDocument(s, selfLink, version);
+        } finally {
+            releaseSearcher(s);
+        }
+
+        if (sd == null) {
+            op.complete();
+            return;
+        }
+        op.setBodyNoCloning(sd).complete();
+    }
+
+    /**
+     * Serves a local {@link Operation#PRAGMA_DIRECTIVE_INDEX_CHECK} lookup on the caller thread,
+     * without queueing it, if the shared searcher already reflects all updates to the link.
+     * Returns false if the operation must be queued instead
+     */
+    private boolean handleIndexCheckInline(Operation get) {
+        if (get.isRemote() || !get.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK)
+                || get.hasBody()) {
+            return false;
+        }
+
+        String selfLink = get.getUri().getPath();
+        if (selfLink.endsWith(UriUtils.URI_WILDCARD_CHAR)
+                || getProcessingStage() != ProcessingStage.AVAILABLE) {
+            return false;
+        }
+
+        long startNanos = System.nanoTime();
+        IndexSearcher s = acquireSearcherIfFresh(selfLink, null, 1, false, 0);
+        if (s == null) {
+            return false;
+        }
+
+        ServiceDocument sd;
+        try {
+            sd = loadDocument(s, selfLink, null);
+        } catch (Exception e) {
+            // let the queued path handle (and recover from) index failures
+            return false;
+        } finally {
+            try {
+                releaseSearcher(s);
+            } catch (IOException e) {
+                logWarning("Failure releasing searcher: %s", e.toString());
+            }
+        }
+
+        setTimeSeriesHistogramStat(STAT_NAME_QUERY_SINGLE_INLINE_DURATION_MICROS,
+                AGGREGATION_TYPE_AVG_MAX,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        if (sd == null) {
+            get.complete();
+        } else {
+            get.setBodyNoCloning(sd).complete();
+        }
+        return true;
+    }
 
+    /**
+     * Returns the document for the given link and version, or the latest version if the version
+     * is null, or null if the document is not in the index or has expired
+     */
+    private ServiceDocument loadDocument(IndexSearcher s, String selfLink, Long version)
+            throws IOException {
         long startNanos = System.nanoTime();
         TopDocs hits = queryIndexForVersion(selfLink, s, version, null);
         long durationNanos = System.nanoTime() - startNanos;
@@ -1494,8 +2380,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             }
         }
         if (hits.totalHits == 0) {
-            op.complete();
-            return;
+            return null;
         }
 
         DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
@@ -1509,12 +2394,10 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
 
         if (hasExpired) {
-            op.complete();
-            return;
+            return null;
         }
 
-        ServiceDocument sd = getStateFromLuceneDocument(visitor, selfLink);
-        op.setBodyNoCloning(sd).complete();
+        return getStateFromLuceneDocument(visitor, selfLink);
     }
 
     /**
@@ -1672,14 +2555,11 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         Set<String> kindScope = qs.context.kindScope;
 
-        if (s == null && qs.groupResultLimit != null) {
-            s = createOrUpdatePaginatedQuerySearcher(task.documentExpirationTimeMicros,
-                    this.writer, kindScope, qs.options);
-        }
-
         if (s == null) {
-            s = createOrRefreshSearcher(null, kindScope, Integer.MAX_VALUE, this.writer,
-                    qs.options.contains(QueryOption.DO_NOT_REFRESH));
+            // the page link of each group holds the searcher, so it must not be the shared,
+            // reference counted searcher. Paginated searchers are closed when they expire
+            s = createOrUpdatePaginatedQuerySearcher(task.documentExpirationTimeMicros,
+                    this.writer, kindScope, qs.options, getShardsForQuery(qs.query));
         }
 
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
@@ -1755,6 +2635,68 @@ public class LuceneDocumentIndexService extends StatelessService {
         op.setBodyNoCloning(rsp).complete();
     }
 
+    private void handleAggregateQueryTaskPatch(Operation op, QueryTask task) throws IOException {
+        QuerySpecification qs = task.querySpec;
+        IndexWriter w = this.writer;
+        if (w == null) {
+            op.fail(new CancellationException("Index writer is null"));
+            return;
+        }
+
+        ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
+        rsp.documentLinks = Collections.emptyList();
+        rsp.documentCount = 0L;
+        rsp.documentOwner = getHost().getId();
+
+        long queryStartTimeMicros = Utils.getNowMicrosUtc();
+        Query tq = updateQuery(op, qs, (Query) qs.context.nativeQuery, queryStartTimeMicros,
+                qs.options);
+        if (tq == null) {
+            op.setBodyNoCloning(rsp).complete();
+            return;
+        }
+
+        if (!qs.options.contains(QueryOption.INCLUDE_DELETED)) {
+            // a document whose latest version is deleted is then only matched by older versions,
+            // which are dropped below
+            tq = new BooleanQuery.Builder()
+                    .add(tq, Occur.FILTER)
+                    .add(new TermQuery(new Term(ServiceDocument.FIELD_NAME_UPDATE_ACTION,
+                            Action.DELETE.name())), Occur.MUST_NOT)
+                    .build();
+        }
+
+        adjustTimeSeriesStat(STAT_NAME_AGGREGATE_QUERY_COUNT, AGGREGATION_TYPE_SUM, 1);
+
+        IndexSearcher s = acquireSearcher(null, qs.context.kindScope, Integer.MAX_VALUE, w,
+                qs.options.contains(QueryOption.DO_NOT_REFRESH), searcherMaxStalenessMicros);
+        try {
+            long startNanos = System.nanoTime();
+            LuceneAggregationCollector collector = new LuceneAggregationCollector(
+                    qs.aggregationTerms);
+            s.search(tq, collector);
+
+            long searcherUpdateTime = getSearcherUpdateTime(s, queryStartTimeMicros);
+            for (String link : collector.getDocumentLinks()) {
+                long version = collector.getVersion(link);
+                if (version < getLatestVersion(s, searcherUpdateTime, link, version, -1)) {
+                    collector.removeDocument(link);
+                }
+            }
+
+            rsp.documentCount = collector.getDocumentCount();
+            rsp.aggregations = collector.getAggregations();
+            long durationNanos = System.nanoTime() - startNanos;
+            rsp.queryTimeMicros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+            setTimeSeriesHistogramStat(STAT_NAME_AGGREGATE_QUERY_DURATION_MICROS,
+                    AGGREGATION_TYPE_AVG_MAX, rsp.queryTimeMicros);
+        } finally {
+            releaseSearcher(s);
+        }
+
+        op.setBodyNoCloning(rsp).complete();
+    }
+
     private ServiceDocumentQueryResult queryIndexCount(
             EnumSet<QueryOption> queryOptions,
             IndexSearcher searcher,
@@ -2183,7 +3125,7 @@ public class LuceneDocumentIndexService extends StatelessService {
         // will contain the links for which post processing should to be skipped
         // added to support TIME_SNAPSHOT, can be extended in future to represent qs.context.documentLinkBlackList
         Set<String> linkBlackList = options.contains(QueryOption.TIME_SNAPSHOT)
-                ? Collections.emptySet() : null;
+                ? new HashSet<>() : null;
         if (qs != null) {
             if (qs.context != null && qs.context.documentLinkWhiteList != null) {
                 linkWhiteList = qs.context.documentLinkWhiteList;
@@ -2195,6 +3137,10 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         long searcherUpdateTime = getSearcherUpdateTime(s, queryStartTimeMicros);
         Map<String, Long> latestVersionPerLink = new HashMap<>();
+        if (!hasIncludeAllVersionsOption) {
+            getLatestVersions(s, searcherUpdateTime, hits, linkWhiteList, documentsUpdatedBefore,
+                    latestVersionPerLink);
+        }
 
         DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
         for (ScoreDoc sd : hits) {
@@ -2228,17 +3174,17 @@ public class LuceneDocumentIndexService extends StatelessService {
                 if (latestVersion == null) {
                     latestVersion = getLatestVersion(s, searcherUpdateTime, link, documentVersion,
                             documentsUpdatedBefore);
-
-                    // latestVersion == -1 means there was no document version
-                    // in history, adding it to blacklist so as to avoid
-                    // processing the documents which were found later
-                    if (latestVersion == -1) {
-                        linkBlackList.add(originalLink);
-                        continue;
-                    }
                     latestVersionPerLink.put(originalLink, latestVersion);
                 }
 
+                // latestVersion == -1 means there was no document version
+                // in history, adding it to blacklist so as to avoid
+                // processing the documents which were found later
+                if (latestVersion == -1) {
+                    linkBlackList.add(originalLink);
+                    continue;
+                }
+
                 if (documentVersion < latestVersion) {
                     continue;
                 }
@@ -2364,11 +3310,22 @@ public class LuceneDocumentIndexService extends StatelessService {
     private void loadDoc(IndexSearcher s, DocumentStoredFieldVisitor visitor, int docId, Set<String> fields) throws IOException {
         visitor.reset(fields);
         s.doc(docId, visitor);
+        updateStoredStateDecodeStat(visitor);
     }
 
     private void augmentDoc(IndexSearcher s, DocumentStoredFieldVisitor visitor, int docId, String field) throws IOException {
         visitor.reset(field);
         s.doc(docId, visitor);
+        updateStoredStateDecodeStat(visitor);
+    }
+
+    private void updateStoredStateDecodeStat(DocumentStoredFieldVisitor visitor) {
+        if (visitor.storedStateDecodeNanos == 0 || !hasOption(ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+        setTimeSeriesHistogramStat(STAT_NAME_STORED_STATE_DECODE_DURATION_MICROS,
+                AGGREGATION_TYPE_AVG_MAX,
+                TimeUnit.NANOSECONDS.toMicros(visitor.storedStateDecodeNanos));
     }
 
     private boolean processQueryResultsForOwnerSelection(String json, ServiceDocument state) {
@@ -2474,6 +3431,109 @@ public class LuceneDocumentIndexService extends StatelessService {
         return this.searcherUpdateTimesMicros.getOrDefault(s.hashCode(), queryStartTimeMicros);
     }
 
+    /**
+     * Resolves the latest version of the documents in a page of query hits, so the results can
+     * be filtered without a version lookup search per document. Versions are taken from the
+     * version cache when possible, and the versions of the remaining documents are read from doc
+     * values, with a single search over their self links. With a time snapshot boundary, only
+     * document versions updated before the boundary are considered.
+     *
+     * Documents whose version could not be resolved, for example in index segments written
+     * without doc values, are left out of the map, and resolved one by one by the caller
+     */
+    private void getLatestVersions(IndexSearcher s, long searcherUpdateTime, ScoreDoc[] hits,
+            Set<String> linkWhiteList, long documentsUpdatedBeforeInMicros,
+            Map<String, Long> latestVersionPerLink) throws IOException {
+        if (hits.length < 2) {
+            return;
+        }
+
+        // highest version of each self link, among the hits
+        List<LeafReaderContext> leaves = s.getIndexReader().leaves();
+        Map<String, Long> hitVersionPerLink = new HashMap<>();
+        for (ScoreDoc sd : hits) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(sd.doc, leaves));
+            int doc = sd.doc - leaf.docBase;
+            String link = LuceneLatestVersionCollector.getSelfLink(leaf.reader(), doc);
+            NumericDocValues versions = leaf.reader().getNumericDocValues(
+                    ServiceDocument.FIELD_NAME_VERSION);
+            if (link == null || versions == null) {
+                continue;
+            }
+            if (linkWhiteList != null && !linkWhiteList.contains(link)) {
+                continue;
+            }
+            hitVersionPerLink.merge(link, versions.get(doc), Math::max);
+        }
+
+        boolean isInstrumented = hasOption(ServiceOption.INSTRUMENTATION);
+        List<BytesRef> unresolvedLinks = new ArrayList<>();
+        for (Entry<String, Long> e : hitVersionPerLink.entrySet()) {
+            String link = e.getKey();
+            if (documentsUpdatedBeforeInMicros == -1) {
+                if (isInstrumented) {
+                    adjustStat(STAT_NAME_VERSION_CACHE_LOOKUP_COUNT, 1);
+                }
+                long cachedVersion = this.versionCache.getVersion(link, searcherUpdateTime);
+                if (cachedVersion >= 0) {
+                    if (isInstrumented) {
+                        adjustStat(STAT_NAME_VERSION_CACHE_HIT_COUNT, 1);
+                    }
+                    latestVersionPerLink.put(link, Math.max(e.getValue(), cachedVersion));
+                    continue;
+                }
+            }
+
+            if (!this.immutableParentLinks.isEmpty()
+                    && this.immutableParentLinks.containsKey(UriUtils.getParentPath(link))) {
+                // all immutable services have just a single, zero, version
+                latestVersionPerLink.put(link, 0L);
+                continue;
+            }
+
+            if (isInstrumented) {
+                adjustStat(STAT_NAME_VERSION_CACHE_MISS_COUNT, 1);
+            }
+            unresolvedLinks.add(new BytesRef(link));
+        }
+
+        if (unresolvedLinks.isEmpty()) {
+            return;
+        }
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder()
+                .add(new TermInSetQuery(ServiceDocument.FIELD_NAME_SELF_LINK, unresolvedLinks),
+                        Occur.FILTER);
+        if (documentsUpdatedBeforeInMicros > 0) {
+            builder.add(LongPoint.newRangeQuery(ServiceDocument.FIELD_NAME_UPDATE_TIME_MICROS, 0,
+                    documentsUpdatedBeforeInMicros), Occur.FILTER);
+        }
+        LuceneLatestVersionCollector collector = new LuceneLatestVersionCollector();
+        s.search(builder.build(), collector);
+        if (collector.isMissingDocValues()) {
+            return;
+        }
+
+        for (BytesRef linkBytes : unresolvedLinks) {
+            String link = linkBytes.utf8ToString();
+            LuceneLatestVersionCollector.VersionInfo info = collector.getVersionInfo(link);
+            if (info == null) {
+                if (documentsUpdatedBeforeInMicros != -1) {
+                    // no version updated before the time snapshot boundary
+                    latestVersionPerLink.put(link, -1L);
+                } else {
+                    latestVersionPerLink.put(link, hitVersionPerLink.get(link));
+                }
+                continue;
+            }
+            latestVersionPerLink.put(link, info.version);
+            if (documentsUpdatedBeforeInMicros == -1) {
+                // refresh the version cache, the update is rejected if the version is stale
+                updateLinkInfoCache(null, link, null, info.version, info.updateTimeMicros);
+            }
+        }
+    }
+
     private long getLatestVersion(IndexSearcher s,
             long searcherUpdateTime,
             String link, long version, long documentsUpdatedBeforeInMicros) throws IOException {
@@ -2481,18 +3541,21 @@ public class LuceneDocumentIndexService extends StatelessService {
             adjustStat(STAT_NAME_VERSION_CACHE_LOOKUP_COUNT, 1);
         }
 
-        synchronized (this.searchSync) {
-            DocumentUpdateInfo dui = this.updatesPerLink.get(link);
-            if (documentsUpdatedBeforeInMicros == -1 && dui != null && dui.updateTimeMicros <= searcherUpdateTime) {
-                return Math.max(version, dui.version);
+        if (documentsUpdatedBeforeInMicros == -1) {
+            long cachedVersion = this.versionCache.getVersion(link, searcherUpdateTime);
+            if (cachedVersion >= 0) {
+                if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                    adjustStat(STAT_NAME_VERSION_CACHE_HIT_COUNT, 1);
+                }
+                return Math.max(version, cachedVersion);
             }
+        }
 
-            if (!this.immutableParentLinks.isEmpty()) {
-                String parentLink = UriUtils.getParentPath(link);
-                if (this.immutableParentLinks.containsKey(parentLink)) {
-                    // all immutable services have just a single, zero, version
-                    return 0;
-                }
+        if (!this.immutableParentLinks.isEmpty()) {
+            String parentLink = UriUtils.getParentPath(link);
+            if (this.immutableParentLinks.containsKey(parentLink)) {
+                // all immutable services have just a single, zero, version
+                return 0;
             }
         }
 
@@ -2559,9 +3622,9 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         this.privateIndexingExecutor.shutdown();
         this.privateQueryExecutor.shutdown();
-        IndexWriter w = this.writer;
-        this.writer = null;
-        close(w);
+        closeSearcher();
+        closeWriters();
+        closeWriteAheadLog();
         this.getHost().stopService(this);
         delete.complete();
     }
@@ -2581,52 +3644,204 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     protected void updateIndex(Operation updateOp) throws Exception {
         UpdateIndexRequest r = updateOp.getBody(UpdateIndexRequest.class);
+        if (!validateUpdateIndexRequest(updateOp, r)) {
+            return;
+        }
+
+        IndexWriter wr = this.writer;
+        if (wr == null) {
+            updateOp.fail(new CancellationException("Index writer is null"));
+            return;
+        }
         ServiceDocument s = r.document;
         ServiceDocumentDescription desc = r.description;
+        wr = getShardWriter(this.shardWriters, s.documentKind);
+
+        LuceneIndexDocumentHelper indexDocHelper = this.indexDocumentHelper.get();
+        Document threadLocalDoc = indexDocHelper.getDoc();
+        try {
+            populateDocument(indexDocHelper, r);
+            addDocumentToIndex(wr, updateOp, threadLocalDoc, s, desc);
+        } finally {
+            // NOTE: The Document is a thread local managed by the index document helper. Its fields
+            // must be cleared *after* its added to the index (above) and *before* its re-used.
+            // After the fields are cleared, the document can not be used in this scope
+            threadLocalDoc.clear();
+        }
+    }
+
+    /**
+     * Adds the documents for a batch of update requests with a single
+     * {@link IndexWriter#addDocuments(Iterable)} call per shard, then applies the version cache
+     * updates for the whole batch under a single lock acquisition, and completes the operations
+     * in the order they were queued
+     */
+    private void updateIndex(List<Operation> updateOps) {
+        LuceneIndexDocumentHelper[] helpers = getBatchIndexDocumentHelpers(updateOps.size());
+        List<Operation> ops = new ArrayList<>(updateOps.size());
+        List<UpdateIndexRequest> requests = new ArrayList<>(updateOps.size());
+        long startNanos = 0;
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            startNanos = System.nanoTime();
+        }
+
+        try {
+            if (this.writer == null) {
+                CancellationException e = new CancellationException("Index writer is null");
+                for (Operation op : updateOps) {
+                    op.fail(e);
+                }
+                return;
+            }
+
+            Map<IndexWriter, List<Document>> documentsPerWriter = new HashMap<>();
+            for (Operation op : updateOps) {
+                OperationContext.setFrom(op);
+                UpdateIndexRequest r = op.getBody(UpdateIndexRequest.class);
+                if (!validateUpdateIndexRequest(op, r)) {
+                    continue;
+                }
+                LuceneIndexDocumentHelper helper = helpers[ops.size()];
+                populateDocument(helper, r);
+                documentsPerWriter.computeIfAbsent(
+                        getShardWriter(this.shardWriters, r.document.documentKind),
+                        (k) -> new ArrayList<>()).add(helper.getDoc());
+                ops.add(op);
+                requests.add(r);
+            }
+
+            for (Entry<IndexWriter, List<Document>> e : documentsPerWriter.entrySet()) {
+                e.getKey().addDocuments(e.getValue());
+            }
+        } catch (Exception e) {
+            checkFailureAndRecover(e);
+            for (Operation op : ops) {
+                op.fail(e);
+            }
+            return;
+        } finally {
+            for (int i = 0; i < ops.size(); i++) {
+                helpers[i].getDoc().clear();
+            }
+        }
+
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            long durationNanos = System.nanoTime() - startNanos;
+            setTimeSeriesStat(STAT_NAME_INDEXED_DOCUMENT_COUNT, AGGREGATION_TYPE_SUM, ops.size());
+            setTimeSeriesHistogramStat(STAT_NAME_INDEXING_DURATION_MICROS, AGGREGATION_TYPE_AVG_MAX,
+                    TimeUnit.NANOSECONDS.toMicros(durationNanos));
+            setTimeSeriesHistogramStat(STAT_NAME_INDEXING_BATCH_SIZE, AGGREGATION_TYPE_AVG_MAX,
+                    ops.size());
+        }
+
+        // Use time AFTER index was updated, see addDocumentToIndex
+        long updateTime = Utils.getNowMicrosUtc();
+        updateLinkInfoCache(requests, updateTime);
+
+        long walPosition = -1;
+        for (int i = 0; i < ops.size(); i++) {
+            Operation op = ops.get(i);
+            UpdateIndexRequest r = requests.get(i);
+            try {
+                walPosition = Math.max(walPosition,
+                        appendWriteAheadLogEntry(op, r.document, r.description));
+            } catch (Exception e) {
+                logSevere("Failure appending to write ahead log: %s", Utils.toString(e));
+                op.fail(e);
+                ops.set(i, null);
+            }
+        }
+        syncWriteAheadLogIfDue(walPosition);
+
+        for (int i = 0; i < ops.size(); i++) {
+            Operation op = ops.get(i);
+            if (op == null) {
+                continue;
+            }
+            UpdateIndexRequest r = requests.get(i);
+            OperationContext.setFrom(op);
+            op.setBody(null).complete();
+            try {
+                checkDocumentRetentionLimit(r.document, r.description);
+            } catch (Exception e) {
+                logWarning("Failure checking version retention for %s: %s",
+                        r.document.documentSelfLink, e.toString());
+            }
+            checkDocumentIndexingMetadata(r.document, r.description, updateTime);
+            applyActiveQueries(op, r.document, r.description);
+        }
+    }
+
+    private LuceneIndexDocumentHelper[] getBatchIndexDocumentHelpers(int count) {
+        LuceneIndexDocumentHelper[] helpers = this.batchIndexDocumentHelpers.get();
+        if (helpers.length >= count) {
+            return helpers;
+        }
+        LuceneIndexDocumentHelper[] newHelpers = Arrays.copyOf(helpers, count);
+        for (int i = helpers.length; i < count; i++) {
+            newHelpers[i] = new LuceneIndexDocumentHelper(this.storedStateCompression, true);
+        }
+        this.batchIndexDocumentHelpers.set(newHelpers);
+        return newHelpers;
+    }
 
+    /**
+     * Fails the operation and returns false if the update request is missing required fields
+     */
+    private boolean validateUpdateIndexRequest(Operation updateOp, UpdateIndexRequest r) {
+        ServiceDocument s = r.document;
         if (updateOp.isRemote()) {
             updateOp.fail(new IllegalStateException("Remote requests not allowed"));
-            return;
+            return false;
         }
 
         if (s == null) {
             updateOp.fail(new IllegalArgumentException("document is required"));
-            return;
+            return false;
         }
 
-        String link = s.documentSelfLink;
-        if (link == null) {
+        if (s.documentSelfLink == null) {
             updateOp.fail(new IllegalArgumentException(
                     "documentSelfLink is required"));
-            return;
+            return false;
         }
 
         if (s.documentUpdateAction == null) {
             updateOp.fail(new IllegalArgumentException(
                     "documentUpdateAction is required"));
-            return;
+            return false;
         }
 
-        if (desc == null) {
+        if (r.description == null) {
             updateOp.fail(new IllegalArgumentException("description is required"));
-            return;
+            return false;
         }
+        return true;
+    }
 
-        IndexWriter wr = this.writer;
-        if (wr == null) {
-            updateOp.fail(new CancellationException("Index writer is null"));
-            return;
-        }
+    private void populateDocument(LuceneIndexDocumentHelper indexDocHelper,
+            UpdateIndexRequest r) {
+        ServiceDocument s = r.document;
+        ServiceDocumentDescription desc = r.description;
+        String link = s.documentSelfLink;
         s.documentDescription = null;
 
-        LuceneIndexDocumentHelper indexDocHelper = this.indexDocumentHelper.get();
-
         indexDocHelper.addSelfLinkField(link);
         if (s.documentKind != null) {
             indexDocHelper.addKindField(s.documentKind);
         }
         indexDocHelper.addUpdateActionField(s.documentUpdateAction);
         indexDocHelper.addBinaryStateFieldToDocument(s, r.serializedDocument, desc);
+        if (this.storedStateCompression != StoredStateCompression.NONE
+                && hasOption(ServiceOption.INSTRUMENTATION)) {
+            setTimeSeriesHistogramStat(STAT_NAME_STORED_STATE_COMPRESSION_RATIO,
+                    AGGREGATION_TYPE_AVG_MAX, (double) indexDocHelper.getSerializedStateSize()
+                            / indexDocHelper.getStoredStateSize());
+        }
         if (s.documentAuthPrincipalLink != null) {
             indexDocHelper.addAuthPrincipalLinkField(s.documentAuthPrincipalLink);
         }
@@ -2644,31 +3859,20 @@ public class LuceneDocumentIndexService extends StatelessService {
             indexDocHelper.addTombstoneTimeField();
         }
 
-        Document threadLocalDoc = indexDocHelper.getDoc();
-        try {
-            if (desc.propertyDescriptions == null
-                    || desc.propertyDescriptions.isEmpty()) {
-                // no additional property type information, so we will add the
-                // document with common fields indexed plus the full body
-                addDocumentToIndex(wr, updateOp, threadLocalDoc, s, desc);
-                return;
-            }
-
-            indexDocHelper.addIndexableFieldsToDocument(s, desc);
+        if (desc.propertyDescriptions == null
+                || desc.propertyDescriptions.isEmpty()) {
+            // no additional property type information, so we will add the
+            // document with common fields indexed plus the full body
+            return;
+        }
 
-            if (hasOption(ServiceOption.INSTRUMENTATION)) {
-                int fieldCount = indexDocHelper.getDoc().getFields().size();
-                setTimeSeriesStat(STAT_NAME_INDEXED_FIELD_COUNT, AGGREGATION_TYPE_SUM, fieldCount);
-                ServiceStat st = ServiceStatUtils.getOrCreateHistogramStat(this, STAT_NAME_FIELD_COUNT_PER_DOCUMENT);
-                setStat(st, fieldCount);
-            }
+        indexDocHelper.addIndexableFieldsToDocument(s, desc);
 
-            addDocumentToIndex(wr, updateOp, threadLocalDoc, s, desc);
-        } finally {
-            // NOTE: The Document is a thread local managed by the index document helper. Its fields
-            // must be cleared *after* its added to the index (above) and *before* its re-used.
-            // After the fields are cleared, the document can not be used in this scope
-            threadLocalDoc.clear();
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            int fieldCount = indexDocHelper.getDoc().getFields().size();
+            setTimeSeriesStat(STAT_NAME_INDEXED_FIELD_COUNT, AGGREGATION_TYPE_SUM, fieldCount);
+            ServiceStat st = ServiceStatUtils.getOrCreateHistogramStat(this, STAT_NAME_FIELD_COUNT_PER_DOCUMENT);
+            setStat(st, fieldCount);
         }
     }
 
@@ -2701,12 +3905,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         String link = state.documentSelfLink;
         long newValue = state.documentVersion - floor;
-        synchronized (this.liveVersionsPerLink) {
-            Long currentValue = this.liveVersionsPerLink.get(link);
-            if (currentValue == null || newValue > currentValue) {
-                this.liveVersionsPerLink.put(link, newValue);
-            }
-        }
+        this.liveVersionsPerLink.merge(link, newValue, Math::max);
     }
 
     /**
@@ -2728,8 +3927,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        IndexWriter w = this.writer;
-        if ((w != null && w.isOpen()) || e.getMessage().contains("IndexReader")) {
+        if (isWriterOpen() || e.getMessage().contains("IndexReader")) {
             // The already closed exception can happen due to an expired searcher, simply
             // log in that case
             adjustStat(STAT_NAME_READER_ALREADY_CLOSED_EXCEPTION_COUNT, 1);
@@ -2748,13 +3946,11 @@ public class LuceneDocumentIndexService extends StatelessService {
         // duplicate version history
         adjustStat(STAT_NAME_FORCED_UPDATE_DOCUMENT_DELETE_COUNT, 1);
         wr.deleteDocuments(new Term(ServiceDocument.FIELD_NAME_SELF_LINK, sd.documentSelfLink));
-        synchronized (this.searchSync) {
-            // Clean previous cached entry
-            this.updatesPerLink.remove(sd.documentSelfLink);
-            long now = Utils.getNowMicrosUtc();
-            this.writerUpdateTimeMicros = now;
-            this.serviceRemovalDetectedTimeMicros = now;
-        }
+        // Clean previous cached entry
+        this.versionCache.remove(sd.documentSelfLink);
+        long now = Utils.getNowMicrosUtc();
+        this.writerUpdateTimeMicros.accumulateAndGet(now, Math::max);
+        this.serviceRemovalDetectedTimeMicros = now;
         updateLinkInfoCache(getHost().buildDocumentDescription(sd.documentSelfLink),
                 sd.documentSelfLink, sd.documentKind, 0, Utils.getNowMicrosUtc());
     }
@@ -2765,13 +3961,11 @@ public class LuceneDocumentIndexService extends StatelessService {
         deleteDocumentsFromIndex(postOrDelete,
                 state != null ? getHost().buildDocumentDescription(state.documentSelfLink) : null,
                 link, state != null ? state.documentKind : null, 0, Long.MAX_VALUE);
-        synchronized (this.searchSync) {
-            // Remove previous cached entry
-            this.updatesPerLink.remove(link);
-            long now = Utils.getNowMicrosUtc();
-            this.writerUpdateTimeMicros = now;
-            this.serviceRemovalDetectedTimeMicros = now;
-        }
+        // Remove previous cached entry
+        this.versionCache.remove(link);
+        long now = Utils.getNowMicrosUtc();
+        this.writerUpdateTimeMicros.accumulateAndGet(now, Math::max);
+        this.serviceRemovalDetectedTimeMicros = now;
         adjustTimeSeriesStat(STAT_NAME_SERVICE_DELETE_COUNT, AGGREGATION_TYPE_SUM, 1);
         logFine("%s expired", link);
         if (state == null) {
@@ -2795,7 +3989,16 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        deleteDocumentFromIndex(link, oldestVersion, newestVersion, wr);
+        if (kind != null || this.shardCount == 1) {
+            deleteDocumentFromIndex(link, oldestVersion, newestVersion,
+                    getShardWriter(this.shardWriters, kind));
+        } else {
+            // the kind, and so the shard, is not known for version retention
+            for (IndexWriter shardWriter : this.shardWriters) {
+                deleteDocumentFromIndex(link, oldestVersion, newestVersion, shardWriter);
+            }
+        }
+        appendWriteAheadLogDeleteEntry(link, kind, oldestVersion, newestVersion);
 
         // Use time AFTER index was updated to be sure that it can be compared
         // against the time the searcher was updated and have this change
@@ -2875,6 +4078,7 @@ public class LuceneDocumentIndexService extends StatelessService {
         long updateTime = Utils.getNowMicrosUtc();
         updateLinkInfoCache(desc, sd.documentSelfLink, sd.documentKind, sd.documentVersion,
                 updateTime);
+        appendToWriteAheadLog(op, sd, desc);
         op.setBody(null).complete();
         checkDocumentRetentionLimit(sd, desc);
         checkDocumentIndexingMetadata(sd, desc, updateTime);
@@ -2913,74 +4117,51 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
     }
 
+    private void updateLinkInfoCache(List<UpdateIndexRequest> requests, long lastAccessTime) {
+        for (UpdateIndexRequest r : requests) {
+            updateLinkInfoCache(r.description, r.document.documentSelfLink,
+                    r.document.documentKind, r.document.documentVersion, lastAccessTime);
+        }
+    }
+
+    /**
+     * Updates the version cache, and the update times of immutable parents, document kinds and
+     * the index. All are concurrent structures, so the search lock is not taken
+     */
     private void updateLinkInfoCache(ServiceDocumentDescription desc,
             String link, String kind, long version, long lastAccessTime) {
         boolean isImmutable = desc != null
                 && desc.serviceCapabilities != null
                 && desc.serviceCapabilities.contains(ServiceOption.IMMUTABLE);
-        synchronized (this.searchSync) {
-            if (isImmutable) {
-                String parent = UriUtils.getParentPath(link);
-                this.immutableParentLinks.compute(parent, (k, time) -> {
-                    if (time == null) {
-                        time = lastAccessTime;
-                    } else {
-                        time = Math.max(time, lastAccessTime);
-                    }
-                    return time;
-                });
-            } else {
-                this.updatesPerLink.compute(link, (k, entry) -> {
-                    if (entry == null) {
-                        entry = new DocumentUpdateInfo();
-                    }
-                    if (version >= entry.version) {
-                        entry.updateTimeMicros = Math.max(entry.updateTimeMicros, lastAccessTime);
-                        entry.version = version;
-                    }
-                    return entry;
-                });
-            }
-
-            if (kind != null) {
-                this.documentKindUpdateInfo.compute(kind, (k, entry) -> {
-                    if (entry == null) {
-                        entry = 0L;
-                    }
-                    entry = Math.max(entry, lastAccessTime);
-                    return entry;
-                });
-            }
+        if (isImmutable) {
+            String parent = UriUtils.getParentPath(link);
+            this.immutableParentLinks.merge(parent, lastAccessTime, Math::max);
+        } else {
+            this.versionCache.update(link, version, lastAccessTime);
+        }
 
-            // The index update time may only be increased.
-            if (this.writerUpdateTimeMicros < lastAccessTime) {
-                this.writerUpdateTimeMicros = lastAccessTime;
-            }
+        if (kind != null) {
+            this.documentKindUpdateInfo.merge(kind, lastAccessTime, Math::max);
         }
+
+        // The index update time may only be increased.
+        this.writerUpdateTimeMicros.accumulateAndGet(lastAccessTime, Math::max);
     }
 
     private void updateLinkInfoCacheForMetadataUpdates(long updateTimeMicros,
             Collection<MetadataUpdateInfo> entries) {
-        synchronized (this.searchSync) {
-            for (MetadataUpdateInfo info : entries) {
-                this.updatesPerLink.compute(info.selfLink, (k, entry) -> {
-                    entry.updateTimeMicros = Math.max(entry.updateTimeMicros, updateTimeMicros);
-                    return entry;
-                });
-                this.documentKindUpdateInfo.compute(info.kind, (k, entry) -> {
-                    entry = Math.max(entry, updateTimeMicros);
-                    return entry;
-                });
-            }
-
-            if (this.writerUpdateTimeMicros < updateTimeMicros) {
-                this.writerUpdateTimeMicros = updateTimeMicros;
-            }
+        for (MetadataUpdateInfo info : entries) {
+            this.versionCache.updateTime(info.selfLink, updateTimeMicros);
+            this.documentKindUpdateInfo.merge(info.kind, updateTimeMicros, Math::max);
         }
+
+        this.writerUpdateTimeMicros.accumulateAndGet(updateTimeMicros, Math::max);
     }
 
     /**
-     * Returns an updated {@link IndexSearcher} to query {@code selfLink}.
+     * Returns an updated {@link IndexSearcher} to query {@code selfLink}. The searcher is shared
+     * by all threads, and the caller must call {@link #releaseSearcher(IndexSearcher)} once it
+     * no longer uses it.
      *
      * If the index has been updated since the last {@link IndexSearcher} was created, those
      * changes will not be reflected by that {@link IndexSearcher}. However, for performance
@@ -2997,69 +4178,188 @@ public class LuceneDocumentIndexService extends StatelessService {
      * @param selfLink
      * @param resultLimit
      * @param w
+     * @param maxStalenessMicros how long after its last refresh the searcher may be used for a
+     *        query across many links, even if the index was changed
      * @return an {@link IndexSearcher} that is fresh enough to execute the specified query
      * @throws IOException
      */
-    private IndexSearcher createOrRefreshSearcher(String selfLink, Set<String> kindScope,
+    private IndexSearcher acquireSearcher(String selfLink, Set<String> kindScope,
             int resultLimit, IndexWriter w,
-            boolean doNotRefresh)
+            boolean doNotRefresh, long maxStalenessMicros)
             throws IOException {
 
-        IndexSearcher s;
-        boolean needNewSearcher = false;
-        long threadId = Thread.currentThread().getId();
-        long now = Utils.getNowMicrosUtc();
-        synchronized (this.searchSync) {
-            s = this.searchers.get(threadId);
-            long searcherUpdateTime = getSearcherUpdateTime(s, 0);
-            if (s == null) {
-                needNewSearcher = true;
-            } else {
-                needNewSearcher = documentNeedsNewSearcher(selfLink, kindScope, resultLimit,
-                        searcherUpdateTime, doNotRefresh);
+        IndexSearcher s = acquireSearcherIfFresh(selfLink, kindScope, resultLimit, doNotRefresh,
+                maxStalenessMicros);
+        if (s != null) {
+            adjustTimeSeriesStat(STAT_NAME_SEARCHER_REUSE_BY_DOCUMENT_KIND_COUNT, AGGREGATION_TYPE_SUM, 1);
+            return s;
+        }
+
+        synchronized (this.searcherRefreshSync) {
+            // a concurrent query may have refreshed the searcher while this thread waited
+            s = acquireSearcherIfFresh(selfLink, kindScope, resultLimit, doNotRefresh,
+                    maxStalenessMicros);
+            if (s != null) {
+                return s;
             }
+            refreshSearcher(w);
         }
 
-        if (s != null && !needNewSearcher) {
-            adjustTimeSeriesStat(STAT_NAME_SEARCHER_REUSE_BY_DOCUMENT_KIND_COUNT, AGGREGATION_TYPE_SUM, 1);
+        synchronized (this.searchSync) {
+            s = this.searcher;
+            s.getIndexReader().incRef();
+            return s;
+        }
+    }
+
+    private IndexSearcher acquireSearcherIfFresh(String selfLink, Set<String> kindScope,
+            int resultLimit, boolean doNotRefresh, long maxStalenessMicros) {
+        synchronized (this.searchSync) {
+            IndexSearcher s = this.searcher;
+            if (s == null || documentNeedsNewSearcher(selfLink, kindScope, resultLimit,
+                    getSearcherUpdateTime(s, 0), doNotRefresh, maxStalenessMicros)) {
+                return null;
+            }
+            s.getIndexReader().incRef();
             return s;
         }
+    }
+
+    private void releaseSearcher(IndexSearcher s) throws IOException {
+        s.getIndexReader().decRef();
+    }
+
+    /**
+     * Replaces the shared searcher with one that reflects all updates to the index so far. The
+     * caller must hold the searcher refresh lock
+     */
+    private void refreshSearcher(IndexWriter w) throws IOException {
+        long now = Utils.getNowMicrosUtc();
+        long startNanos = System.nanoTime();
+        IndexSearcher s;
+        synchronized (this.searchSync) {
+            s = this.searcher;
+        }
 
+        IndexSearcher newSearcher;
         if (s != null) {
             IndexReader oldReader = s.getIndexReader();
-            IndexReader newReader = DirectoryReader.openIfChanged((DirectoryReader) oldReader, w);
+            IndexReader newReader = openReaderIfChanged(oldReader, w);
             if (newReader == null || newReader == oldReader) {
-                return s;
+                // nothing changed, so the searcher reflects all updates made before this call
+                this.searcherUpdateTimesMicros.put(s.hashCode(), now);
+                return;
             }
-
-            oldReader.close();
-            this.searcherUpdateTimesMicros.remove(s.hashCode());
-            s = new IndexSearcher(newReader);
+            newSearcher = new IndexSearcher(newReader);
         } else {
-            s = new IndexSearcher(DirectoryReader.open(w, true, true));
+            newSearcher = new IndexSearcher(openReader(w, null));
+        }
+
+        int searcherHash = newSearcher.hashCode();
+        newSearcher.getIndexReader().addReaderClosedListener(
+                (r) -> this.searcherUpdateTimesMicros.remove(searcherHash));
+        synchronized (this.searchSync) {
+            this.searcherUpdateTimesMicros.put(searcherHash, now);
+            this.searcher = newSearcher;
         }
 
         adjustTimeSeriesStat(STAT_NAME_SEARCHER_UPDATE_COUNT, AGGREGATION_TYPE_SUM, 1);
+        setTimeSeriesHistogramStat(STAT_NAME_SEARCHER_REFRESH_DURATION_MICROS,
+                AGGREGATION_TYPE_AVG_MAX,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        if (s != null) {
+            setTimeSeriesHistogramStat(STAT_NAME_SEARCHER_REFRESH_LAG_MICROS,
+                    AGGREGATION_TYPE_AVG_MAX, now - getSearcherUpdateTime(s, now));
+            // drop the reference held for the shared searcher. The reader closes once all
+            // queries still using it release it
+            releaseSearcher(s);
+        }
+    }
+
+    private void closeSearcher() {
+        IndexSearcher s;
         synchronized (this.searchSync) {
-            this.searchers.put(threadId, s);
-            this.searcherUpdateTimesMicros.put(s.hashCode(), now);
-            return s;
+            s = this.searcher;
+            this.searcher = null;
+        }
+        if (s == null) {
+            return;
+        }
+        try {
+            releaseSearcher(s);
+        } catch (Exception e) {
+            logWarning("Failure closing searcher: %s", e.toString());
+        }
+    }
+
+    private void scheduleSearcherRefresh() {
+        long interval = searcherMaxStalenessMicros;
+        if (interval <= 0) {
+            return;
+        }
+        getHost().schedule(() -> {
+            if (getProcessingStage() == ProcessingStage.STOPPED) {
+                return;
+            }
+            try {
+                this.privateQueryExecutor.execute(this::handleSearcherRefresh);
+            } catch (RejectedExecutionException e) {
+                // index service is stopping
+            }
+        }, interval, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Background refresh of the shared searcher, so queries within the max staleness interval
+     * do not need to open a new reader
+     */
+    private void handleSearcherRefresh() {
+        try {
+            this.writerSync.acquire();
+            try {
+                IndexWriter w = this.writer;
+                if (w == null) {
+                    return;
+                }
+                synchronized (this.searcherRefreshSync) {
+                    IndexSearcher s;
+                    synchronized (this.searchSync) {
+                        s = this.searcher;
+                    }
+                    if (s == null || getSearcherUpdateTime(s, 0) < this.writerUpdateTimeMicros.get()) {
+                        refreshSearcher(w);
+                    }
+                }
+            } finally {
+                this.writerSync.release();
+            }
+        } catch (Exception e) {
+            if (!getHost().isStopping()) {
+                logWarning("Failure refreshing searcher: %s", e.toString());
+            }
+        } finally {
+            scheduleSearcherRefresh();
         }
     }
 
     private boolean documentNeedsNewSearcher(String selfLink, Set<String> kindScope,
-            int resultLimit, long searcherUpdateTime, boolean doNotRefresh) {
+            int resultLimit, long searcherUpdateTime, boolean doNotRefresh,
+            long maxStalenessMicros) {
         if (selfLink != null && resultLimit == 1) {
-            DocumentUpdateInfo du = this.updatesPerLink.get(selfLink);
+            LuceneVersionCache cache = this.versionCache;
+            long cachedUpdateTime = cache.getUpdateTimeMicros(selfLink);
 
             // ODL services may be created and removed due to memory pressure while searcher was not updated.
             // Then, retrieval of those services will fail because searcher doesn't know the creation yet.
             // To incorporate such service removal, also check the serviceRemovalDetectedTimeMicros.
-            if (du == null && (searcherUpdateTime < this.serviceRemovalDetectedTimeMicros)) {
+            // Links evicted from the version cache might have been updated as late as the most
+            // recent eviction, so a searcher older than that is not trusted either.
+            if (cachedUpdateTime < 0 && (searcherUpdateTime < this.serviceRemovalDetectedTimeMicros
+                    || searcherUpdateTime <= cache.getEvictedUpdateTimeMicros())) {
                 return true;
             }
 
-            if (du != null && du.updateTimeMicros >= searcherUpdateTime) {
+            if (cachedUpdateTime >= searcherUpdateTime) {
                 return true;
             } else {
                 String parent = UriUtils.getParentPath(selfLink);
@@ -3073,7 +4373,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
             long indexUpdateTime;
             if (kindScope == null) {
-                indexUpdateTime = this.writerUpdateTimeMicros;
+                indexUpdateTime = this.writerUpdateTimeMicros.get();
             } else {
                 // Retrieve the most recent updatetime for given kinds.
                 // If not exists(no update happened for the kinds), return Long.MIN to reuse existing searcher
@@ -3096,6 +4396,12 @@ public class LuceneDocumentIndexService extends StatelessService {
                     return false;
                 }
             }
+
+            // the background refresher keeps the searcher within the max staleness interval
+            if (needNewSearcher && maxStalenessMicros > 0
+                    && searcherUpdateTime + maxStalenessMicros >= Utils.getNowMicrosUtc()) {
+                return false;
+            }
             return needNewSearcher;
         }
         return false;
@@ -3139,7 +4445,8 @@ public class LuceneDocumentIndexService extends StatelessService {
             }
 
             long startNanos = System.nanoTime();
-            IndexSearcher s = createOrRefreshSearcher(null, null, Integer.MAX_VALUE, w, false);
+            // maintenance always uses a searcher that reflects all updates made so far
+            IndexSearcher s = acquireSearcher(null, null, Integer.MAX_VALUE, w, false, 0);
             long endNanos = System.nanoTime();
             setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_SEARCHER_REFRESH_DURATION_MICROS,
                     AGGREGATION_TYPE_AVG_MAX,
@@ -3147,28 +4454,32 @@ public class LuceneDocumentIndexService extends StatelessService {
 
             long deadline = Utils.getSystemNowMicrosUtc() + getMaintenanceIntervalMicros();
 
-            startNanos = endNanos;
-            applyDocumentExpirationPolicy(s, deadline);
-            endNanos = System.nanoTime();
-            setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_DOCUMENT_EXPIRATION_DURATION_MICROS,
-                    AGGREGATION_TYPE_AVG_MAX,
-                    TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
-
-            startNanos = endNanos;
-            applyDocumentVersionRetentionPolicy(deadline);
-            endNanos = System.nanoTime();
-            setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_VERSION_RETENTION_DURATION_MICROS,
-                    AGGREGATION_TYPE_AVG_MAX,
-                    TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
-
-            startNanos = endNanos;
-            synchronized (this.metadataUpdateSync) {
-                applyMetadataIndexingUpdates(s, searcherCreationTime, deadline);
+            try {
+                startNanos = endNanos;
+                applyDocumentExpirationPolicy(s, deadline);
+                endNanos = System.nanoTime();
+                setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_DOCUMENT_EXPIRATION_DURATION_MICROS,
+                        AGGREGATION_TYPE_AVG_MAX,
+                        TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+
+                startNanos = endNanos;
+                applyDocumentVersionRetentionPolicy(deadline);
+                endNanos = System.nanoTime();
+                setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_VERSION_RETENTION_DURATION_MICROS,
+                        AGGREGATION_TYPE_AVG_MAX,
+                        TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+
+                startNanos = endNanos;
+                synchronized (this.metadataUpdateSync) {
+                    applyMetadataIndexingUpdates(s, searcherCreationTime, deadline);
+                }
+                endNanos = System.nanoTime();
+                setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_METADATA_INDEXING_DURATION_MICROS,
+                        AGGREGATION_TYPE_AVG_MAX,
+                        TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+            } finally {
+                releaseSearcher(s);
             }
-            endNanos = System.nanoTime();
-            setTimeSeriesHistogramStat(STAT_NAME_MAINTENANCE_METADATA_INDEXING_DURATION_MICROS,
-                    AGGREGATION_TYPE_AVG_MAX,
-                    TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
 
             startNanos = endNanos;
             applyMemoryLimit();
@@ -3178,7 +4489,14 @@ public class LuceneDocumentIndexService extends StatelessService {
                     TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
 
             startNanos = endNanos;
-            long sequenceNumber = w.commit();
+            // updates are appended to the log after they are added to the writer, so every
+            // record in the segments preceding the new one is part of this commit
+            LuceneWriteAheadLog wal = this.writeAheadLog;
+            long walSegmentId = wal != null ? wal.roll() : 0;
+            long sequenceNumber = commit(this.shardWriters);
+            if (wal != null) {
+                wal.truncate(walSegmentId);
+            }
             endNanos = System.nanoTime();
             adjustTimeSeriesStat(STAT_NAME_COMMIT_COUNT, AGGREGATION_TYPE_SUM, 1);
             setTimeSeriesHistogramStat(STAT_NAME_COMMIT_DURATION_MICROS,
@@ -3201,7 +4519,8 @@ public class LuceneDocumentIndexService extends StatelessService {
                     TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
 
             if (this.hasOption(ServiceOption.INSTRUMENTATION)) {
-                setStat(LuceneDocumentIndexService.STAT_NAME_INDEXED_DOCUMENT_COUNT, w.numDocs());
+                setStat(LuceneDocumentIndexService.STAT_NAME_INDEXED_DOCUMENT_COUNT,
+                        getDocumentCount());
                 logQueueDepthStat(this.updateQueue, STAT_NAME_FORMAT_UPDATE_QUEUE_DEPTH);
                 logQueueDepthStat(this.queryQueue, STAT_NAME_FORMAT_QUERY_QUEUE_DEPTH);
             }
@@ -3255,7 +4574,9 @@ public class LuceneDocumentIndexService extends StatelessService {
             if (wr == null) {
                 break;
             }
-            updateCount += applyMetadataIndexingUpdate(searcher, wr, it.next());
+            MetadataUpdateInfo info = it.next();
+            wr = getShardWriter(this.shardWriters, info.kind);
+            updateCount += applyMetadataIndexingUpdate(searcher, wr, info);
         }
 
         while (it.hasNext() && Utils.getSystemNowMicrosUtc() < deadline) {
@@ -3263,7 +4584,9 @@ public class LuceneDocumentIndexService extends StatelessService {
             if (wr == null) {
                 break;
             }
-            updateCount += applyMetadataIndexingUpdate(searcher, wr, it.next());
+            MetadataUpdateInfo info = it.next();
+            wr = getShardWriter(this.shardWriters, info.kind);
+            updateCount += applyMetadataIndexingUpdate(searcher, wr, info);
         }
 
         if (it.hasNext()) {
@@ -3421,22 +4744,16 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        File directory = new File(new File(getHost().getStorageSandbox()), this.indexDirectory);
-        Stream<Path> stream = null;
+        File directory = getShardDirectory(0);
         long count;
         try {
-            stream = Files.list(directory.toPath());
-            count = stream.count();
+            count = countIndexFiles();
             if (!force && count < indexFileCountThresholdForWriterRefresh) {
                 return;
             }
         } catch (IOException e1) {
             logSevere(e1);
             return;
-        } finally {
-            if (stream != null) {
-                stream.close();
-            }
         }
 
         final int acquireReleaseCount = QUERY_THREAD_COUNT + UPDATE_THREAD_COUNT;
@@ -3445,20 +4762,14 @@ public class LuceneDocumentIndexService extends StatelessService {
             // the semaphore is already acquired by the current thread
             this.writerSync.release();
             this.writerSync.acquire(acquireReleaseCount);
-            IndexWriter w = this.writer;
-            if (w == null) {
+            if (this.writer == null) {
                 return;
             }
 
             logInfo("(%s) closing all searchers, document count: %d, file count: %d",
-                    this.writerSync, w.maxDoc(), count);
+                    this.writerSync, getMaxDocumentCount(), count);
 
-            for (IndexSearcher s : this.searchers.values()) {
-                s.getIndexReader().close();
-                this.searcherUpdateTimesMicros.remove(s.hashCode());
-            }
-
-            this.searchers.clear();
+            closeSearcher();
 
             if (!force) {
                 return;
@@ -3479,30 +4790,45 @@ public class LuceneDocumentIndexService extends StatelessService {
             this.paginatedSearchersByExpirationTime.clear();
             this.searcherUpdateTimesMicros.clear();
 
-            try {
-                w.close();
-            } catch (Exception ignored) {
+            for (IndexWriter shardWriter : this.shardWriters) {
+                try {
+                    shardWriter.close();
+                } catch (Exception ignored) {
+                }
             }
 
-            w = createWriter(directory, false);
-            stream = Files.list(directory.toPath());
-            count = stream.count();
+            createWriter(directory, false);
+            count = countIndexFiles();
             logInfo("(%s) reopened writer, document count: %d, file count: %d",
-                    this.writerSync, w.maxDoc(), count);
+                    this.writerSync, getMaxDocumentCount(), count);
         } catch (Exception e) {
             // If we fail to re-open we should stop the host, since we can not recover.
             logSevere(e);
             logWarning("Stopping local host since index is not accessible");
-            close(this.writer);
-            this.writer = null;
+            closeWriters();
             sendRequest(Operation.createDelete(this, ServiceUriPaths.CORE_MANAGEMENT));
         } finally {
             // release all but one, so we stay owning one reference to the semaphore
             this.writerSync.release(acquireReleaseCount - 1);
-            if (stream != null) {
-                stream.close();
+        }
+    }
+
+    private long countIndexFiles() throws IOException {
+        long count = 0;
+        for (int i = 0; i < this.shardCount; i++) {
+            try (Stream<Path> stream = Files.list(getShardDirectory(i).toPath())) {
+                count += stream.count();
             }
         }
+        return count;
+    }
+
+    private long getMaxDocumentCount() {
+        long count = 0;
+        for (IndexWriter shardWriter : this.shardWriters) {
+            count += shardWriter.maxDoc();
+        }
+        return count;
     }
 
     private void applyDocumentVersionRetentionPolicy(long deadline) throws Exception {
@@ -3511,14 +4837,13 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         do {
             int count = 0;
-            synchronized (this.liveVersionsPerLink) {
-                it = this.liveVersionsPerLink.entrySet().iterator();
-                while (it.hasNext() && count < versionRetentionServiceThreshold) {
-                    Entry<String, Long> e = it.next();
-                    links.put(e.getKey(), e.getValue());
-                    it.remove();
-                    count++;
-                }
+            it = this.liveVersionsPerLink.entrySet().iterator();
+            while (it.hasNext() && count < versionRetentionServiceThreshold) {
+                Entry<String, Long> e = it.next();
+                // a concurrent update with a higher version keeps the entry for the next pass
+                this.liveVersionsPerLink.remove(e.getKey(), e.getValue());
+                links.put(e.getKey(), e.getValue());
+                count++;
             }
 
             if (links.isEmpty()) {
@@ -3589,44 +4914,40 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
     }
 
+    /**
+     * Resizes the version cache if its memory budget changed, and updates its stats. The cache
+     * is bounded, so entries are evicted on insertion, not here
+     */
     void applyMemoryLimitToDocumentUpdateInfo() {
-        long memThresholdBytes = this.updateMapMemoryLimit;
-        final int bytesPerLinkEstimate = 64;
-        int count = 0;
-
-        if (hasOption(ServiceOption.INSTRUMENTATION)) {
-            setStat(STAT_NAME_VERSION_CACHE_ENTRY_COUNT, this.updatesPerLink.size());
-        }
-        // Note: this code will be updated in the future. It currently calls a host
-        // method, inside a lock, which is always a bad idea. The getServiceStage()
-        // method is lock free, but its still brittle.
-        synchronized (this.searchSync) {
-            if (this.updatesPerLink.isEmpty()) {
-                return;
-            }
-            if (memThresholdBytes > this.updatesPerLink.size() * bytesPerLinkEstimate) {
-                return;
-            }
-            Iterator<Entry<String, DocumentUpdateInfo>> li = this.updatesPerLink.entrySet()
-                    .iterator();
-            while (li.hasNext()) {
-                Entry<String, DocumentUpdateInfo> e = li.next();
-                // remove entries for services no longer attached / started on host
-                if (getHost().getServiceStage(e.getKey()) == null) {
-                    count++;
-                    li.remove();
-                }
+        LuceneVersionCache cache = this.versionCache;
+        if (cache.getMemoryLimitBytes() != this.updateMapMemoryLimit) {
+            synchronized (this.searchSync) {
+                resetVersionCache();
+                cache = this.versionCache;
             }
-            // update index time to force searcher update, per thread
-            this.writerUpdateTimeMicros = Utils.getNowMicrosUtc();
+            logInfo("Resized version cache to %d entries", cache.getCapacity());
         }
 
-        if (count == 0) {
-            return;
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            setStat(STAT_NAME_VERSION_CACHE_ENTRY_COUNT, cache.size());
+            setStat(STAT_NAME_VERSION_CACHE_EVICTION_COUNT, cache.getEvictionCount());
         }
-        this.serviceRemovalDetectedTimeMicros = Utils.getNowMicrosUtc();
+    }
 
-        logInfo("Cleared %d document update entries", count);
+    /**
+     * Drops all version cache entries, allocating a new cache if the memory budget changed.
+     * The caller must hold the search lock
+     */
+    private void resetVersionCache() {
+        if (this.versionCache.getMemoryLimitBytes() == this.updateMapMemoryLimit) {
+            this.versionCache.clear();
+        } else {
+            this.versionCache = new LuceneVersionCache(this.updateMapMemoryLimit);
+        }
+        // searchers older than this point can not rely on the cache for the dropped links
+        long now = Utils.getNowMicrosUtc();
+        this.writerUpdateTimeMicros.set(now);
+        this.serviceRemovalDetectedTimeMicros = now;
     }
 
     private void applyDocumentExpirationPolicy(IndexSearcher s, long deadline) throws Exception {
@@ -3694,7 +5015,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private void applyActiveQueries(Operation op, ServiceDocument latestState,
             ServiceDocumentDescription desc) {
-        if (this.activeQueries.isEmpty()) {
+        if (this.continuousQueryIndex.isEmpty()) {
             return;
         }
 
@@ -3706,59 +5027,125 @@ public class LuceneDocumentIndexService extends StatelessService {
             latestState.documentUpdateAction = Action.DELETE.name();
         }
 
+        if (desc == null) {
+            desc = getHost().buildDocumentDescription(latestState.documentSelfLink);
+            if (desc == null) {
+                logWarning("Description not found for %s", latestState.documentSelfLink);
+                return;
+            }
+        }
+
         // set current context from the operation so all active query task notifications carry the
         // same context as the operation that updated the index
         OperationContext.setFrom(op);
 
-        // TODO Optimize. We currently traverse each query independently. We can collapse the queries
-        // and evaluate clauses keeping track which clauses applied, then skip any queries accordingly.
-
-        for (Entry<String, QueryTask> taskEntry : this.activeQueries.entrySet()) {
+        // only evaluate the queries with a conjunction the document could satisfy
+        for (QueryTask activeTask : this.continuousQueryIndex.getCandidates(latestState, desc)) {
             if (getHost().isStopping()) {
                 continue;
             }
 
-            QueryTask activeTask = taskEntry.getValue();
             QueryFilter filter = activeTask.querySpec.context.filter;
-            if (desc == null) {
-                if (!QueryFilterUtils.evaluate(filter, latestState, getHost())) {
-                    continue;
-                }
-            } else {
-                if (!filter.evaluate(latestState, desc)) {
-                    continue;
-                }
+            if (!filter.evaluate(latestState, desc)) {
+                continue;
             }
 
-            QueryTask patchBody = new QueryTask();
-            patchBody.taskInfo.stage = TaskStage.STARTED;
-            patchBody.querySpec = null;
-            patchBody.results = new ServiceDocumentQueryResult();
-            patchBody.results.documentLinks.add(latestState.documentSelfLink);
-            if (activeTask.querySpec.options.contains(QueryOption.EXPAND_CONTENT) ||
-                    activeTask.querySpec.options.contains(QueryOption.COUNT)) {
-                patchBody.results.documents = new HashMap<>();
-                patchBody.results.documents.put(latestState.documentSelfLink, latestState);
+            if (continuousQueryNotificationBatchingEnabled) {
+                addContinuousQueryNotification(activeTask, latestState);
+                continue;
             }
 
-            // Send PATCH to continuous query task with document that passed the query filter.
-            // Any subscribers will get notified with the body containing just this document
-            Operation patchOperation = Operation.createPatch(this, activeTask.documentSelfLink)
-                    .setBodyNoCloning(
-                            patchBody);
-            // Set the authorization context to the user who created the continous query.
-            OperationContext currentContext = OperationContext.getOperationContext();
-            if (activeTask.querySpec.context.subjectLink != null) {
-                setAuthorizationContext(patchOperation,
-                        getAuthorizationContextForSubject(
-                                activeTask.querySpec.context.subjectLink));
-            }
-            sendRequest(patchOperation);
-            OperationContext.restoreOperationContext(currentContext);
+            QueryTask patchBody = createContinuousQueryPatchBody(activeTask);
+            addContinuousQueryResult(activeTask, patchBody, latestState);
+            sendContinuousQueryNotification(activeTask, patchBody);
+        }
+    }
+
+    private static QueryTask createContinuousQueryPatchBody(QueryTask activeTask) {
+        QueryTask patchBody = new QueryTask();
+        patchBody.taskInfo.stage = TaskStage.STARTED;
+        patchBody.querySpec = null;
+        patchBody.results = new ServiceDocumentQueryResult();
+        if (activeTask.querySpec.options.contains(QueryOption.EXPAND_CONTENT) ||
+                activeTask.querySpec.options.contains(QueryOption.COUNT)) {
+            patchBody.results.documents = new HashMap<>();
+        }
+        return patchBody;
+    }
+
+    private static void addContinuousQueryResult(QueryTask activeTask, QueryTask patchBody,
+            ServiceDocument latestState) {
+        patchBody.results.documentLinks.add(latestState.documentSelfLink);
+        if (patchBody.results.documents != null) {
+            patchBody.results.documents.put(latestState.documentSelfLink, latestState);
+        }
+    }
+
+    /**
+     * Adds the document to the pending notification for the query task. If there is no pending
+     * notification, a new one is created and its delivery is scheduled. If the pending one
+     * already has the document, it is sent right away, and a new one is created
+     */
+    private void addContinuousQueryNotification(QueryTask activeTask,
+            ServiceDocument latestState) {
+        String taskLink = activeTask.documentSelfLink;
+        ContinuousQueryNotification[] flushed = new ContinuousQueryNotification[1];
+        boolean[] isNew = new boolean[1];
+        ContinuousQueryNotification notification = this.pendingContinuousQueryNotifications
+                .compute(taskLink, (k, pending) -> {
+                    if (pending != null && pending.patchBody.results.documentLinks
+                            .contains(latestState.documentSelfLink)) {
+                        flushed[0] = pending;
+                        pending = null;
+                    }
+                    if (pending == null) {
+                        pending = new ContinuousQueryNotification(activeTask,
+                                createContinuousQueryPatchBody(activeTask),
+                                OperationContext.getOperationContext());
+                        isNew[0] = true;
+                    }
+                    addContinuousQueryResult(activeTask, pending.patchBody, latestState);
+                    return pending;
+                });
+
+        if (flushed[0] != null) {
+            sendContinuousQueryNotification(flushed[0].activeTask, flushed[0].patchBody);
         }
+
+        if (isNew[0]) {
+            getHost().run(() -> flushContinuousQueryNotification(taskLink, notification));
+        }
+    }
+
+    private void flushContinuousQueryNotification(String taskLink,
+            ContinuousQueryNotification notification) {
+        if (!this.pendingContinuousQueryNotifications.remove(taskLink, notification)) {
+            // already sent, since it had a document updated again
+            return;
+        }
+        OperationContext currentContext = OperationContext.getOperationContext();
+        OperationContext.setFrom(notification.operationContext);
+        sendContinuousQueryNotification(notification.activeTask, notification.patchBody);
+        OperationContext.restoreOperationContext(currentContext);
+    }
+
+    private void sendContinuousQueryNotification(QueryTask activeTask, QueryTask patchBody) {
+        // Send PATCH to continuous query task with documents that passed the query filter.
+        // Any subscribers will get notified with the body containing just these documents
+        Operation patchOperation = Operation.createPatch(this, activeTask.documentSelfLink)
+                .setBodyNoCloning(patchBody);
+        // Set the authorization context to the user who created the continous query.
+        OperationContext currentContext = OperationContext.getOperationContext();
+        if (activeTask.querySpec.context.subjectLink != null) {
+            setAuthorizationContext(patchOperation,
+                    getAuthorizationContextForSubject(
+                            activeTask.querySpec.context.subjectLink));
+        }
+        sendRequest(patchOperation);
+        OperationContext.restoreOperationContext(currentContext);
     }
 
     void setWriterUpdateTimeMicros(long writerUpdateTimeMicros) {
-        this.writerUpdateTimeMicros = writerUpdateTimeMicros;
+        this.writerUpdateTimeMicros.set(writerUpdateTimeMicros);
     }
 }
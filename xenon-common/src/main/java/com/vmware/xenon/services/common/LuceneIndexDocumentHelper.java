@@ -13,6 +13,7 @@
 
 package com.vmware.xenon.services.common;
 
+import java.io.IOException;
 import java.net.URI;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -51,6 +52,7 @@ import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.TaskState;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.common.serialization.KryoSerializers;
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.StoredStateCompression;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 
 /**
@@ -83,10 +85,39 @@ class LuceneIndexDocumentHelper {
 
     private Document doc = new Document();
 
+    private final LuceneStoredStateCodec storedStateCodec;
+
+    /**
+     * True if the documents of several helpers on the same thread are added to the index
+     * together, in which case the stored state can not reference the shared per thread
+     * serialization buffer
+     */
+    private final boolean isBatchHelper;
+
+    private int serializedStateSize;
+
+    private int storedStateSize;
+
     public Document getDoc() {
         return this.doc;
     }
 
+    /**
+     * Size of the serialized state added by the last
+     * {@link #addBinaryStateFieldToDocument(ServiceDocument, byte[], ServiceDocumentDescription)}
+     */
+    public int getSerializedStateSize() {
+        return this.serializedStateSize;
+    }
+
+    /**
+     * Size of the stored state, after compression, added by the last
+     * {@link #addBinaryStateFieldToDocument(ServiceDocument, byte[], ServiceDocumentDescription)}
+     */
+    public int getStoredStateSize() {
+        return this.storedStateSize;
+    }
+
     abstract static class LongFieldContext {
         public StoredField storedField;
         public LongPoint longPoint;
@@ -204,6 +235,12 @@ class LuceneIndexDocumentHelper {
     private Map<String, NumericDocValuesField> numericFields = new HashMap<>();
 
     public LuceneIndexDocumentHelper() {
+        this(StoredStateCompression.NONE, false);
+    }
+
+    public LuceneIndexDocumentHelper(StoredStateCompression compression, boolean isBatchHelper) {
+        this.storedStateCodec = new LuceneStoredStateCodec(compression);
+        this.isBatchHelper = isBatchHelper;
         this.selfLinkField.initialize();
         this.kindField.initialize();
         this.authPrincipalLinkField.initialize();
@@ -354,18 +391,40 @@ class LuceneIndexDocumentHelper {
             ServiceDocumentDescription desc) {
         try {
             int count = 0;
+            boolean isSharedBuffer = false;
             if (serializedDocument == null) {
                 Output o = KryoSerializers.serializeDocumentForIndexing(s,
                         desc.serializedStateSizeLimit);
                 count = o.position();
                 serializedDocument = o.getBuffer();
+                isSharedBuffer = true;
             } else {
                 count = serializedDocument.length;
             }
-            Field bodyField = new StoredField(
-                    LuceneDocumentIndexService.LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE,
-                    serializedDocument, 0, count);
+            this.serializedStateSize = count;
+            this.storedStateSize = count;
+
+            Field bodyField;
+            BytesRef encoded = this.storedStateCodec.encode(serializedDocument, count);
+            if (encoded != null) {
+                this.storedStateSize = encoded.length;
+                bodyField = new StoredField(
+                        LuceneDocumentIndexService.LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE,
+                        encoded.bytes, encoded.offset, encoded.length);
+            } else {
+                if (isSharedBuffer && this.isBatchHelper) {
+                    // the next document of the batch is serialized in the same buffer, before
+                    // the batch is added to the index
+                    serializedDocument = Arrays.copyOf(serializedDocument, count);
+                }
+                bodyField = new StoredField(
+                        LuceneDocumentIndexService.LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE,
+                        serializedDocument, 0, count);
+            }
             this.doc.add(bodyField);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failure compressing state of service "
+                    + s.documentSelfLink, e);
         } catch (KryoException ke) {
             throw new IllegalArgumentException(
                     "Failure serializing state of service " + s.documentSelfLink
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.SimpleCollector;
+
+import com.vmware.xenon.common.ServiceDocument;
+
+/**
+ * Collects the highest version, and its update time, of each self link matched by a query,
+ * reading only the self link, version and update time doc values. Used to resolve the latest
+ * version of all the documents in a result page with a single search
+ */
+final class LuceneLatestVersionCollector extends SimpleCollector {
+
+    static final class VersionInfo {
+        long version;
+        long updateTimeMicros;
+    }
+
+    private static final String SELF_LINK_FIELD_NAME = LuceneIndexDocumentHelper
+            .createSortFieldPropertyName(ServiceDocument.FIELD_NAME_SELF_LINK);
+
+    private final Map<String, VersionInfo> versionPerLink = new HashMap<>();
+
+    private SortedDocValues selfLinks;
+    private NumericDocValues versions;
+    private NumericDocValues updateTimes;
+    private boolean isMissingDocValues;
+
+    /**
+     * Returns the self link of a document, or null if the index segment has no self link
+     * doc values
+     */
+    static String getSelfLink(LeafReader reader, int doc) throws IOException {
+        SortedDocValues selfLinks = reader.getSortedDocValues(SELF_LINK_FIELD_NAME);
+        if (selfLinks == null) {
+            return null;
+        }
+        int ord = selfLinks.getOrd(doc);
+        return ord < 0 ? null : selfLinks.lookupOrd(ord).utf8ToString();
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        LeafReader reader = context.reader();
+        this.selfLinks = reader.getSortedDocValues(SELF_LINK_FIELD_NAME);
+        this.versions = reader.getNumericDocValues(ServiceDocument.FIELD_NAME_VERSION);
+        this.updateTimes = reader.getNumericDocValues(
+                ServiceDocument.FIELD_NAME_UPDATE_TIME_MICROS);
+        if (this.selfLinks == null || this.versions == null || this.updateTimes == null) {
+            this.isMissingDocValues = true;
+        }
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (this.selfLinks == null || this.versions == null || this.updateTimes == null) {
+            return;
+        }
+        int ord = this.selfLinks.getOrd(doc);
+        if (ord < 0) {
+            this.isMissingDocValues = true;
+            return;
+        }
+        String link = this.selfLinks.lookupOrd(ord).utf8ToString();
+        long version = this.versions.get(doc);
+        VersionInfo info = this.versionPerLink.get(link);
+        if (info == null) {
+            info = new VersionInfo();
+            info.version = -1;
+            this.versionPerLink.put(link, info);
+        }
+        if (version > info.version) {
+            info.version = version;
+            info.updateTimeMicros = this.updateTimes.get(doc);
+        }
+    }
+
+    /**
+     * Whether some matching documents could not be read, in index segments written without the
+     * doc values, in which case the results are incomplete
+     */
+    boolean isMissingDocValues() {
+        return this.isMissingDocValues;
+    }
+
+    VersionInfo getVersionInfo(String link) {
+        return this.versionPerLink.get(link);
+    }
+
+    Map<String, VersionInfo> getVersionInfos() {
+        return this.versionPerLink;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+
+/**
+ * Internal only, composite reader over the near real time readers of a sharded
+ * {@code LuceneDocumentIndexService}. Searches, sorts and pagination across shards are handled
+ * by Lucene, as if the shards were a single index.
+ *
+ * Each shard reader is reference counted, and refreshed independently: a new composite reader
+ * shares the readers of all shards that did not change since the previous one was opened.
+ */
+final class LuceneShardedIndexReader extends MultiReader {
+
+    private final DirectoryReader[] shardReaders;
+
+    private final int[] shards;
+
+    /**
+     * Opens a reader over the given shards, or all shards if {@code shards} is null
+     */
+    static LuceneShardedIndexReader open(IndexWriter[] writers, int[] shards) throws IOException {
+        if (shards == null) {
+            shards = new int[writers.length];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = i;
+            }
+        }
+
+        DirectoryReader[] readers = new DirectoryReader[shards.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                readers[i] = DirectoryReader.open(writers[shards[i]], true, true);
+            }
+            return new LuceneShardedIndexReader(readers, shards);
+        } finally {
+            // the composite reader holds its own reference to each shard reader
+            decRef(readers);
+        }
+    }
+
+    private LuceneShardedIndexReader(DirectoryReader[] shardReaders, int[] shards)
+            throws IOException {
+        super(shardReaders, false);
+        this.shardReaders = shardReaders;
+        this.shards = shards;
+    }
+
+    /**
+     * Returns the shards this reader covers
+     */
+    int[] getShards() {
+        return this.shards.clone();
+    }
+
+    /**
+     * Returns a new reader if any shard changed since this reader was opened, null otherwise
+     */
+    LuceneShardedIndexReader openIfChanged(IndexWriter[] writers) throws IOException {
+        DirectoryReader[] readers = new DirectoryReader[this.shardReaders.length];
+        DirectoryReader[] newReaders = new DirectoryReader[this.shardReaders.length];
+        boolean changed = false;
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                DirectoryReader r = DirectoryReader.openIfChanged(this.shardReaders[i],
+                        writers[this.shards[i]]);
+                if (r == null) {
+                    readers[i] = this.shardReaders[i];
+                    continue;
+                }
+                readers[i] = r;
+                newReaders[i] = r;
+                changed = true;
+            }
+            if (!changed) {
+                return null;
+            }
+            return new LuceneShardedIndexReader(readers, this.shards);
+        } finally {
+            decRef(newReaders);
+        }
+    }
+
+    /**
+     * Returns true if this reader covers all the given shards. A null array means all shards
+     */
+    boolean containsShards(int[] shards, int shardCount) {
+        if (shards == null) {
+            return this.shards.length == shardCount;
+        }
+        for (int shard : shards) {
+            boolean found = false;
+            for (int s : this.shards) {
+                if (s == shard) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void decRef(DirectoryReader[] readers) throws IOException {
+        for (DirectoryReader r : readers) {
+            if (r != null) {
+                r.decRef();
+            }
+        }
+    }
+}
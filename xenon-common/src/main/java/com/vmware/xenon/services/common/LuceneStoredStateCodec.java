@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.StoredStateCompression;
+
+/**
+ * Compresses the binary serialized document state stored in the index, and reverses it when the
+ * stored field is loaded.
+ *
+ * Compressed state starts with a format marker byte, followed by the compression format, the
+ * uncompressed length and the compressed bytes. The binary serializer never writes the marker as
+ * the first byte of a document, so state stored before compression was enabled, or stored
+ * uncompressed because it was small, is returned unchanged
+ */
+final class LuceneStoredStateCodec {
+
+    static final byte FORMAT_MARKER = 0;
+
+    static final byte FORMAT_LZ4 = 1;
+
+    static final byte FORMAT_DEFLATE = 2;
+
+    /**
+     * Serialized state smaller than this is stored uncompressed
+     */
+    static final int MIN_COMPRESSED_SIZE_BYTES = 256;
+
+    private static final int HEADER_SIZE_BYTES = 2;
+
+    private final StoredStateCompression compression;
+
+    private Compressor compressor;
+
+    private Decompressor lz4Decompressor;
+
+    private Decompressor deflateDecompressor;
+
+    private GrowableByteArrayDataOutput output;
+
+    private final BytesRef decoded = new BytesRef();
+
+    LuceneStoredStateCodec(StoredStateCompression compression) {
+        this.compression = compression;
+    }
+
+    static boolean isEncoded(byte[] state) {
+        return state.length > HEADER_SIZE_BYTES && state[0] == FORMAT_MARKER;
+    }
+
+    /**
+     * Compresses the serialized state. Returns null if the state should be stored as is, because
+     * compression is disabled, the state is small, or it did not compress. Otherwise the encoded
+     * bytes are returned in a buffer owned by this instance, valid until the next call
+     */
+    BytesRef encode(byte[] state, int length) throws IOException {
+        if (this.compression == StoredStateCompression.NONE
+                || length < MIN_COMPRESSED_SIZE_BYTES) {
+            return null;
+        }
+
+        if (this.compressor == null) {
+            this.compressor = this.compression == StoredStateCompression.HIGH
+                    ? CompressionMode.HIGH_COMPRESSION.newCompressor()
+                    : CompressionMode.FAST.newCompressor();
+            this.output = new GrowableByteArrayDataOutput(length);
+        }
+
+        GrowableByteArrayDataOutput out = this.output;
+        out.reset();
+        out.writeByte(FORMAT_MARKER);
+        out.writeByte(this.compression == StoredStateCompression.HIGH ? FORMAT_DEFLATE
+                : FORMAT_LZ4);
+        out.writeVInt(length);
+        this.compressor.compress(state, 0, length, out);
+        if (out.getPosition() >= length) {
+            return null;
+        }
+        return new BytesRef(out.getBytes(), 0, out.getPosition());
+    }
+
+    /**
+     * Returns the serialized state of encoded stored state
+     */
+    byte[] decode(byte[] state) throws IOException {
+        Decompressor decompressor;
+        switch (state[1]) {
+        case FORMAT_LZ4:
+            if (this.lz4Decompressor == null) {
+                this.lz4Decompressor = CompressionMode.FAST.newDecompressor();
+            }
+            decompressor = this.lz4Decompressor;
+            break;
+        case FORMAT_DEFLATE:
+            if (this.deflateDecompressor == null) {
+                this.deflateDecompressor = CompressionMode.HIGH_COMPRESSION.newDecompressor();
+            }
+            decompressor = this.deflateDecompressor;
+            break;
+        default:
+            throw new IOException("Unknown stored state format " + state[1]);
+        }
+
+        ByteArrayDataInput in = new ByteArrayDataInput(state, HEADER_SIZE_BYTES,
+                state.length - HEADER_SIZE_BYTES);
+        int length = in.readVInt();
+        decompressor.decompress(in, length, 0, length, this.decoded);
+        return Arrays.copyOfRange(this.decoded.bytes, this.decoded.offset,
+                this.decoded.offset + this.decoded.length);
+    }
+}
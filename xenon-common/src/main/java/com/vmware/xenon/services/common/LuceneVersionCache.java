@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Internal only, bounded cache of the latest version and update time of each document self
+ * link, used by the {@code LuceneDocumentIndexService} to skip index lookups and searcher
+ * refreshes.
+ *
+ * Entries live in primitive arrays sized once from a memory budget, so the cache does not
+ * allocate per entry and its footprint does not grow with the number of documents. The
+ * arrays are split in buckets of {@link #WAYS} entries, keyed by a 64 bit hash of the self
+ * link. When a bucket is full, an entry is evicted using the clock algorithm: entries read
+ * since the clock hand last passed them get a second chance.
+ *
+ * Access is lock striped by bucket. A link that is not in the cache, because it was never
+ * added or because it was evicted, is a cache miss: callers must fall back to the index. The
+ * highest update time of all evicted entries is tracked, so callers can tell whether a missing
+ * link might have been updated after a given time.
+ */
+final class LuceneVersionCache {
+
+    static final int WAYS = 8;
+
+    /**
+     * Array space used by each entry: hash, check, version, update time and reference bit
+     */
+    static final int BYTES_PER_ENTRY = Long.BYTES * 3 + Integer.BYTES + 1;
+
+    private static final int MAX_BUCKET_COUNT = 1 << 24;
+
+    private static final int MAX_STRIPE_COUNT = 64;
+
+    private final long[] hashes;
+
+    private final int[] checks;
+
+    private final long[] versions;
+
+    private final long[] updateTimesMicros;
+
+    private final boolean[] referenced;
+
+    private final byte[] clockHands;
+
+    private final Object[] stripes;
+
+    private final int[] stripeSizes;
+
+    private final int bucketMask;
+
+    private final int stripeMask;
+
+    private final long memoryLimitBytes;
+
+    private final AtomicLong evictedUpdateTimeMicros = new AtomicLong();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    LuceneVersionCache(long memoryLimitBytes) {
+        long bucketCount = Math.max(1, memoryLimitBytes / BYTES_PER_ENTRY / WAYS);
+        bucketCount = Math.min(MAX_BUCKET_COUNT, Long.highestOneBit(bucketCount));
+        int capacity = (int) bucketCount * WAYS;
+        int stripeCount = (int) Math.min(MAX_STRIPE_COUNT, bucketCount);
+
+        this.memoryLimitBytes = memoryLimitBytes;
+        this.hashes = new long[capacity];
+        this.checks = new int[capacity];
+        this.versions = new long[capacity];
+        this.updateTimesMicros = new long[capacity];
+        this.referenced = new boolean[capacity];
+        this.clockHands = new byte[(int) bucketCount];
+        this.bucketMask = (int) bucketCount - 1;
+        this.stripeMask = stripeCount - 1;
+        this.stripes = new Object[stripeCount];
+        this.stripeSizes = new int[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the cached version of the link, if it was last updated at or before the given
+     * time, -1 otherwise
+     */
+    long getVersion(String link, long updatedBeforeMicros) {
+        long hash = hash(link);
+        int check = link.hashCode();
+        int bucket = bucket(hash);
+        synchronized (this.stripes[bucket & this.stripeMask]) {
+            int i = find(bucket, hash, check);
+            if (i < 0 || this.updateTimesMicros[i] > updatedBeforeMicros) {
+                return -1;
+            }
+            this.referenced[i] = true;
+            return this.versions[i];
+        }
+    }
+
+    /**
+     * Returns the cached update time of the link, -1 if the link is not in the cache
+     */
+    long getUpdateTimeMicros(String link) {
+        long hash = hash(link);
+        int check = link.hashCode();
+        int bucket = bucket(hash);
+        synchronized (this.stripes[bucket & this.stripeMask]) {
+            int i = find(bucket, hash, check);
+            if (i < 0) {
+                return -1;
+            }
+            this.referenced[i] = true;
+            return this.updateTimesMicros[i];
+        }
+    }
+
+    /**
+     * Adds or updates the entry for the link. Stale versions are ignored, and the update time
+     * may only be increased
+     */
+    void update(String link, long version, long updateTimeMicros) {
+        long hash = hash(link);
+        int check = link.hashCode();
+        int bucket = bucket(hash);
+        int stripe = bucket & this.stripeMask;
+        synchronized (this.stripes[stripe]) {
+            int i = find(bucket, hash, check);
+            if (i >= 0) {
+                if (version >= this.versions[i]) {
+                    this.versions[i] = version;
+                    this.updateTimesMicros[i] = Math.max(this.updateTimesMicros[i],
+                            updateTimeMicros);
+                }
+                return;
+            }
+
+            i = findFreeSlot(bucket);
+            if (i < 0) {
+                i = evict(bucket);
+            } else {
+                this.stripeSizes[stripe]++;
+            }
+            this.hashes[i] = hash;
+            this.checks[i] = check;
+            this.versions[i] = version;
+            this.updateTimesMicros[i] = updateTimeMicros;
+            this.referenced[i] = false;
+        }
+    }
+
+    /**
+     * Increases the update time of the link, without changing its version. If the link is not
+     * in the cache, the update time is recorded as if its entry had been evicted
+     */
+    void updateTime(String link, long updateTimeMicros) {
+        long hash = hash(link);
+        int check = link.hashCode();
+        int bucket = bucket(hash);
+        synchronized (this.stripes[bucket & this.stripeMask]) {
+            int i = find(bucket, hash, check);
+            if (i >= 0) {
+                this.updateTimesMicros[i] = Math.max(this.updateTimesMicros[i],
+                        updateTimeMicros);
+                return;
+            }
+        }
+        this.evictedUpdateTimeMicros.accumulateAndGet(updateTimeMicros, Math::max);
+    }
+
+    void remove(String link) {
+        long hash = hash(link);
+        int check = link.hashCode();
+        int bucket = bucket(hash);
+        int stripe = bucket & this.stripeMask;
+        synchronized (this.stripes[stripe]) {
+            int i = find(bucket, hash, check);
+            if (i < 0) {
+                return;
+            }
+            this.hashes[i] = 0;
+            this.stripeSizes[stripe]--;
+        }
+    }
+
+    void clear() {
+        for (int stripe = 0; stripe < this.stripes.length; stripe++) {
+            synchronized (this.stripes[stripe]) {
+                for (int bucket = stripe; bucket <= this.bucketMask; bucket += this.stripes.length) {
+                    Arrays.fill(this.hashes, bucket * WAYS, (bucket + 1) * WAYS, 0);
+                }
+                this.stripeSizes[stripe] = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the highest update time of all entries evicted from the cache. A link that is
+     * not in the cache might have been updated as recently as this time
+     */
+    long getEvictedUpdateTimeMicros() {
+        return this.evictedUpdateTimeMicros.get();
+    }
+
+    long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    long getMemoryLimitBytes() {
+        return this.memoryLimitBytes;
+    }
+
+    int getCapacity() {
+        return this.hashes.length;
+    }
+
+    /**
+     * Returns the number of entries. The count is not synchronized with concurrent updates
+     */
+    int size() {
+        int size = 0;
+        for (int s : this.stripeSizes) {
+            size += s;
+        }
+        return size;
+    }
+
+    private int find(int bucket, long hash, int check) {
+        int start = bucket * WAYS;
+        for (int i = start; i < start + WAYS; i++) {
+            if (this.hashes[i] == hash && this.checks[i] == check) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int findFreeSlot(int bucket) {
+        int start = bucket * WAYS;
+        for (int i = start; i < start + WAYS; i++) {
+            if (this.hashes[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Advances the clock hand of a full bucket to the first entry not referenced since the
+     * hand last passed it, and returns its slot
+     */
+    private int evict(int bucket) {
+        int start = bucket * WAYS;
+        int hand = this.clockHands[bucket];
+        while (this.referenced[start + hand]) {
+            this.referenced[start + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        int i = start + hand;
+        this.clockHands[bucket] = (byte) ((hand + 1) % WAYS);
+        this.evictedUpdateTimeMicros.accumulateAndGet(this.updateTimesMicros[i], Math::max);
+        this.evictionCount.increment();
+        return i;
+    }
+
+    private int bucket(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & this.bucketMask;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the link, never zero, since zero marks a free slot
+     */
+    static long hash(String link) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < link.length(); i++) {
+            h ^= link.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // spread the low bits, used to pick the bucket
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
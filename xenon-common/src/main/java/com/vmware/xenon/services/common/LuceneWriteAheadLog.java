@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Internal only, append-only write ahead log used by the {@code LuceneDocumentIndexService} to
+ * make index updates durable between Lucene commits.
+ *
+ * The log is a sequence of memory mapped, fixed size segment files. Each record is
+ * written as {@code [int length][int crc32][payload]}, and a zero length marks the end of a
+ * segment. Records are visible to the OS as soon as they are appended (so they survive a
+ * process crash), and are forced to disk by {@link #sync(long)}, which coalesces concurrent
+ * callers into a single {@link MappedByteBuffer#force()} (group commit).
+ *
+ * The index service rolls to a new segment before each Lucene commit and truncates
+ * (deletes) the segments that precede it once the commit succeeds.
+ */
+class LuceneWriteAheadLog implements Closeable {
+
+    static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    static final String SEGMENT_FILE_SUFFIX = ".wal";
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path directory;
+
+    private final int segmentSizeBytes;
+
+    private final Object syncLock = new Object();
+
+    private final CRC32 crc = new CRC32();
+
+    private long segmentId;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * Logical position, across all segments, of the end of the last appended record
+     */
+    private long appendedPosition;
+
+    /**
+     * Logical position up to which all records are known to be on disk
+     */
+    private volatile long syncedPosition;
+
+    private volatile long lastSyncTimeMicros;
+
+    private long syncCount;
+
+    /**
+     * Opens a write ahead log in the given directory. A new, empty segment is always created,
+     * with an identifier higher than any existing segment, so records left behind by a previous
+     * instance can be read with {@link #replay(Path, Consumer)} and removed with
+     * {@link #truncate(long)}
+     */
+    static LuceneWriteAheadLog open(Path directory, int segmentSizeBytes) throws IOException {
+        Files.createDirectories(directory);
+        List<Long> ids = listSegmentIds(directory);
+        long nextId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+        LuceneWriteAheadLog log = new LuceneWriteAheadLog(directory, segmentSizeBytes);
+        log.openSegment(nextId, segmentSizeBytes);
+        return log;
+    }
+
+    /**
+     * Reads every intact record, in append order, from the segments in the given directory.
+     * Reading a segment stops at its zero length end marker. Reading stops altogether at the
+     * first corrupt (torn) record, so records following a gap are never applied out of order
+     *
+     * @return the number of records read
+     */
+    static long replay(Path directory, Consumer<ByteBuffer> consumer) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long count = 0;
+        CRC32 crc = new CRC32();
+        for (long id : listSegmentIds(directory)) {
+            Path file = directory.resolve(segmentFileName(id));
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer bb = ch.map(MapMode.READ_ONLY, 0, ch.size());
+                while (bb.remaining() >= RECORD_HEADER_SIZE) {
+                    int length = bb.getInt();
+                    int checksum = bb.getInt();
+                    if (length == 0) {
+                        break;
+                    }
+                    if (length < 0 || length > bb.remaining()) {
+                        return count;
+                    }
+                    byte[] record = new byte[length];
+                    bb.get(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        return count;
+                    }
+                    consumer.accept(ByteBuffer.wrap(record));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private LuceneWriteAheadLog(Path directory, int segmentSizeBytes) {
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.lastSyncTimeMicros = Utils.getSystemNowMicrosUtc();
+    }
+
+    /**
+     * Appends a record and returns the logical position that must be passed to
+     * {@link #sync(long)} to make it durable
+     */
+    synchronized long append(byte[] data, int offset, int length) throws IOException {
+        if (this.buffer == null) {
+            throw new IOException("Write ahead log is closed");
+        }
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (this.buffer.remaining() < recordSize + Integer.BYTES) {
+            // leave room for the zero length end marker, and size the segment for large records
+            rollUnsafe(Math.max(this.segmentSizeBytes, recordSize + Integer.BYTES));
+        }
+
+        this.crc.reset();
+        this.crc.update(data, offset, length);
+        int start = this.buffer.position();
+        // write the payload and checksum before the length, so a torn record is never valid
+        this.buffer.position(start + Integer.BYTES);
+        this.buffer.putInt((int) this.crc.getValue());
+        this.buffer.put(data, offset, length);
+        this.buffer.putInt(start, length);
+        this.appendedPosition += recordSize;
+        return this.appendedPosition;
+    }
+
+    /**
+     * Forces all records up to the given position to disk. If a concurrent caller already
+     * forced the log past that position, this method returns without any I/O
+     */
+    void sync(long position) {
+        if (this.syncedPosition >= position) {
+            return;
+        }
+        synchronized (this.syncLock) {
+            if (this.syncedPosition >= position) {
+                return;
+            }
+            MappedByteBuffer b;
+            long target;
+            synchronized (this) {
+                b = this.buffer;
+                target = this.appendedPosition;
+            }
+            if (b != null) {
+                b.force();
+            }
+            this.syncedPosition = target;
+            this.lastSyncTimeMicros = Utils.getSystemNowMicrosUtc();
+            this.syncCount++;
+        }
+    }
+
+    /**
+     * Forces all appended records to disk
+     */
+    void sync() {
+        long position;
+        synchronized (this) {
+            position = this.appendedPosition;
+        }
+        sync(position);
+    }
+
+    long getLastSyncTimeMicros() {
+        return this.lastSyncTimeMicros;
+    }
+
+    long getSyncCount() {
+        return this.syncCount;
+    }
+
+    synchronized long getSegmentId() {
+        return this.segmentId;
+    }
+
+    /**
+     * Switches to a new segment, unless the current one is empty, and returns the identifier of
+     * the active segment. Records appended before this call are in segments with a lower
+     * identifier
+     */
+    synchronized long roll() throws IOException {
+        if (this.buffer != null && this.buffer.position() > 0) {
+            rollUnsafe(this.segmentSizeBytes);
+        }
+        return this.segmentId;
+    }
+
+    /**
+     * Deletes all segments with an identifier lower than the given one
+     */
+    void truncate(long segmentId) throws IOException {
+        for (long id : listSegmentIds(this.directory)) {
+            if (id >= segmentId) {
+                break;
+            }
+            Files.deleteIfExists(this.directory.resolve(segmentFileName(id)));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.buffer == null) {
+            return;
+        }
+        this.buffer.force();
+        this.buffer = null;
+        this.channel.close();
+        this.channel = null;
+    }
+
+    private void rollUnsafe(int newSegmentSize) throws IOException {
+        // the previous segment must be durable before records land in the new one, since
+        // sync() only forces the active segment
+        this.buffer.force();
+        this.channel.close();
+        openSegment(this.segmentId + 1, newSegmentSize);
+    }
+
+    private void openSegment(long id, int size) throws IOException {
+        Path file = this.directory.resolve(segmentFileName(id));
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(MapMode.READ_WRITE, 0, size);
+        this.segmentId = id;
+    }
+
+    private static String segmentFileName(long id) {
+        return String.format("%s%019d%s", SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX);
+    }
+
+    private static List<Long> listSegmentIds(Path directory) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            for (Path p : stream) {
+                Path fileName = p.getFileName();
+                if (fileName == null) {
+                    continue;
+                }
+                String name = fileName.toString();
+                String id = name.substring(SEGMENT_FILE_PREFIX.length(),
+                        name.length() - SEGMENT_FILE_SUFFIX.length());
+                try {
+                    ids.add(Long.parseLong(id));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
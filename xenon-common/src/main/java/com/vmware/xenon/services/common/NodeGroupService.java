@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.Operation;
@@ -37,6 +38,7 @@ import com.vmware.xenon.common.ServiceStats.TimeSeriesStats.AggregationType;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.serialization.KryoSerializers;
 import com.vmware.xenon.services.common.NodeState.NodeOption;
 import com.vmware.xenon.services.common.NodeState.NodeStatus;
 
@@ -54,6 +56,31 @@ public class NodeGroupService extends StatefulService {
             PROPERTY_NAME_PEER_REQUEST_TIMEOUT_MICROS,
             ServiceHostState.DEFAULT_OPERATION_TIMEOUT_MICROS / 3);
 
+    /**
+     * When enabled, peers exchange a digest of node entry versions during gossip and send each
+     * other only the node entries the other side is missing or has an older version of, instead
+     * of the full node group state. All nodes in the group must have the same setting
+     */
+    public static final String PROPERTY_NAME_IS_DELTA_GOSSIP_ENABLED = Utils.PROPERTY_NAME_PREFIX
+            + "NodeGroupService.isDeltaGossipEnabled";
+
+    private static volatile boolean isDeltaGossipEnabled = Boolean.getBoolean(
+            PROPERTY_NAME_IS_DELTA_GOSSIP_ENABLED);
+
+    /**
+     * Every Nth delta gossip round to a peer ignores the last known peer digest and sends all
+     * node entries, so peers re-converge even if a digest was stale
+     */
+    public static final int FULL_GOSSIP_ROUND_INTERVAL = 10;
+
+    public static void setDeltaGossipEnabled(boolean enabled) {
+        isDeltaGossipEnabled = enabled;
+    }
+
+    public static boolean isDeltaGossipEnabled() {
+        return isDeltaGossipEnabled;
+    }
+
     private enum NodeGroupChange {
         PEER_ADDED, PEER_STATUS_CHANGE, SELF_CHANGE
     }
@@ -164,11 +191,45 @@ public class NodeGroupService extends StatefulService {
         public long localMembershipUpdateTimeMicros;
     }
 
+    /**
+     * Request and response body of a delta gossip exchange between peers
+     */
+    public static class NodeGroupGossipRequest {
+        public static final String KIND = Utils.buildKind(NodeGroupGossipRequest.class);
+
+        public String kind;
+
+        /**
+         * Id of the sending node
+         */
+        public String documentOwner;
+
+        public long membershipUpdateTimeMicros;
+
+        /**
+         * Node entries the receiver is missing, or has an older version of. Always includes the
+         * entry of the sender
+         */
+        public Map<String, NodeState> nodes = new HashMap<>();
+
+        /**
+         * Version of every node entry known to the sender
+         */
+        public Map<String, Long> nodeVersions = new HashMap<>();
+    }
+
     public static final int MIN_PEER_GOSSIP_COUNT = 10;
 
     public static final String STAT_NAME_RESTARTING_SERVICES_COUNT = "restartingServicesCount";
     public static final String STAT_NAME_RESTARTING_SERVICES_FAILURE_COUNT = "restartingServicesFailureCount";
     public static final String STAT_NAME_PREFIX_GOSSIP_PATCH_DURATION = "GossipPatchDurationMicros";
+    public static final String STAT_NAME_GOSSIP_REQUEST_BYTES = "gossipRequestBytes";
+    public static final String STAT_NAME_GOSSIP_RESPONSE_BYTES = "gossipResponseBytes";
+    public static final String STAT_NAME_DELTA_GOSSIP_REQUEST_COUNT = "deltaGossipRequestCount";
+    public static final String STAT_NAME_DELTA_GOSSIP_REQUEST_BYTES = "deltaGossipRequestBytes";
+    public static final String STAT_NAME_FULL_GOSSIP_REQUEST_COUNT = "fullGossipRequestCount";
+    public static final String STAT_NAME_FULL_GOSSIP_REQUEST_BYTES = "fullGossipRequestBytes";
+    public static final String STAT_NAME_MEMBERSHIP_CONVERGENCE_MICROS = "membershipConvergenceMicros";
 
     private URI uri;
 
@@ -176,6 +237,15 @@ public class NodeGroupService extends StatefulService {
 
     private NodeGroupState cachedState;
 
+    /**
+     * Node entry versions last reported by each peer, used to compute delta gossip requests
+     */
+    private final ConcurrentHashMap<String, Map<String, Long>> peerNodeVersions = new ConcurrentHashMap<>();
+
+    private long gossipRoundCount;
+
+    private long convergedMembershipUpdateTimeMicros;
+
     public NodeGroupService() {
         super(NodeGroupState.class);
         super.toggleOption(ServiceOption.CORE, true);
@@ -226,6 +296,29 @@ public class NodeGroupService extends StatefulService {
         startPost.setBody(this.cachedState).complete();
     }
 
+    @Override
+    public boolean queueRequest(Operation op) {
+        if (isGossipPost(op)) {
+            // gossip requests are merged through a self PATCH, so they must not be serialized
+            // with other updates
+            return false;
+        }
+        return super.queueRequest(op);
+    }
+
+    @Override
+    public void handleRequest(Operation op) {
+        if (isGossipPost(op)) {
+            handleGossipPost(op, (NodeGroupGossipRequest) op.getBodyRaw());
+            return;
+        }
+        super.handleRequest(op);
+    }
+
+    private static boolean isGossipPost(Operation op) {
+        return op.getAction() == Action.POST && op.getBodyRaw() instanceof NodeGroupGossipRequest;
+    }
+
     @Override
     public void handleGet(Operation get) {
         get.setBody(this.cachedState).complete();
@@ -438,6 +531,57 @@ public class NodeGroupService extends StatefulService {
         post.setBodyNoCloning(this.cachedState).complete();
     }
 
+    private void handleGossipPost(Operation post, NodeGroupGossipRequest body) {
+        if (body.documentOwner == null || body.nodes == null || body.nodes.isEmpty()) {
+            post.fail(new IllegalArgumentException("documentOwner and nodes are required"));
+            return;
+        }
+
+        // merge the peer entries through a self PATCH, with the peer as the owner, so they are
+        // handled exactly like a full gossip PATCH from the peer
+        NodeGroupState peerState = new NodeGroupState();
+        peerState.documentOwner = body.documentOwner;
+        peerState.membershipUpdateTimeMicros = body.membershipUpdateTimeMicros;
+        peerState.nodes = body.nodes;
+
+        Map<String, Long> peerVersions = body.nodeVersions != null ? body.nodeVersions
+                : Collections.emptyMap();
+        sendRequest(Operation.createPatch(getUri())
+                .setBodyNoCloning(peerState)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        post.fail(e);
+                        return;
+                    }
+                    NodeGroupState localState = this.cachedState;
+                    NodeGroupGossipRequest rsp = buildGossipRequest(localState, peerVersions);
+                    post.setBodyNoCloning(rsp)
+                            .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                            .complete();
+                }));
+    }
+
+    /**
+     * Builds a delta gossip body with the local node entry, plus every entry that is missing from,
+     * or newer than, the supplied peer versions. A null peer version map selects all entries
+     */
+    private NodeGroupGossipRequest buildGossipRequest(NodeGroupState localState,
+            Map<String, Long> peerVersions) {
+        NodeGroupGossipRequest body = new NodeGroupGossipRequest();
+        body.kind = NodeGroupGossipRequest.KIND;
+        body.documentOwner = getHost().getId();
+        body.membershipUpdateTimeMicros = localState.membershipUpdateTimeMicros;
+        for (NodeState n : localState.nodes.values()) {
+            body.nodeVersions.put(n.id, n.documentVersion);
+            Long peerVersion = peerVersions != null ? peerVersions.get(n.id) : null;
+            if (peerVersion == null || peerVersion < n.documentVersion
+                    || n.id.equals(getHost().getId())) {
+                body.nodes.put(n.id, n);
+            }
+        }
+        return body;
+    }
+
     private void handleJoinPost(JoinPeerRequest joinBody,
             Operation joinOp,
             long expirationMicros,
@@ -667,6 +811,11 @@ public class NodeGroupService extends StatefulService {
         patchBody.documentOwner = getHost().getId();
         patchBody.documentUpdateTimeMicros = localNode.documentUpdateTimeMicros;
 
+        boolean isDeltaGossip = isDeltaGossipEnabled;
+        boolean isFullGossip = ++this.gossipRoundCount % FULL_GOSSIP_ROUND_INTERVAL == 0;
+        this.peerNodeVersions.keySet().retainAll(localState.nodes.keySet());
+        AtomicBoolean isConverged = new AtomicBoolean(true);
+
         int probeCount = 0;
         for (NodeState peer : randomizedPeers) {
             if (peer == null) {
@@ -689,10 +838,10 @@ public class NodeGroupService extends StatefulService {
             // 2b) if the PATCH failed, we mark the PEER it UNAVAILABLE
 
             long sendTimeMicros = Utils.getSystemNowMicrosUtc();
-            CompletionHandler ch = (o, e) -> handleGossipPatchCompletion(sendTimeMicros, maint, o,
+            CompletionHandler ch = (o, e) -> handleGossipCompletion(sendTimeMicros, maint, o,
                     e, localState,
                     patchBody,
-                    remaining, remotePeer);
+                    remaining, remotePeer, isConverged);
 
             Operation patch = Operation
                     .createPatch(peerUri)
@@ -713,8 +862,16 @@ public class NodeGroupService extends StatefulService {
                     peer.documentVersion++;
                 }
                 ch.handle(null, null);
+            } else if (isDeltaGossip) {
+                NodeGroupGossipRequest body = buildGossipRequest(localState,
+                        isFullGossip ? null : this.peerNodeVersions.get(peer.id));
+                boolean isDelta = body.nodes.size() < localState.nodes.size();
+                patch.setAction(Action.POST)
+                        .setBodyNoCloning(encodeGossipBody(body, isDelta))
+                        .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                        .sendWith(this);
             } else {
-                patch.setBodyNoCloning(localState)
+                patch.setBodyNoCloning(encodeGossipBody(localState, false))
                         .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
                         .sendWith(this);
             }
@@ -730,10 +887,36 @@ public class NodeGroupService extends StatefulService {
         }
     }
 
+    /**
+     * Serializes a gossip request body. A delta body omits node entries the peer already has,
+     * a full body carries all of them
+     */
+    private byte[] encodeGossipBody(Object body, boolean isDelta) {
+        byte[] data = KryoSerializers.serializeAsDocument(body,
+                ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT).toBytes();
+        adjustStat(STAT_NAME_GOSSIP_REQUEST_BYTES, data.length);
+        if (isDelta) {
+            adjustStat(STAT_NAME_DELTA_GOSSIP_REQUEST_COUNT, 1);
+            adjustStat(STAT_NAME_DELTA_GOSSIP_REQUEST_BYTES, data.length);
+        } else {
+            adjustStat(STAT_NAME_FULL_GOSSIP_REQUEST_COUNT, 1);
+            adjustStat(STAT_NAME_FULL_GOSSIP_REQUEST_BYTES, data.length);
+        }
+        return data;
+    }
+
     public void handleGossipPatchCompletion(long sendTimeMicros, Operation maint, Operation patch,
             Throwable e,
             NodeGroupState localState, NodeGroupState patchBody, AtomicInteger remaining,
             NodeState remotePeer) {
+        handleGossipCompletion(sendTimeMicros, maint, patch, e, localState, patchBody, remaining,
+                remotePeer, new AtomicBoolean());
+    }
+
+    private void handleGossipCompletion(long sendTimeMicros, Operation maint, Operation patch,
+            Throwable e,
+            NodeGroupState localState, NodeGroupState patchBody, AtomicInteger remaining,
+            NodeState remotePeer, AtomicBoolean isConverged) {
 
         try {
             if (patch == null) {
@@ -753,11 +936,24 @@ public class NodeGroupService extends StatefulService {
                     remotePeer.documentVersion++;
                 }
                 remotePeer.status = NodeStatus.UNAVAILABLE;
+                this.peerNodeVersions.remove(remotePeer.id);
+                isConverged.set(false);
             } else {
-                NodeGroupState peerState = getStateFromBody(patch);
+                adjustStat(STAT_NAME_GOSSIP_RESPONSE_BYTES, patch.getContentLength());
+                NodeGroupState peerState;
+                if (patch.getBodyRaw() instanceof NodeGroupGossipRequest) {
+                    peerState = mergeGossipResponse(
+                            (NodeGroupGossipRequest) patch.getBodyRaw(), patchBody, remotePeer);
+                } else {
+                    peerState = getStateFromBody(patch);
+                }
+                if (peerState.membershipUpdateTimeMicros != localState.membershipUpdateTimeMicros) {
+                    isConverged.set(false);
+                }
                 if (peerState.documentOwner.equals(remotePeer.id)) {
                     NodeState remotePeerStateFromRsp = peerState.nodes.get(remotePeer.id);
-                    if (remotePeerStateFromRsp.documentVersion > remotePeer.documentVersion) {
+                    if (remotePeerStateFromRsp != null
+                            && remotePeerStateFromRsp.documentVersion > remotePeer.documentVersion) {
                         remotePeer = remotePeerStateFromRsp;
                     }
                 } else if (remotePeer.status != NodeStatus.REPLACED) {
@@ -785,12 +981,63 @@ public class NodeGroupService extends StatefulService {
                 sendRequest(Operation.createPatch(getUri())
                         .setBodyNoCloning(patchBody));
 
+                if (isConverged.get()) {
+                    updateConvergenceStat(localState);
+                }
                 maint.complete();
             }
         }
 
     }
 
+    /**
+     * Records the peer node entry versions and adds the node entries the peer reported as newer
+     * to the self PATCH body, so they are merged along with the probe results. Returns the peer
+     * view of the group, limited to the entries in the response
+     */
+    private NodeGroupState mergeGossipResponse(NodeGroupGossipRequest rsp,
+            NodeGroupState patchBody, NodeState remotePeer) {
+        if (rsp.nodeVersions != null && remotePeer.id.equals(rsp.documentOwner)) {
+            this.peerNodeVersions.put(remotePeer.id, rsp.nodeVersions);
+        }
+
+        NodeGroupState peerState = new NodeGroupState();
+        peerState.documentOwner = rsp.documentOwner;
+        peerState.membershipUpdateTimeMicros = rsp.membershipUpdateTimeMicros;
+        if (rsp.nodes == null) {
+            return peerState;
+        }
+        peerState.nodes = rsp.nodes;
+
+        synchronized (patchBody) {
+            for (NodeState n : rsp.nodes.values()) {
+                if (n.id.equals(getHost().getId()) || n.id.equals(remotePeer.id)) {
+                    continue;
+                }
+                NodeState current = patchBody.nodes.get(n.id);
+                if (current == null || current.documentVersion < n.documentVersion) {
+                    patchBody.nodes.put(n.id, n);
+                }
+            }
+        }
+        return peerState;
+    }
+
+    /**
+     * Sets the time it took, since the last local membership change, for all probed peers to
+     * report the same membership update time. The stat is set once per membership change
+     */
+    private void updateConvergenceStat(NodeGroupState localState) {
+        long changeTimeMicros = localState.localMembershipUpdateTimeMicros;
+        if (changeTimeMicros == 0
+                || changeTimeMicros == this.convergedMembershipUpdateTimeMicros) {
+            return;
+        }
+        this.convergedMembershipUpdateTimeMicros = changeTimeMicros;
+        setStat(STAT_NAME_MEMBERSHIP_CONVERGENCE_MICROS,
+                Math.max(0, Utils.getNowMicrosUtc() - changeTimeMicros));
+    }
+
     private void updateGossipPatchStat(long sendTimeMicros, NodeState remotePeer) {
         long patchCompletionTime = Utils.getSystemNowMicrosUtc();
 
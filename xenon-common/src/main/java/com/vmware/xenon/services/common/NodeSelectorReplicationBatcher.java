@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.net.ProtocolException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.xenon.common.NodeSelectorService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+import com.vmware.xenon.common.ServiceClient;
+import com.vmware.xenon.common.ServiceErrorResponse;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.NodeSelectorReplicationService.ReplicationBatchEntry;
+import com.vmware.xenon.services.common.NodeSelectorReplicationService.ReplicationBatchRequest;
+import com.vmware.xenon.services.common.NodeSelectorReplicationService.ReplicationBatchResponse;
+
+/**
+ * Accumulates replication requests per peer node, and sends them as one Kryo encoded batch to
+ * the replication service of the peer node selector, once the batch window expires or the
+ * count or byte threshold is reached. Each request is completed with the status and failure
+ * of its own entry in the batch response, so quorum accounting is per request.
+ */
+final class NodeSelectorReplicationBatcher {
+
+    private static final class PeerBatch {
+        final URI batchUri;
+
+        List<Operation> updates = new ArrayList<>();
+
+        long byteCount;
+
+        boolean isFlushScheduled;
+
+        PeerBatch(URI batchUri) {
+            this.batchUri = batchUri;
+        }
+
+        List<Operation> take() {
+            List<Operation> taken = this.updates;
+            this.updates = new ArrayList<>();
+            this.byteCount = 0;
+            return taken;
+        }
+    }
+
+    private final NodeSelectorReplicationService service;
+
+    private final ConcurrentHashMap<URI, PeerBatch> batches = new ConcurrentHashMap<>();
+
+    NodeSelectorReplicationBatcher(NodeSelectorReplicationService service) {
+        this.service = service;
+    }
+
+    /**
+     * Adds a replication request, with its URI set to the peer replica, to the batch of the
+     * peer node group
+     */
+    void add(URI peerGroupReference, Operation update) {
+        PeerBatch b = this.batches.computeIfAbsent(peerGroupReference,
+                (u) -> new PeerBatch(UriUtils.buildServiceUri(u.getScheme(), u.getHost(),
+                        u.getPort(), this.service.getSelfLink(), null, null)));
+
+        List<Operation> ready = null;
+        boolean isFlushRequired = false;
+        synchronized (b) {
+            b.updates.add(update);
+            b.byteCount += getBodyLength(update);
+            if (b.updates.size() >= NodeSelectorReplicationService.getBatchMaxCount()
+                    || b.byteCount >= NodeSelectorReplicationService.getBatchMaxBytes()) {
+                ready = b.take();
+            } else if (!b.isFlushScheduled) {
+                b.isFlushScheduled = true;
+                isFlushRequired = true;
+            }
+        }
+
+        if (ready != null) {
+            send(b, ready);
+        } else if (isFlushRequired) {
+            this.service.getHost().scheduleCore(() -> flush(b),
+                    NodeSelectorReplicationService.getBatchWindowMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void flush(PeerBatch b) {
+        List<Operation> ready;
+        synchronized (b) {
+            b.isFlushScheduled = false;
+            ready = b.take();
+        }
+        if (!ready.isEmpty()) {
+            send(b, ready);
+        }
+    }
+
+    private void send(PeerBatch b, List<Operation> updates) {
+        ReplicationBatchRequest batch = new ReplicationBatchRequest();
+        batch.entries = new ArrayList<>(updates.size());
+        long expirationMicrosUtc = 0;
+        for (Operation update : updates) {
+            batch.entries.add(createEntry(update));
+            expirationMicrosUtc = Math.max(expirationMicrosUtc, update.getExpirationMicrosUtc());
+        }
+
+        ServiceHost host = this.service.getHost();
+        Operation post = Operation.createPost(b.batchUri)
+                .setBodyNoCloning(batch)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                .setExpiration(expirationMicrosUtc)
+                .setRetryCount(1)
+                .forceRemote()
+                .setReferer(this.service.getUri())
+                .setConnectionTag(ServiceClient.CONNECTION_TAG_REPLICATION)
+                .setAuthorizationContext(host.getSystemAuthorizationContext())
+                .setCompletion((o, e) -> complete(updates, o, e));
+
+        if (NodeSelectorService.REPLICATION_OPERATION_OPTION != null) {
+            post.toggleOption(NodeSelectorService.REPLICATION_OPERATION_OPTION, true);
+        }
+
+        this.service.adjustSelectorStat(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_COUNT, 1);
+        this.service.adjustSelectorStat(
+                NodeSelectorService.STAT_NAME_REPLICATION_BATCH_ENTRY_COUNT, updates.size());
+        host.getClient().send(post);
+    }
+
+    private void complete(List<Operation> updates, Operation o, Throwable e) {
+        ReplicationBatchResponse rsp = null;
+        if (e == null) {
+            try {
+                rsp = o.getBody(ReplicationBatchResponse.class);
+            } catch (Exception ex) {
+                e = ex;
+            }
+        }
+
+        if (e == null && (rsp.statusCodes == null || rsp.statusCodes.length != updates.size())) {
+            e = new ProtocolException("Unexpected batch response from " + o.getUri());
+        }
+
+        for (int i = 0; i < updates.size(); i++) {
+            Operation update = updates.get(i);
+            if (e != null) {
+                update.fail(o.getStatusCode(), e, null);
+                continue;
+            }
+
+            int statusCode = rsp.statusCodes[i];
+            ServiceErrorResponse failure = rsp.failures == null ? null : rsp.failures[i];
+            if (statusCode < Operation.STATUS_CODE_FAILURE_THRESHOLD && failure == null) {
+                update.setStatusCode(statusCode).complete();
+                continue;
+            }
+
+            update.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+            String message = failure != null ? failure.message : null;
+            update.fail(statusCode, new ProtocolException("Batch entry failed with "
+                    + statusCode + ": " + message), failure);
+        }
+    }
+
+    private static ReplicationBatchEntry createEntry(Operation update) {
+        ReplicationBatchEntry entry = new ReplicationBatchEntry();
+        URI uri = update.getUri();
+        entry.action = update.getAction();
+        entry.path = uri.getPath();
+        entry.query = uri.getQuery();
+        entry.pragma = update.getRequestHeaderAsIs(Operation.PRAGMA_HEADER);
+        entry.replicationPhase = update
+                .getRequestHeaderAsIs(Operation.REPLICATION_PHASE_HEADER);
+        AuthorizationContext ctx = update.getAuthorizationContext();
+        entry.authToken = ctx != null ? ctx.getToken() : null;
+        entry.transactionId = update.getTransactionId();
+        entry.contextId = update.getContextId();
+        entry.expirationMicrosUtc = update.getExpirationMicrosUtc();
+        entry.contentType = update.getContentType();
+
+        Object body = update.getBodyRaw();
+        if (body instanceof byte[]) {
+            entry.body = (byte[]) body;
+        } else if (body != null) {
+            String json = body instanceof String ? (String) body : Utils.toJson(body);
+            entry.body = json.getBytes(Utils.CHARSET_OBJECT);
+        }
+        return entry;
+    }
+
+    private static long getBodyLength(Operation update) {
+        Object body = update.getBodyRaw();
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        if (body instanceof String) {
+            return ((String) body).length();
+        }
+        return 0;
+    }
+}
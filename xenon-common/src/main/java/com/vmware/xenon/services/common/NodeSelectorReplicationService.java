@@ -14,16 +14,20 @@
 package com.vmware.xenon.services.common;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.NodeSelectorService;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.OperationOption;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceClient;
 import com.vmware.xenon.common.ServiceErrorResponse;
@@ -44,6 +48,88 @@ public class NodeSelectorReplicationService extends StatelessService {
                     + "NodeSelectorReplicationService.BINARY_SERIALIZATION",
             1);
 
+    public static final String PROPERTY_NAME_BATCH_WINDOW_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.batchWindowMicros";
+
+    public static final String PROPERTY_NAME_BATCH_MAX_COUNT = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.batchMaxCount";
+
+    public static final String PROPERTY_NAME_BATCH_MAX_BYTES = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.batchMaxBytes";
+
+    /**
+     * Time replication requests to a peer are accumulated, before they are sent as one batch.
+     * Zero disables batching
+     */
+    private static volatile long batchWindowMicros = Long.getLong(
+            PROPERTY_NAME_BATCH_WINDOW_MICROS, 0);
+
+    /**
+     * Number of accumulated requests that sends a batch before the window expires
+     */
+    private static volatile int batchMaxCount = Integer.getInteger(
+            PROPERTY_NAME_BATCH_MAX_COUNT, 256);
+
+    /**
+     * Size of the accumulated request bodies that sends a batch before the window expires
+     */
+    private static volatile int batchMaxBytes = Integer.getInteger(
+            PROPERTY_NAME_BATCH_MAX_BYTES, ServiceClient.MAX_BINARY_SERIALIZED_BODY_LIMIT / 2);
+
+    /**
+     * Replication requests to a peer, sent in one request to the replication service of the
+     * peer node selector. Each entry is applied as if it was received on its own
+     */
+    public static class ReplicationBatchRequest {
+        public List<ReplicationBatchEntry> entries;
+    }
+
+    public static class ReplicationBatchEntry {
+        public Action action;
+        public String path;
+        public String query;
+        public String pragma;
+        public String replicationPhase;
+        public String authToken;
+        public String transactionId;
+        public String contextId;
+        public long expirationMicrosUtc;
+        public String contentType;
+        public byte[] body;
+    }
+
+    /**
+     * Status code and failure, if any, of each entry, in request order
+     */
+    public static class ReplicationBatchResponse {
+        public int[] statusCodes;
+        public ServiceErrorResponse[] failures;
+    }
+
+    public static void setBatchWindowMicros(long micros) {
+        batchWindowMicros = micros;
+    }
+
+    public static long getBatchWindowMicros() {
+        return batchWindowMicros;
+    }
+
+    public static void setBatchMaxCount(int count) {
+        batchMaxCount = count;
+    }
+
+    public static int getBatchMaxCount() {
+        return batchMaxCount;
+    }
+
+    public static void setBatchMaxBytes(int bytes) {
+        batchMaxBytes = bytes;
+    }
+
+    public static int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
     private Service parent;
     private Map<String, Integer> nodeCountPerLocation;
     private Map<URI, String> locationPerNodeURI;
@@ -51,6 +137,8 @@ public class NodeSelectorReplicationService extends StatelessService {
 
     private String nodeGroupLink;
 
+    private final NodeSelectorReplicationBatcher batcher = new NodeSelectorReplicationBatcher(this);
+
     public NodeSelectorReplicationService(Service parent) {
         this.parent = parent;
         super.setHost(parent.getHost());
@@ -224,10 +312,105 @@ public class NodeSelectorReplicationService extends StatelessService {
                 continue;
             }
 
+            if (batchWindowMicros > 0) {
+                this.batcher.add(m.groupReference, update.clone());
+                continue;
+            }
+
             this.getHost().getClient().send(update);
         }
     }
 
+    /**
+     * Applies a batch of replication requests from a peer, and responds once all requests
+     * complete
+     */
+    @Override
+    public void handlePost(Operation post) {
+        if (!post.hasBody()) {
+            post.fail(new IllegalArgumentException("body is required"));
+            return;
+        }
+
+        ReplicationBatchRequest batch = post.getBody(ReplicationBatchRequest.class);
+        if (batch.entries == null || batch.entries.isEmpty()) {
+            post.fail(new IllegalArgumentException("entries are required"));
+            return;
+        }
+
+        int count = batch.entries.size();
+        ReplicationBatchResponse rsp = new ReplicationBatchResponse();
+        rsp.statusCodes = new int[count];
+        rsp.failures = new ServiceErrorResponse[count];
+        AtomicInteger remaining = new AtomicInteger(count);
+
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Operation op = Operation.createGet(null);
+            op.setCompletion((o, e) -> {
+                rsp.statusCodes[index] = o.getStatusCode();
+                if (e != null) {
+                    Object body = o.getBodyRaw();
+                    rsp.failures[index] = body instanceof ServiceErrorResponse
+                            ? (ServiceErrorResponse) body
+                            : ServiceErrorResponse.create(e, o.getStatusCode());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    post.setBodyNoCloning(rsp).complete();
+                }
+            });
+
+            try {
+                createBatchEntryRequest(op, batch.entries.get(i));
+            } catch (Exception e) {
+                op.fail(e);
+                continue;
+            }
+
+            if (!getHost().handleRequest(null, op)) {
+                op.fail(new IllegalStateException("Request not handled: " + op.getUri()));
+            }
+        }
+    }
+
+    /**
+     * Initializes the request from a batch entry, the way the listener initializes a request
+     * received from a peer
+     */
+    private void createBatchEntryRequest(Operation op, ReplicationBatchEntry entry)
+            throws Exception {
+        URI hostUri = getHost().getUri();
+        op.setAction(entry.action)
+                .setUri(UriUtils.buildServiceUri(hostUri.getScheme(), ServiceHost.LOCAL_HOST,
+                        hostUri.getPort(), entry.path, entry.query, null))
+                .setExpiration(entry.expirationMicrosUtc)
+                .setFromReplication(true)
+                .setTargetReplicated(true)
+                .setTransactionId(entry.transactionId)
+                .setContextId(entry.contextId)
+                .forceRemote();
+        op.setReferer(op.getUri());
+        op.toggleOption(OperationOption.CLONING_DISABLED, true);
+
+        if (entry.pragma != null && !Operation.PRAGMA_DIRECTIVE_REPLICATED.equals(entry.pragma)) {
+            op.addRequestHeader(Operation.PRAGMA_HEADER, entry.pragma);
+        }
+        if (entry.replicationPhase != null) {
+            op.addRequestHeader(Operation.REPLICATION_PHASE_HEADER, entry.replicationPhase);
+        }
+        if (entry.authToken != null) {
+            op.addRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER, entry.authToken);
+        }
+
+        if (entry.body == null) {
+            op.setContentLength(0);
+            return;
+        }
+        op.setContentType(entry.contentType);
+        op.setContentLength(entry.body.length);
+        Utils.decodeBody(op, ByteBuffer.wrap(entry.body), true);
+    }
+
     private static Operation createReplicationRequest(Operation outboundOp, URI remoteUri) {
         Operation update = Operation.createPost(remoteUri)
                 .setAction(outboundOp.getAction())
@@ -343,6 +526,13 @@ public class NodeSelectorReplicationService extends StatelessService {
         return true;
     }
 
+    /**
+     * Adjusts a stat of the parent node selector, which exposes the replication stats
+     */
+    void adjustSelectorStat(String name, double delta) {
+        this.parent.adjustStat(name, delta);
+    }
+
     @Override
     public void sendRequest(Operation op) {
         this.parent.sendRequest(op);
@@ -25,6 +25,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.vmware.xenon.common.FNVHash;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
 import com.vmware.xenon.common.Operation.OperationOption;
@@ -36,6 +37,8 @@ import com.vmware.xenon.common.ServiceDocumentDescription;
 import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.DocumentVersionsRequest;
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.DocumentVersionsResponse;
 
 public class NodeSelectorSynchronizationService extends StatelessService {
 
@@ -63,6 +66,87 @@ public class NodeSelectorSynchronizationService extends StatelessService {
         public String kind;
     }
 
+    /**
+     * Requests digests of the latest state of the children of a factory, in the local index of
+     * a node. Children are assigned to {@link #rangeCount} ranges by self link hash. Without
+     * {@link #ranges}, the response has one digest per range, so nodes can find the ranges in
+     * which they diverge. With ranges, it has one digest per child in the listed ranges, so
+     * nodes can find the divergent children
+     */
+    public static class SynchronizationDigestRequest {
+        public static final String KIND = Utils.buildKind(SynchronizationDigestRequest.class);
+
+        public static final int DEFAULT_RANGE_COUNT = 1024;
+
+        public static SynchronizationDigestRequest create() {
+            SynchronizationDigestRequest r = new SynchronizationDigestRequest();
+            r.kind = KIND;
+            return r;
+        }
+
+        public String kind;
+        public String indexLink;
+        public String factoryLink;
+        public String documentKind;
+        public int rangeCount = DEFAULT_RANGE_COUNT;
+        public Set<Integer> ranges;
+
+        /**
+         * Returns the range of the self link. The range count must be a power of two
+         */
+        public static int getRange(String selfLink, int rangeCount) {
+            long h = FNVHash.compute(selfLink);
+            return (int) (h ^ (h >>> 32)) & (rangeCount - 1);
+        }
+
+        /**
+         * Returns a digest of the latest version of a document. The version and update time
+         * are read from index doc values, so the digest is computed without loading the state
+         */
+        public static long getDigest(String selfLink, long version, long updateTimeMicros) {
+            long h = FNVHash.compute(selfLink);
+            h = compute(version, h);
+            return compute(updateTimeMicros, h);
+        }
+
+        private static long compute(long value, long hash) {
+            hash = FNVHash.compute((int) value, hash);
+            return FNVHash.compute((int) (value >>> 32), hash);
+        }
+    }
+
+    /**
+     * Requests the node receiving it to synchronize a batch of children of a factory, whose
+     * digests are equal on all peers. Each child is synchronized with a local request, so the
+     * batch costs a single request between nodes
+     */
+    public static class SynchronizeOwnersRequest {
+        public static final String KIND = Utils.buildKind(SynchronizeOwnersRequest.class);
+
+        public static SynchronizeOwnersRequest create() {
+            SynchronizeOwnersRequest r = new SynchronizeOwnersRequest();
+            r.kind = KIND;
+            return r;
+        }
+
+        public String kind;
+        public String factoryLink;
+        public List<String> documentLinks;
+    }
+
+    public static class SynchronizeOwnersResponse {
+        /**
+         * Status code of each child that failed to synchronize
+         */
+        public Map<String, Integer> failedLinks = new HashMap<>();
+    }
+
+    public static class SynchronizationDigestResponse {
+        public long[] rangeDigests;
+        public int[] rangeCounts;
+        public Map<String, Long> documentDigests;
+    }
+
     private Service parent;
 
     private boolean isDetailedLoggingEnabled = Boolean
@@ -105,10 +189,116 @@ public class NodeSelectorSynchronizationService extends StatelessService {
             handleSynchronizeRequest(post, body);
             return;
         }
+        if (body.kind.equals(SynchronizationDigestRequest.KIND)) {
+            handleDigestRequest(post, post.getBody(SynchronizationDigestRequest.class));
+            return;
+        }
+        if (body.kind.equals(SynchronizeOwnersRequest.KIND)) {
+            handleSynchronizeOwnersRequest(post, post.getBody(SynchronizeOwnersRequest.class));
+            return;
+        }
 
         post.fail(new IllegalArgumentException("kind is not supported: " + body.kind));
     }
 
+    private void handleDigestRequest(Operation post, SynchronizationDigestRequest body) {
+        if (body.factoryLink == null || body.factoryLink.isEmpty()) {
+            post.fail(new IllegalArgumentException("factoryLink is required"));
+            return;
+        }
+
+        if (body.documentKind == null) {
+            post.fail(new IllegalArgumentException("documentKind is required"));
+            return;
+        }
+
+        if (body.rangeCount <= 0 || Integer.bitCount(body.rangeCount) != 1) {
+            post.fail(new IllegalArgumentException("rangeCount must be a power of two"));
+            return;
+        }
+
+        SynchronizationDigestResponse rsp = new SynchronizationDigestResponse();
+        if (body.ranges == null) {
+            rsp.rangeDigests = new long[body.rangeCount];
+            rsp.rangeCounts = new int[body.rangeCount];
+        } else {
+            rsp.documentDigests = new HashMap<>();
+        }
+
+        String indexLink = body.indexLink != null ? body.indexLink
+                : ServiceUriPaths.CORE_DOCUMENT_INDEX;
+        DocumentVersionsRequest versionsRequest = DocumentVersionsRequest.create(
+                body.factoryLink + UriUtils.URI_PATH_CHAR, body.documentKind);
+        sendRequest(Operation.createPatch(this, indexLink)
+                .setBodyNoCloning(versionsRequest)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        post.fail(e);
+                        return;
+                    }
+
+                    DocumentVersionsResponse versions = (DocumentVersionsResponse) o.getBodyRaw();
+                    for (int i = 0; i < versions.documentLinks.size(); i++) {
+                        addDigest(body, rsp, versions.documentLinks.get(i),
+                                versions.documentVersions[i],
+                                versions.documentUpdateTimesMicros[i]);
+                    }
+                    post.setBodyNoCloning(rsp).complete();
+                }));
+    }
+
+    private void addDigest(SynchronizationDigestRequest body, SynchronizationDigestResponse rsp,
+            String link, long version, long updateTimeMicros) {
+        int range = SynchronizationDigestRequest.getRange(link, body.rangeCount);
+        if (body.ranges == null) {
+            // range digests are sums, so they do not depend on the order of documents
+            rsp.rangeDigests[range] += SynchronizationDigestRequest.getDigest(link, version,
+                    updateTimeMicros);
+            rsp.rangeCounts[range]++;
+        } else if (body.ranges.contains(range)) {
+            rsp.documentDigests.put(link, SynchronizationDigestRequest.getDigest(link, version,
+                    updateTimeMicros));
+        }
+    }
+
+    private void handleSynchronizeOwnersRequest(Operation post, SynchronizeOwnersRequest body) {
+        if (body.factoryLink == null || body.factoryLink.isEmpty()) {
+            post.fail(new IllegalArgumentException("factoryLink is required"));
+            return;
+        }
+
+        if (body.documentLinks == null || body.documentLinks.isEmpty()) {
+            post.fail(new IllegalArgumentException("documentLinks is required"));
+            return;
+        }
+
+        SynchronizeOwnersResponse rsp = new SynchronizeOwnersResponse();
+        AtomicInteger pending = new AtomicInteger(body.documentLinks.size());
+        for (String link : body.documentLinks) {
+            // the request is routed by the factory to the owner of the child, which skips the
+            // peer state comparison since all peers agree
+            ServiceDocument d = new ServiceDocument();
+            d.documentSelfLink = UriUtils.getLastPathSegment(link);
+            Operation synchRequest = Operation.createPost(this, body.factoryLink)
+                    .setBody(d)
+                    .setReferer(getUri())
+                    .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_SYNCH_OWNER)
+                    .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_SYNCH_PEERS_AGREE)
+                    .setRetryCount(0)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            synchronized (rsp) {
+                                rsp.failedLinks.put(link, o.getStatusCode());
+                            }
+                        }
+                        if (pending.decrementAndGet() == 0) {
+                            post.setBodyNoCloning(rsp).complete();
+                        }
+                    });
+            sendRequest(synchRequest);
+        }
+    }
+
     private void handleSynchronizeRequest(Operation post, SynchronizePeersRequest body) {
         if (body.state == null) {
             post.fail(new IllegalArgumentException("state is required"));
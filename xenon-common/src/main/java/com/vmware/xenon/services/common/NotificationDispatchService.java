@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+
+/**
+ * Receives a batch of subscription notifications for one document update, sent by a remote
+ * host to all the subscribers it has on this host, and delivers the notification to each local
+ * subscriber. The response carries the status code of each delivery, in the order of the
+ * subscriber paths in the batch.
+ *
+ * Only update actions are delivered, and only to services started as subscription notification
+ * targets on this host. Other paths get {@link Operation#STATUS_CODE_FORBIDDEN}, and the
+ * publisher sends the notification to them directly
+ */
+public class NotificationDispatchService extends StatelessService {
+
+    public static final String SELF_LINK = ServiceUriPaths.CORE_NOTIFICATION_DISPATCH;
+
+    public static class NotificationBatch {
+        /**
+         * Action of the notification
+         */
+        public Action action;
+
+        /**
+         * Referer of the notification, the service that was updated
+         */
+        public String referer;
+
+        /**
+         * Serialized body of the notification, delivered to every subscriber
+         */
+        public String body;
+
+        /**
+         * Content type of the notification body
+         */
+        public String contentType;
+
+        /**
+         * Request headers of the notification, including pragma directives
+         */
+        public Map<String, String> requestHeaders;
+
+        /**
+         * Context identifier of the notification
+         */
+        public String contextId;
+
+        /**
+         * Transaction identifier of the notification
+         */
+        public String transactionId;
+
+        /**
+         * Local paths of the subscribers
+         */
+        public List<String> subscriberPaths = new ArrayList<>();
+
+        /**
+         * Paths of the subscribers that missed previous notifications
+         */
+        public List<String> skippedNotificationPaths = new ArrayList<>();
+    }
+
+    public static class NotificationBatchResult {
+        /**
+         * Status code of each delivery, in the order of the subscriber paths
+         */
+        public List<Integer> statusCodes = new ArrayList<>();
+    }
+
+    @Override
+    public void handlePost(Operation post) {
+        if (!post.hasBody()) {
+            post.fail(new IllegalArgumentException("body is required"));
+            return;
+        }
+
+        NotificationBatch batch = post.getBody(NotificationBatch.class);
+        if (batch.action == null || batch.subscriberPaths == null
+                || batch.subscriberPaths.isEmpty()) {
+            post.fail(new IllegalArgumentException("action and subscriberPaths are required"));
+            return;
+        }
+
+        if (!isNotificationAction(batch.action)) {
+            post.fail(new IllegalArgumentException("action is not a notification action: "
+                    + batch.action));
+            return;
+        }
+
+        int count = batch.subscriberPaths.size();
+        Integer[] statusCodes = new Integer[count];
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            String path = batch.subscriberPaths.get(i);
+            int index = i;
+            if (path == null || !getHost().isNotificationTarget(path)) {
+                statusCodes[index] = Operation.STATUS_CODE_FORBIDDEN;
+                completeIfLast(post, statusCodes, remaining);
+                continue;
+            }
+
+            Operation notification = new Operation()
+                    .setAction(batch.action)
+                    .setUri(UriUtils.buildUri(getHost(), path))
+                    .setReferer(batch.referer)
+                    .setContextId(batch.contextId)
+                    .setTransactionId(batch.transactionId)
+                    .setCompletion((o, e) -> {
+                        statusCodes[index] = o.getStatusCode();
+                        completeIfLast(post, statusCodes, remaining);
+                    });
+            if (batch.body != null) {
+                notification.setBodyNoCloning(batch.body);
+                if (batch.contentType != null) {
+                    notification.setContentType(batch.contentType);
+                }
+            }
+            if (batch.requestHeaders != null) {
+                for (Entry<String, String> e : batch.requestHeaders.entrySet()) {
+                    notification.addRequestHeader(e.getKey(), e.getValue());
+                }
+            }
+            notification.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION);
+            if (batch.skippedNotificationPaths != null
+                    && batch.skippedNotificationPaths.contains(path)) {
+                notification.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS);
+            } else {
+                notification
+                        .removePragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS);
+            }
+            sendRequest(notification);
+        }
+    }
+
+    static boolean isNotificationAction(Action action) {
+        return action == Action.PUT || action == Action.PATCH || action == Action.POST
+                || action == Action.DELETE;
+    }
+
+    private static void completeIfLast(Operation post, Integer[] statusCodes,
+            AtomicInteger remaining) {
+        if (remaining.decrementAndGet() != 0) {
+            return;
+        }
+        NotificationBatchResult result = new NotificationBatchResult();
+        for (Integer statusCode : statusCodes) {
+            result.statusCodes.add(statusCode);
+        }
+        post.setBodyNoCloning(result).complete();
+    }
+}
@@ -88,20 +88,55 @@ public class QueryFilter {
 
     private final Evaluator evaluator;
 
+    /**
+     * The query in disjunctive normal form. Null for the static filters
+     */
+    private final List<Conjunction> conjunctions;
+
     public static QueryFilter create(Query q) throws QueryFilterException {
         List<Conjunction> dnf = createDisjunctiveNormalForm(q);
+        // the evaluator creation consumes the list, but leaves the terms of each conjunction
+        List<Conjunction> conjunctions = new ArrayList<>(dnf);
         Evaluator ev = DisjunctionEvaluator.create(dnf);
-        return new QueryFilter(ev);
+        return new QueryFilter(ev, conjunctions);
     }
 
     private QueryFilter(Evaluator evaluator) {
+        this(evaluator, null);
+    }
+
+    private QueryFilter(Evaluator evaluator, List<Conjunction> conjunctions) {
         this.evaluator = evaluator;
+        this.conjunctions = conjunctions;
     }
 
     public boolean evaluate(ServiceDocument document, ServiceDocumentDescription description) {
         return this.evaluator.evaluate(document, description);
     }
 
+    /**
+     * Returns, for each conjunction of the query in disjunctive normal form, the terms that
+     * require a top level property to equal a value. A document can only match the filter if,
+     * for some conjunction, it has all these property values. Returns null for the static filters
+     */
+    List<List<QueryTerm>> getDispatchTerms() {
+        if (this.conjunctions == null) {
+            return null;
+        }
+
+        List<List<QueryTerm>> dispatchTerms = new ArrayList<>(this.conjunctions.size());
+        for (Conjunction conjunction : this.conjunctions) {
+            List<QueryTerm> terms = new ArrayList<>();
+            for (Term term : conjunction.terms) {
+                if (isTermEligibleForDispatch(term)) {
+                    terms.add(term.term);
+                }
+            }
+            dispatchTerms.add(terms);
+        }
+        return dispatchTerms;
+    }
+
     /**
      * Term represents a single term in a {@link Conjunction}.
      *
@@ -123,6 +123,33 @@ public class QueryPageService extends StatelessService {
         getHost().stopService(this);
     }
 
+    /**
+     * Stops the page service. For {@link QueryOption#SINGLE_USE} queries, the index searcher
+     * backing the remaining pages is deleted as well, so a client that stops paging releases
+     * index resources before the query task expires
+     */
+    @Override
+    public void handleDelete(Operation delete) {
+        QueryRuntimeContext context = this.spec.context;
+        if (!this.spec.options.contains(QueryOption.SINGLE_USE) || context == null
+                || context.nativeSearcher == null) {
+            delete.complete();
+            return;
+        }
+
+        DeleteQueryRuntimeContextRequest request = new DeleteQueryRuntimeContextRequest();
+        request.documentKind = DeleteQueryRuntimeContextRequest.KIND;
+        request.context = context;
+        sendRequest(Operation.createPatch(this, this.indexLink)
+                .setBodyNoCloning(request)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        logWarning("Failed to delete runtime context: %s", Utils.toString(e));
+                    }
+                    delete.complete();
+                }));
+    }
+
     private void forwardToLucene(QueryTask task, Operation get) {
         try {
             Operation localPatch = Operation.createPatch(UriUtils.buildUri(getHost(),
@@ -208,6 +208,14 @@ public class QueryTask extends ServiceDocument {
              * metadata.
              */
             INDEXED_METADATA,
+
+            /**
+             * Query results will contain the aggregations specified through
+             * {@link QuerySpecification#aggregationTerms}, computed over all the documents that
+             * satisfy the query, in {@link ServiceDocumentQueryResult#aggregations}. The results
+             * will not contain links or documents
+             */
+            AGGREGATE,
         }
 
         public enum SortOrder {
@@ -298,6 +306,13 @@ public class QueryTask extends ServiceDocument {
          */
         public Long expectedResultCount;
 
+        /**
+         * Aggregations to compute over the documents matching the query. Used in combination with
+         * {@code QueryOption#AGGREGATE}
+         */
+        @Since(ReleaseConstants.RELEASE_VERSION_1_6_0)
+        public List<AggregationTerm> aggregationTerms;
+
         /**
          * A set of options that determine query behavior
          */
@@ -552,6 +567,73 @@ public class QueryTask extends ServiceDocument {
         }
     }
 
+    public static class AggregationTerm {
+        public enum AggregationType {
+            /**
+             * Number of documents with a value for the property. Requires a numeric property, or
+             * a property indexed with {@code PropertyIndexingOption#SORT}
+             */
+            COUNT,
+
+            /**
+             * Sum of the property values. Requires a numeric property
+             */
+            SUM,
+
+            /**
+             * Lowest property value. Requires a numeric property
+             */
+            MIN,
+
+            /**
+             * Highest property value. Requires a numeric property
+             */
+            MAX,
+
+            /**
+             * Average of the property values. Requires a numeric property
+             */
+            AVG,
+
+            /**
+             * Number of documents per property value. Requires a numeric property, or a property
+             * indexed with {@code PropertyIndexingOption#SORT}
+             */
+            TERMS
+        }
+
+        /**
+         * Key of the aggregation in the query results. Defaults to the aggregation type and the
+         * property name, for example "sum(counter)"
+         */
+        public String name;
+
+        public String propertyName;
+        public TypeName propertyType;
+        public AggregationType type;
+
+        public static AggregationTerm create(AggregationType type, String propertyName,
+                TypeName propertyType) {
+            AggregationTerm term = new AggregationTerm();
+            term.type = type;
+            term.propertyName = propertyName;
+            term.propertyType = propertyType;
+            return term;
+        }
+
+        public String getResultName() {
+            if (this.name != null) {
+                return this.name;
+            }
+            return this.type.name().toLowerCase() + "(" + this.propertyName + ")";
+        }
+
+        public boolean isNumeric() {
+            return this.propertyType == TypeName.LONG || this.propertyType == TypeName.DOUBLE
+                    || this.propertyType == TypeName.DATE;
+        }
+    }
+
     public static class Query {
         public enum Occurance {
             MUST_OCCUR, MUST_NOT_OCCUR, SHOULD_OCCUR
@@ -1200,6 +1282,20 @@ public class QueryTask extends ServiceDocument {
             return this;
         }
 
+        /**
+         * Adds an aggregation to the {@code QuerySpecification#aggregationTerms}, and the
+         * {@code QueryOption#AGGREGATE} option
+         */
+        public Builder addAggregationTerm(AggregationTerm.AggregationType type, String fieldName,
+                TypeName fieldType) {
+            if (this.querySpec.aggregationTerms == null) {
+                this.querySpec.aggregationTerms = new ArrayList<>();
+            }
+            this.querySpec.aggregationTerms.add(AggregationTerm.create(type, fieldName, fieldType));
+            this.querySpec.options.add(QueryOption.AGGREGATE);
+            return this;
+        }
+
         /**
          * Sets the {@code QuerySpecification#groupByTerm}
          */
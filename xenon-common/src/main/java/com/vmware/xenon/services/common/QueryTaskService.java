@@ -17,6 +17,7 @@ import static com.vmware.xenon.common.ServiceDocumentQueryResult.ContinuousResul
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -24,9 +25,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import com.vmware.xenon.common.Operation;
@@ -40,6 +45,8 @@ import com.vmware.xenon.common.TaskState.TaskStage;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+import com.vmware.xenon.services.common.QueryTask.AggregationTerm;
+import com.vmware.xenon.services.common.QueryTask.AggregationTerm.AggregationType;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
@@ -188,6 +195,45 @@ public class QueryTaskService extends StatefulService {
             }
         }
 
+        if (initState.querySpec.options.contains(QueryOption.AGGREGATE)) {
+            final String errFmt = QueryOption.AGGREGATE + " is not compatible with %s";
+            for (QueryOption incompatible : EnumSet.of(QueryOption.COUNT, QueryOption.GROUP_BY,
+                    QueryOption.CONTINUOUS, QueryOption.INCLUDE_ALL_VERSIONS,
+                    QueryOption.TIME_SNAPSHOT, QueryOption.OWNER_SELECTION)) {
+                if (initState.querySpec.options.contains(incompatible)) {
+                    startPost.fail(new IllegalArgumentException(
+                            String.format(errFmt, incompatible)));
+                    return false;
+                }
+            }
+            if (initState.querySpec.aggregationTerms == null
+                    || initState.querySpec.aggregationTerms.isEmpty()) {
+                startPost.fail(new IllegalArgumentException(
+                        "querySpec.aggregationTerms is required with " + QueryOption.AGGREGATE));
+                return false;
+            }
+            Set<String> names = new HashSet<>();
+            for (AggregationTerm term : initState.querySpec.aggregationTerms) {
+                if (term.type == null || term.propertyName == null) {
+                    startPost.fail(new IllegalArgumentException(
+                            "type and propertyName are required for each aggregation term"));
+                    return false;
+                }
+                if (term.type != AggregationType.COUNT && term.type != AggregationType.TERMS
+                        && !term.isNumeric()) {
+                    startPost.fail(new IllegalArgumentException(String.format(
+                            "%s aggregation on %s requires a numeric propertyType", term.type,
+                            term.propertyName)));
+                    return false;
+                }
+                if (!names.add(term.getResultName())) {
+                    startPost.fail(new IllegalArgumentException(
+                            "Duplicate aggregation name " + term.getResultName()));
+                    return false;
+                }
+            }
+        }
+
         if (initState.querySpec.options.contains(QueryOption.SELECT_LINKS)) {
             final String errFmt = QueryOption.SELECT_LINKS + " is not compatible with %s";
             if (initState.querySpec.options.contains(QueryOption.COUNT)) {
@@ -236,10 +282,13 @@ public class QueryTaskService extends StatefulService {
         if (initState.querySpec.options.contains(QueryOption.BROADCAST)
                 && initState.querySpec.options.contains(QueryOption.SORT)
                 && initState.querySpec.sortTerm != null
-                && !Objects.equals(initState.querySpec.sortTerm.propertyName, ServiceDocument.FIELD_NAME_SELF_LINK)) {
+                && !Objects.equals(initState.querySpec.sortTerm.propertyName, ServiceDocument.FIELD_NAME_SELF_LINK)
+                && !initState.querySpec.options.contains(QueryOption.EXPAND_CONTENT)) {
+            // node results are merged on the sort term values of the expanded documents
             startPost.fail(new IllegalArgumentException(QueryOption.BROADCAST
                     + " only supports sorting on ["
-                    + ServiceDocument.FIELD_NAME_SELF_LINK + "]"));
+                    + ServiceDocument.FIELD_NAME_SELF_LINK + "], or on other properties with "
+                    + QueryOption.EXPAND_CONTENT));
             return false;
         }
 
@@ -305,39 +354,83 @@ public class QueryTaskService extends StatefulService {
                         }
                     }
 
-                    collectBroadcastQueryResults(rsp.jsonResponses, queryTask);
+                    decodeBroadcastQueryResults(rsp.jsonResponses, (queryResults, ex) -> {
+                        if (ex != null) {
+                            failTask(ex, startPost, null);
+                            return;
+                        }
+
+                        collectBroadcastQueryResults(queryResults, queryTask);
 
-                    queryTask.taskInfo.stage = TaskStage.FINISHED;
-                    if (startPost != null) {
-                        // direct query, complete original POST
-                        startPost.setBodyNoCloning(queryTask).complete();
-                    } else {
-                        // self patch with results
-                        sendRequest(Operation.createPatch(getUri()).setBodyNoCloning(queryTask));
-                    }
+                        queryTask.taskInfo.stage = TaskStage.FINISHED;
+                        if (startPost != null) {
+                            // direct query, complete original POST
+                            startPost.setBodyNoCloning(queryTask).complete();
+                        } else {
+                            // self patch with results
+                            sendRequest(Operation.createPatch(getUri()).setBodyNoCloning(queryTask));
+                        }
+                    });
                 });
         this.getHost().sendRequest(op);
     }
 
-    private void collectBroadcastQueryResults(Map<URI, String> jsonResponses, QueryTask queryTask) {
-        long startTimeNanos = System.nanoTime();
+    /**
+     * Deserializes the query results of each node. The responses of large expanded queries take
+     * most of the merge time to decode, so each is decoded in its own task on the host executor
+     */
+    private void decodeBroadcastQueryResults(Map<URI, String> jsonResponses,
+            BiConsumer<List<ServiceDocumentQueryResult>, Throwable> completion) {
+        List<String> responses = new ArrayList<>(jsonResponses.values());
+        if (responses.size() <= 1) {
+            List<ServiceDocumentQueryResult> queryResults = new ArrayList<>();
+            try {
+                for (String json : responses) {
+                    queryResults.add(Utils.fromJson(json, QueryTask.class).results);
+                }
+            } catch (Throwable e) {
+                completion.accept(null, e);
+                return;
+            }
+            completion.accept(queryResults, null);
+            return;
+        }
 
-        List<ServiceDocumentQueryResult> queryResults = new ArrayList<>();
-        for (Map.Entry<URI, String> entry : jsonResponses.entrySet()) {
-            QueryTask rsp = Utils.fromJson(entry.getValue(), QueryTask.class);
-            queryResults.add(rsp.results);
+        ServiceDocumentQueryResult[] decoded = new ServiceDocumentQueryResult[responses.size()];
+        AtomicInteger remaining = new AtomicInteger(responses.size());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < responses.size(); i++) {
+            int index = i;
+            getHost().run(() -> {
+                try {
+                    decoded[index] = Utils.fromJson(responses.get(index), QueryTask.class).results;
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                if (remaining.decrementAndGet() != 0) {
+                    return;
+                }
+                if (failure.get() != null) {
+                    completion.accept(null, failure.get());
+                    return;
+                }
+                completion.accept(Arrays.asList(decoded), null);
+            });
         }
+    }
+
+    private void collectBroadcastQueryResults(List<ServiceDocumentQueryResult> queryResults,
+            QueryTask queryTask) {
+        long startTimeNanos = System.nanoTime();
 
         boolean isPaginatedQuery = queryTask.querySpec.resultLimit != null
                 && queryTask.querySpec.resultLimit < Integer.MAX_VALUE
-                && !queryTask.querySpec.options.contains(QueryOption.TOP_RESULTS);
+                && !queryTask.querySpec.options.contains(QueryOption.TOP_RESULTS)
+                && !queryTask.querySpec.options.contains(QueryOption.AGGREGATE);
 
         if (!isPaginatedQuery) {
-            boolean isAscOrder = queryTask.querySpec.sortOrder == null
-                    || queryTask.querySpec.sortOrder == QuerySpecification.SortOrder.ASC;
-
-            queryTask.results = QueryTaskUtils.mergeQueryResults(queryResults, isAscOrder,
-                    queryTask.querySpec.options);
+            queryTask.results = QueryTaskUtils.mergeQueryResults(queryResults,
+                    queryTask.querySpec);
         } else {
             URI broadcastPageServiceUri = UriUtils.buildUri(this.getHost(), UriUtils.buildUriPath(ServiceUriPaths.CORE,
                             BroadcastQueryPageService.SELF_LINK_PREFIX,
@@ -15,20 +15,29 @@ package com.vmware.xenon.services.common;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
@@ -76,6 +85,23 @@ public final class QueryTaskUtils {
         return result;
     }
 
+    private static ServiceDocumentQueryResult mergeAggregateQueries(
+            List<ServiceDocumentQueryResult> dataSources, ServiceDocumentQueryResult result) {
+        // Like count queries, each node aggregates over its own copy of the replicated documents,
+        // so the node that indexed the most documents has the most complete view
+        result.documentLinks = Collections.emptyList();
+        for (ServiceDocumentQueryResult dataSource : dataSources) {
+            if (dataSource.aggregations == null || dataSource.documentCount == null) {
+                continue;
+            }
+            if (result.aggregations == null || result.documentCount < dataSource.documentCount) {
+                result.documentCount = dataSource.documentCount;
+                result.aggregations = dataSource.aggregations;
+            }
+        }
+        return result;
+    }
+
     /**
     * Merges a list of @ServiceDocumentQueryResult that were already <b>sorted</b> on <i>documentLink</i>.
     * The merge will be done in linear time.
@@ -112,71 +138,273 @@ public final class QueryTaskUtils {
             return mergeCountQueries(dataSources, result);
         }
 
-        // For each list of documents to be merged, a pointer is maintained to indicate which element
-        // is to be merged. The initial values are 0s.
-        int[] indices = new int[dataSources.size()];
-
-        // Keep going until the last element in each list has been merged.
-        while (true) {
-            // Always pick the document link that is the smallest or largest depending on "isAscOrder" from
-            // all lists to be merged. "documentLinkPicked" is used to keep the winner.
-            String documentLinkPicked = null;
-
-            // Ties could happen among the lists. That is, multiple elements could be picked in one iteration,
-            // and the lists where they locate need to be recorded so that their pointers could be adjusted accordingly.
-            List<Integer> sourcesPicked = new ArrayList<>();
-
-            // In each iteration, the current elements in all lists need to be compared to pick the winners.
-            for (int i = 0; i < dataSources.size(); i++) {
-                // If the current list still have elements left to be merged, then proceed.
-                if (indices[i] < dataSources.get(i).documentCount
-                        && !dataSources.get(i).documentLinks.isEmpty()) {
-                    String documentLink = dataSources.get(i).documentLinks.get(indices[i]);
-                    if (documentLinkPicked == null) {
-                        // No document link has been picked in this iteration, so it is the winner at the current time.
-                        documentLinkPicked = documentLink;
-                        sourcesPicked.add(i);
-                    } else {
-                        if (isAscOrder && documentLink.compareTo(documentLinkPicked) < 0
-                                || !isAscOrder && documentLink.compareTo(documentLinkPicked) > 0) {
-                            // If this document link is smaller or bigger (depending on isAscOrder),
-                            // then replace the original winner.
-                            documentLinkPicked = documentLink;
-                            sourcesPicked.clear();
-                            sourcesPicked.add(i);
-                        } else if (documentLink.equals(documentLinkPicked)) {
-                            // If it is a tie, we will need to record this element too so that
-                            // it won't be processed in the next iteration.
-                            sourcesPicked.add(i);
-                        }
-                    }
+        if (queryOptions != null && queryOptions.contains(QueryOption.AGGREGATE)) {
+            return mergeAggregateQueries(dataSources, result);
+        }
+
+        List<SortKey> sortKeys = Collections.singletonList(SortKey.forLink(isAscOrder));
+        return mergeSortedResults(dataSources, sortKeys, Integer.MAX_VALUE, result);
+    }
+
+    /**
+    * Merges a list of @ServiceDocumentQueryResult that were each already <b>sorted</b> as the
+    * query specification requests: on its sort term, then its additional sort terms, and on
+    * <i>documentLink</i> when there is no sort term. Sorting on a property other than
+    * <i>documentLink</i> requires the documents to be present in the results.
+    *
+    * The merge uses a heap over the head of each result, so it takes O(N log K) comparisons for N
+    * documents in K results. A document present in several results is kept once, at its first
+    * position, with the highest version found. With QueryOption.TOP_RESULTS the merge stops at
+    * the result limit.
+    *
+    * @param dataSources A list of @ServiceDocumentQueryResult <b>sorted</b> as the query specifies.
+    * @param querySpec   The query specification the results were produced for.
+    * @return The merging result.
+    */
+    public static ServiceDocumentQueryResult mergeQueryResults(
+            List<ServiceDocumentQueryResult> dataSources, QuerySpecification querySpec) {
+        ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();
+        result.documents = new HashMap<>();
+        result.documentCount = 0L;
+
+        if (querySpec.options != null && querySpec.options.contains(QueryOption.COUNT)) {
+            return mergeCountQueries(dataSources, result);
+        }
+
+        if (querySpec.options != null && querySpec.options.contains(QueryOption.AGGREGATE)) {
+            return mergeAggregateQueries(dataSources, result);
+        }
+
+        int limit = Integer.MAX_VALUE;
+        if (querySpec.options != null && querySpec.options.contains(QueryOption.TOP_RESULTS)
+                && querySpec.resultLimit != null) {
+            limit = querySpec.resultLimit;
+        }
+
+        return mergeSortedResults(dataSources, getSortKeys(querySpec), limit, result);
+    }
+
+    private static List<SortKey> getSortKeys(QuerySpecification querySpec) {
+        boolean isAscOrder = querySpec.sortOrder == null
+                || querySpec.sortOrder == QuerySpecification.SortOrder.ASC;
+        List<SortKey> sortKeys = new ArrayList<>();
+        if (querySpec.sortTerm != null && querySpec.options != null
+                && querySpec.options.contains(QueryOption.SORT)) {
+            sortKeys.add(SortKey.forTerm(querySpec.sortTerm.propertyName, isAscOrder));
+            if (querySpec.additionalSortTerms != null) {
+                for (QueryTask.QueryTerm term : querySpec.additionalSortTerms) {
+                    sortKeys.add(SortKey.forTerm(term.propertyName, term.sortOrder == null
+                            || term.sortOrder == QuerySpecification.SortOrder.ASC));
                 }
             }
+        }
 
-            if (documentLinkPicked != null) {
-                // Save the winner to the result.
-                result.documentLinks.add(documentLinkPicked);
-                ServiceDocumentQueryResult partialResult = dataSources.get(sourcesPicked.get(0));
-                if (partialResult.documents != null) {
-                    result.documents.put(documentLinkPicked,
-                            partialResult.documents.get(documentLinkPicked));
-                }
-                result.documentCount++;
+        if (sortKeys.isEmpty() || !sortKeys.get(sortKeys.size() - 1).isLink) {
+            // break ties between nodes on the document link
+            sortKeys.add(SortKey.forLink(isAscOrder));
+        }
+        return sortKeys;
+    }
+
+    private static ServiceDocumentQueryResult mergeSortedResults(
+            List<ServiceDocumentQueryResult> dataSources, List<SortKey> sortKeys, int limit,
+            ServiceDocumentQueryResult result) {
+
+        // The heap holds one cursor per result with documents left to merge, ordered on the
+        // sort key values of the document each cursor points to.
+        Comparator<MergeCursor> comparator = (a, b) -> compareCursors(a, b, sortKeys);
+        PriorityQueue<MergeCursor> heap = new PriorityQueue<>(
+                Math.max(1, dataSources.size()), comparator);
+        for (ServiceDocumentQueryResult dataSource : dataSources) {
+            MergeCursor cursor = new MergeCursor(dataSource, sortKeys);
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
 
-                // Move the pointer of the lists where the winners locate.
-                for (int i : sourcesPicked) {
-                    indices[i]++;
+        // Position of each merged document link, to keep a document found in several results once
+        Map<String, Integer> mergedLinks = new HashMap<>();
+        while (!heap.isEmpty() && result.documentLinks.size() < limit) {
+            MergeCursor cursor = heap.poll();
+            String documentLink = cursor.documentLink;
+            Object document = cursor.getDocument();
+
+            if (mergedLinks.containsKey(documentLink)) {
+                Object merged = result.documents.get(documentLink);
+                if (document != null && getDocumentVersion(document) > getDocumentVersion(merged)) {
+                    result.documents.put(documentLink, document);
                 }
             } else {
-                // No document was picked, that means all lists had been processed,
-                // and the merging work is done.
-                break;
+                mergedLinks.put(documentLink, result.documentLinks.size());
+                result.documentLinks.add(documentLink);
+                if (cursor.dataSource.documents != null) {
+                    result.documents.put(documentLink, document);
+                }
+                result.documentCount++;
+            }
+
+            if (cursor.advance()) {
+                heap.add(cursor);
             }
         }
 
         return result;
     }
 
+    private static int compareCursors(MergeCursor a, MergeCursor b, List<SortKey> sortKeys) {
+        for (int i = 0; i < sortKeys.size(); i++) {
+            SortKey key = sortKeys.get(i);
+            int c = key.isLink ? a.documentLink.compareTo(b.documentLink)
+                    : compareSortValues(a.sortValues[i], b.sortValues[i]);
+            if (c != 0) {
+                return key.isAscOrder ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two sort values: numbers numerically, other values on their string form.
+     * Missing values sort lowest
+     */
+    static int compareSortValues(JsonElement a, JsonElement b) {
+        boolean isNullA = a == null || a.isJsonNull();
+        boolean isNullB = b == null || b.isJsonNull();
+        if (isNullA || isNullB) {
+            return isNullA == isNullB ? 0 : (isNullA ? -1 : 1);
+        }
+
+        if (a.isJsonPrimitive() && b.isJsonPrimitive()) {
+            JsonPrimitive pa = a.getAsJsonPrimitive();
+            JsonPrimitive pb = b.getAsJsonPrimitive();
+            if (pa.isNumber() && pb.isNumber()) {
+                return pa.getAsBigDecimal().compareTo(pb.getAsBigDecimal());
+            }
+            return pa.getAsString().compareTo(pb.getAsString());
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static long getDocumentVersion(Object document) {
+        if (document instanceof ServiceDocument) {
+            return ((ServiceDocument) document).documentVersion;
+        }
+        if (!(document instanceof JsonObject) && !(document instanceof String)) {
+            return -1;
+        }
+        JsonObject json = toJsonObject(document);
+        if (json == null) {
+            return -1;
+        }
+        JsonElement version = json.get(ServiceDocument.FIELD_NAME_VERSION);
+        if (version == null || !version.isJsonPrimitive()
+                || !version.getAsJsonPrimitive().isNumber()) {
+            return -1;
+        }
+        return version.getAsLong();
+    }
+
+    private static JsonObject toJsonObject(Object document) {
+        if (document == null) {
+            return null;
+        }
+        if (document instanceof JsonObject) {
+            return (JsonObject) document;
+        }
+        String json = document instanceof String ? (String) document : Utils.toJson(document);
+        JsonElement element = new JsonParser().parse(json);
+        return element.isJsonObject() ? element.getAsJsonObject() : null;
+    }
+
+    /**
+     * A property the merged results are sorted on
+     */
+    private static final class SortKey {
+        final boolean isLink;
+        final boolean isAscOrder;
+        final String[] path;
+
+        private SortKey(boolean isLink, boolean isAscOrder, String[] path) {
+            this.isLink = isLink;
+            this.isAscOrder = isAscOrder;
+            this.path = path;
+        }
+
+        static SortKey forLink(boolean isAscOrder) {
+            return new SortKey(true, isAscOrder, null);
+        }
+
+        static SortKey forTerm(String propertyName, boolean isAscOrder) {
+            if (ServiceDocument.FIELD_NAME_SELF_LINK.equals(propertyName)) {
+                return forLink(isAscOrder);
+            }
+            return new SortKey(false, isAscOrder,
+                    propertyName.split(Pattern.quote(QuerySpecification.FIELD_NAME_CHARACTER)));
+        }
+
+        JsonElement getValue(JsonObject document) {
+            JsonElement value = document;
+            for (String name : this.path) {
+                if (value == null || !value.isJsonObject()) {
+                    return null;
+                }
+                value = value.getAsJsonObject().get(name);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Position in one of the merged results, with the sort key values of the current document
+     */
+    private static final class MergeCursor {
+        final ServiceDocumentQueryResult dataSource;
+        final List<SortKey> sortKeys;
+        final JsonElement[] sortValues;
+        final int count;
+        int index = -1;
+        String documentLink;
+
+        MergeCursor(ServiceDocumentQueryResult dataSource, List<SortKey> sortKeys) {
+            this.dataSource = dataSource;
+            this.sortKeys = sortKeys;
+            this.sortValues = new JsonElement[sortKeys.size()];
+            int count = dataSource.documentLinks == null ? 0 : dataSource.documentLinks.size();
+            if (dataSource.documentCount != null) {
+                count = (int) Math.min(count, dataSource.documentCount);
+            }
+            this.count = count;
+        }
+
+        Object getDocument() {
+            return this.dataSource.documents == null ? null
+                    : this.dataSource.documents.get(this.documentLink);
+        }
+
+        boolean advance() {
+            if (++this.index >= this.count) {
+                return false;
+            }
+            this.documentLink = this.dataSource.documentLinks.get(this.index);
+
+            JsonObject document = null;
+            for (int i = 0; i < this.sortKeys.size(); i++) {
+                SortKey key = this.sortKeys.get(i);
+                if (key.isLink) {
+                    continue;
+                }
+                if (document == null) {
+                    document = toJsonObject(getDocument());
+                    if (document == null) {
+                        break;
+                    }
+                }
+                this.sortValues[i] = key.getValue(document);
+            }
+            return true;
+        }
+    }
+
     public static void expandLinks(ServiceHost host, QueryTask task, Operation op) {
         ServiceDocumentQueryResult result = task.results;
         if (!task.querySpec.options.contains(QueryOption.EXPAND_LINKS) || result == null
@@ -14,11 +14,17 @@
 package com.vmware.xenon.services.common;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Operation.SerializedOperation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.OperationTraceBuffer;
+import com.vmware.xenon.common.OperationTraceBuffer.OperationTraceRecord;
 import com.vmware.xenon.common.RequestRouter.Route.RouteDocumentation;
 import com.vmware.xenon.common.RequestRouter.Route.RouteDocumentation.ApiResponse;
 import com.vmware.xenon.common.ServiceHost;
@@ -92,6 +98,8 @@ public class ServiceHostManagementService extends StatefulService {
     public static final String STAT_NAME_SERVICE_CACHE_MISS_COUNT = "serviceCacheMissCount";
     public static final String STAT_NAME_SERVICE_CACHE_HIT_COUNT = "serviceCacheHitCount";
     public static final String STAT_NAME_RATE_LIMITED_OP_COUNT = "rateLimitedOperationCount";
+    public static final String STAT_NAME_RATE_LIMIT_ADMITTED_OP_COUNT_PREFIX = "rateLimitAdmittedOperationCount:";
+    public static final String STAT_NAME_RATE_LIMIT_THROTTLED_OP_COUNT_PREFIX = "rateLimitThrottledOperationCount:";
     public static final String STAT_NAME_PENDING_SERVICE_DELETION_COUNT = "pendingServiceDeletionCount";
 
     public static final String STAT_NAME_AUTO_BACKUP_SKIPPED_COUNT = "autoBackupSkippedCount";
@@ -99,6 +107,10 @@ public class ServiceHostManagementService extends StatefulService {
 
     public static final String STAT_NAME_AUTHORIZATION_CACHE_SIZE = "authorizationCacheSize";
     public static final String STAT_NAME_AUTHORIZATION_CACHE_INSERT_COUNT = "authorizationCacheInsertCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_HIT_COUNT = "authorizationCacheHitCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_MISS_COUNT = "authorizationCacheMissCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_EVICTION_COUNT = "authorizationCacheEvictionCount";
+    public static final String STAT_NAME_AUTHORIZATION_CACHE_INVALID_TOKEN_HIT_COUNT = "authorizationCacheInvalidTokenHitCount";
 
     public ServiceHostManagementService() {
         super(ServiceHostState.class);
@@ -133,8 +145,46 @@ public class ServiceHostManagementService extends StatefulService {
 
         public OperationTracingEnable enable = OperationTracingEnable.START;
         public String level;
+
+        /**
+         * Record operations in the in memory trace buffer of the host, instead of posting them
+         * to the operation index
+         */
+        public boolean useTraceBuffer;
+
+        /**
+         * Record one of every N operations in the trace buffer
+         */
+        public int sampleInterval = 1;
+
+        /**
+         * Number of records the trace buffer holds per thread
+         */
+        public int recordCountPerThread = OperationTraceBuffer.DEFAULT_RECORD_COUNT_PER_THREAD;
     }
 
+    /**
+     * Returns the operation trace buffer records. If drain is set, the records are removed
+     * from the buffer, and if flushToIndex is also set, they are posted asynchronously, in
+     * batches, to the operation index
+     */
+    public static class OperationTraceBufferRequest extends BaseManagementServiceRequest {
+        public static final String KIND = Utils.buildKind(OperationTraceBufferRequest.class);
+
+        public boolean drain;
+        public boolean flushToIndex;
+    }
+
+    public static class OperationTraceBufferResponse {
+        public static final String KIND = Utils.buildKind(OperationTraceBufferResponse.class);
+
+        public String kind = KIND;
+        public List<OperationTraceRecord> records;
+        public long droppedRecordCount;
+    }
+
+    public static final int OPERATION_TRACE_FLUSH_BATCH_SIZE = 256;
+
     public static class ConfigureInboundRequestLogging extends BaseManagementServiceRequest {
         public static final String KIND = Utils.buildKind(ConfigureInboundRequestLogging.class);
         public ServiceHost.RequestLoggingInfo loggingInfo;
@@ -298,6 +348,12 @@ public class ServiceHostManagementService extends StatefulService {
                 return;
             }
 
+            if (request.kind.equals(OperationTraceBufferRequest.KIND)) {
+                OperationTraceBufferRequest tr = patch.getBody(OperationTraceBufferRequest.class);
+                handleOperationTraceBufferRequest(tr, patch);
+                return;
+            }
+
             if (request.kind.equals(ConfigureInboundRequestLogging.KIND)) {
                 ConfigureInboundRequestLogging lr = patch.getBody(ConfigureInboundRequestLogging.class);
                 handleConfigureInboundRequestLogging(lr, patch);
@@ -380,6 +436,18 @@ public class ServiceHostManagementService extends StatefulService {
 
     private void handleOperationTracingRequest(ConfigureOperationTracingRequest req, Operation op)
             throws Exception {
+        if (req.useTraceBuffer) {
+            OperationTraceBuffer traceBuffer = null;
+            if (req.enable == OperationTracingEnable.START) {
+                traceBuffer = new OperationTraceBuffer(req.recordCountPerThread,
+                        req.sampleInterval);
+            }
+            getHost().setOperationTraceBuffer(traceBuffer);
+            this.logInfo("%s operation trace buffer", traceBuffer != null ? "Started" : "Stopped");
+            op.complete();
+            return;
+        }
+
         URI operationTracingServiceUri = UriUtils.buildUri(this.getHost(),
                 ServiceUriPaths.CORE_OPERATION_INDEX);
 
@@ -416,6 +484,66 @@ public class ServiceHostManagementService extends StatefulService {
         }
     }
 
+    private void handleOperationTraceBufferRequest(OperationTraceBufferRequest req, Operation op) {
+        OperationTraceBuffer traceBuffer = getHost().getOperationTraceBuffer();
+        if (traceBuffer == null) {
+            op.fail(new IllegalStateException("operation trace buffer is not started"));
+            return;
+        }
+
+        if (req.flushToIndex && (!req.drain
+                || getHost().getServiceStage(OperationIndexService.SELF_LINK) == null)) {
+            op.fail(new IllegalArgumentException(
+                    "flushToIndex requires drain and a started operation index"));
+            return;
+        }
+
+        OperationTraceBufferResponse rsp = new OperationTraceBufferResponse();
+        rsp.records = traceBuffer.snapshot(req.drain);
+        rsp.droppedRecordCount = traceBuffer.getDroppedRecordCount();
+
+        if (req.flushToIndex) {
+            flushOperationTraceRecords(rsp.records, 0, Utils.getNowMicrosUtc());
+        }
+
+        op.setStatusCode(Operation.STATUS_CODE_OK);
+        op.setBodyNoCloning(rsp).complete();
+    }
+
+    private void flushOperationTraceRecords(List<OperationTraceRecord> records, int offset,
+            long flushTimeMicros) {
+        if (offset >= records.size()) {
+            return;
+        }
+
+        int end = Math.min(records.size(), offset + OPERATION_TRACE_FLUSH_BATCH_SIZE);
+        URI operationIndexUri = UriUtils.buildUri(getHost(), OperationIndexService.SELF_LINK);
+        List<Operation> posts = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; i++) {
+            OperationTraceRecord record = records.get(i);
+            SerializedOperation sop = new SerializedOperation();
+            sop.documentKind = SerializedOperation.KIND;
+            sop.documentSelfLink = flushTimeMicros + "-" + i;
+            sop.id = (long) i;
+            sop.referer = getUri();
+            sop.action = record.action;
+            sop.path = record.path;
+            sop.statusCode = record.statusCode;
+            sop.jsonBody = Utils.toJson(record);
+            posts.add(Operation.createPost(operationIndexUri).setBodyNoCloning(sop));
+        }
+
+        OperationJoin.create(posts)
+                .setCompletion((ops, failures) -> {
+                    if (failures != null) {
+                        logWarning("Failed to flush %d operation trace records: %s",
+                                failures.size(), Utils.toString(failures));
+                    }
+                    flushOperationTraceRecords(records, end, flushTimeMicros);
+                })
+                .sendWith(this);
+    }
+
     private void handleConfigureInboundRequestLogging(ConfigureInboundRequestLogging request, Operation op) {
         if (request.loggingInfo == null) {
             op.fail(new IllegalArgumentException("loggingInfo is missing"));
@@ -83,6 +83,9 @@ public final class ServiceUriPaths {
     public static final String ODATA_QUERIES = UriUtils.buildUriPath(ServiceUriPaths.CORE,
             "odata-queries");
 
+    public static final String CORE_NOTIFICATION_DISPATCH = UriUtils.buildUriPath(
+            ServiceUriPaths.CORE, "notification-dispatch");
+
     public static final String CORE_LOCAL_QUERY_TASKS = UriUtils.buildUriPath(ServiceUriPaths.CORE,
             "local-query-tasks");
 
@@ -395,6 +395,8 @@ public class TestAuthorization extends BasicTestCase {
         TestRequestSender sender = this.host.getTestRequestSender();
         Operation responseOp = sender.sendAndWait(Operation.createGet(this.host, ExampleService.FACTORY_LINK));
 
+        // cache stats are published periodically, update them now
+        ((ServiceHost) this.host).updateAuthorizationCacheStats();
         Map<String, ServiceStats.ServiceStat> stat = this.host.getServiceStats(
                 UriUtils.buildUri(this.host, ServiceUriPaths.CORE_MANAGEMENT));
         double currentInsertCount = stat.get(
@@ -407,6 +409,7 @@ public class TestAuthorization extends BasicTestCase {
         // Make a second request and verify that the cache did not get updated, instead Xenon re-used
         // the cached Guest authorization context.
         sender.sendAndWait(Operation.createGet(this.host, ExampleService.FACTORY_LINK));
+        ((ServiceHost) this.host).updateAuthorizationCacheStats();
         stat = this.host.getServiceStats(
                 UriUtils.buildUri(this.host, ServiceUriPaths.CORE_MANAGEMENT));
         double newInsertCount = stat.get(
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.OperationTraceBuffer.OperationTraceRecord;
+import com.vmware.xenon.common.Service.Action;
+
+public class TestOperationTraceBuffer {
+
+    private static final URI TRACED_URI = URI.create("http://localhost:8000/traced");
+
+    private static void traceAndComplete(OperationTraceBuffer buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            Operation op = Operation.createPatch(TRACED_URI);
+            buffer.trace(op, true);
+            op.complete();
+        }
+    }
+
+    @Test
+    public void record() {
+        OperationTraceBuffer buffer = new OperationTraceBuffer(6, 1);
+        assertEquals(8, buffer.getRecordCountPerThread());
+
+        traceAndComplete(buffer, 3);
+        List<OperationTraceRecord> records = buffer.snapshot(false);
+        assertEquals(3, records.size());
+        for (OperationTraceRecord r : records) {
+            assertEquals(TRACED_URI.getPath(), r.path);
+            assertEquals(Action.PATCH, r.action);
+            assertEquals(Operation.STATUS_CODE_OK, r.statusCode);
+            assertTrue(r.isInbound);
+            assertTrue(r.completionTimeMicros >= r.startTimeMicros);
+        }
+
+        // records are returned until drained
+        assertEquals(3, buffer.snapshot(true).size());
+        assertEquals(0, buffer.snapshot(true).size());
+
+        // records overwritten before they are drained are counted as dropped. The oldest slot
+        // of a full ring is the next one written by its owner, so it is dropped as well
+        traceAndComplete(buffer, 10);
+        assertEquals(7, buffer.snapshot(true).size());
+        assertEquals(3, buffer.getDroppedRecordCount());
+    }
+
+    @Test
+    public void sampling() {
+        OperationTraceBuffer buffer = new OperationTraceBuffer(64, 4);
+        traceAndComplete(buffer, 16);
+        assertEquals(4, buffer.snapshot(true).size());
+
+        traceAndComplete(buffer, 3);
+        assertEquals(1, buffer.snapshot(true).size());
+    }
+
+    @Test
+    public void removeRingOfTerminatedThread() throws Throwable {
+        OperationTraceBuffer buffer = new OperationTraceBuffer(16, 1);
+        traceAndComplete(buffer, 1);
+
+        Thread t = new Thread(() -> traceAndComplete(buffer, 2));
+        t.start();
+        t.join();
+        assertEquals(2, buffer.getRingCount());
+
+        // the ring is kept until its records are drained
+        assertEquals(3, buffer.snapshot(false).size());
+        assertEquals(2, buffer.getRingCount());
+        assertEquals(3, buffer.snapshot(true).size());
+        assertEquals(1, buffer.getRingCount());
+
+        traceAndComplete(buffer, 1);
+        assertEquals(1, buffer.snapshot(true).size());
+        assertEquals(1, buffer.getRingCount());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class TestPathPrefixTrie {
+
+    @Test
+    public void matches() {
+        PathPrefixTrie trie = new PathPrefixTrie(Arrays.asList("/core/management",
+                "/core/node-groups", "/core/node-selectors/default", "/core/node"));
+        assertTrue(trie.matches("/core/management"));
+        assertTrue(trie.matches("/core/management/process-log"));
+        assertTrue(trie.matches("/core/node-groups/default"));
+        // a prefix of a longer prefix matches on its own
+        assertTrue(trie.matches("/core/nodes"));
+        assertTrue(trie.matches("/core/node-selectors/default"));
+
+        assertFalse(trie.matches("/core/manage"));
+        assertFalse(trie.matches("/core/examples"));
+        assertFalse(trie.matches("/core"));
+        assertFalse(trie.matches(""));
+    }
+
+    @Test
+    public void emptyPrefix() {
+        assertFalse(new PathPrefixTrie(Collections.emptyList()).matches("/core"));
+        PathPrefixTrie trie = new PathPrefixTrie(Collections.singletonList(""));
+        assertTrue(trie.matches("/core"));
+        assertTrue(trie.matches(""));
+    }
+}
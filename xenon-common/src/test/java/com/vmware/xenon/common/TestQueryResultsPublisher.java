@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.test.TestContext;
+import com.vmware.xenon.services.common.ExampleService;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.QueryTask.Query;
+import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
+
+public class TestQueryResultsPublisher extends BasicReusableHostTestCase {
+
+    public int serviceCount = 25;
+
+    public int resultLimit = 4;
+
+    private String namePrefix;
+
+    /**
+     * Requests one document at a time, from the completion thread of the previous one
+     */
+    private static class RecordingSubscriber implements Flow.Subscriber<ExampleServiceState> {
+        final TestContext ctx;
+        final Set<String> names = new HashSet<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean isCompleted = new AtomicBoolean();
+        final int cancelAfter;
+        Flow.Subscription subscription;
+
+        RecordingSubscriber(TestContext ctx, int cancelAfter) {
+            this.ctx = ctx;
+            this.cancelAfter = cancelAfter;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ExampleServiceState item) {
+            synchronized (this.names) {
+                this.names.add(item.name);
+                if (this.names.size() == this.cancelAfter) {
+                    this.subscription.cancel();
+                    this.ctx.complete();
+                    return;
+                }
+            }
+            this.subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.failure.set(throwable);
+            this.ctx.complete();
+        }
+
+        @Override
+        public void onComplete() {
+            this.isCompleted.set(true);
+            this.ctx.complete();
+        }
+    }
+
+    @Before
+    public void setUp() throws Throwable {
+        this.namePrefix = "publisher-" + UUID.randomUUID().toString() + "-";
+        for (int i = 0; i < this.serviceCount; i++) {
+            ExampleServiceState state = new ExampleServiceState();
+            state.name = this.namePrefix + i;
+            this.host.sendAndWaitExpectSuccess(Operation
+                    .createPost(UriUtils.buildUri(this.host, ExampleService.FACTORY_LINK))
+                    .setBody(state));
+        }
+    }
+
+    private QueryTask createQueryTask() {
+        Query query = Query.Builder.create()
+                .addKindFieldClause(ExampleServiceState.class)
+                .addFieldClause(ExampleServiceState.FIELD_NAME_NAME, this.namePrefix + "*",
+                        MatchType.WILDCARD)
+                .build();
+        return QueryTask.Builder.createDirectTask()
+                .setQuery(query)
+                .setResultLimit(this.resultLimit)
+                .build();
+    }
+
+    @Test
+    public void publishAllPages() throws Throwable {
+        TestContext ctx = this.host.testCreate(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber(ctx, -1);
+        QueryResultsPublisher.create(this.host, ExampleServiceState.class, createQueryTask())
+                .subscribe(subscriber);
+        this.host.testWait(ctx);
+
+        assertEquals(null, subscriber.failure.get());
+        assertTrue(subscriber.isCompleted.get());
+        assertEquals(this.serviceCount, subscriber.names.size());
+        for (String name : subscriber.names) {
+            assertTrue(name.startsWith(this.namePrefix));
+        }
+    }
+
+    @Test
+    public void cancel() throws Throwable {
+        int cancelAfter = this.resultLimit + 1;
+        TestContext ctx = this.host.testCreate(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber(ctx, cancelAfter);
+        QueryResultsPublisher.create(this.host, ExampleServiceState.class, createQueryTask())
+                .subscribe(subscriber);
+        this.host.testWait(ctx);
+
+        // the prefetched page is not emitted after cancellation
+        Thread.sleep(100);
+        assertEquals(cancelAfter, subscriber.names.size());
+        assertFalse(subscriber.isCompleted.get());
+        assertEquals(null, subscriber.failure.get());
+    }
+
+    @Test
+    public void invalidRequestCount() throws Throwable {
+        TestContext ctx = this.host.testCreate(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        QueryResultsPublisher.create(this.host, ExampleServiceState.class, createQueryTask())
+                .subscribe(new Flow.Subscriber<ExampleServiceState>() {
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        subscription.request(0);
+                    }
+
+                    @Override
+                    public void onNext(ExampleServiceState item) {
+                        ctx.fail(new IllegalStateException("unexpected document"));
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        failure.set(throwable);
+                        ctx.complete();
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        ctx.fail(new IllegalStateException("unexpected completion"));
+                    }
+                });
+        this.host.testWait(ctx);
+        assertTrue(failure.get() instanceof IllegalArgumentException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countQueryNotSupported() {
+        QueryTask task = createQueryTask();
+        task.querySpec.options.add(QueryTask.QuerySpecification.QueryOption.COUNT);
+        QueryResultsPublisher.create(this.host, ExampleServiceState.class, task);
+    }
+}
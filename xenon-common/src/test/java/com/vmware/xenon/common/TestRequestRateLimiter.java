@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceHost.RequestRateInfo;
+import com.vmware.xenon.common.ServiceHost.RequestRateInfo.Option;
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats.AggregationType;
+import com.vmware.xenon.common.test.VerificationHost;
+
+public class TestRequestRateLimiter {
+
+    private static RequestRateInfo createRequestRateInfo(double limit, long windowMillis) {
+        RequestRateInfo ri = new RequestRateInfo();
+        ri.limit = limit;
+        ri.options = EnumSet.of(Option.FAIL);
+        ri.timeSeries = new TimeSeriesStats(1, windowMillis, EnumSet.of(AggregationType.SUM));
+        return ri;
+    }
+
+    @Test
+    public void burstThenThrottle() throws Throwable {
+        // a long window, so no tokens are replenished while the test runs
+        RequestRateInfo ri = createRequestRateInfo(10, TimeUnit.HOURS.toMillis(1));
+        RequestRateLimiter limiter = new RequestRateLimiter(ri);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(10, limiter.getAdmittedCount());
+        assertEquals(1, limiter.getThrottledCount());
+
+        ri.burstSize = 2;
+        limiter = new RequestRateLimiter(ri);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void tokensReplenish() throws Throwable {
+        RequestRateInfo ri = createRequestRateInfo(1, 10);
+        RequestRateLimiter limiter = new RequestRateLimiter(ri);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        Thread.sleep(20);
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void splitAcrossNodeGroup() throws Throwable {
+        RequestRateInfo ri = createRequestRateInfo(4, TimeUnit.HOURS.toMillis(1));
+        ri.options.add(Option.SPLIT_ACROSS_NODE_GROUP);
+        ri.burstSize = 4;
+        RequestRateLimiter limiter = new RequestRateLimiter(ri);
+        limiter.setNodeCount(2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void pathPrefix() {
+        RequestRateInfo ri = createRequestRateInfo(1, 1000);
+        RequestRateLimiter limiter = new RequestRateLimiter(ri);
+        assertTrue(limiter.isApplicable("/core/examples/1"));
+
+        ri.pathPrefix = "/core/examples";
+        limiter = new RequestRateLimiter(ri);
+        assertTrue(limiter.isApplicable("/core/examples/1"));
+        assertFalse(limiter.isApplicable("/core/management"));
+    }
+
+    @Test
+    public void longestPathPrefixPerKey() throws Throwable {
+        VerificationHost host = VerificationHost.create(0);
+        try {
+            String key = "/core/authz/users/limited";
+            long windowMillis = TimeUnit.HOURS.toMillis(1);
+            host.setRequestRateLimit(key, createRequestRateInfo(1, windowMillis));
+            RequestRateInfo ri = createRequestRateInfo(2, windowMillis);
+            ri.pathPrefix = "/core/examples";
+            host.setRequestRateLimit(key, ri);
+            ri = createRequestRateInfo(3, windowMillis);
+            ri.pathPrefix = "/core/examples/special";
+            host.setRequestRateLimit(key, ri);
+
+            // each prefix has its own limit, and the longest matching prefix applies
+            assertEquals(1, host.getRequestRateLimit(key).limit, 0);
+            assertEquals(2, host.getRequestRateLimit(key, "/core/examples").limit, 0);
+            assertEquals(1, host.getRequestRateLimiter(key, "/core/management")
+                    .getRequestRateInfo().limit, 0);
+            assertEquals(2, host.getRequestRateLimiter(key, "/core/examples/1")
+                    .getRequestRateInfo().limit, 0);
+            assertEquals(3, host.getRequestRateLimiter(key, "/core/examples/special/1")
+                    .getRequestRateInfo().limit, 0);
+            assertNull(host.getRequestRateLimiter("/core/authz/users/other", "/core/examples"));
+
+            // replacing a prefixed limit leaves the other limits of the key in place
+            ri = createRequestRateInfo(4, windowMillis);
+            ri.pathPrefix = "/core/examples";
+            host.setRequestRateLimit(key, ri);
+            assertEquals(4, host.getRequestRateLimiter(key, "/core/examples/1")
+                    .getRequestRateInfo().limit, 0);
+            assertEquals(3, host.getRequestRateLimiter(key, "/core/examples/special/1")
+                    .getRequestRateInfo().limit, 0);
+            assertEquals(1, host.getRequestRateLimiter(key, "/core/management")
+                    .getRequestRateInfo().limit, 0);
+        } finally {
+            host.tearDown();
+        }
+    }
+}
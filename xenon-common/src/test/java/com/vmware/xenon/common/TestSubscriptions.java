@@ -13,6 +13,9 @@
 
 package com.vmware.xenon.common;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
@@ -41,6 +44,9 @@ import com.vmware.xenon.services.common.ExampleService;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.MinimalTestService;
 import com.vmware.xenon.services.common.NodeGroupService.NodeGroupConfig;
+import com.vmware.xenon.services.common.NotificationDispatchService;
+import com.vmware.xenon.services.common.NotificationDispatchService.NotificationBatch;
+import com.vmware.xenon.services.common.NotificationDispatchService.NotificationBatchResult;
 import com.vmware.xenon.services.common.ServiceUriPaths;
 
 
@@ -234,6 +240,147 @@ public class TestSubscriptions extends BasicTestCase {
         }
     }
 
+    @Test
+    public void batchedNotifications() throws Throwable {
+        UtilityService.setNotificationBatchingEnabled(true);
+        try {
+            this.host.setUpPeerHosts(1);
+            VerificationHost subscriberHost = this.host.getPeerHost();
+            URI uri = this.host.createExampleServices(this.host, 1, null).get(0);
+
+            int subscriberCount = 3;
+            String headerName = "x-notification-test";
+            AtomicInteger remoteNotificationCount = new AtomicInteger();
+            AtomicInteger invalidNotificationCount = new AtomicInteger();
+            TestContext notifyCtx = this.host.testCreate(subscriberCount * this.updateCount);
+            for (int i = 0; i < subscriberCount; i++) {
+                StatelessService notificationTarget = new StatelessService() {
+                    @Override
+                    public void handleRequest(Operation update) {
+                        update.complete();
+                        if (update.getAction() != Action.PATCH) {
+                            return;
+                        }
+                        // notifications delivered by the dispatch service of the subscriber
+                        // host are local requests
+                        if (update.isRemote()) {
+                            remoteNotificationCount.incrementAndGet();
+                        }
+                        // and carry the same metadata as unbatched notifications
+                        ExampleServiceState state = update.getBody(ExampleServiceState.class);
+                        if (!Operation.MEDIA_TYPE_APPLICATION_JSON.equals(update.getContentType())
+                                || update.getContextId() == null
+                                || !update.getContextId().equals(state.name)
+                                || !state.name.equals(update.getRequestHeader(headerName))
+                                || !update.hasPragmaDirective(
+                                        Operation.PRAGMA_DIRECTIVE_NOTIFICATION)) {
+                            invalidNotificationCount.incrementAndGet();
+                        }
+                        notifyCtx.complete();
+                    }
+                };
+                TestContext subscribeCtx = this.host.testCreate(1);
+                Operation subscribe = Operation.createPost(uri)
+                        .setReferer(subscriberHost.getReferer())
+                        .setCompletion(subscribeCtx.getCompletion());
+                subscriberHost.startSubscriptionService(subscribe, notificationTarget,
+                        ServiceSubscriber.create(false));
+                this.host.testWait(subscribeCtx);
+            }
+
+            for (int i = 0; i < this.updateCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                body.name = "update-" + i;
+                this.host.sendAndWaitExpectSuccess(Operation.createPatch(uri)
+                        .setBody(body)
+                        .setContextId(body.name)
+                        .addRequestHeader(headerName, body.name));
+            }
+            this.host.testWait(notifyCtx);
+            assertEquals(0, remoteNotificationCount.get());
+            assertEquals(0, invalidNotificationCount.get());
+
+            // the dispatch service only delivers notification actions to notification targets
+            StatelessService otherService = new StatelessService() {
+                @Override
+                public void handleRequest(Operation op) {
+                    op.complete();
+                }
+            };
+            subscriberHost.startServiceAndWait(otherService, "/other-service", null);
+            URI dispatchUri = UriUtils.buildUri(subscriberHost,
+                    NotificationDispatchService.SELF_LINK);
+            NotificationBatch batch = new NotificationBatch();
+            batch.action = Action.PATCH;
+            batch.referer = uri.toString();
+            batch.subscriberPaths.add(otherService.getSelfLink());
+            Operation post = this.host.getTestRequestSender().sendAndWait(
+                    Operation.createPost(dispatchUri).setBody(batch));
+            NotificationBatchResult result = post.getBody(NotificationBatchResult.class);
+            assertEquals(Operation.STATUS_CODE_FORBIDDEN, (int) result.statusCodes.get(0));
+
+            batch.action = Action.GET;
+            this.host.getTestRequestSender().sendAndWaitFailure(
+                    Operation.createPost(dispatchUri).setBody(batch));
+        } finally {
+            UtilityService.setNotificationBatchingEnabled(false);
+        }
+    }
+
+    @Test
+    public void latestStateOnlyNotifications() throws Throwable {
+        URI uri = this.host.createExampleServices(this.host, 1, null).get(0);
+        String lastName = "update-" + (this.updateCount - 1);
+
+        // hold the first notification, so the following ones are coalesced
+        Operation[] heldNotification = new Operation[1];
+        AtomicInteger notificationCount = new AtomicInteger();
+        AtomicBoolean isLatestStateNotified = new AtomicBoolean();
+        Service notificationTarget = new StatelessService() {
+            @Override
+            public void handleRequest(Operation update) {
+                if (update.getAction() != Action.PATCH) {
+                    update.complete();
+                    return;
+                }
+                notificationCount.incrementAndGet();
+                ExampleServiceState st = update.getBody(ExampleServiceState.class);
+                if (lastName.equals(st.name)) {
+                    isLatestStateNotified.set(true);
+                }
+                synchronized (heldNotification) {
+                    if (heldNotification[0] == null) {
+                        heldNotification[0] = update;
+                        return;
+                    }
+                }
+                update.complete();
+            }
+        };
+        TestContext subscribeCtx = this.host.testCreate(1);
+        Operation subscribe = Operation.createPost(uri)
+                .setReferer(this.host.getReferer())
+                .setCompletion(subscribeCtx.getCompletion());
+        this.host.startSubscriptionService(subscribe, notificationTarget,
+                ServiceSubscriber.create(false).setLatestStateOnly(true));
+        this.host.testWait(subscribeCtx);
+
+        for (int i = 0; i < this.updateCount; i++) {
+            ExampleServiceState body = new ExampleServiceState();
+            body.name = "update-" + i;
+            this.host.sendAndWaitExpectSuccess(Operation.createPatch(uri).setBody(body));
+        }
+
+        this.host.waitFor("first notification not received", () -> {
+            synchronized (heldNotification) {
+                return heldNotification[0] != null;
+            }
+        });
+        heldNotification[0].complete();
+        this.host.waitFor("latest state not notified", () -> isLatestStateNotified.get());
+        assertTrue(notificationCount.get() < this.updateCount);
+    }
+
     @Test
     public void subscriptionsToFactoryAndChildren() throws Throwable {
         this.host.stop();
@@ -207,6 +207,52 @@ public class TestSynchronizationTaskService extends BasicTestCase {
         assertTrue(finishedCount == 1);
     }
 
+    @Test
+    public void synchSkipsChildrenAgreedByPeers() throws Throwable {
+        setUpMultiNode();
+        this.host.createExampleServices(this.host.getPeerHost(), this.serviceCount, null,
+                ExampleService.FACTORY_LINK);
+        long membershipUpdateTimeMicros = getLatestMembershipUpdateTime(this.host.getPeerHostUri());
+
+        SynchronizationTaskService.State task = createSynchronizationTaskState(
+                membershipUpdateTimeMicros, ExampleService.FACTORY_LINK);
+        List<Operation> ops = this.host.getInProcessHostMap().keySet().stream()
+                .map(uri -> Operation
+                    .createPost(UriUtils.buildUri(uri, SynchronizationTaskService.FACTORY_LINK))
+                    .setBody(task)
+                    .setReferer(this.host.getUri())
+                ).collect(toList());
+
+        TestRequestSender sender = new TestRequestSender(this.host);
+        List<SynchronizationTaskService.State> results = sender
+                .sendAndWait(ops, SynchronizationTaskService.State.class);
+
+        int finishedCount = 0;
+        for (int i = 0; i < results.size(); i++) {
+            SynchronizationTaskService.State r = results.get(i);
+            if (r.taskInfo.stage != TaskState.TaskStage.FINISHED) {
+                continue;
+            }
+            finishedCount++;
+
+            // all peers have the same children, so their synchronization is skipped
+            assertEquals(this.serviceCount, r.synchCompletionCount);
+            URI statsUri = UriUtils.buildStatsUri(ops.get(i).getUri().resolve(r.documentSelfLink));
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            assertEquals(0, (long) stats.entries.get(
+                    SynchronizationTaskService.STAT_NAME_DIVERGENT_RANGE_COUNT).latestValue);
+            assertEquals(this.serviceCount, (long) stats.entries.get(
+                    SynchronizationTaskService.STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT).latestValue);
+
+            // agreed children are synchronized with at most one request per owner node and page
+            long pageCount = (this.serviceCount + r.queryResultLimit - 1) / r.queryResultLimit;
+            long batchCount = (long) stats.entries.get(
+                    SynchronizationTaskService.STAT_NAME_CHILD_SYNCH_BATCH_COUNT).latestValue;
+            assertTrue(batchCount > 0 && batchCount <= this.nodeCount * pageCount);
+        }
+        assertEquals(1, finishedCount);
+    }
+
     @Test
     public void serviceResynchOnFailure() throws Throwable {
         TestRequestSender sender = new TestRequestSender(this.host);
@@ -491,6 +491,66 @@ public class TestUtilityService extends BasicReusableHostTestCase {
         return this.host.getServiceState(null, ServiceStats.class, statsUri);
     }
 
+    @Test
+    public void timeSeriesStatsOutOfOrderAndClone() throws Throwable {
+        int numBins = 3;
+        long interval = 1000;
+        TimeSeriesStats timeSeriesStats = new TimeSeriesStats(numBins, interval,
+                EnumSet.of(AggregationType.SUM, AggregationType.MAX));
+        long baseMicros = TimeUnit.SECONDS.toMicros(1000);
+        long intervalMicros = TimeUnit.MILLISECONDS.toMicros(interval);
+        timeSeriesStats.add(baseMicros + 2 * intervalMicros, 5, 5);
+        timeSeriesStats.add(baseMicros, 1, 1);
+        timeSeriesStats.add(baseMicros + intervalMicros, 3, 3);
+        timeSeriesStats.add(baseMicros, 2, 2);
+        assertEquals(numBins, timeSeriesStats.bins.size());
+        assertEquals(TimeUnit.MICROSECONDS.toMillis(baseMicros),
+                (long) timeSeriesStats.bins.firstKey());
+        TimeBin firstBin = timeSeriesStats.bins.get(timeSeriesStats.bins.firstKey());
+        assertEquals(3.0, firstBin.sum, 0);
+        assertEquals(2.0, firstBin.max, 0);
+
+        // a bin older than all bins is ignored once all bins are in use
+        timeSeriesStats.add(baseMicros - intervalMicros, 10, 10);
+        assertEquals(TimeUnit.MICROSECONDS.toMillis(baseMicros),
+                (long) timeSeriesStats.bins.firstKey());
+
+        // a newer bin drops the oldest
+        timeSeriesStats.add(baseMicros + 3 * intervalMicros, 7, 7);
+        assertEquals(numBins, timeSeriesStats.bins.size());
+        assertEquals(7.0, timeSeriesStats.getLatestBin().max, 0);
+        assertEquals(TimeUnit.MICROSECONDS.toMillis(baseMicros + intervalMicros),
+                (long) timeSeriesStats.bins.firstKey());
+
+        // copies keep the materialized bins, and can be updated independently
+        TimeSeriesStats clone = Utils.clone(timeSeriesStats);
+        TimeSeriesStats fromJson = Utils.fromJson(Utils.toJson(timeSeriesStats),
+                TimeSeriesStats.class);
+        for (TimeSeriesStats copy : new TimeSeriesStats[] { clone, fromJson }) {
+            assertEquals(numBins, copy.bins.size());
+            copy.add(baseMicros + 3 * intervalMicros, 1, 1);
+            assertEquals(8.0, copy.getLatestBin().sum, 0);
+            assertEquals(8.0, copy.bins.get(copy.bins.lastKey()).sum, 0);
+        }
+        assertEquals(7.0, timeSeriesStats.getLatestBin().sum, 0);
+    }
+
+    @Test
+    public void logHistogramPercentiles() {
+        ServiceStatLogHistogram histogram = new ServiceStatLogHistogram();
+        assertEquals(0, histogram.getPercentile(50), 0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 10);
+        }
+        assertEquals(9, histogram.bins[1]);
+        assertEquals(90, histogram.bins[2]);
+        assertEquals(1, histogram.bins[3]);
+        assertEquals(60, histogram.getPercentile(5), 0);
+        assertEquals(600, histogram.getPercentile(50), 0);
+        assertEquals(1000, histogram.getPercentile(99), 0);
+        assertEquals(2000, histogram.getPercentile(100), 0);
+    }
+
     @Test
     public void testTimeSeriesStats() throws Throwable {
         long startTime = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
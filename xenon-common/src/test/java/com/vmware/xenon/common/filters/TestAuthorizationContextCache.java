@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.Claims;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+import com.vmware.xenon.common.Utils;
+
+public class TestAuthorizationContextCache {
+
+    private static final int MAX_SIZE = 16;
+
+    @Test
+    public void boundedSize() {
+        AuthorizationContextCache cache = new AuthorizationContextCache(MAX_SIZE);
+        long now = Utils.getSystemNowMicrosUtc();
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            String token = "token-" + i;
+            cache.put(token, createContext("/users/" + (i % 10), token, Long.MAX_VALUE), now);
+        }
+
+        int size = cache.size();
+        assertTrue(size <= MAX_SIZE);
+        assertEquals(count - size, cache.evictionCount.sum());
+        assertEquals(count, cache.insertCount.sum());
+
+        assertNull(cache.get("token-0"));
+        assertNotNull(cache.get("token-" + (count - 1)));
+        assertEquals(1, cache.missCount.sum());
+        assertEquals(1, cache.hitCount.sum());
+    }
+
+    @Test
+    public void evictExpiredFirst() {
+        // a cache of twice MAX_SIZE entries holds two entries per segment, pick three tokens
+        // that share a segment
+        List<String> tokens = getTokensOfSameSegment(3);
+        AuthorizationContextCache cache = new AuthorizationContextCache(MAX_SIZE * 2);
+        long now = Utils.getSystemNowMicrosUtc();
+        long expired = TimeUnit.MICROSECONDS.toSeconds(now) - 1;
+
+        cache.put(tokens.get(0), createContext("/users/a", tokens.get(0), Long.MAX_VALUE), now);
+        cache.put(tokens.get(1), createContext("/users/b", tokens.get(1), expired), now);
+        // access the expired entry, so the valid one is least recently used
+        assertNotNull(cache.get(tokens.get(1)));
+
+        cache.put(tokens.get(2), createContext("/users/c", tokens.get(2), Long.MAX_VALUE), now);
+        assertNotNull(cache.get(tokens.get(0)));
+        assertNull(cache.get(tokens.get(1)));
+        assertNotNull(cache.get(tokens.get(2)));
+        assertEquals(1, cache.evictionCount.sum());
+    }
+
+    @Test
+    public void clearUser() {
+        AuthorizationContextCache cache = new AuthorizationContextCache(MAX_SIZE * 4);
+        long now = Utils.getSystemNowMicrosUtc();
+        cache.put("a1", createContext("/users/a", "a1", Long.MAX_VALUE), now);
+        cache.put("a2", createContext("/users/a", "a2", Long.MAX_VALUE), now);
+        cache.put("b1", createContext("/users/b", "b1", Long.MAX_VALUE), now);
+
+        cache.clearUser("/users/a");
+        assertNull(cache.get("a1"));
+        assertNull(cache.get("a2"));
+        assertNotNull(cache.get("b1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidTokens() {
+        AuthorizationContextCache cache = new AuthorizationContextCache(MAX_SIZE);
+        long now = Utils.getSystemNowMicrosUtc();
+        cache.putInvalid("bad", now + 10, now);
+        assertTrue(cache.isInvalid("bad", now));
+        assertFalse(cache.isInvalid("good", now));
+        assertFalse(cache.isInvalid("bad", now + 10));
+        assertEquals(1, cache.invalidTokenHitCount.sum());
+
+        // a token that is cached after it was marked invalid is no longer invalid
+        cache.putInvalid("bad", now + 10, now);
+        cache.put("bad", createContext("/users/a", "bad", Long.MAX_VALUE), now);
+        assertFalse(cache.isInvalid("bad", now));
+    }
+
+    private static List<String> getTokensOfSameSegment(int count) {
+        // a cache of MAX_SIZE entries holds one entry per segment, so a token evicts the first
+        // one only if they share a segment
+        long now = Utils.getSystemNowMicrosUtc();
+        List<String> tokens = new ArrayList<>();
+        tokens.add("token-0");
+        for (int i = 1; tokens.size() < count; i++) {
+            String token = "token-" + i;
+            AuthorizationContextCache probe = new AuthorizationContextCache(MAX_SIZE);
+            probe.put(tokens.get(0), createContext("/users/a", tokens.get(0), Long.MAX_VALUE),
+                    now);
+            probe.put(token, createContext("/users/a", token, Long.MAX_VALUE), now);
+            if (probe.evictionCount.sum() == 1) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static AuthorizationContext createContext(String subject, String token,
+            long expirationSeconds) {
+        Claims.Builder cb = new Claims.Builder();
+        cb.setSubject(subject);
+        cb.setExpirationTime(expirationSeconds);
+        AuthorizationContext.Builder ab = AuthorizationContext.Builder.create();
+        ab.setClaims(cb.getResult());
+        ab.setToken(token);
+        return ab.getResult();
+    }
+}
@@ -14,11 +14,19 @@
 package com.vmware.xenon.common.http.netty;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -31,8 +39,18 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import javax.net.ssl.SSLContext;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http2.Http2SecurityUtil;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
@@ -610,6 +628,195 @@ public class NettyHttpServiceClientTest {
                 services);
     }
 
+    @Test
+    public void putRemoteNonAsciiAndKryoBody() throws Throwable {
+        List<Service> services = this.host.doThroughputServiceStart(
+                1, MinimalTestService.class, this.host.buildMinimalTestState(), null,
+                null);
+        URI serviceUri = services.get(0).getUri();
+        TestRequestSender sender = this.host.getTestRequestSender();
+
+        // bodies are encoded directly into channel buffers, both as JSON and as Kryo
+        for (String contentType : Arrays.asList(Operation.MEDIA_TYPE_APPLICATION_JSON,
+                Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)) {
+            MinimalTestServiceState body = new MinimalTestServiceState();
+            body.id = "\u00fcnic\u00f8de \u2713 \ud834\udd1e " + contentType;
+            Operation put = Operation.createPut(serviceUri)
+                    .forceRemote()
+                    .setContentType(contentType)
+                    .setBody(body);
+            MinimalTestServiceState rsp = sender.sendAndWait(put, MinimalTestServiceState.class);
+            assertEquals(body.id, rsp.id);
+
+            Operation get = Operation.createGet(serviceUri).forceRemote();
+            MinimalTestServiceState state = sender.sendAndWait(get,
+                    MinimalTestServiceState.class);
+            assertEquals(body.id, state.id);
+        }
+    }
+
+    @Test
+    public void decodeMalformedTextBody() throws Throwable {
+        byte[] valid = "text body".getBytes(Utils.CHARSET);
+        Operation op = Operation.createPost(null)
+                .setContentType(Operation.MEDIA_TYPE_TEXT_PLAIN)
+                .setContentLength(valid.length);
+        NettyHttpBodyCodec.decodeBody(op, Unpooled.wrappedBuffer(valid), true);
+        assertEquals("text body", op.getBodyRaw());
+
+        // a truncated multi byte sequence is rejected, not replaced
+        byte[] malformed = new byte[] { 't', (byte) 0xE2, (byte) 0x82 };
+        op = Operation.createPost(null)
+                .setContentType(Operation.MEDIA_TYPE_TEXT_PLAIN)
+                .setContentLength(malformed.length);
+        try {
+            NettyHttpBodyCodec.decodeBody(op, Unpooled.wrappedBuffer(malformed), true);
+            throw new IllegalStateException("expected failure");
+        } catch (CharacterCodingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void nativeTransport() throws Throwable {
+        VerificationHost nativeHost = VerificationHost.create(0);
+        try {
+            nativeHost.setNativeTransportEnabled(true);
+            nativeHost.start();
+            this.host.log("Native transport available: %s", Epoll.isAvailable());
+
+            List<Service> services = nativeHost.doThroughputServiceStart(
+                    1, MinimalTestService.class, nativeHost.buildMinimalTestState(), null,
+                    null);
+            URI serviceUri = services.get(0).getUri();
+
+            // requests from the native client, and from a NIO client, to the native listener
+            for (VerificationHost sender : Arrays.asList(nativeHost, this.host)) {
+                MinimalTestServiceState body = new MinimalTestServiceState();
+                body.id = UUID.randomUUID().toString();
+                Operation put = Operation.createPut(serviceUri)
+                        .forceRemote()
+                        .setBody(body);
+                MinimalTestServiceState rsp = sender.getTestRequestSender().sendAndWait(put,
+                        MinimalTestServiceState.class);
+                assertEquals(body.id, rsp.id);
+            }
+
+            // port reuse is off by default, so no other socket can share the listener port
+            assertFalse(NettyTransport.useReusePort(true));
+            if (Epoll.isAvailable()) {
+                EventLoopGroup group = new EpollEventLoopGroup(1);
+                try {
+                    ChannelFuture f = new ServerBootstrap().group(group)
+                            .channel(EpollServerSocketChannel.class)
+                            .option(EpollChannelOption.SO_REUSEPORT, true)
+                            .childHandler(new ChannelInboundHandlerAdapter())
+                            .bind(nativeHost.getPort()).await();
+                    assertFalse(f.isSuccess());
+                } finally {
+                    group.shutdownGracefully();
+                }
+            }
+        } finally {
+            nativeHost.tearDown();
+        }
+    }
+
+    @Test
+    public void streamingBody() throws Throwable {
+        String path = "/test/streaming-body";
+        this.host.registerStreamingBodyPath(path);
+        try {
+            this.host.startServiceAndWait(new StreamingBodyService(), path, null);
+            URL url = UriUtils.buildUri(this.host, path).toURL();
+
+            // bodies larger than the payload size limits, on the same keep-alive connection
+            int length = 4 * 1024 * 1024;
+            byte[] data = new byte[length];
+            new Random().nextBytes(data);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod(Service.Action.PUT.toString());
+                connection.setRequestProperty(Operation.CONTENT_TYPE_HEADER,
+                        Operation.MEDIA_TYPE_APPLICATION_OCTET_STREAM);
+                connection.setDoOutput(true);
+                connection.setChunkedStreamingMode(64 * 1024);
+                connection.setReadTimeout((int) TimeUnit.SECONDS.toMillis(
+                        this.host.getTimeoutSeconds()));
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(data);
+                }
+
+                assertEquals(Operation.STATUS_CODE_OK, connection.getResponseCode());
+                assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+                assertEquals(Long.toString(crc.getValue()),
+                        connection.getHeaderField(StreamingBodyService.CRC_HEADER));
+                long received = 0;
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = connection.getInputStream()) {
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        received += count;
+                    }
+                }
+                assertEquals(length, received);
+            }
+        } finally {
+            this.host.unregisterStreamingBodyPath(path);
+        }
+    }
+
+    /**
+     * Reads the request body in chunks, and echoes back as many bytes in a chunked response
+     */
+    public static class StreamingBodyService extends StatelessService {
+        public static final String CRC_HEADER = "x-test-crc";
+
+        @Override
+        public void handlePut(Operation put) {
+            if (put.getStreamingBody() == null) {
+                put.fail(new IllegalStateException("streaming body expected"));
+                return;
+            }
+            readBody(put, new CRC32(), 0);
+        }
+
+        private void readBody(Operation put, CRC32 crc, long length) {
+            put.getStreamingBody().readChunk((chunk, e) -> {
+                if (e != null) {
+                    put.fail(e);
+                    return;
+                }
+                if (chunk == null) {
+                    put.setContentType(Operation.MEDIA_TYPE_APPLICATION_OCTET_STREAM);
+                    put.addResponseHeader(CRC_HEADER, Long.toString(crc.getValue()));
+                    writeBody(put, length);
+                    return;
+                }
+                int count = chunk.remaining();
+                crc.update(chunk);
+                readBody(put, crc, length + count);
+            });
+        }
+
+        private void writeBody(Operation put, long remaining) {
+            if (remaining == 0) {
+                put.complete();
+                return;
+            }
+            int count = (int) Math.min(remaining, 256 * 1024);
+            put.getStreamingBody().writeChunk(ByteBuffer.allocate(count), e -> {
+                if (e != null) {
+                    put.fail(e);
+                    return;
+                }
+                writeBody(put, remaining - count);
+            });
+        }
+    }
+
     @Test
     public void putOverMaxRequestLimit() throws Throwable {
         this.host.setOperationTimeOutMicros(TimeUnit.SECONDS.toMicros(1));
@@ -15,6 +15,7 @@ package com.vmware.xenon.common.serialization;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -24,9 +25,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,14 +38,24 @@ import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Kryo.DefaultInstantiatorStrategy;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
 import org.junit.Test;
+import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats;
+import com.vmware.xenon.common.ServiceStats.TimeSeriesStats.AggregationType;
 import com.vmware.xenon.common.TestUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.common.serialization.KryoSerializers.KryoForObjectThreadLocal;
@@ -346,6 +360,172 @@ public class TestKryoSerializers {
         assertEquals(target, cloneWithKryo(target));
     }
 
+    @Test
+    public void serializeWithClassDictionary() {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = "name";
+        state.counter = 5L;
+        state.documentSelfLink = "selfLink";
+
+        int id = KryoClassDictionary.register(ExampleServiceState.class);
+        assertTrue(id > 0);
+        assertEquals(id, KryoClassDictionary.register(ExampleServiceState.class));
+        assertTrue(KryoClassDictionary.isRegistered(ExampleServiceState.class));
+        assertEquals(ExampleServiceState.class, KryoClassDictionary.getClass(id,
+                KryoClassDictionary.computeNameHash(ExampleServiceState.class.getName())));
+        assertNull(KryoClassDictionary.getClass(id, 0));
+
+        Output withId = new Output(1024);
+        KryoSerializers.create(false, true).writeClassAndObject(withId, state);
+        Output withName = new Output(1024);
+        KryoSerializers.create(false).writeClassAndObject(withName, state);
+        assertTrue(withId.position() < withName.position());
+
+        // readers accept both encodings, even when they do not write class identifiers
+        Kryo reader = KryoSerializers.create(false);
+        ExampleServiceState fromId = (ExampleServiceState) reader.readClassAndObject(
+                new Input(withId.getBuffer(), 0, withId.position()));
+        ExampleServiceState fromName = (ExampleServiceState) reader.readClassAndObject(
+                new Input(withName.getBuffer(), 0, withName.position()));
+        for (ExampleServiceState deser : Arrays.asList(fromId, fromName)) {
+            assertEquals(state.name, deser.name);
+            assertEquals(state.counter, deser.counter);
+            assertEquals(state.documentSelfLink, deser.documentSelfLink);
+        }
+    }
+
+    @Test
+    public void serializeTimeSeriesStats() {
+        TimeSeriesStats stats = new TimeSeriesStats(4, 1000,
+                EnumSet.of(AggregationType.AVG, AggregationType.SUM));
+        long nowMicros = Utils.getNowMicrosUtc();
+        for (int i = 0; i < 3; i++) {
+            stats.add(nowMicros + TimeUnit.SECONDS.toMicros(i), i, 1);
+        }
+
+        // the bins are written as the map type older versions read, never as the view class
+        Output o = new Output(1024);
+        KryoSerializers.create(true).writeClassAndObject(o, stats);
+        // KRYO flags the last character of a class name, so compare without it
+        String serialized = new String(o.getBuffer(), 0, o.position(), StandardCharsets.ISO_8859_1);
+        String mapClassName = ConcurrentSkipListMap.class.getName();
+        assertTrue(serialized.contains(mapClassName.substring(0, mapClassName.length() - 1)));
+        assertFalse(serialized.contains("TimeBinMa"));
+
+        // a reader without the time series serializer, as on an older version, reads the bins
+        Kryo oldReader = new Kryo();
+        oldReader.setInstantiatorStrategy(
+                new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        oldReader.setDefaultSerializer(VersionFieldSerializer.class);
+        for (Kryo reader : Arrays.asList(oldReader, KryoSerializers.create(true))) {
+            TimeSeriesStats deser = (TimeSeriesStats) reader.readClassAndObject(
+                    new Input(o.getBuffer(), 0, o.position()));
+            assertTrue(deser.bins instanceof ConcurrentSkipListMap);
+            assertEquals(stats.bins.keySet(), deser.bins.keySet());
+            for (Long binId : stats.bins.keySet()) {
+                assertEquals(stats.bins.get(binId).sum, deser.bins.get(binId).sum);
+                assertEquals(stats.bins.get(binId).avg, deser.bins.get(binId).avg);
+            }
+        }
+    }
+
+    public static class CollidingStateA extends ServiceDocument {
+        public String name;
+    }
+
+    public static class CollidingStateB extends ServiceDocument {
+        public String name;
+    }
+
+    @Test
+    public void classDictionaryCollision() {
+        // force both classes on the same identifier, the name hash tells them apart
+        int id = KryoClassDictionary.computeClassId(CollidingStateA.class.getName());
+        assertEquals(id, KryoClassDictionary.register(CollidingStateA.class, id));
+        Output firstOutput = new Output(1024);
+        CollidingStateA a = new CollidingStateA();
+        a.name = "a";
+        KryoSerializers.create(false, true).writeClassAndObject(firstOutput, a);
+
+        assertEquals(-1, KryoClassDictionary.register(CollidingStateB.class, id));
+        // the identifier is no longer used for either class, not even if registered again
+        assertEquals(-1, KryoClassDictionary.getClassId(CollidingStateA.class));
+        assertEquals(-1, KryoClassDictionary.getClassId(CollidingStateB.class));
+        assertEquals(-1, KryoClassDictionary.register(CollidingStateA.class, id));
+        assertEquals(CollidingStateA.class, KryoClassDictionary.getClass(id,
+                KryoClassDictionary.computeNameHash(CollidingStateA.class.getName())));
+        assertEquals(CollidingStateB.class, KryoClassDictionary.getClass(id,
+                KryoClassDictionary.computeNameHash(CollidingStateB.class.getName())));
+
+        // state written with the identifier, before the collision was known, still decodes
+        // as the right class
+        Kryo reader = KryoSerializers.create(false);
+        CollidingStateA fromId = (CollidingStateA) reader.readClassAndObject(
+                new Input(firstOutput.getBuffer(), 0, firstOutput.position()));
+        assertEquals(a.name, fromId.name);
+
+        // after the collision, both classes are written by name
+        CollidingStateB b = new CollidingStateB();
+        b.name = "b";
+        Output withDictionary = new Output(1024);
+        KryoSerializers.create(false, true).writeClassAndObject(withDictionary, b);
+        Output withName = new Output(1024);
+        KryoSerializers.create(false).writeClassAndObject(withName, b);
+        assertArrayEquals(withName.toBytes(), withDictionary.toBytes());
+        CollidingStateB fromName = (CollidingStateB) reader.readClassAndObject(
+                new Input(withDictionary.getBuffer(), 0, withDictionary.position()));
+        assertEquals(b.name, fromName.name);
+    }
+
+    @Test
+    public void classDictionaryUnknownId() {
+        int id = KryoClassDictionary.register(ExampleServiceState.class);
+        assertTrue(id > 0);
+        Kryo reader = KryoSerializers.create(false);
+
+        // a registered identifier with the name hash of a different class is rejected
+        Output mismatch = new Output(16);
+        mismatch.writeVarInt(id + 2, true);
+        mismatch.writeInt(KryoClassDictionary.computeNameHash(ServiceDocument.class.getName()));
+        try {
+            reader.readClassAndObject(new Input(mismatch.toBytes()));
+            throw new IllegalStateException("expected failure");
+        } catch (KryoException e) {
+            assertTrue(e.getMessage().contains("not in dictionary"));
+        }
+
+        // an identifier no class is registered with is rejected
+        String unknownName = UUID.randomUUID().toString();
+        Output unknown = new Output(16);
+        unknown.writeVarInt(KryoClassDictionary.computeClassId(unknownName) + 2, true);
+        unknown.writeInt(KryoClassDictionary.computeNameHash(unknownName));
+        try {
+            reader.readClassAndObject(new Input(unknown.toBytes()));
+            throw new IllegalStateException("expected failure");
+        } catch (KryoException e) {
+            assertTrue(e.getMessage().contains("not in dictionary"));
+        }
+    }
+
+    @Test
+    public void classDictionarySaveAndLoad() throws IOException {
+        KryoClassDictionary.register(ExampleServiceState.class);
+        File file = File.createTempFile("kryoClassDictionary", ".txt");
+        try {
+            KryoClassDictionary.save(file.toPath());
+            List<String> classNames = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertTrue(classNames.contains(ExampleServiceState.class.getName()));
+
+            // names of classes that no longer exist are skipped
+            classNames.add("com.vmware.xenon.NoSuchClass");
+            Files.write(file.toPath(), classNames, StandardCharsets.UTF_8);
+            KryoClassDictionary.load(file.toPath());
+            assertTrue(KryoClassDictionary.isRegistered(ExampleServiceState.class));
+        } finally {
+            file.delete();
+        }
+    }
+
     private Object serAndDeser(Object o) {
         return KryoSerializers.deserializeObject(KryoSerializers.serializeObject(o, 1000));
     }
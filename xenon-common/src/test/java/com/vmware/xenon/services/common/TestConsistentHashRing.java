@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.vmware.xenon.common.FNVHash;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+import com.vmware.xenon.services.common.NodeState.NodeStatus;
+
+public class TestConsistentHashRing {
+
+    private static final int KEY_COUNT = 10000;
+
+    @Test
+    public void balancedAndStable() {
+        NodeGroupState group = createGroup(5);
+        String hostId = group.nodes.keySet().iterator().next();
+        ConsistentHashRing ring = new ConsistentHashRing(group, hostId, 3, false);
+        assertEquals(5, ring.getAvailableNodeCount());
+
+        Map<String, String> owners = new HashMap<>();
+        Map<String, Integer> ownedCounts = new HashMap<>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "/core/examples/" + i;
+            ConsistentHashRing.Selection s = ring.select(key);
+            assertSame(s.owner, ring.select(key).owner);
+            assertEquals(s.owner.id.equals(hostId), s.isLocalHostOwner);
+            assertSame(s.owner, s.selectedNodes.iterator().next());
+            assertEquals(3, new HashSet<>(s.selectedNodes).size());
+            owners.put(key, s.owner.id);
+            ownedCounts.merge(s.owner.id, 1, Integer::sum);
+        }
+
+        // node ids select their node, for forwarding to a peer
+        for (String id : group.nodes.keySet()) {
+            assertEquals(id, ring.select(id).owner.id);
+        }
+
+        for (int count : ownedCounts.values()) {
+            assertTrue("unbalanced: " + ownedCounts, count > KEY_COUNT / 10);
+            assertTrue("unbalanced: " + ownedCounts, count < KEY_COUNT * 3 / 10);
+        }
+
+        // only keys owned by an unavailable node move
+        NodeGroupState updated = Utils.clone(group);
+        String leaving = owners.get("/core/examples/0");
+        updated.nodes.get(leaving).status = NodeStatus.UNAVAILABLE;
+        ConsistentHashRing updatedRing = new ConsistentHashRing(updated, hostId, 3, false);
+        assertEquals(4, updatedRing.getAvailableNodeCount());
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            String owner = updatedRing.select(e.getKey()).owner.id;
+            if (!e.getValue().equals(leaving)) {
+                assertEquals(e.getValue(), owner);
+            } else {
+                assertTrue(!owner.equals(leaving));
+            }
+        }
+    }
+
+    @Test
+    public void legacySelection() {
+        NodeGroupState group = createGroup(7);
+        String hostId = group.nodes.keySet().iterator().next();
+        ConsistentHashRing ring = new ConsistentHashRing(group, hostId, 1, true);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "/core/examples/" + i;
+            long keyHash = FNVHash.compute(key);
+            NodeState closest = null;
+            long closestDistance = Long.MAX_VALUE;
+            for (NodeState m : group.nodes.values()) {
+                long distance = m.getNodeIdHash() - keyHash;
+                distance = Math.abs(distance * distance);
+                if (distance <= closestDistance) {
+                    closest = m;
+                    closestDistance = distance;
+                }
+            }
+            ConsistentHashRing.Selection s = ring.select(key);
+            assertEquals(closest.id, s.owner.id);
+            assertEquals(1, s.selectedNodes.size());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void selectedNodesAreUnmodifiable() {
+        NodeGroupState group = createGroup(3);
+        String hostId = group.nodes.keySet().iterator().next();
+        ConsistentHashRing ring = new ConsistentHashRing(group, hostId, 3, false);
+        ring.select("/core/examples/0").selectedNodes.clear();
+    }
+
+    private static NodeGroupState createGroup(int nodeCount) {
+        NodeGroupState group = new NodeGroupState();
+        for (int i = 0; i < nodeCount; i++) {
+            NodeState m = new NodeState();
+            m.id = UUID.randomUUID().toString();
+            m.status = NodeStatus.AVAILABLE;
+            group.nodes.put(m.id, m);
+        }
+        return group;
+    }
+}
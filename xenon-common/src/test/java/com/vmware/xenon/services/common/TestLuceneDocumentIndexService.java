@@ -16,6 +16,7 @@ package com.vmware.xenon.services.common;
 import static java.util.stream.Collectors.toList;
 import static javax.xml.bind.DatatypeConverter.printBase64Binary;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -30,7 +31,9 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -103,6 +106,7 @@ import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.LuceneDocumentIndexService.BackupResponse;
 import com.vmware.xenon.services.common.LuceneDocumentIndexService.CommitInfo;
 import com.vmware.xenon.services.common.LuceneDocumentIndexService.PaginatedSearcherInfo;
+import com.vmware.xenon.services.common.LuceneDocumentIndexService.StoredStateCompression;
 import com.vmware.xenon.services.common.QueryTask.Query;
 import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
@@ -170,6 +174,21 @@ class FaultInjectionLuceneDocumentIndexService extends LuceneDocumentIndexServic
         }
     }
 
+    /*
+     * Called by test code to discard all index updates since the last commit, simulating
+     * a host crash
+     */
+    public void rollbackWriter() throws Throwable {
+        this.logWarning("Rolling back writer to discard uncommitted updates");
+        int permits = QUERY_THREAD_COUNT + UPDATE_THREAD_COUNT;
+        this.writerSync.acquire(permits);
+        try {
+            super.writer.rollback();
+        } finally {
+            this.writerSync.release(permits);
+        }
+    }
+
     public ExecutorService setQueryExecutorService(ExecutorService es) {
         ExecutorService existing = this.privateQueryExecutor;
         this.privateQueryExecutor = es;
@@ -3938,6 +3957,418 @@ public class TestLuceneDocumentIndexService {
         }
     }
 
+    @Test
+    public void writeAheadLogReplay() throws Throwable {
+        LuceneDocumentIndexService.setWriteAheadLogEnabled(true);
+        try {
+            setUpHost(false);
+            // keep maintenance from committing, so the updates below are only durable in the log
+            this.indexService.setMaintenanceIntervalMicros(TimeUnit.MINUTES.toMicros(10));
+
+            TestRequestSender sender = this.host.getTestRequestSender();
+            Map<String, String> namePerLink = new HashMap<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                body.name = "wal-" + i;
+                Operation post = Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(body);
+                ExampleServiceState rsp = sender.sendAndWait(post, ExampleServiceState.class);
+                namePerLink.put(rsp.documentSelfLink, rsp.name);
+            }
+
+            // discard all updates since the last commit, as a crash would, then restart with
+            // the same storage sandbox
+            this.indexService.rollbackWriter();
+            this.host.stop();
+            this.host.setPort(0);
+            this.host.start();
+
+            ServiceDocumentQueryResult queryResult = this.host.getFactoryState(
+                    UriUtils.buildExpandLinksQueryUri(UriUtils.buildUri(this.host,
+                            ExampleService.FACTORY_LINK)));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+            HashMap<String, ExampleServiceState> out = queryResultToExampleState(queryResult);
+            for (Entry<String, String> e : namePerLink.entrySet()) {
+                ExampleServiceState state = out.get(e.getKey());
+                assertNotNull(state);
+                assertEquals(e.getValue(), state.name);
+            }
+        } finally {
+            LuceneDocumentIndexService.setWriteAheadLogEnabled(false);
+        }
+    }
+
+    @Test
+    public void shardedIndex() throws Throwable {
+        int shardCount = 3;
+        LuceneDocumentIndexService.setIndexShardCount(shardCount);
+        try {
+            setUpHost(false);
+            this.host.startFactory(AnotherPersistentService.class,
+                    AnotherPersistentService::createFactory);
+            this.host.waitForServiceAvailable(AnotherPersistentService.FACTORY_LINK);
+
+            TestRequestSender sender = this.host.getTestRequestSender();
+            List<Operation> posts = new ArrayList<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                body.name = "shard-" + i;
+                body.documentSelfLink = body.name;
+                posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(body));
+                posts.add(Operation.createPost(this.host, AnotherPersistentService.FACTORY_LINK)
+                        .setBody(new AnotherPersistentState()));
+            }
+            sender.sendAndWait(posts);
+
+            for (int i = 1; i < shardCount; i++) {
+                File shardDir = new File(new File(this.host.getStorageSandbox()),
+                        LuceneDocumentIndexService.FILE_PATH_LUCENE
+                                + LuceneDocumentIndexService.FILE_PATH_SHARD_SUFFIX + i);
+                assertTrue(shardDir.exists());
+            }
+
+            ServiceDocumentQueryResult queryResult = this.host.getFactoryState(
+                    UriUtils.buildExpandLinksQueryUri(UriUtils.buildUri(this.host,
+                            ExampleService.FACTORY_LINK)));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+            HashMap<String, ExampleServiceState> out = queryResultToExampleState(queryResult);
+            for (ExampleServiceState state : out.values()) {
+                assertEquals(UriUtils.getLastPathSegment(state.documentSelfLink), state.name);
+            }
+            queryResult = this.host.getFactoryState(UriUtils.buildUri(this.host,
+                    AnotherPersistentService.FACTORY_LINK));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+
+            // a sorted query across kinds, and so across shards
+            Query query = Query.Builder.create()
+                    .addInClause(ServiceDocument.FIELD_NAME_KIND, Arrays.asList(
+                            Utils.buildKind(ExampleServiceState.class),
+                            Utils.buildKind(AnotherPersistentState.class)))
+                    .build();
+            QueryTask task = QueryTask.Builder.createDirectTask()
+                    .orderAscending(ServiceDocument.FIELD_NAME_SELF_LINK, TypeName.STRING)
+                    .setQuery(query)
+                    .build();
+            Operation post = Operation.createPost(this.host, LocalQueryTaskFactoryService.SELF_LINK)
+                    .setBody(task);
+            QueryTask result = sender.sendAndWait(post, QueryTask.class);
+            assertEquals(this.serviceCount * 2, (long) result.results.documentCount);
+            List<String> sorted = new ArrayList<>(result.results.documentLinks);
+            Collections.sort(sorted);
+            assertEquals(sorted, result.results.documentLinks);
+
+            // a paginated query on a single kind only opens the shard holding that kind
+            task = QueryTask.Builder.createDirectTask()
+                    .setQuery(Query.Builder.create()
+                            .addKindFieldClause(ExampleServiceState.class).build())
+                    .setResultLimit(2)
+                    .build();
+            post = Operation.createPost(this.host, LocalQueryTaskFactoryService.SELF_LINK)
+                    .setBody(task);
+            result = sender.sendAndWait(post, QueryTask.class);
+            int exampleShard = Math.floorMod(Utils.buildKind(ExampleServiceState.class)
+                    .hashCode(), shardCount);
+            synchronized (this.indexService.searchSync) {
+                assertFalse(this.indexService.paginatedSearchersByCreationTime.isEmpty());
+                for (PaginatedSearcherInfo info : this.indexService
+                        .paginatedSearchersByCreationTime.values()) {
+                    LuceneShardedIndexReader reader = (LuceneShardedIndexReader) info.searcher
+                            .getIndexReader();
+                    assertArrayEquals(new int[] { exampleShard }, reader.getShards());
+                }
+            }
+            Set<String> pagedLinks = new HashSet<>();
+            String nextPageLink = result.results.nextPageLink;
+            while (nextPageLink != null) {
+                QueryTask page = sender.sendAndWait(
+                        Operation.createGet(UriUtils.buildUri(this.host, nextPageLink)),
+                        QueryTask.class);
+                pagedLinks.addAll(page.results.documentLinks);
+                nextPageLink = page.results.nextPageLink;
+            }
+            assertEquals(out.keySet(), pagedLinks);
+
+            // documents in all shards survive a restart
+            this.host.stop();
+            this.host.setPort(0);
+            this.host.start();
+            this.host.startFactory(AnotherPersistentService.class,
+                    AnotherPersistentService::createFactory);
+            this.host.waitForServiceAvailable(AnotherPersistentService.FACTORY_LINK);
+            queryResult = this.host.getFactoryState(UriUtils.buildUri(this.host,
+                    ExampleService.FACTORY_LINK));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+            queryResult = this.host.getFactoryState(UriUtils.buildUri(this.host,
+                    AnotherPersistentService.FACTORY_LINK));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+        } finally {
+            LuceneDocumentIndexService.setIndexShardCount(1);
+        }
+    }
+
+    @Test
+    public void batchedIndexUpdates() throws Throwable {
+        LuceneDocumentIndexService.setIndexUpdateBatchSize(32);
+        try {
+            setUpHost(false);
+            TestRequestSender sender = this.host.getTestRequestSender();
+            List<Operation> posts = new ArrayList<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                body.name = "batch-" + i;
+                body.documentSelfLink = body.name;
+                body.counter = 0L;
+                posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(body));
+            }
+            List<ExampleServiceState> created = sender.sendAndWait(posts,
+                    ExampleServiceState.class);
+
+            int patchCount = 3;
+            for (int p = 1; p <= patchCount; p++) {
+                List<Operation> patches = new ArrayList<>();
+                for (ExampleServiceState state : created) {
+                    ExampleServiceState body = new ExampleServiceState();
+                    body.counter = (long) p;
+                    patches.add(Operation.createPatch(this.host, state.documentSelfLink)
+                            .setBody(body));
+                }
+                sender.sendAndWait(patches);
+            }
+
+            ServiceDocumentQueryResult queryResult = this.host.getFactoryState(
+                    UriUtils.buildExpandLinksQueryUri(UriUtils.buildUri(this.host,
+                            ExampleService.FACTORY_LINK)));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+            HashMap<String, ExampleServiceState> out = queryResultToExampleState(queryResult);
+            for (ExampleServiceState state : out.values()) {
+                assertEquals(patchCount, state.documentVersion);
+                assertEquals(Long.valueOf(patchCount), state.counter);
+                // each document of a batch keeps its own serialized state
+                assertEquals(UriUtils.getLastPathSegment(state.documentSelfLink), state.name);
+            }
+
+            // all versions are indexed, in the order they were queued
+            QueryTask task = QueryTask.Builder.createDirectTask()
+                    .setQuery(Query.Builder.create()
+                            .addKindFieldClause(ExampleServiceState.class).build())
+                    .addOption(QueryOption.INCLUDE_ALL_VERSIONS)
+                    .addOption(QueryOption.EXPAND_CONTENT)
+                    .build();
+            QueryTask result = sender.sendAndWait(Operation.createPost(this.host,
+                    LocalQueryTaskFactoryService.SELF_LINK).setBody(task), QueryTask.class);
+            assertEquals(this.serviceCount * (patchCount + 1),
+                    (long) result.results.documentCount);
+            for (Object doc : result.results.documents.values()) {
+                ExampleServiceState state = Utils.fromJson(doc, ExampleServiceState.class);
+                assertEquals(state.documentVersion, (long) state.counter);
+                assertEquals(UriUtils.getLastPathSegment(state.documentSelfLink), state.name);
+            }
+
+            String statName = LuceneDocumentIndexService.STAT_NAME_INDEXED_DOCUMENT_COUNT
+                    + ServiceStats.STAT_NAME_SUFFIX_PER_HOUR;
+            assertTrue(getLuceneStat(statName).accumulatedValue
+                    >= this.serviceCount * (patchCount + 1));
+        } finally {
+            LuceneDocumentIndexService.setIndexUpdateBatchSize(1);
+        }
+    }
+
+    @Test
+    public void batchedIndexUpdatesWithUpdateIndexOverride() throws Throwable {
+        LuceneDocumentIndexService.setIndexUpdateBatchSize(32);
+        try {
+            AtomicInteger updateCount = new AtomicInteger();
+            LuceneDocumentIndexService indexService = new LuceneDocumentIndexService() {
+                @Override
+                protected void updateIndex(Operation updateOp) throws Exception {
+                    UpdateIndexRequest r = updateOp.getBody(UpdateIndexRequest.class);
+                    if (r.document != null && r.document.documentSelfLink != null
+                            && r.document.documentSelfLink.startsWith(
+                                    ExampleService.FACTORY_LINK)) {
+                        updateCount.incrementAndGet();
+                    }
+                    super.updateIndex(updateOp);
+                }
+            };
+            this.host = VerificationHost.create(0);
+            this.host.setDocumentIndexingService(indexService);
+            this.host.start();
+
+            TestRequestSender sender = this.host.getTestRequestSender();
+            List<Operation> posts = new ArrayList<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                body.name = "override-" + i;
+                body.documentSelfLink = body.name;
+                posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(body));
+            }
+            sender.sendAndWait(posts);
+
+            // every update of the example services goes through the override
+            assertEquals(this.serviceCount, updateCount.get());
+            ServiceDocumentQueryResult queryResult = this.host.getFactoryState(
+                    UriUtils.buildUri(this.host, ExampleService.FACTORY_LINK));
+            assertEquals(this.serviceCount, (long) queryResult.documentCount);
+        } finally {
+            LuceneDocumentIndexService.setIndexUpdateBatchSize(1);
+        }
+    }
+
+    @Test
+    public void compressedStoredState() throws Throwable {
+        LuceneDocumentIndexService.setStoredStateCompression(StoredStateCompression.FAST);
+        try {
+            setUpHost(false);
+            TestRequestSender sender = this.host.getTestRequestSender();
+            String repeated = String.join("", Collections.nCopies(100, "compressed-"));
+            List<Operation> posts = new ArrayList<>();
+            for (int i = 0; i < this.serviceCount; i++) {
+                ExampleServiceState body = new ExampleServiceState();
+                // odd services are below the compression size threshold and stored as is
+                body.name = i % 2 == 0 ? repeated + i : "small-" + i;
+                body.documentSelfLink = "compressed-" + i;
+                body.counter = (long) i;
+                posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                        .setBody(body));
+            }
+            sender.sendAndWait(posts);
+
+            QueryTask task = QueryTask.Builder.createDirectTask()
+                    .setQuery(Query.Builder.create()
+                            .addKindFieldClause(ExampleServiceState.class).build())
+                    .addOption(QueryOption.EXPAND_CONTENT)
+                    .build();
+            QueryTask result = sender.sendAndWait(Operation.createPost(this.host,
+                    LocalQueryTaskFactoryService.SELF_LINK).setBody(task), QueryTask.class);
+            assertEquals(this.serviceCount, (long) result.results.documentCount);
+            for (Object doc : result.results.documents.values()) {
+                ExampleServiceState state = Utils.fromJson(doc, ExampleServiceState.class);
+                int i = state.counter.intValue();
+                assertEquals(i % 2 == 0 ? repeated + i : "small-" + i, state.name);
+            }
+
+            String ratioStatName = LuceneDocumentIndexService.STAT_NAME_STORED_STATE_COMPRESSION_RATIO
+                    + ServiceStats.STAT_NAME_SUFFIX_PER_HOUR;
+            // small states are stored as is, with a ratio of one, so check the average ratio
+            ServiceStat ratioStat = getLuceneStat(ratioStatName);
+            assertTrue(ratioStat.accumulatedValue > ratioStat.version);
+            String decodeStatName = LuceneDocumentIndexService.STAT_NAME_STORED_STATE_DECODE_DURATION_MICROS
+                    + ServiceStats.STAT_NAME_SUFFIX_PER_HOUR;
+            assertTrue(getLuceneStat(decodeStatName).version > 0);
+        } finally {
+            LuceneDocumentIndexService.setStoredStateCompression(StoredStateCompression.NONE);
+        }
+    }
+
+    @Test
+    public void sharedSearcherMaxStaleness() throws Throwable {
+        LuceneDocumentIndexService.setSearcherMaxStalenessMicros(TimeUnit.MINUTES.toMicros(10));
+        try {
+            setUpHost(false);
+            // keep maintenance from refreshing the searcher
+            this.indexService.setMaintenanceIntervalMicros(TimeUnit.MINUTES.toMicros(10));
+            TestRequestSender sender = this.host.getTestRequestSender();
+
+            List<ExampleServiceState> first = createExampleServices(sender, "first");
+            // a lookup of a specific link always observes the latest update to it
+            ExampleServiceState state = getFromIndex(sender, first.get(0).documentSelfLink);
+            assertEquals(first.get(0).name, state.name);
+            assertEquals(this.serviceCount, queryExampleServiceCount(sender));
+
+            List<ExampleServiceState> second = createExampleServices(sender, "second");
+            // queries across many links use the shared searcher until it is older than the
+            // max staleness
+            assertEquals(this.serviceCount, queryExampleServiceCount(sender));
+
+            state = getFromIndex(sender, second.get(0).documentSelfLink);
+            assertEquals(second.get(0).name, state.name);
+            assertEquals(this.serviceCount * 2, queryExampleServiceCount(sender));
+        } finally {
+            LuceneDocumentIndexService.setSearcherMaxStalenessMicros(0);
+        }
+    }
+
+    @Test
+    public void indexCheckInline() throws Throwable {
+        setUpHost(false);
+        TestRequestSender sender = this.host.getTestRequestSender();
+        List<ExampleServiceState> states = createExampleServices(sender, "inline");
+
+        String statName = LuceneDocumentIndexService.STAT_NAME_QUERY_SINGLE_INLINE_DURATION_MICROS
+                + ServiceStats.STAT_NAME_SUFFIX_PER_HOUR;
+        // the first lookup of each link refreshes the searcher through the query queue, the
+        // second one is served inline, on the caller thread
+        for (int i = 0; i < 2; i++) {
+            for (ExampleServiceState state : states) {
+                ExampleServiceState indexState = indexCheck(state.documentSelfLink);
+                assertEquals(state.name, indexState.name);
+                assertEquals(state.documentVersion, indexState.documentVersion);
+            }
+        }
+        assertTrue(getLuceneStat(statName).version >= this.serviceCount);
+
+        // an update to a link is observed by the next lookup
+        ExampleServiceState body = new ExampleServiceState();
+        body.name = "updated";
+        sender.sendAndWait(Operation.createPatch(this.host, states.get(0).documentSelfLink)
+                .setBody(body));
+        ExampleServiceState indexState = indexCheck(states.get(0).documentSelfLink);
+        assertEquals(body.name, indexState.name);
+        assertEquals(states.get(0).documentVersion + 1, indexState.documentVersion);
+        assertNull(indexCheck(ExampleService.FACTORY_LINK + "/does-not-exist"));
+    }
+
+    private ExampleServiceState indexCheck(String selfLink) {
+        ExampleServiceState[] result = new ExampleServiceState[1];
+        TestContext ctx = this.host.testCreate(1);
+        Operation get = Operation.createGet(UriUtils.buildUri(this.host, selfLink))
+                .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        ctx.fail(e);
+                        return;
+                    }
+                    if (o.hasBody()) {
+                        result[0] = o.getBody(ExampleServiceState.class);
+                    }
+                    ctx.complete();
+                });
+        this.indexService.handleRequest(get);
+        this.host.testWait(ctx);
+        return result[0];
+    }
+
+    private List<ExampleServiceState> createExampleServices(TestRequestSender sender,
+            String prefix) {
+        List<Operation> posts = new ArrayList<>();
+        for (int i = 0; i < this.serviceCount; i++) {
+            ExampleServiceState body = new ExampleServiceState();
+            body.name = prefix + "-" + i;
+            posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                    .setBody(body));
+        }
+        return sender.sendAndWait(posts, ExampleServiceState.class);
+    }
+
+    private ExampleServiceState getFromIndex(TestRequestSender sender, String selfLink) {
+        URI u = UriUtils.buildDocumentQueryUri(this.host, selfLink, false, false,
+                ServiceOption.PERSISTENCE);
+        return sender.sendAndWait(Operation.createGet(u), ExampleServiceState.class);
+    }
+
+    private long queryExampleServiceCount(TestRequestSender sender) {
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class).build())
+                .build();
+        QueryTask result = sender.sendAndWait(Operation.createPost(this.host,
+                LocalQueryTaskFactoryService.SELF_LINK).setBody(task), QueryTask.class);
+        return result.results.documentCount;
+    }
+
     @Test
     public void offset() throws Throwable {
         setUpHost(false);
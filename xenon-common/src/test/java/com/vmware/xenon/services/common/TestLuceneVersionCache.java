@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLuceneVersionCache {
+
+    @Test
+    public void updateAndLookup() {
+        LuceneVersionCache cache = new LuceneVersionCache(1024 * 1024);
+        String link = "/core/examples/one";
+
+        assertEquals(-1, cache.getVersion(link, Long.MAX_VALUE));
+        assertEquals(-1, cache.getUpdateTimeMicros(link));
+
+        cache.update(link, 2, 100);
+        assertEquals(2, cache.getVersion(link, 100));
+        assertEquals(100, cache.getUpdateTimeMicros(link));
+        // entries updated after the given time are not returned
+        assertEquals(-1, cache.getVersion(link, 99));
+
+        // stale versions are ignored
+        cache.update(link, 1, 200);
+        assertEquals(2, cache.getVersion(link, Long.MAX_VALUE));
+        assertEquals(100, cache.getUpdateTimeMicros(link));
+
+        cache.updateTime(link, 300);
+        assertEquals(2, cache.getVersion(link, Long.MAX_VALUE));
+        assertEquals(300, cache.getUpdateTimeMicros(link));
+        assertEquals(1, cache.size());
+
+        // updating the time of a missing link is recorded as an eviction
+        cache.updateTime("/core/examples/missing", 400);
+        assertEquals(-1, cache.getUpdateTimeMicros("/core/examples/missing"));
+        assertEquals(400, cache.getEvictedUpdateTimeMicros());
+
+        cache.remove(link);
+        assertEquals(-1, cache.getUpdateTimeMicros(link));
+        assertEquals(0, cache.size());
+
+        cache.update(link, 3, 500);
+        cache.clear();
+        assertEquals(-1, cache.getUpdateTimeMicros(link));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void boundedWithClockEviction() {
+        // the smallest cache has a single bucket
+        LuceneVersionCache cache = new LuceneVersionCache(1);
+        assertEquals(LuceneVersionCache.WAYS, cache.getCapacity());
+
+        for (int i = 0; i < LuceneVersionCache.WAYS; i++) {
+            cache.update("/link/" + i, i, i);
+        }
+        assertEquals(LuceneVersionCache.WAYS, cache.size());
+
+        // referenced entries get a second chance, so the first unreferenced one is evicted
+        assertEquals(0, cache.getVersion("/link/0", Long.MAX_VALUE));
+        cache.update("/link/new", 1, 1000);
+        assertEquals(LuceneVersionCache.WAYS, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.getVersion("/link/0", Long.MAX_VALUE));
+        assertEquals(-1, cache.getUpdateTimeMicros("/link/1"));
+        assertEquals(1, cache.getEvictedUpdateTimeMicros());
+
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            cache.update("/other/" + i, i, 2000 + i);
+        }
+        assertEquals(LuceneVersionCache.WAYS, cache.size());
+        assertEquals(count + 1, cache.getEvictionCount());
+        assertTrue(cache.getEvictedUpdateTimeMicros() >= 2000 + count - 1
+                - LuceneVersionCache.WAYS);
+        assertEquals(count - 1, cache.getVersion("/other/" + (count - 1), Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014-2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestLuceneWriteAheadLog {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendReplayAndTruncate() throws Throwable {
+        Path dir = this.folder.getRoot().toPath();
+        LuceneWriteAheadLog wal = LuceneWriteAheadLog.open(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            long position = append(wal, "record-" + i);
+            wal.sync(position);
+        }
+        // records exceeding the segment size get a segment of their own
+        StringBuilder large = new StringBuilder();
+        while (large.length() < SEGMENT_SIZE * 2) {
+            large.append("large");
+        }
+        append(wal, large.toString());
+        wal.close();
+
+        List<String> records = replay(dir);
+        assertEquals(101, records.size());
+        assertEquals("record-0", records.get(0));
+        assertEquals("record-99", records.get(99));
+        assertEquals(large.toString(), records.get(100));
+
+        // a new instance starts a fresh segment, so existing records can be discarded
+        wal = LuceneWriteAheadLog.open(dir, SEGMENT_SIZE);
+        append(wal, "after-restart");
+        long segmentId = wal.roll();
+        append(wal, "after-roll");
+        wal.truncate(segmentId);
+        wal.close();
+
+        records = replay(dir);
+        assertEquals(1, records.size());
+        assertEquals("after-roll", records.get(0));
+    }
+
+    @Test
+    public void replayStopsAtTornRecord() throws Throwable {
+        Path dir = this.folder.getRoot().toPath();
+        LuceneWriteAheadLog wal = LuceneWriteAheadLog.open(dir, SEGMENT_SIZE);
+        append(wal, "first");
+        append(wal, "second");
+        wal.roll();
+        append(wal, "third");
+        wal.sync();
+        wal.close();
+
+        // corrupt the payload of the second record
+        List<Path> segments;
+        try (Stream<Path> s = Files.list(dir)) {
+            segments = s.sorted().collect(Collectors.toList());
+        }
+        assertEquals(2, segments.size());
+        try (RandomAccessFile f = new RandomAccessFile(segments.get(0).toFile(), "rw")) {
+            int secondPayloadOffset = 8 + "first".length() + 8;
+            f.seek(secondPayloadOffset);
+            f.write('x');
+        }
+
+        // records following the torn record, in later segments, are not replayed
+        List<String> records = replay(dir);
+        assertEquals(1, records.size());
+        assertEquals("first", records.get(0));
+    }
+
+    private long append(LuceneWriteAheadLog wal, String record) throws Throwable {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        return wal.append(bytes, 0, bytes.length);
+    }
+
+    private List<String> replay(Path dir) throws Throwable {
+        List<String> records = new ArrayList<>();
+        LuceneWriteAheadLog.replay(dir, (bb) -> records.add(
+                new String(bb.array(), bb.position(), bb.remaining(), StandardCharsets.UTF_8)));
+        return records;
+    }
+}
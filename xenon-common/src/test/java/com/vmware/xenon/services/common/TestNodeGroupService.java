@@ -20,6 +20,7 @@ import static org.junit.Assert.assertTrue;
 import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -56,6 +57,7 @@ import org.junit.rules.TemporaryFolder;
 import com.vmware.xenon.common.AuthorizationSetupHelper;
 import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.NodeSelectorService;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.NodeSelectorState;
@@ -646,6 +648,62 @@ public class TestNodeGroupService {
         this.host.waitForReplicatedFactoryServiceAvailable(UriUtils.buildUri(hostToRestart, ExampleService.FACTORY_LINK));
     }
 
+    @Test
+    public void nodeGroupConvergenceWithDeltaGossip() throws Throwable {
+        boolean isDeltaGossipEnabled = NodeGroupService.isDeltaGossipEnabled();
+        NodeGroupService.setDeltaGossipEnabled(true);
+        try {
+            doNodeGroupConvergenceAfterHostRestart();
+
+            URI nodeGroupUri = UriUtils.buildUri(this.host.getPeerHostUri(),
+                    ServiceUriPaths.DEFAULT_NODE_GROUP);
+            this.host.waitFor("gossip stats not set", () -> {
+                Map<String, ServiceStat> stats = this.host.getServiceStats(nodeGroupUri);
+                ServiceStat requestBytes = stats
+                        .get(NodeGroupService.STAT_NAME_GOSSIP_REQUEST_BYTES);
+                ServiceStat responseBytes = stats
+                        .get(NodeGroupService.STAT_NAME_GOSSIP_RESPONSE_BYTES);
+                ServiceStat convergence = stats
+                        .get(NodeGroupService.STAT_NAME_MEMBERSHIP_CONVERGENCE_MICROS);
+                return requestBytes != null && requestBytes.latestValue > 0
+                        && responseBytes != null && responseBytes.latestValue > 0
+                        && convergence != null;
+            });
+
+            // once peers know each other's entries, gossip requests carry only the deltas,
+            // with periodic full rounds
+            double[] totals = new double[4];
+            this.host.waitFor("delta and full gossip requests not sent", () -> {
+                Arrays.fill(totals, 0);
+                for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                    Map<String, ServiceStat> stats = this.host.getServiceStats(
+                            UriUtils.buildUri(h, ServiceUriPaths.DEFAULT_NODE_GROUP));
+                    totals[0] += getStatValue(stats,
+                            NodeGroupService.STAT_NAME_DELTA_GOSSIP_REQUEST_COUNT);
+                    totals[1] += getStatValue(stats,
+                            NodeGroupService.STAT_NAME_DELTA_GOSSIP_REQUEST_BYTES);
+                    totals[2] += getStatValue(stats,
+                            NodeGroupService.STAT_NAME_FULL_GOSSIP_REQUEST_COUNT);
+                    totals[3] += getStatValue(stats,
+                            NodeGroupService.STAT_NAME_FULL_GOSSIP_REQUEST_BYTES);
+                }
+                return totals[0] > 0 && totals[2] > 0;
+            });
+            double deltaBytesPerRequest = totals[1] / totals[0];
+            double fullBytesPerRequest = totals[3] / totals[2];
+            this.host.log("Gossip bytes per request, delta: %f, full: %f",
+                    deltaBytesPerRequest, fullBytesPerRequest);
+            assertTrue(deltaBytesPerRequest < fullBytesPerRequest);
+        } finally {
+            NodeGroupService.setDeltaGossipEnabled(isDeltaGossipEnabled);
+        }
+    }
+
+    private static double getStatValue(Map<String, ServiceStat> stats, String name) {
+        ServiceStat stat = stats.get(name);
+        return stat != null ? stat.latestValue : 0;
+    }
+
     private VerificationHost restartHost(VerificationHost hostToRestart) throws Throwable {
         this.host.stopHostAndPreserveState(hostToRestart);
         this.host.waitForNodeGroupConvergence(this.nodeCount - 1, this.nodeCount - 1);
@@ -2498,6 +2556,34 @@ public class TestNodeGroupService {
         doReplication();
     }
 
+    @Test
+    public void replicationBatched() throws Throwable {
+        long windowMicros = NodeSelectorReplicationService.getBatchWindowMicros();
+        NodeSelectorReplicationService.setBatchWindowMicros(TimeUnit.MILLISECONDS.toMicros(5));
+        try {
+            this.replicationTargetFactoryLink = ExampleService.FACTORY_LINK;
+            doReplication();
+
+            // replication requests were sent in batches, and batches held several requests
+            double batchCount = 0;
+            double entryCount = 0;
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                ServiceStats selectorStats = this.host.getServiceState(null, ServiceStats.class,
+                        UriUtils.buildStatsUri(h, this.replicationNodeSelector));
+                ServiceStat batchStat = selectorStats.entries
+                        .get(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_COUNT);
+                ServiceStat entryStat = selectorStats.entries
+                        .get(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_ENTRY_COUNT);
+                batchCount += batchStat != null ? batchStat.latestValue : 0;
+                entryCount += entryStat != null ? entryStat.latestValue : 0;
+            }
+            assertTrue(batchCount > 0);
+            assertTrue(entryCount > batchCount);
+        } finally {
+            NodeSelectorReplicationService.setBatchWindowMicros(windowMicros);
+        }
+    }
+
     @Test
     public void replicationSsl() throws Throwable {
         this.replicationUriScheme = ServiceHost.HttpScheme.HTTPS_ONLY;
@@ -13,11 +13,18 @@
 
 package com.vmware.xenon.services.common;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import org.junit.After;
@@ -26,6 +33,7 @@ import org.junit.Test;
 
 import com.vmware.xenon.common.BasicTestCase;
 import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationTraceBuffer.OperationTraceRecord;
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.SynchronizationTaskService;
 import com.vmware.xenon.common.UriUtils;
@@ -233,4 +241,90 @@ public class TestOperationIndexService extends BasicTestCase {
         this.host.testWait();
 
     }
+
+    @Test
+    public void traceBuffer() throws Throwable {
+        URI managementUri = UriUtils.buildUri(this.host, ServiceHostManagementService.SELF_LINK);
+        ServiceHostManagementService.ConfigureOperationTracingRequest configure =
+                new ServiceHostManagementService.ConfigureOperationTracingRequest();
+        configure.kind = ServiceHostManagementService.ConfigureOperationTracingRequest.KIND;
+        configure.enable = ServiceHostManagementService.OperationTracingEnable.START;
+        configure.useTraceBuffer = true;
+
+        this.host.setSystemAuthorizationContext();
+        this.host.getTestRequestSender().sendAndWait(
+                Operation.createPatch(managementUri).setBody(Utils.toJson(configure)));
+        this.host.resetAuthorizationContext();
+        assertNotNull(this.host.getOperationTraceBuffer());
+
+        List<Operation> posts = new ArrayList<>();
+        for (int i = 0; i < this.updateCount; i++) {
+            ExampleService.ExampleServiceState state = new ExampleService.ExampleServiceState();
+            state.name = String.format("0x%08x", i);
+            posts.add(Operation.createPost(this.host, ExampleService.FACTORY_LINK)
+                    .setBody(state));
+        }
+        this.host.getTestRequestSender().sendAndWait(posts);
+
+        ServiceHostManagementService.OperationTraceBufferRequest drain =
+                new ServiceHostManagementService.OperationTraceBufferRequest();
+        drain.kind = ServiceHostManagementService.OperationTraceBufferRequest.KIND;
+        drain.drain = true;
+        drain.flushToIndex = true;
+
+        this.host.setSystemAuthorizationContext();
+        ServiceHostManagementService.OperationTraceBufferResponse rsp = this.host
+                .getTestRequestSender()
+                .sendAndWait(Operation.createPatch(managementUri).setBody(drain))
+                .getBody(ServiceHostManagementService.OperationTraceBufferResponse.class);
+
+        int inboundCount = 0;
+        int outboundCount = 0;
+        for (OperationTraceRecord r : rsp.records) {
+            if (!ExampleService.FACTORY_LINK.equals(r.path) || r.action != Action.POST) {
+                continue;
+            }
+            assertEquals(Operation.STATUS_CODE_OK, r.statusCode);
+            assertTrue(r.completionTimeMicros >= r.startTimeMicros);
+            if (r.isInbound) {
+                inboundCount++;
+            } else {
+                outboundCount++;
+            }
+        }
+        assertEquals(this.updateCount, inboundCount);
+        assertEquals(this.updateCount, outboundCount);
+        assertEquals(0, rsp.droppedRecordCount);
+
+        // the drained records are flushed to the operation index
+        QueryTask q = QueryTask.Builder.createDirectTask()
+                .setQuery(QueryTask.Query.Builder.create()
+                        .addFieldClause("path", ExampleService.FACTORY_LINK)
+                        .addFieldClause("referer", managementUri.toString())
+                        .build())
+                .build();
+        q.indexLink = ServiceUriPaths.CORE_OPERATION_INDEX;
+        URI queryTasksUri = UriUtils.buildUri(this.host, ServiceUriPaths.CORE_QUERY_TASKS);
+        this.host.waitFor("trace records not flushed to the operation index", () -> {
+            QueryTask rspTask = this.host.getTestRequestSender()
+                    .sendAndWait(Operation.createPost(queryTasksUri).setBody(q))
+                    .getBody(QueryTask.class);
+            return rspTask.results.documentLinks.size() == this.updateCount * 2;
+        });
+
+        // drained records are not returned again
+        drain.flushToIndex = false;
+        rsp = this.host.getTestRequestSender()
+                .sendAndWait(Operation.createPatch(managementUri).setBody(drain))
+                .getBody(ServiceHostManagementService.OperationTraceBufferResponse.class);
+        for (OperationTraceRecord r : rsp.records) {
+            assertFalse(ExampleService.FACTORY_LINK.equals(r.path));
+        }
+
+        configure.enable = ServiceHostManagementService.OperationTracingEnable.STOP;
+        this.host.getTestRequestSender().sendAndWait(
+                Operation.createPatch(managementUri).setBody(configure));
+        this.host.resetAuthorizationContext();
+        assertNull(this.host.getOperationTraceBuffer());
+    }
 }
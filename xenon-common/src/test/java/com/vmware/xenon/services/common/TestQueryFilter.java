@@ -938,6 +938,65 @@ public class TestQueryFilter {
         r.print("queryFilterEvaluationForWildcardPass");
     }
 
+    QueryTask createContinuousQueryTask(String selfLink, Query q) throws QueryFilterException {
+        QueryTask task = QueryTask.Builder.create().setQuery(q).build();
+        task.documentSelfLink = selfLink;
+        task.querySpec.context.filter = QueryFilter.create(q);
+        return task;
+    }
+
+    @Test
+    public void continuousQueryIndexCandidates() throws QueryFilterException {
+        ContinuousQueryIndex index = new ContinuousQueryIndex();
+        assertTrue(index.isEmpty());
+
+        // indexed under one of c1=v1 or c2=v2
+        QueryTask conjunction = createContinuousQueryTask("/conjunction",
+                createSimpleConjunctionQuery());
+        // each conjunction is indexed under its single term
+        QueryTask disjunction = createContinuousQueryTask("/disjunction",
+                createSimpleDisjunctionQuery());
+        // a conjunction with only a negated term must be evaluated against every document
+        Query negated = new Query();
+        negated.addBooleanClause(createTerm("c3", "v3", Occurance.SHOULD_OCCUR));
+        negated.addBooleanClause(createTerm("c4", "v4", Occurance.MUST_NOT_OCCUR));
+        QueryTask unindexed = createContinuousQueryTask("/unindexed", negated);
+
+        index.put(conjunction);
+        index.put(disjunction);
+        index.put(unindexed);
+        assertEquals(3, index.size());
+
+        QueryFilterDocument document = new QueryFilterDocument();
+        document.c1 = "v1";
+        document.c2 = "v2";
+        Set<QueryTask> candidates = index.getCandidates(document, this.description);
+        assertEquals(3, candidates.size());
+
+        document = new QueryFilterDocument();
+        document.c2 = "v2";
+        candidates = index.getCandidates(document, this.description);
+        assertTrue(candidates.contains(disjunction));
+        assertTrue(candidates.contains(unindexed));
+
+        document = new QueryFilterDocument();
+        document.c5 = "v5";
+        candidates = index.getCandidates(document, this.description);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(unindexed));
+
+        // every candidate the index skipped must fail the filter
+        for (QueryTask task : new QueryTask[] { conjunction, disjunction }) {
+            assertFalse(task.querySpec.context.filter.evaluate(document, this.description));
+        }
+
+        index.remove("/unindexed");
+        assertTrue(index.getCandidates(document, this.description).isEmpty());
+        index.remove("/conjunction");
+        index.remove("/disjunction");
+        assertTrue(index.isEmpty());
+    }
+
     @Test
     public void throughputQueryFilterEvaluationFail() throws QueryFilterException {
         if (!this.isStressTest) {
@@ -36,6 +36,7 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -64,6 +65,7 @@ import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost.ServiceNotFoundException;
 import com.vmware.xenon.common.ServiceStats;
@@ -80,6 +82,7 @@ import com.vmware.xenon.common.test.TestContext;
 import com.vmware.xenon.common.test.TestRequestSender;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+import com.vmware.xenon.services.common.QueryTask.AggregationTerm.AggregationType;
 import com.vmware.xenon.services.common.QueryTask.Builder;
 import com.vmware.xenon.services.common.QueryTask.NumericRange;
 import com.vmware.xenon.services.common.QueryTask.Query;
@@ -589,6 +592,88 @@ public class TestQueryTaskService {
         assertEquals(this.serviceCount, (long) qt.results.continuousResults.documentCountDeleted);
     }
 
+    @Test
+    public void continuousQueryTaskWithNotificationBatching() throws Throwable {
+        LuceneDocumentIndexService.setContinuousQueryNotificationBatchingEnabled(true);
+        try {
+            setUpHost();
+
+            String textValue = UUID.randomUUID().toString();
+            Query query = Query.Builder.create()
+                    .addFieldClause(QueryValidationServiceState.FIELD_NAME_TEXT_VALUE, textValue)
+                    .build();
+            QueryTask queryTask = QueryTask.Builder.create()
+                    .setQuery(query)
+                    .addOptions(EnumSet.of(QueryOption.CONTINUOUS, QueryOption.EXPAND_CONTENT))
+                    .build();
+            queryTask.documentExpirationTimeMicros = Long.MAX_VALUE;
+            URI queryTaskUri = this.host.createQueryTaskService(queryTask);
+
+            // record every delivered document version, and the number of notifications
+            Set<String> deliveredVersions = ConcurrentHashMap.newKeySet();
+            AtomicInteger notificationCount = new AtomicInteger();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Consumer<Operation> notificationConsumer = (notifyOp) -> {
+                QueryTask body = notifyOp.getBody(QueryTask.class);
+                if (body.results == null || body.results.documentLinks.isEmpty()) {
+                    return;
+                }
+                notificationCount.incrementAndGet();
+                for (Object doc : body.results.documents.values()) {
+                    QueryValidationServiceState state = Utils.fromJson(doc,
+                            QueryValidationServiceState.class);
+                    if (!textValue.equals(state.textValue)) {
+                        failure.set(new IllegalStateException("Unexpected document: "
+                                + Utils.toJsonHtml(state)));
+                    }
+                    deliveredVersions.add(state.documentSelfLink + "@" + state.documentVersion);
+                }
+            };
+
+            TestContext subscriptionCtx = this.host.testCreate(1);
+            Operation post = Operation.createPost(queryTaskUri)
+                    .setReferer(this.host.getReferer())
+                    .setCompletion(subscriptionCtx.getCompletion());
+            this.host.startSubscriptionService(post, notificationConsumer);
+            this.host.testWait(subscriptionCtx);
+
+            this.host.waitFor("task never activated", () -> {
+                ServiceStats indexStats = this.host.getServiceState(null, ServiceStats.class,
+                        UriUtils.buildStatsUri(this.host.getDocumentIndexServiceUri()));
+                ServiceStat activeQueryStat = indexStats.entries.get(
+                        LuceneDocumentIndexService.STAT_NAME_ACTIVE_QUERY_FILTERS
+                                + ServiceStats.STAT_NAME_SUFFIX_PER_HOUR);
+                return activeQueryStat != null && activeQueryStat.latestValue >= 1.0;
+            });
+
+            // create and update services in parallel, so several documents match the query
+            // while a notification is pending
+            QueryValidationServiceState newState = new QueryValidationServiceState();
+            newState.textValue = textValue;
+            List<URI> services = startQueryTargetServices(this.serviceCount, newState);
+            newState = new QueryValidationServiceState();
+            newState.textValue = textValue;
+            newState.stringValue = UUID.randomUUID().toString();
+            putSimpleStateOnQueryTargetServices(services, newState);
+
+            // every version of every document is delivered
+            this.host.waitFor("notifications not delivered",
+                    () -> deliveredVersions.size() == this.serviceCount * 2);
+            assertNull(failure.get());
+            for (URI u : services) {
+                assertTrue(deliveredVersions.contains(u.getPath() + "@0"));
+                assertTrue(deliveredVersions.contains(u.getPath() + "@1"));
+            }
+
+            // notifications carried several documents
+            this.host.log("Delivered %d document versions in %d notifications",
+                    deliveredVersions.size(), notificationCount.get());
+            assertTrue(notificationCount.get() < deliveredVersions.size());
+        } finally {
+            LuceneDocumentIndexService.setContinuousQueryNotificationBatchingEnabled(false);
+        }
+    }
+
     /**
      * This tests a specific bug we encountered that a continuous query task
      * with replay would fail when there was state to replay. We never got the
@@ -1671,7 +1756,7 @@ public class TestQueryTaskService {
         List<URI> exampleServices = new ArrayList<>();
         createExampleServices(exampleFactoryURI, exampleServices);
         verifyMultiNodeBroadcastQueries(targetHost);
-        verifyOnlySupportSortOnSelfLinkInBroadcast(targetHost);
+        verifySortOnPropertyInBroadcast(targetHost);
         this.host.deleteAllChildServices(exampleFactoryURI);
 
         for (int i = 0; i < this.iterationCount; i++) {
@@ -1683,6 +1768,68 @@ public class TestQueryTaskService {
 
     }
 
+    @Test
+    public void aggregateQuery() throws Throwable {
+        setUpHost();
+        TestRequestSender sender = this.host.getTestRequestSender();
+        URI factoryUri = UriUtils.buildUri(this.host, ExampleService.FACTORY_LINK);
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ExampleServiceState state = new ExampleServiceState();
+            state.name = "aggregate-" + (i % 2);
+            state.counter = (long) i;
+            ExampleServiceState rsp = sender.sendAndWait(
+                    Operation.createPost(factoryUri).setBody(state), ExampleServiceState.class);
+            links.add(rsp.documentSelfLink);
+        }
+
+        // only the latest version of each document, and no deleted document, is aggregated
+        ExampleServiceState patchBody = new ExampleServiceState();
+        patchBody.counter = 100L;
+        sender.sendAndWait(Operation.createPatch(this.host, links.get(0)).setBody(patchBody));
+        sender.sendAndWait(Operation.createDelete(this.host, links.get(9)));
+
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class)
+                        .build())
+                .addAggregationTerm(AggregationType.COUNT, ExampleServiceState.FIELD_NAME_COUNTER,
+                        TypeName.LONG)
+                .addAggregationTerm(AggregationType.SUM, ExampleServiceState.FIELD_NAME_COUNTER,
+                        TypeName.LONG)
+                .addAggregationTerm(AggregationType.MIN, ExampleServiceState.FIELD_NAME_COUNTER,
+                        TypeName.LONG)
+                .addAggregationTerm(AggregationType.MAX, ExampleServiceState.FIELD_NAME_COUNTER,
+                        TypeName.LONG)
+                .addAggregationTerm(AggregationType.AVG, ExampleServiceState.FIELD_NAME_COUNTER,
+                        TypeName.LONG)
+                .addAggregationTerm(AggregationType.TERMS, ExampleServiceState.FIELD_NAME_NAME,
+                        TypeName.STRING)
+                .build();
+        QueryTask rsp = sender.sendAndWait(
+                Operation.createPost(this.host, ServiceUriPaths.CORE_QUERY_TASKS).setBody(task),
+                QueryTask.class);
+
+        Map<String, AggregationResult> aggregations = rsp.results.aggregations;
+        assertEquals(Long.valueOf(9), rsp.results.documentCount);
+        assertTrue(rsp.results.documentLinks.isEmpty());
+        assertEquals(9, aggregations.get("count(counter)").count);
+        assertEquals(136.0, aggregations.get("sum(counter)").sum, 0);
+        assertEquals(1.0, aggregations.get("min(counter)").min, 0);
+        assertEquals(100.0, aggregations.get("max(counter)").max, 0);
+        assertEquals(136.0 / 9, aggregations.get("avg(counter)").average, 0.0001);
+        Map<String, Long> termCounts = aggregations.get("terms(name)").termCounts;
+        assertEquals(2, termCounts.size());
+        assertEquals(Long.valueOf(5), termCounts.get("aggregate-0"));
+        assertEquals(Long.valueOf(4), termCounts.get("aggregate-1"));
+
+        // numeric aggregations require a numeric property
+        task.querySpec.aggregationTerms.add(QueryTask.AggregationTerm.create(AggregationType.SUM,
+                ExampleServiceState.FIELD_NAME_NAME, TypeName.STRING));
+        sender.sendAndWaitFailure(
+                Operation.createPost(this.host, ServiceUriPaths.CORE_QUERY_TASKS).setBody(task));
+    }
+
     @Test
     public void groupByQuery() throws Throwable {
         setUpHost();
@@ -1713,6 +1860,9 @@ public class TestQueryTaskService {
 
         verifyGroupQueryPaginatedAcrossGroups(targetHost, groups);
 
+        verifyGroupQueryPagesAfterSearcherRefresh(targetHost, groups, exampleFactoryURI,
+                exampleServices);
+
         Map<String, ServiceStat> stats = this.host
                 .getServiceStats(targetHost.getDocumentIndexServiceUri());
         ServiceStat groupQueryCount = stats
@@ -1787,6 +1937,41 @@ public class TestQueryTaskService {
         this.host.sendAndWaitExpectFailure(post);
     }
 
+    /**
+     * Per group pages of a query without a group result limit must stay readable after the
+     * index is updated and its searcher refreshed
+     */
+    private void verifyGroupQueryPagesAfterSearcherRefresh(VerificationHost targetHost,
+            List<String> groups, URI exampleFactoryURI, List<URI> exampleServices)
+            throws Throwable {
+        Query query = Query.Builder.create()
+                .addKindFieldClause(ExampleServiceState.class)
+                .build();
+        QueryTask queryTask = QueryTask.Builder.createDirectTask()
+                .addOption(QueryOption.GROUP_BY)
+                .orderAscending(ExampleServiceState.FIELD_NAME_ID, TypeName.STRING)
+                .groupOrder(ExampleServiceState.FIELD_NAME_NAME, TypeName.STRING, SortOrder.ASC)
+                .setQuery(query).build();
+        QueryTask rsp = this.host.getTestRequestSender().sendAndWait(
+                Operation.createPost(targetHost, ServiceUriPaths.CORE_QUERY_TASKS)
+                        .setBody(queryTask), QueryTask.class);
+        assertEquals(groups.size(), rsp.results.nextPageLinksPerGroup.size());
+
+        // update the index, and query it so the searcher is refreshed
+        List<URI> newServices = new ArrayList<>();
+        createGroupedExampleServices(groups, exampleFactoryURI, newServices);
+        this.host.createAndWaitSimpleDirectQuery(ServiceDocument.FIELD_NAME_KIND,
+                Utils.buildKind(ExampleServiceState.class),
+                exampleServices.size() + newServices.size(),
+                exampleServices.size() + newServices.size());
+
+        for (String pageLink : rsp.results.nextPageLinksPerGroup.values()) {
+            QueryTask page = this.host.getServiceState(null, QueryTask.class,
+                    UriUtils.buildUri(targetHost, pageLink));
+            assertEquals(this.serviceCount, page.results.documentLinks.size());
+        }
+    }
+
     private Map<String, ServiceDocumentQueryResult> verifyGroupQueryWithExpand(
             VerificationHost targetHost, List<String> groups)
             throws Throwable {
@@ -2170,7 +2355,7 @@ public class TestQueryTaskService {
     }
 
     private void verifyMultiNodeBroadcastQueries(VerificationHost targetHost) throws Throwable {
-        verifyOnlySupportSortOnSelfLinkInBroadcast(targetHost);
+        verifySortOnPropertyInBroadcast(targetHost);
         verifyDirectQueryAllowedInBroadcast(targetHost);
         nonpaginatedBroadcastQueryTasksOnExampleStates(targetHost,
                 EnumSet.of(QueryOption.EXPAND_CONTENT, QueryOption.BROADCAST));
@@ -2191,17 +2376,18 @@ public class TestQueryTaskService {
                 EnumSet.of(QueryOption.EXPAND_CONTENT, QueryOption.OWNER_SELECTION));
     }
 
-    private void verifyOnlySupportSortOnSelfLinkInBroadcast(VerificationHost targetHost) throws Throwable {
+    private void verifySortOnPropertyInBroadcast(VerificationHost targetHost) throws Throwable {
         QuerySpecification q = new QuerySpecification();
         Query kindClause = new Query();
         kindClause.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
                 .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
         q.query = kindClause;
-        q.options = EnumSet.of(QueryOption.EXPAND_CONTENT, QueryOption.SORT, QueryOption.BROADCAST);
+        q.options = EnumSet.of(QueryOption.SORT, QueryOption.BROADCAST);
         q.sortTerm = new QueryTask.QueryTerm();
         q.sortTerm.propertyType = TypeName.STRING;
         q.sortTerm.propertyName = ExampleServiceState.FIELD_NAME_NAME;
 
+        // sorting on a property other than the self link requires the expanded documents
         QueryTask task = QueryTask.create(q);
 
         targetHost.testStart(1);
@@ -2216,6 +2402,22 @@ public class TestQueryTaskService {
         targetHost.send(startPost);
 
         targetHost.testWait();
+
+        // node results are merged on the sort term
+        q.options.add(QueryOption.EXPAND_CONTENT);
+        task = QueryTask.create(q).setDirect(true);
+        QueryTask rsp = targetHost.getTestRequestSender().sendAndWait(
+                Operation.createPost(factoryUri).setBody(task), QueryTask.class);
+        assertTrue(rsp.results.documentLinks.size() > 0);
+        String previousName = null;
+        for (String link : rsp.results.documentLinks) {
+            ExampleServiceState state = Utils.fromJson(rsp.results.documents.get(link),
+                    ExampleServiceState.class);
+            if (previousName != null) {
+                assertTrue(previousName.compareTo(state.name) <= 0);
+            }
+            previousName = state.name;
+        }
     }
 
     private void validateBroadcastQueryPostFailure(VerificationHost targetHost, Operation o,
@@ -4598,6 +4800,56 @@ public class TestQueryTaskService {
         setUpHost();
         doTimeSnapshotTest(1, 3, false);
         doPaginatedTimeSnapshotTest(5, 3, false);
+        doMultipleResultsTimeSnapshotTest(5, 3);
+    }
+
+    private void doMultipleResultsTimeSnapshotTest(int count, int versionCount) throws Throwable {
+        List<URI> services = createQueryTargetServices(count);
+
+        QueryValidationServiceState newState = new QueryValidationServiceState();
+        newState.id = UUID.randomUUID().toString();
+        putStateOnQueryTargetServices(services, versionCount, newState);
+
+        // Mark a time to query for
+        long timeSnapshotBoundaryMicros = Utils.getNowMicrosUtc();
+
+        newState.id = UUID.randomUUID().toString();
+        putStateOnQueryTargetServices(services, versionCount, newState);
+
+        // all the results are returned in a single page, so the latest version of each document
+        // is resolved together
+        QueryTask queryTask = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(QueryValidationServiceState.class)
+                        .build())
+                .addOptions(EnumSet.of(QueryOption.EXPAND_CONTENT, QueryOption.TIME_SNAPSHOT))
+                .build();
+        queryTask.querySpec.timeSnapshotBoundaryMicros = timeSnapshotBoundaryMicros;
+
+        TestRequestSender sender = this.host.getTestRequestSender();
+        QueryTask result = sender.sendAndWait(Operation.createPost(this.host,
+                ServiceUriPaths.CORE_LOCAL_QUERY_TASKS).setBody(queryTask), QueryTask.class);
+        assertEquals(count, result.results.documentLinks.size());
+        for (Object document : result.results.documents.values()) {
+            QueryValidationServiceState state = Utils.fromJson(document,
+                    QueryValidationServiceState.class);
+            assertTrue(state.documentUpdateTimeMicros < timeSnapshotBoundaryMicros);
+            assertEquals(versionCount, state.documentVersion);
+        }
+
+        // without the time snapshot only the current version of each document is returned
+        queryTask.querySpec.options.remove(QueryOption.TIME_SNAPSHOT);
+        queryTask.querySpec.timeSnapshotBoundaryMicros = null;
+        result = sender.sendAndWait(Operation.createPost(this.host,
+                ServiceUriPaths.CORE_LOCAL_QUERY_TASKS).setBody(queryTask), QueryTask.class);
+        assertEquals(count, result.results.documentLinks.size());
+        for (Object document : result.results.documents.values()) {
+            QueryValidationServiceState state = Utils.fromJson(document,
+                    QueryValidationServiceState.class);
+            assertEquals(versionCount * 2, state.documentVersion);
+        }
+
+        deleteServices(services);
     }
 
     private void doTimeSnapshotTest(int serviceCount, int versionCount, boolean forceRemote)
@@ -17,6 +17,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,6 +31,7 @@ import com.vmware.xenon.common.ServiceDocumentDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.Builder;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 
@@ -144,6 +146,86 @@ public class TestQueryTaskUtils {
         assertEquals(result2.documentCount, mergeResult.documentCount);
     }
 
+    @Test
+    public void testMergeQueryResultsOnSortTerm() {
+        // each result is sorted on counter, descending, then on name, ascending
+        ServiceDocumentQueryResult result1 = createExampleQueryResult(
+                new long[] { 9, 5, 5, 1 }, new String[] { "a", "b", "d", "a" });
+        ServiceDocumentQueryResult result2 = createExampleQueryResult(
+                new long[] { 7, 5, 2 }, new String[] { "c", "c", "b" });
+        ServiceDocumentQueryResult result3 = createExampleQueryResult(new long[] {},
+                new String[] {});
+
+        QueryTask.QuerySpecification spec = createSortedSpec();
+        ServiceDocumentQueryResult mergeResult = QueryTaskUtils.mergeQueryResults(
+                Arrays.asList(result1, result2, result3), spec);
+
+        assertEquals(Long.valueOf(7), mergeResult.documentCount);
+        assertEquals(Arrays.asList("/9-a", "/7-c", "/5-b", "/5-c", "/5-d", "/2-b", "/1-a"),
+                mergeResult.documentLinks);
+        assertEquals(7, mergeResult.documents.size());
+
+        // with TOP_RESULTS the merge stops at the result limit
+        spec.options.add(QueryOption.TOP_RESULTS);
+        spec.resultLimit = 3;
+        mergeResult = QueryTaskUtils.mergeQueryResults(Arrays.asList(result1, result2), spec);
+        assertEquals(Long.valueOf(3), mergeResult.documentCount);
+        assertEquals(Arrays.asList("/9-a", "/7-c", "/5-b"), mergeResult.documentLinks);
+    }
+
+    @Test
+    public void testMergeQueryResultsKeepsLatestVersion() {
+        ServiceDocumentQueryResult result1 = createExampleQueryResult(
+                new long[] { 9, 5 }, new String[] { "a", "b" });
+        ServiceDocumentQueryResult result2 = createExampleQueryResult(
+                new long[] { 9, 5 }, new String[] { "a", "b" });
+        String link = "/5-b";
+        ExampleServiceState newer = Utils.fromJson(result2.documents.get(link),
+                ExampleServiceState.class);
+        newer.documentVersion = 2;
+        result2.documents.put(link, Utils.toJson(newer));
+
+        ServiceDocumentQueryResult mergeResult = QueryTaskUtils.mergeQueryResults(
+                Arrays.asList(result1, result2), createSortedSpec());
+
+        assertEquals(Arrays.asList("/9-a", link), mergeResult.documentLinks);
+        assertEquals(2, Utils.fromJson(mergeResult.documents.get(link),
+                ExampleServiceState.class).documentVersion);
+    }
+
+    private QueryTask.QuerySpecification createSortedSpec() {
+        QueryTask.QuerySpecification spec = new QueryTask.QuerySpecification();
+        spec.options = EnumSet.of(QueryOption.SORT, QueryOption.EXPAND_CONTENT);
+        spec.sortOrder = QueryTask.QuerySpecification.SortOrder.DESC;
+        spec.sortTerm = new QueryTask.QueryTerm();
+        spec.sortTerm.propertyName = ExampleServiceState.FIELD_NAME_COUNTER;
+        spec.sortTerm.propertyType = ServiceDocumentDescription.TypeName.LONG;
+        QueryTask.QueryTerm nameTerm = new QueryTask.QueryTerm();
+        nameTerm.propertyName = ExampleServiceState.FIELD_NAME_NAME;
+        nameTerm.propertyType = ServiceDocumentDescription.TypeName.STRING;
+        nameTerm.sortOrder = QueryTask.QuerySpecification.SortOrder.ASC;
+        spec.additionalSortTerms = Collections.singletonList(nameTerm);
+        return spec;
+    }
+
+    private ServiceDocumentQueryResult createExampleQueryResult(long[] counters, String[] names) {
+        ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();
+        result.documentCount = (long) counters.length;
+        result.documents = new HashMap<>();
+
+        for (int i = 0; i < counters.length; i++) {
+            ExampleServiceState state = new ExampleServiceState();
+            state.counter = counters[i];
+            state.name = names[i];
+            state.documentSelfLink = "/" + counters[i] + "-" + names[i];
+            state.documentVersion = 1;
+            result.documentLinks.add(state.documentSelfLink);
+            result.documents.put(state.documentSelfLink, Utils.toJson(state));
+        }
+
+        return result;
+    }
+
     private ServiceDocumentQueryResult createServiceDocumentQueryResult(int[] documentIndices) {
 
         ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();